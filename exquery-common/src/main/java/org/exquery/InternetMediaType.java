@@ -48,6 +48,7 @@ public enum InternetMediaType {
     
     TEXT_HTML(TEXT, "html"),
     TEXT_PLAIN(TEXT, "plain"),
+    TEXT_EVENT_STREAM(TEXT, "event-stream"),
     
     ANY("*");   //would be nice to use ANY(WILDCARD) here, but it would be a compiler error due to the forward reference
     
@@ -0,0 +1,438 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import java.util.Arrays;
+import static org.exquery.http.HeaderTokens.*;
+
+/**
+ * A compact, reusable representation of an HTTP Accept header.
+ * 
+ * <a href="https://tools.ietf.org/html/rfc7231#section-5.3.2">RFC 7231</a>
+ * 
+ * Unlike {@link AcceptHeader}, parsing does not create any objects,
+ * instead the media-ranges are recorded as offsets into the original
+ * header value in parallel arrays, along with their quality factors
+ * as integers in the range 0 to 1000, and an index of the media-ranges
+ * sorted by descending quality factor. The arrays are only ever grown,
+ * so an instance may be reused for many headers, for example by
+ * obtaining it through {@link #forCurrentThread()}.
+ * 
+ * Media-ranges are addressed by their rank in the sorted index,
+ * where rank 0 is the most preferred, i.e. the same order
+ * as {@link AcceptHeader#getAccepts()}.
+ * 
+ * Instances are not thread-safe.
+ *
+ * @author Adam Retter
+ */
+public class CompactAcceptHeader {
+    
+    /**
+     * The quality factor of a media-range without a weight
+     */
+    public final static int DEFAULT_QUALITY_FACTOR = HeaderTokens.MAX_QVALUE;
+    
+    private final static int INITIAL_CAPACITY = 8;
+    private final static int MAX_REG_NAME_LENGTH = 127;
+    
+    private final static char SYMBOL_TYPE_SUBTYPE_SEP = '/';
+    private final static char SYMBOL_WILDCARD = '*';
+    
+    private final static ThreadLocal<CompactAcceptHeader> THREAD_INSTANCE = new ThreadLocal<CompactAcceptHeader>() {
+        @Override
+        protected CompactAcceptHeader initialValue() {
+            return new CompactAcceptHeader();
+        }
+    };
+    
+    private String headerValue = null;
+    private int size = 0;
+    
+    //parallel arrays, indexed by the position of the media-range in the header
+    private int[] rangeStart = new int[INITIAL_CAPACITY];
+    private int[] subtypeStart = new int[INITIAL_CAPACITY];
+    private int[] rangeEnd = new int[INITIAL_CAPACITY];
+    private int[] parametersStart = new int[INITIAL_CAPACITY];
+    private int[] parametersEnd = new int[INITIAL_CAPACITY];
+    private int[] qualityFactor = new int[INITIAL_CAPACITY];
+    
+    //rank to position of the media-range in the header
+    private int[] sorted = new int[INITIAL_CAPACITY];
+    
+    /**
+     * Gets an instance which is reserved for the current thread
+     * 
+     * The instance is shared by all callers on the thread, so it
+     * must not be held on to after the header has been examined.
+     * 
+     * @return The instance for the current thread
+     */
+    public static CompactAcceptHeader forCurrentThread() {
+        return THREAD_INSTANCE.get();
+    }
+    
+    /**
+     * Parses the value of a HTTP Accept header, replacing
+     * any previously parsed value
+     * 
+     * @param headerValue The value of the HTTP Accept header
+     * 
+     * @return The number of media-ranges in the header
+     * 
+     * @throws IllegalArgumentException if the header value does not meet the HTTP 1.1 (<a href="https://tools.ietf.org/html/rfc7231#section-5.3.2">RFC 7231</a>) standard,
+     * in which case this instance is left empty
+     */
+    public int parse(final String headerValue) throws IllegalArgumentException {
+        this.headerValue = headerValue;
+        this.size = 0;
+        
+        try {
+            final int len = headerValue.length();
+            int idx = 0;
+            while(true) {
+
+                //skip empty list elements
+                idx = skipOWS(headerValue, idx);
+                while(idx < len && headerValue.charAt(idx) == SYMBOL_LIST_SEPARATOR) {
+                    idx = skipOWS(headerValue, idx + 1);
+                }
+                if(idx == len) {
+                    break;
+                }
+
+                idx = parseMediaRange(headerValue, idx);
+
+                idx = skipOWS(headerValue, idx);
+                if(idx < len) {
+                    if(headerValue.charAt(idx) != SYMBOL_LIST_SEPARATOR) {
+                        throw illegalCharacter(headerValue, idx, "whilst looking for the next media-range");
+                    }
+                    idx++;
+                }
+            }
+        } catch(final IllegalArgumentException iae) {
+            this.size = 0;
+            throw iae;
+        }
+        
+        sort();
+        
+        return size;
+    }
+    
+    /**
+     * Gets the header value which was last parsed
+     * 
+     * @return The header value, or null if nothing has been parsed
+     */
+    public String getHeaderValue() {
+        return headerValue;
+    }
+    
+    /**
+     * Gets the number of media-ranges in the header
+     * 
+     * @return The number of media-ranges
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Gets the quality factor of a media-range
+     * 
+     * @param rank The rank of the media-range
+     * 
+     * @return The quality factor multiplied by 1000, i.e. in the range 0 to 1000
+     */
+    public int getQualityFactor(final int rank) {
+        return qualityFactor[position(rank)];
+    }
+    
+    /**
+     * Gets a media-range
+     * 
+     * @param rank The rank of the media-range
+     * 
+     * @return The media-range, e.g. "text/*"
+     */
+    public String getMediaRange(final int rank) {
+        final int pos = position(rank);
+        return headerValue.substring(rangeStart[pos], rangeEnd[pos]);
+    }
+    
+    /**
+     * Gets the parameters (excluding the weight and any accept-ext)
+     * of a media-range
+     * 
+     * @param rank The rank of the media-range
+     * 
+     * @return The parameters as they appear in the header,
+     * e.g. "level=1", or null if there are no parameters
+     */
+    public String getParameters(final int rank) {
+        final int pos = position(rank);
+        if(parametersStart[pos] == -1) {
+            return null;
+        }
+        return headerValue.substring(parametersStart[pos], parametersEnd[pos]);
+    }
+    
+    /**
+     * Determines whether a media-range matches an Internet Media Type
+     * 
+     * A wildcard in the media-range matches one or more
+     * <a href="http://tools.ietf.org/html/rfc4288#section-4.2">reg-name-chars</a>.
+     * 
+     * @param rank The rank of the media-range
+     * @param mediaType The Internet Media Type, e.g. "text/html"
+     * 
+     * @return true if the media-range matches the Internet Media Type
+     */
+    public boolean matchesMediaType(final int rank, final String mediaType) {
+        final int pos = position(rank);
+        final int mediaTypeSep = mediaType.indexOf(SYMBOL_TYPE_SUBTYPE_SEP);
+        if(mediaTypeSep == -1) {
+            return false;
+        }
+        
+        return matchesRegName(headerValue, rangeStart[pos], subtypeStart[pos] - 1, mediaType, 0, mediaTypeSep)
+            && matchesRegName(headerValue, subtypeStart[pos], rangeEnd[pos], mediaType, mediaTypeSep + 1, mediaType.length());
+    }
+    
+    /**
+     * Determines if the media-range at a rank matches a Media Type
+     * 
+     * As {@link #matchesMediaType(int, String)}, but using the
+     * pre-split type and subtype of the Media Type
+     * 
+     * @param rank The rank of the media-range
+     * @param mediaType The Media Type, parameters are not considered
+     * 
+     * @return true if the media-range matches the Media Type
+     */
+    public boolean matchesMediaType(final int rank, final MediaType mediaType) {
+        final int pos = position(rank);
+        final String type = mediaType.getType();
+        final String subtype = mediaType.getSubtype();
+        
+        return matchesRegName(headerValue, rangeStart[pos], subtypeStart[pos] - 1, type, 0, type.length())
+            && matchesRegName(headerValue, subtypeStart[pos], rangeEnd[pos], subtype, 0, subtype.length());
+    }
+    
+    /**
+     * Creates an {@link AcceptHeader} for the header value
+     * which was last parsed, for use with APIs that
+     * require an {@link AcceptHeader}
+     * 
+     * @return The Accept header
+     */
+    public AcceptHeader toAcceptHeader() {
+        return new AcceptHeader(headerValue);
+    }
+    
+    private int position(final int rank) {
+        if(rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("Rank: " + rank + ", Size: " + size);
+        }
+        return sorted[rank];
+    }
+    
+    /**
+     * media-range = ( "*&#47;*" / ( type "/*" ) / ( type "/" subtype ) ) *( OWS ";" OWS parameter )
+     * accept-params = weight *( accept-ext )
+     * 
+     * @return The index after the media-range and its parameters
+     */
+    private int parseMediaRange(final String str, int idx) {
+        final int len = str.length();
+        
+        final int typeStart = idx;
+        idx = scanToken(str, idx);
+        if(idx == typeStart) {
+            throw illegalCharacter(str, idx, "whilst parsing type component of media-type");
+        }
+        if(idx == len || str.charAt(idx) != SYMBOL_TYPE_SUBTYPE_SEP) {
+            throw illegalCharacter(str, idx, "whilst looking for sub-type of media-type");
+        }
+        
+        final int typeEnd = idx;
+        final int subtypeIdx = idx + 1;
+        idx = scanToken(str, subtypeIdx);
+        if(idx == subtypeIdx) {
+            throw illegalCharacter(str, idx, "whilst parsing sub-type component of media-type");
+        }
+        final int end = idx;
+        
+        int paramsStart = -1;
+        int paramsEnd = -1;
+        int qf = DEFAULT_QUALITY_FACTOR;
+        boolean isAcceptExt = false;
+        
+        while(true) {
+            int p = skipOWS(str, idx);
+            if(p == len || str.charAt(p) == SYMBOL_LIST_SEPARATOR) {
+                break;
+            } else if(str.charAt(p) != SYMBOL_PARAMETER_SEP) {
+                throw illegalCharacter(str, p, "whilst parsing end of media-range");
+            }
+            p = skipOWS(str, p + 1);
+            
+            final int nameStart = p;
+            p = scanToken(str, p);
+            if(p == nameStart) {
+                throw illegalCharacter(str, p, "whilst parsing parameter");
+            }
+            
+            if(!isAcceptExt && p - nameStart == 1 && str.charAt(nameStart) == SYMBOL_WEIGHT_PARAM_NAME
+                    && p < len && str.charAt(p) == SYMBOL_PARAM_NAME_VALUE_SEP) {
+                //weight
+                final int valueStart = p + 1;
+                p = scanToken(str, valueStart);
+                qf = parseQValue(str, valueStart, p);
+                isAcceptExt = true;
+                
+            } else if(p < len && str.charAt(p) == SYMBOL_PARAM_NAME_VALUE_SEP) {
+                //parameter or accept-ext with value
+                p++;
+                if(p < len && str.charAt(p) == SYMBOL_DQUOTE) {
+                    p = scanQuotedString(str, p);
+                } else {
+                    final int valueStart = p;
+                    p = scanToken(str, p);
+                    if(p == valueStart) {
+                        throw illegalCharacter(str, p, "whilst parsing parameter value");
+                    }
+                }
+                if(!isAcceptExt) {
+                    if(paramsStart == -1) {
+                        paramsStart = nameStart;
+                    }
+                    paramsEnd = p;
+                }
+                
+            } else if(!isAcceptExt) {
+                throw illegalCharacter(str, p, "whilst parsing parameter");
+            }
+            
+            idx = p;
+        }
+        
+        add(typeStart, typeEnd + 1, end, paramsStart, paramsEnd, qf);
+        
+        return idx;
+    }
+    
+    private void add(final int start, final int subtype, final int end, final int paramsStart, final int paramsEnd, final int qf) {
+        if(size == rangeStart.length) {
+            final int capacity = size * 2;
+            rangeStart = Arrays.copyOf(rangeStart, capacity);
+            subtypeStart = Arrays.copyOf(subtypeStart, capacity);
+            rangeEnd = Arrays.copyOf(rangeEnd, capacity);
+            parametersStart = Arrays.copyOf(parametersStart, capacity);
+            parametersEnd = Arrays.copyOf(parametersEnd, capacity);
+            qualityFactor = Arrays.copyOf(qualityFactor, capacity);
+            sorted = Arrays.copyOf(sorted, capacity);
+        }
+        
+        rangeStart[size] = start;
+        subtypeStart[size] = subtype;
+        rangeEnd[size] = end;
+        parametersStart[size] = paramsStart;
+        parametersEnd[size] = paramsEnd;
+        qualityFactor[size] = qf;
+        size++;
+    }
+    
+    /**
+     * Sorts the index by descending quality factor, and then by
+     * media-range, in the same order as {@link AcceptHeader.Accept#compareTo(AcceptHeader.Accept)}
+     * 
+     * An insertion sort is used as headers have few media-ranges
+     */
+    private void sort() {
+        for(int i = 0; i < size; i++) {
+            final int pos = i;
+            int j = i - 1;
+            while(j >= 0 && compare(sorted[j], pos) > 0) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = pos;
+        }
+    }
+    
+    private int compare(final int pos1, final int pos2) {
+        if(qualityFactor[pos1] != qualityFactor[pos2]) {
+            return qualityFactor[pos2] - qualityFactor[pos1];
+        }
+        
+        final int len1 = rangeEnd[pos1] - rangeStart[pos1];
+        final int len2 = rangeEnd[pos2] - rangeStart[pos2];
+        for(int i = 0; i < Math.min(len1, len2); i++) {
+            final char c1 = headerValue.charAt(rangeStart[pos1] + i);
+            final char c2 = headerValue.charAt(rangeStart[pos2] + i);
+            if(c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return len1 - len2;
+    }
+    
+    private static boolean matchesRegName(final String range, final int rangeFrom, final int rangeTo, final String name, final int nameFrom, final int nameTo) {
+        if(rangeTo - rangeFrom == 1 && range.charAt(rangeFrom) == SYMBOL_WILDCARD) {
+            if(nameTo - nameFrom < 1 || nameTo - nameFrom > MAX_REG_NAME_LENGTH) {
+                return false;
+            }
+            for(int i = nameFrom; i < nameTo; i++) {
+                if(!isRegNameChar(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        return rangeTo - rangeFrom == nameTo - nameFrom
+            && range.regionMatches(rangeFrom, name, nameFrom, nameTo - nameFrom);
+    }
+    
+    private static boolean isRegNameChar(final char c) {
+        return
+                isDigit(c)
+                || (c >= 'a' && c <= 'z')
+                || c == '!'
+                || c == '#'
+                || c == '$'
+                || c == '&'
+                || c == '.'
+                || c == '+'
+                || c == '-'
+                || c == '^'
+                || c == '_';
+    }
+}
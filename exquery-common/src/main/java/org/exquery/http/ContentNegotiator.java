@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.exquery.http.HeaderTokens.*;
+
+/**
+ * Proactive negotiation of the charset, language or content-coding
+ * of a response from one of the HTTP Accept-Charset, Accept-Language
+ * or Accept-Encoding headers.
+ * 
+ * <a href="https://tools.ietf.org/html/rfc7231#section-5.3">RFC 7231: 5.3 Content Negotiation</a>
+ * 
+ * A negotiator is created for the values which the server has available,
+ * in order of the server's preference. The available value with the highest
+ * quality value in the header is chosen, and where several have the same quality
+ * value the one most preferred by the server is chosen.
+ * 
+ * As clients send the same few header values over and over, the choice
+ * for each header value is held in a bounded, Thread-Safe cache, so that
+ * the header is normally only parsed once.
+ *
+ * @author Adam Retter
+ */
+public class ContentNegotiator {
+    
+    /**
+     * The content-coding which means no encoding
+     */
+    public final static String IDENTITY = "identity";
+    
+    private final static char SYMBOL_WILDCARD = '*';
+    private final static char SYMBOL_LANGUAGE_SUBTAG_SEP = '-';
+    
+    /**
+     * Cached when there is no acceptable value,
+     * available values are never empty
+     */
+    private final static String NOT_ACCEPTABLE = "";
+    
+    /**
+     * The dimensions of a representation which may be negotiated
+     */
+    public enum Dimension {
+        CHARSET(HttpHeader.ACCEPT_CHARSET),
+        LANGUAGE(HttpHeader.ACCEPT_LANGUAGE),
+        ENCODING(HttpHeader.ACCEPT_ENCODING);
+        
+        private final HttpHeader acceptHeader;
+        
+        Dimension(final HttpHeader acceptHeader) {
+            this.acceptHeader = acceptHeader;
+        }
+        
+        /**
+         * Gets the HTTP header which the client uses
+         * to describe its preferences
+         * 
+         * @return The Accept-* header
+         */
+        public HttpHeader getAcceptHeader() {
+            return acceptHeader;
+        }
+    }
+    
+    private final Dimension dimension;
+    private final String[] available;
+    private final int maxCacheEntries;
+    private final ConcurrentMap<String, String> cache;
+    private final AtomicInteger cacheSize = new AtomicInteger();
+    
+    /**
+     * @param dimension The dimension to negotiate
+     * @param available The values which are available, in order of preference
+     * @param maxCacheEntries The maximum number of header values for which to cache the choice,
+     * or zero to disable caching
+     * 
+     * @throws IllegalArgumentException if there are no available values, an available value is empty,
+     * or maxCacheEntries is negative
+     */
+    public ContentNegotiator(final Dimension dimension, final List<String> available, final int maxCacheEntries) {
+        if(available.isEmpty()) {
+            throw new IllegalArgumentException("At least one value must be available");
+        }
+        if(maxCacheEntries < 0) {
+            throw new IllegalArgumentException("maxCacheEntries must not be negative");
+        }
+        
+        this.dimension = dimension;
+        this.available = available.toArray(new String[available.size()]);
+        for(final String value : this.available) {
+            if(value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("Available values must not be empty");
+            }
+        }
+        this.maxCacheEntries = maxCacheEntries;
+        this.cache = maxCacheEntries == 0 ? null : new ConcurrentHashMap<String, String>(Math.min(maxCacheEntries, 1024));
+    }
+    
+    /**
+     * Gets the dimension which is negotiated
+     * 
+     * @return The dimension
+     */
+    public Dimension getDimension() {
+        return dimension;
+    }
+    
+    /**
+     * Gets the values which are available
+     * 
+     * @return The available values, in order of preference
+     */
+    public List<String> getAvailable() {
+        final List<String> values = new ArrayList<String>(available.length);
+        Collections.addAll(values, available);
+        return values;
+    }
+    
+    /**
+     * Negotiates the value to use for the response to a HTTP Request
+     * 
+     * @param request The HTTP Request
+     * 
+     * @return The chosen value, or null if none of the available values are acceptable
+     */
+    public String negotiate(final HttpRequest request) {
+        return negotiate(request.getHeader(dimension.getAcceptHeader().getHeaderName()));
+    }
+    
+    /**
+     * Negotiates the value to use for a response
+     * 
+     * When the header is absent any value is acceptable, and so the most
+     * preferred available value is chosen, except for content-codings where
+     * identity is chosen if it is available. An invalid header is treated
+     * as though it were absent.
+     * 
+     * @param headerValue The value of the Accept-* header, or null if the header is absent
+     * 
+     * @return The chosen value, or null if none of the available values are acceptable
+     */
+    public String negotiate(/* @Nullable */ final String headerValue) {
+        if(headerValue == null) {
+            return chooseWithoutPreferences();
+        }
+        
+        if(cache != null) {
+            final String cached = cache.get(headerValue);
+            if(cached != null) {
+                return cached == NOT_ACCEPTABLE ? null : cached;
+            }
+        }
+        
+        String chosen;
+        try {
+            chosen = choose(headerValue);
+        } catch(final IllegalArgumentException iae) {
+            chosen = chooseWithoutPreferences();
+        }
+        
+        if(cache != null) {
+            if(cache.put(headerValue, chosen == null ? NOT_ACCEPTABLE : chosen) == null
+                    && cacheSize.incrementAndGet() > maxCacheEntries) {
+                evict();
+            }
+        }
+        
+        return chosen;
+    }
+    
+    private String chooseWithoutPreferences() {
+        if(dimension == Dimension.ENCODING) {
+            for(final String value : available) {
+                if(value.equalsIgnoreCase(IDENTITY)) {
+                    return value;
+                }
+            }
+        }
+        return available[0];
+    }
+    
+    /**
+     * Parses the header and chooses the available value
+     * 
+     * #( range [ weight ] )
+     */
+    private String choose(final String headerValue) throws IllegalArgumentException {
+        
+        //for each available value, the specificity of the range which best matches it, and that range's quality value
+        final int[] specificity = new int[available.length];
+        final int[] qvalue = new int[available.length];
+        for(int i = 0; i < available.length; i++) {
+            specificity[i] = -1;
+            //identity is acceptable unless it is excluded
+            qvalue[i] = dimension == Dimension.ENCODING && available[i].equalsIgnoreCase(IDENTITY) ? MAX_QVALUE : 0;
+        }
+        
+        final int len = headerValue.length();
+        int idx = 0;
+        while(true) {
+            
+            //skip empty list elements
+            idx = skipOWS(headerValue, idx);
+            while(idx < len && headerValue.charAt(idx) == SYMBOL_LIST_SEPARATOR) {
+                idx = skipOWS(headerValue, idx + 1);
+            }
+            if(idx == len) {
+                break;
+            }
+            
+            final int rangeStart = idx;
+            idx = scanToken(headerValue, idx);
+            if(idx == rangeStart) {
+                throw illegalCharacter(headerValue, idx, "whilst parsing range");
+            }
+            final int rangeEnd = idx;
+            
+            int q = MAX_QVALUE;
+            while(true) {
+                idx = skipOWS(headerValue, idx);
+                if(idx == len || headerValue.charAt(idx) == SYMBOL_LIST_SEPARATOR) {
+                    break;
+                } else if(headerValue.charAt(idx) != SYMBOL_PARAMETER_SEP) {
+                    throw illegalCharacter(headerValue, idx, "whilst parsing end of range");
+                }
+                idx = skipOWS(headerValue, idx + 1);
+                
+                final int nameStart = idx;
+                idx = scanToken(headerValue, idx);
+                if(idx == nameStart || idx == len || headerValue.charAt(idx) != SYMBOL_PARAM_NAME_VALUE_SEP) {
+                    throw illegalCharacter(headerValue, idx, "whilst parsing parameter");
+                }
+                final boolean isWeight = idx - nameStart == 1 && headerValue.charAt(nameStart) == SYMBOL_WEIGHT_PARAM_NAME;
+                
+                final int valueStart = ++idx;
+                if(idx < len && headerValue.charAt(idx) == SYMBOL_DQUOTE) {
+                    idx = scanQuotedString(headerValue, idx);
+                } else {
+                    idx = scanToken(headerValue, idx);
+                }
+                if(isWeight) {
+                    q = parseQValue(headerValue, valueStart, idx);
+                }
+            }
+            
+            for(int i = 0; i < available.length; i++) {
+                final int s = matches(headerValue, rangeStart, rangeEnd, available[i]);
+                if(s > specificity[i]) {
+                    specificity[i] = s;
+                    qvalue[i] = q;
+                }
+            }
+            
+            idx = skipOWS(headerValue, idx);
+        }
+        
+        int chosen = -1;
+        for(int i = 0; i < available.length; i++) {
+            if(qvalue[i] > 0 && (chosen == -1 || qvalue[i] > qvalue[chosen])) {
+                chosen = i;
+            }
+        }
+        
+        return chosen == -1 ? null : available[chosen];
+    }
+    
+    /**
+     * Determines how specifically a range from the header matches an available value
+     * 
+     * @return -1 if the range does not match, 0 if the range is a wildcard,
+     * otherwise the number of characters matched by the range
+     */
+    private int matches(final String range, final int from, final int to, final String value) {
+        final int rangeLen = to - from;
+        if(rangeLen == 1 && range.charAt(from) == SYMBOL_WILDCARD) {
+            return 0;
+        }
+        
+        if(rangeLen == value.length()) {
+            return range.regionMatches(true, from, value, 0, rangeLen) ? rangeLen : -1;
+        }
+        
+        //basic filtering of language tags, see https://tools.ietf.org/html/rfc4647#section-3.3.1
+        if(dimension == Dimension.LANGUAGE && rangeLen < value.length()
+                && value.charAt(rangeLen) == SYMBOL_LANGUAGE_SUBTAG_SEP
+                && range.regionMatches(true, from, value, 0, rangeLen)) {
+            return rangeLen;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Evicts entries until the cache is no
+     * larger than its maximum size
+     */
+    private void evict() {
+        final Iterator<String> itEntries = cache.keySet().iterator();
+        while(cacheSize.get() > maxCacheEntries && itEntries.hasNext()) {
+            itEntries.next();
+            itEntries.remove();
+            cacheSize.decrementAndGet();
+        }
+    }
+}
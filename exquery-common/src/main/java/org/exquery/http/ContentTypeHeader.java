@@ -26,11 +26,20 @@
  */
 package org.exquery.http;
 
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Representation of a HTTP Content-Type header
+ * 
+ * The value of the header, as a string and as bytes, is built
+ * once, when the header is created. Canonical instances are
+ * available from {@link #valueOf(MediaType, String)} and
+ * {@link #valueOf(String)}, so that sending a Content-Type
+ * header need not build any strings.
  *
  * @author Adam Retter
  */
@@ -51,8 +60,34 @@ public class ContentTypeHeader {
 
     private final static Pattern ptnInternetMediaType = Pattern.compile(InternetMediaType.mediaType_regExp);
     
+    private final static Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    private final static String NO_CHARSET = "";
+    
+    /**
+     * The maximum number of distinct charsets held
+     * for each Media Type in the canonical table
+     */
+    private final static int MAX_CHARSETS_PER_MEDIA_TYPE = 16;
+    
+    /**
+     * The maximum number of header values held in the canonical table
+     */
+    private final static int MAX_HEADER_VALUES = 256;
+    
+    /**
+     * Canonical headers for interned Media Types, keyed by Media Type and then charset
+     */
+    private final static ConcurrentMap<MediaType, ConcurrentMap<String, ContentTypeHeader>> CANONICAL = new ConcurrentHashMap<MediaType, ConcurrentMap<String, ContentTypeHeader>>();
+    
+    /**
+     * Canonical headers keyed by the header value they were parsed from
+     */
+    private final static ConcurrentMap<String, ContentTypeHeader> PARSED = new ConcurrentHashMap<String, ContentTypeHeader>();
+    
     private final String internetMediaType;
     private final String charset;
+    private final String headerValue;
+    private final byte[] headerValueBytes;
     
     /**
      * @param headerValue The value of the HTTP Content-Type header
@@ -71,6 +106,8 @@ public class ContentTypeHeader {
                 this.charset = null;
             }
         }
+        this.headerValue = buildHeaderValue(internetMediaType, charset);
+        this.headerValueBytes = headerValue.getBytes(HEADER_CHARSET);
     }
 
     /**
@@ -87,8 +124,87 @@ public class ContentTypeHeader {
             this.internetMediaType = internetMediaType;
             this.charset = charset;
         }
+        this.headerValue = buildHeaderValue(internetMediaType, charset);
+        this.headerValueBytes = headerValue.getBytes(HEADER_CHARSET);
+    }
+
+    /**
+     * @param mediaType The Media Type to use in the Content-Type header,
+     * any parameters of the Media Type are not used
+     * @param charset The Charset to use in the Content-Type header or null otherwise
+     */
+    public ContentTypeHeader(final MediaType mediaType, final String charset) {
+        this.internetMediaType = mediaType.getEssence().toString();
+        this.charset = charset;
+        this.headerValue = buildHeaderValue(internetMediaType, charset);
+        this.headerValueBytes = headerValue.getBytes(HEADER_CHARSET);
+    }
+    
+    /**
+     * Gets a Content-Type header for a Media Type and charset
+     * 
+     * If the Media Type is interned then the header is
+     * taken from, or added to, the table of canonical headers.
+     * 
+     * @param mediaType The Media Type to use in the Content-Type header,
+     * any parameters of the Media Type are not used
+     * @param charset The Charset to use in the Content-Type header or null otherwise
+     * 
+     * @return The Content-Type header
+     */
+    public static ContentTypeHeader valueOf(final MediaType mediaType, final String charset) {
+        final MediaType essence = mediaType.getEssence();
+        if(!essence.isInterned()) {
+            return new ContentTypeHeader(essence, charset);
+        }
+        
+        ConcurrentMap<String, ContentTypeHeader> charsets = CANONICAL.get(essence);
+        if(charsets == null) {
+            charsets = new ConcurrentHashMap<String, ContentTypeHeader>();
+            final ConcurrentMap<String, ContentTypeHeader> existing = CANONICAL.putIfAbsent(essence, charsets);
+            if(existing != null) {
+                charsets = existing;
+            }
+        }
+        
+        final String charsetKey = charset == null ? NO_CHARSET : charset;
+        ContentTypeHeader header = charsets.get(charsetKey);
+        if(header == null) {
+            header = new ContentTypeHeader(essence, charset);
+            if(charsets.size() < MAX_CHARSETS_PER_MEDIA_TYPE) {
+                final ContentTypeHeader existing = charsets.putIfAbsent(charsetKey, header);
+                if(existing != null) {
+                    header = existing;
+                }
+            }
+        }
+        return header;
     }
     
+    /**
+     * Gets a Content-Type header by parsing a header value
+     * 
+     * Headers are held in a bounded table of canonical headers
+     * keyed by the header value, so that repeatedly parsing the
+     * same header value does not repeat the work.
+     * 
+     * @param headerValue The value of the HTTP Content-Type header
+     * 
+     * @return The Content-Type header
+     * 
+     * @throws IllegalArgumentException If the headerValue is not a valid value for a Content-Type header
+     */
+    public static ContentTypeHeader valueOf(final String headerValue) throws IllegalArgumentException {
+        ContentTypeHeader header = PARSED.get(headerValue);
+        if(header == null) {
+            header = new ContentTypeHeader(headerValue);
+            if(PARSED.size() < MAX_HEADER_VALUES) {
+                PARSED.putIfAbsent(headerValue, header);
+            }
+        }
+        return header;
+    }
+
     /**
      * Returns the Internet Media Type component of the ContentType header
      * 
@@ -107,6 +223,18 @@ public class ContentTypeHeader {
         return charset;
     }
 
+    /**
+     * Returns the value for a HTTP Content-Type
+     * header, encoded as ISO-8859-1
+     * 
+     * The returned array is shared and must not be modified.
+     * 
+     * @return value for a HTTP Content-Type header
+     */
+    public byte[] getHeaderValueBytes() {
+        return headerValueBytes;
+    }
+
     /**
      * Returns a string representation as
      * would be used for the value of a HTTP
@@ -116,14 +244,20 @@ public class ContentTypeHeader {
      */
     @Override
     public String toString() {
-        final StringBuilder builder = new StringBuilder();
-        builder.append(getInternetMediaType());
-        if(charset != null && !charset.isEmpty()) {
-            builder
-                .append(CHARSET_SEPARATOR)
-                .append(" ")
-                .append(CHARSET_KEY).append(CHARSET_KEY_VALUE_SEPARATOR).append(charset);
+        return headerValue;
+    }
+    
+    private static String buildHeaderValue(final String internetMediaType, final String charset) {
+        if(charset == null || charset.isEmpty()) {
+            return internetMediaType;
         }
+        
+        final StringBuilder builder = new StringBuilder();
+        builder.append(internetMediaType);
+        builder
+            .append(CHARSET_SEPARATOR)
+            .append(" ")
+            .append(CHARSET_KEY).append(CHARSET_KEY_VALUE_SEPARATOR).append(charset);
         return builder.toString();
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+/**
+ * Scanning of the common syntax components of HTTP header values.
+ * 
+ * <a href="https://tools.ietf.org/html/rfc7230#section-3.2.6">RFC 7230: 3.2.6 Field Value Components</a>
+ * 
+ * Each of the scan methods takes the index to start scanning from
+ * and returns the index after the scanned component, so that
+ * header values may be parsed without creating any objects.
+ *
+ * @author Adam Retter
+ */
+final class HeaderTokens {
+    
+    final static char SYMBOL_LIST_SEPARATOR = ',';
+    final static char SYMBOL_PARAMETER_SEP = ';';
+    final static char SYMBOL_PARAM_NAME_VALUE_SEP = '=';
+    final static char SYMBOL_WEIGHT_PARAM_NAME = 'q';
+    final static char SYMBOL_DQUOTE = '"';
+    final static char SYMBOL_BACKSLASH = '\\';
+    
+    /**
+     * The maximum quality value, i.e. q=1
+     */
+    final static int MAX_QVALUE = 1000;
+    
+    private HeaderTokens() {
+    }
+    
+    /**
+     * token = 1*tchar
+     * 
+     * @return The index of the first character which is not a tchar
+     */
+    static int scanToken(final String str, int idx) {
+        while(idx < str.length() && isTokenChar(str.charAt(idx))) {
+            idx++;
+        }
+        return idx;
+    }
+    
+    /**
+     * OWS = *( SP / HTAB )
+     * 
+     * @return The index of the first character which is not whitespace
+     */
+    static int skipOWS(final String str, int idx) {
+        while(idx < str.length() && isOWS(str.charAt(idx))) {
+            idx++;
+        }
+        return idx;
+    }
+    
+    /**
+     * quoted-string = DQUOTE *( qdtext / quoted-pair ) DQUOTE
+     * 
+     * @param idx The index of the opening double-quote
+     * 
+     * @return The index after the closing double-quote
+     * 
+     * @throws IllegalArgumentException if the quoted-string is invalid
+     */
+    static int scanQuotedString(final String str, int idx) throws IllegalArgumentException {
+        idx++;
+        while(idx < str.length()) {
+            final char c = str.charAt(idx);
+            if(c == SYMBOL_DQUOTE) {
+                return idx + 1;
+            } else if(c == SYMBOL_BACKSLASH) {
+                if(idx + 1 < str.length() && isQuotedPair2(str.charAt(idx + 1))) {
+                    idx += 2;
+                } else {
+                    throw illegalCharacter(str, idx + 1, "whilst parsing quoted pair");
+                }
+            } else if(isQdText(c)) {
+                idx++;
+            } else {
+                throw illegalCharacter(str, idx, "whilst parsing quoted string");
+            }
+        }
+        throw new IllegalArgumentException("Unterminated quoted string at end of header");
+    }
+    
+    /**
+     * Parses a quality value
+     * 
+     * qvalue = ( "0" [ "." 0*3DIGIT ] ) / ( "1" [ "." 0*3("0") ] )
+     * 
+     * Digits after the third decimal place are tolerated but ignored.
+     * 
+     * @param from The index of the start of the qvalue
+     * @param to The index of the end of the qvalue
+     * 
+     * @return The quality value multiplied by 1000, i.e. in the range 0 to 1000
+     * 
+     * @throws IllegalArgumentException if the qvalue is invalid
+     */
+    static int parseQValue(final String str, final int from, final int to) throws IllegalArgumentException {
+        if(from == to || (str.charAt(from) != '0' && str.charAt(from) != '1')) {
+            throw illegalCharacter(str, from, "whilst parsing weight value");
+        }
+        
+        int qvalue = (str.charAt(from) - '0') * MAX_QVALUE;
+        if(from + 1 < to) {
+            if(str.charAt(from + 1) != '.') {
+                throw illegalCharacter(str, from + 1, "whilst parsing weight value");
+            }
+            int multiplier = MAX_QVALUE / 10;
+            for(int i = from + 2; i < to; i++) {
+                final char c = str.charAt(i);
+                if(!isDigit(c)) {
+                    throw illegalCharacter(str, i, "whilst parsing weight value");
+                }
+                qvalue += (c - '0') * multiplier;
+                multiplier /= 10;
+            }
+        }
+        
+        if(qvalue > MAX_QVALUE) {
+            throw new IllegalArgumentException("Weight value greater than 1 at index " + from);
+        }
+        return qvalue;
+    }
+    
+    static IllegalArgumentException illegalCharacter(final String str, final int idx, final String whilst) {
+        if(idx >= str.length()) {
+            return new IllegalArgumentException("Unexpected end of header " + whilst);
+        } else {
+            return new IllegalArgumentException("Illegal character at index " + idx + " " + whilst + ": '" + str.charAt(idx) + "'");
+        }
+    }
+    
+    static boolean isTokenChar(final char c) {
+        return
+                isDigit(c)
+                || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')  // ALPHA
+                || c == '!'
+                || c == '#'
+                || c == '$'
+                || c == '%'
+                || c == '&'
+                || c == '\''
+                || c == '*'
+                || c == '+'
+                || c == '-'
+                || c == '.'
+                || c == '^'
+                || c == '_'
+                || c == '`'
+                || c == '|'
+                || c == '~';
+    }
+
+    static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';  // DIGIT
+    }
+
+    static boolean isOWS(final char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isQdText(final char c) {
+        return
+                c == '\t'
+                || c == ' '
+                || c == 0x21
+                || (c >= 0x23 && c <= 0x5B)
+                || (c >= 0x5D && c <= 0x7E)
+                || isObsText(c);  // obs-text
+    }
+
+    private static boolean isObsText(final char c) {
+        return c >= 0x80 && c <= 0xFF;
+    }
+
+    private static boolean isQuotedPair2(final char c) {
+        return
+                c == '\t'
+                || c == ' '
+                || (c >= 0x20 && c <= 0x7F)  // VCHAR
+                || isObsText(c);  // obs-text
+    }
+}
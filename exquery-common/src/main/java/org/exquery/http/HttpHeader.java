@@ -35,7 +35,18 @@ package org.exquery.http;
  */
 public enum HttpHeader {
     CONTENT_TYPE("Content-Type"),
-    ACCEPT("Accept");
+    CONTENT_LENGTH("Content-Length"),
+    ALLOW("Allow"),
+    ACCEPT("Accept"),
+    ACCEPT_CHARSET("Accept-Charset"),
+    ACCEPT_LANGUAGE("Accept-Language"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    CONTENT_LANGUAGE("Content-Language"),
+    CONTENT_ENCODING("Content-Encoding"),
+    VARY("Vary"),
+    RETRY_AFTER("Retry-After"),
+    SERVER_TIMING("Server-Timing"),
+    CACHE_CONTROL("Cache-Control");
 
     private final String headerName;
     
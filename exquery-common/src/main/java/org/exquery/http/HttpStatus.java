@@ -73,6 +73,7 @@ public enum HttpStatus {
     Unsupported_Media_Type(415),
     Request_Range_Not_Satisfiable(416),
     Expectation_Failed(417),
+    Too_Many_Requests(429),
     
     Internal_Server_Error(500),
     Not_Implemented(501),
@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import static org.exquery.http.HeaderTokens.*;
+
+/**
+ * An immutable Internet Media Type, e.g. "application/xhtml+xml; charset=UTF-8"
+ * 
+ * <a href="https://tools.ietf.org/html/rfc7231#section-3.1.1.1">RFC 7231: 3.1.1.1 Media Type</a>
+ * 
+ * The type, subtype and parameter names are case-insensitive, and are
+ * held in lower-case. Media Types are split into their components
+ * and hashed once, when they are created.
+ * 
+ * Media Types which are declared by an application, e.g. in annotations,
+ * should be obtained through {@link #intern(String)}, which returns a single
+ * canonical instance for all equal Media Types. {@link #valueOf(String)} returns
+ * the canonical instance if there is one, and otherwise a new instance which
+ * is not interned, so that the values of HTTP headers sent by clients can
+ * never grow the set of canonical instances. Comparing a canonical instance
+ * with any equal Media Type is therefore a reference comparison.
+ *
+ * @author Adam Retter
+ */
+public final class MediaType {
+    
+    private final static char SYMBOL_TYPE_SUBTYPE_SEP = '/';
+    private final static char SYMBOL_SUFFIX_SEP = '+';
+    private final static String WILDCARD = "*";
+    private final static String[] NO_PARAMETERS = new String[0];
+    
+    /**
+     * Canonical instances, keyed by both their
+     * canonical form and the form they were interned from
+     */
+    private final static ConcurrentMap<String, MediaType> CANONICAL = new ConcurrentHashMap<String, MediaType>();
+    
+    static {
+        for(final org.exquery.InternetMediaType internetMediaType : org.exquery.InternetMediaType.values()) {
+            intern(internetMediaType.getMediaType());
+        }
+    }
+    
+    private final String type;
+    private final String subtype;
+    /* @Nullable */ private final String suffix;
+    private final String[] parameterNames;
+    private final String[] parameterValues;
+    private final String canonical;
+    private final int hashCode;
+    private final MediaType essence;
+    private final boolean interned;
+    
+    private MediaType(final String type, final String subtype, final String[] parameterNames, final String[] parameterValues, final String canonical, final boolean interned) {
+        this.type = type;
+        this.subtype = subtype;
+        final int suffixSep = subtype.lastIndexOf(SYMBOL_SUFFIX_SEP);
+        this.suffix = suffixSep > -1 && suffixSep < subtype.length() - 1 ? subtype.substring(suffixSep + 1) : null;
+        this.parameterNames = parameterNames;
+        this.parameterValues = parameterValues;
+        this.canonical = canonical;
+        this.hashCode = canonical.hashCode();
+        this.interned = interned;
+        
+        if(parameterNames.length == 0) {
+            this.essence = this;
+        } else {
+            final String essenceStr = type + SYMBOL_TYPE_SUBTYPE_SEP + subtype;
+            if(interned) {
+                this.essence = intern(essenceStr);
+            } else {
+                this.essence = valueOf(essenceStr);
+            }
+        }
+    }
+    
+    /**
+     * Gets the canonical instance of a Media Type,
+     * creating it if it does not yet exist
+     * 
+     * @param mediaType The Media Type
+     * 
+     * @return The canonical instance
+     * 
+     * @throws IllegalArgumentException if the Media Type is invalid
+     */
+    public static MediaType intern(final String mediaType) throws IllegalArgumentException {
+        MediaType canonicalMediaType = CANONICAL.get(mediaType);
+        if(canonicalMediaType == null) {
+            final MediaType parsed = parse(mediaType, true);
+            canonicalMediaType = CANONICAL.putIfAbsent(parsed.canonical, parsed);
+            if(canonicalMediaType == null) {
+                canonicalMediaType = parsed;
+            }
+            CANONICAL.putIfAbsent(mediaType, canonicalMediaType);
+        }
+        return canonicalMediaType;
+    }
+    
+    /**
+     * Gets a Media Type
+     * 
+     * @param mediaType The Media Type
+     * 
+     * @return The canonical instance of the Media Type if it has been interned,
+     * otherwise a new instance
+     * 
+     * @throws IllegalArgumentException if the Media Type is invalid
+     */
+    public static MediaType valueOf(final String mediaType) throws IllegalArgumentException {
+        final MediaType canonicalMediaType = CANONICAL.get(mediaType);
+        if(canonicalMediaType != null) {
+            return canonicalMediaType;
+        }
+        
+        final MediaType parsed = parse(mediaType, false);
+        final MediaType interned = CANONICAL.get(parsed.canonical);
+        return interned != null ? interned : parsed;
+    }
+    
+    /**
+     * media-type = type "/" subtype *( OWS ";" OWS parameter )
+     * parameter  = token "=" ( token / quoted-string )
+     */
+    private static MediaType parse(final String str, final boolean interned) throws IllegalArgumentException {
+        final int len = str.length();
+        
+        int idx = skipOWS(str, 0);
+        final int typeStart = idx;
+        idx = scanToken(str, idx);
+        if(idx == typeStart || idx == len || str.charAt(idx) != SYMBOL_TYPE_SUBTYPE_SEP) {
+            throw illegalCharacter(str, idx, "whilst parsing type of media-type");
+        }
+        final String type = str.substring(typeStart, idx).toLowerCase(Locale.ENGLISH);
+        
+        final int subtypeStart = ++idx;
+        idx = scanToken(str, idx);
+        if(idx == subtypeStart) {
+            throw illegalCharacter(str, idx, "whilst parsing sub-type of media-type");
+        }
+        final String subtype = str.substring(subtypeStart, idx).toLowerCase(Locale.ENGLISH);
+        
+        if(type.equals(WILDCARD) && !subtype.equals(WILDCARD)) {
+            throw new IllegalArgumentException("A wildcard type must have a wildcard sub-type: '" + str + "'");
+        }
+        
+        final StringBuilder canonical = new StringBuilder(len);
+        canonical.append(type).append(SYMBOL_TYPE_SUBTYPE_SEP).append(subtype);
+        
+        String[] parameterNames = NO_PARAMETERS;
+        String[] parameterValues = NO_PARAMETERS;
+        while(true) {
+            idx = skipOWS(str, idx);
+            if(idx == len) {
+                break;
+            } else if(str.charAt(idx) != SYMBOL_PARAMETER_SEP) {
+                throw illegalCharacter(str, idx, "whilst parsing end of media-type");
+            }
+            idx = skipOWS(str, idx + 1);
+            if(idx == len || str.charAt(idx) == SYMBOL_PARAMETER_SEP) {
+                //tolerate empty parameters
+                continue;
+            }
+            
+            final int nameStart = idx;
+            idx = scanToken(str, idx);
+            if(idx == nameStart || idx == len || str.charAt(idx) != SYMBOL_PARAM_NAME_VALUE_SEP) {
+                throw illegalCharacter(str, idx, "whilst parsing parameter of media-type");
+            }
+            final String name = str.substring(nameStart, idx).toLowerCase(Locale.ENGLISH);
+            
+            final int valueStart = ++idx;
+            final String value;
+            if(idx < len && str.charAt(idx) == SYMBOL_DQUOTE) {
+                idx = scanQuotedString(str, idx);
+                value = unquote(str, valueStart, idx);
+            } else {
+                idx = scanToken(str, idx);
+                if(idx == valueStart) {
+                    throw illegalCharacter(str, idx, "whilst parsing parameter value of media-type");
+                }
+                value = str.substring(valueStart, idx);
+            }
+            
+            parameterNames = append(parameterNames, name);
+            parameterValues = append(parameterValues, value);
+            canonical.append(SYMBOL_PARAMETER_SEP).append(name).append(SYMBOL_PARAM_NAME_VALUE_SEP);
+            appendValue(canonical, value);
+        }
+        
+        return new MediaType(type, subtype, parameterNames, parameterValues, canonical.toString(), interned);
+    }
+    
+    /**
+     * Gets the type
+     * 
+     * @return The type, e.g. "application"
+     */
+    public String getType() {
+        return type;
+    }
+    
+    /**
+     * Gets the subtype
+     * 
+     * @return The subtype, e.g. "xhtml+xml"
+     */
+    public String getSubtype() {
+        return subtype;
+    }
+    
+    /**
+     * Gets the structured syntax suffix of the subtype
+     * 
+     * <a href="https://tools.ietf.org/html/rfc6838#section-4.2.8">RFC 6838: 4.2.8 Structured Syntax Name Suffixes</a>
+     * 
+     * @return The suffix, e.g. "xml", or null if the subtype has no suffix
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+    
+    /**
+     * Gets the value of a parameter
+     * 
+     * @param name The name of the parameter
+     * 
+     * @return The value of the parameter, or null if there is no such parameter
+     */
+    public String getParameter(final String name) {
+        for(int i = 0; i < parameterNames.length; i++) {
+            if(parameterNames[i].equalsIgnoreCase(name)) {
+                return parameterValues[i];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Determines if the Media Type has any parameters
+     * 
+     * @return true if there are parameters
+     */
+    public boolean hasParameters() {
+        return parameterNames.length > 0;
+    }
+    
+    /**
+     * Gets the Media Type without its parameters
+     * 
+     * @return The Media Type without parameters, which is canonical if this is canonical
+     */
+    public MediaType getEssence() {
+        return essence;
+    }
+    
+    /**
+     * Determines if this is a canonical instance,
+     * i.e. one which was obtained through {@link #intern(String)}
+     * 
+     * @return true if this is a canonical instance
+     */
+    public boolean isInterned() {
+        return interned;
+    }
+    
+    /**
+     * Determines if the type is a wildcard, i.e. "*&#47;*"
+     * 
+     * @return true if the type is a wildcard
+     */
+    public boolean isWildcardType() {
+        return type.equals(WILDCARD);
+    }
+    
+    /**
+     * Determines if the subtype is a wildcard, e.g. "text/*"
+     * 
+     * @return true if the subtype is a wildcard
+     */
+    public boolean isWildcardSubtype() {
+        return subtype.equals(WILDCARD);
+    }
+    
+    /**
+     * Determines if this Media Type, which may have wildcards,
+     * includes another Media Type. Parameters are not considered.
+     * 
+     * @param other The other Media Type
+     * 
+     * @return true if the other Media Type is included by this Media Type
+     */
+    public boolean includes(final MediaType other) {
+        if(essence == other.essence) {
+            return true;
+        } else if(isWildcardType()) {
+            return true;
+        } else if(isWildcardSubtype()) {
+            return type.equals(other.type);
+        } else {
+            return essence.equals(other.essence);
+        }
+    }
+    
+    @Override
+    public boolean equals(final Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof MediaType)) {
+            return false;
+        }
+        final MediaType other = (MediaType)obj;
+        return hashCode == other.hashCode && canonical.equals(other.canonical);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+    
+    /**
+     * Gets the canonical form of the Media Type
+     * 
+     * @return The Media Type, with the type, subtype and
+     * parameter names in lower-case
+     */
+    @Override
+    public String toString() {
+        return canonical;
+    }
+    
+    private static String[] append(final String[] array, final String value) {
+        final String[] appended = new String[array.length + 1];
+        System.arraycopy(array, 0, appended, 0, array.length);
+        appended[array.length] = value;
+        return appended;
+    }
+    
+    /**
+     * @param from The index of the opening double-quote
+     * @param to The index after the closing double-quote
+     */
+    private static String unquote(final String str, final int from, final int to) {
+        final StringBuilder builder = new StringBuilder(to - from);
+        for(int i = from + 1; i < to - 1; i++) {
+            char c = str.charAt(i);
+            if(c == SYMBOL_BACKSLASH) {
+                c = str.charAt(++i);
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+    
+    private static void appendValue(final StringBuilder builder, final String value) {
+        if(!value.isEmpty() && scanToken(value, 0) == value.length()) {
+            builder.append(value);
+        } else {
+            builder.append(SYMBOL_DQUOTE);
+            for(int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if(c == SYMBOL_DQUOTE || c == SYMBOL_BACKSLASH) {
+                    builder.append(SYMBOL_BACKSLASH);
+                }
+                builder.append(c);
+            }
+            builder.append(SYMBOL_DQUOTE);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import java.util.List;
+import org.exquery.http.AcceptHeader.Accept;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compact HTTP Accept header representation
+ *
+ * @author Adam Retter
+ */
+public class CompactAcceptHeaderTest {
+
+    private final static String CHROME_ACCEPT_HEADER = "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.9";
+
+    @Test
+    public void singleMediaRange() {
+        final CompactAcceptHeader acceptHeader = new CompactAcceptHeader();
+
+        assertEquals(1, acceptHeader.parse("application/xml"));
+        assertEquals("application/xml", acceptHeader.getMediaRange(0));
+        assertEquals(CompactAcceptHeader.DEFAULT_QUALITY_FACTOR, acceptHeader.getQualityFactor(0));
+        assertNull(acceptHeader.getParameters(0));
+    }
+
+    @Test
+    public void parametersAndAcceptExts() {
+        final CompactAcceptHeader acceptHeader = new CompactAcceptHeader();
+
+        assertEquals(2, acceptHeader.parse("application/xml;x=y; a=\"b\\\"c\" , application/xhtml+xml;y=x;q=0.25;a;x=y"));
+        assertEquals("application/xml", acceptHeader.getMediaRange(0));
+        assertEquals("x=y; a=\"b\\\"c\"", acceptHeader.getParameters(0));
+        assertEquals("application/xhtml+xml", acceptHeader.getMediaRange(1));
+        assertEquals("y=x", acceptHeader.getParameters(1));
+        assertEquals(250, acceptHeader.getQualityFactor(1));
+    }
+
+    @Test
+    public void agrees_with_AcceptHeader() {
+        final CompactAcceptHeader acceptHeader = new CompactAcceptHeader();
+        acceptHeader.parse(CHROME_ACCEPT_HEADER);
+
+        final List<Accept> accepts = new AcceptHeader(CHROME_ACCEPT_HEADER).getAccepts();
+        assertEquals(accepts.size(), acceptHeader.size());
+        for(int rank = 0; rank < accepts.size(); rank++) {
+            assertEquals(accepts.get(rank).getMediaRange(), acceptHeader.getMediaRange(rank));
+            assertEquals(Math.round(accepts.get(rank).getQualityFactor() * 1000), acceptHeader.getQualityFactor(rank));
+        }
+    }
+
+    @Test
+    public void reuse() {
+        final CompactAcceptHeader acceptHeader = CompactAcceptHeader.forCurrentThread();
+        assertSame(acceptHeader, CompactAcceptHeader.forCurrentThread());
+
+        acceptHeader.parse("a/a,b/b,c/c,d/d,e/e,f/f,g/g,h/h,i/i;q=0");
+        assertEquals(9, acceptHeader.size());
+        assertEquals("i/i", acceptHeader.getMediaRange(8));
+
+        acceptHeader.parse("text/plain;q=0.5, text/html");
+        assertEquals(2, acceptHeader.size());
+        assertEquals("text/html", acceptHeader.getMediaRange(0));
+        assertEquals("text/plain", acceptHeader.getMediaRange(1));
+        assertEquals(500, acceptHeader.getQualityFactor(1));
+    }
+
+    @Test
+    public void matchesMediaType() {
+        final CompactAcceptHeader acceptHeader = new CompactAcceptHeader();
+        acceptHeader.parse("text/*;q=0.5, application/xml, */*;q=0.1");
+
+        assertTrue(acceptHeader.matchesMediaType(0, "application/xml"));
+        assertFalse(acceptHeader.matchesMediaType(0, "application/xhtml+xml"));
+        assertTrue(acceptHeader.matchesMediaType(1, "text/html"));
+        assertFalse(acceptHeader.matchesMediaType(1, "image/png"));
+        assertTrue(acceptHeader.matchesMediaType(2, "image/png"));
+        assertFalse(acceptHeader.matchesMediaType(2, "image"));
+    }
+
+    @Test
+    public void invalid_leaves_empty() {
+        final CompactAcceptHeader acceptHeader = new CompactAcceptHeader();
+        acceptHeader.parse("text/html");
+        try {
+            acceptHeader.parse("text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2");
+            fail("Expected IllegalArgumentException");
+        } catch(final IllegalArgumentException iae) {
+            assertEquals(0, acceptHeader.size());
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_weight() {
+        new CompactAcceptHeader().parse("text/html;q=2");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_parameter() {
+        new CompactAcceptHeader().parse("text/html;level");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import java.util.Arrays;
+import org.exquery.http.ContentNegotiator.Dimension;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for negotiation of charsets, languages and content-codings
+ *
+ * @author Adam Retter
+ */
+public class ContentNegotiatorTest {
+
+    @Test
+    public void charset() {
+        final ContentNegotiator negotiator = new ContentNegotiator(Dimension.CHARSET, Arrays.asList("UTF-8", "ISO-8859-1"), 10);
+
+        assertEquals("UTF-8", negotiator.negotiate((String)null));
+        assertEquals("ISO-8859-1", negotiator.negotiate("iso-8859-1, utf-8;q=0.7"));
+        assertEquals("UTF-8", negotiator.negotiate("iso-8859-1;q=0.5, *"));
+        assertEquals("UTF-8", negotiator.negotiate("iso-8859-1, utf-8"));
+        assertNull(negotiator.negotiate("utf-16, iso-8859-1;q=0"));
+    }
+
+    @Test
+    public void language() {
+        final ContentNegotiator negotiator = new ContentNegotiator(Dimension.LANGUAGE, Arrays.asList("en-GB", "fr", "de-CH"), 10);
+
+        assertEquals("fr", negotiator.negotiate("fr-CH, fr;q=0.9, en;q=0.8, de;q=0.7, *;q=0.5"));
+        assertEquals("en-GB", negotiator.negotiate("en"));
+        assertEquals("de-CH", negotiator.negotiate("de, en-US"));
+        assertEquals("fr", negotiator.negotiate("en;q=0, *"));
+        assertNull(negotiator.negotiate("en-GB-oed, es"));
+    }
+
+    @Test
+    public void encoding() {
+        final ContentNegotiator negotiator = new ContentNegotiator(Dimension.ENCODING, Arrays.asList("gzip", "deflate", ContentNegotiator.IDENTITY), 10);
+
+        assertEquals(ContentNegotiator.IDENTITY, negotiator.negotiate((String)null));
+        assertEquals(ContentNegotiator.IDENTITY, negotiator.negotiate(""));
+        assertEquals("gzip", negotiator.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", negotiator.negotiate("gzip;q=0.5, deflate"));
+        assertEquals(ContentNegotiator.IDENTITY, negotiator.negotiate("br"));
+        assertNull(negotiator.negotiate("br, identity;q=0"));
+        assertEquals("gzip", negotiator.negotiate("*"));
+    }
+
+    @Test
+    public void invalid_header_is_ignored() {
+        final ContentNegotiator negotiator = new ContentNegotiator(Dimension.ENCODING, Arrays.asList("gzip", ContentNegotiator.IDENTITY), 10);
+
+        assertEquals(ContentNegotiator.IDENTITY, negotiator.negotiate("gzip;q=2"));
+        assertEquals(ContentNegotiator.IDENTITY, negotiator.negotiate("gzip;;"));
+    }
+
+    @Test
+    public void cached() {
+        final ContentNegotiator negotiator = new ContentNegotiator(Dimension.CHARSET, Arrays.asList("UTF-8"), 1);
+
+        for(int i = 0; i < 3; i++) {
+            assertEquals("UTF-8", negotiator.negotiate("utf-8"));
+            assertNull(negotiator.negotiate("utf-16"));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void nothing_available() {
+        new ContentNegotiator(Dimension.CHARSET, Arrays.<String>asList(), 10);
+    }
+}
@@ -27,8 +27,11 @@
 package org.exquery.http;
 
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.exquery.InternetMediaType.ANY;
 import static org.exquery.InternetMediaType.APPLICATION_XML;
 
@@ -103,4 +106,31 @@ public class ContentTypeHeaderTest {
     public void rejects_wildcard_internetMediaType() {
         final ContentTypeHeader header = new ContentTypeHeader(ANY.getMediaType());
     }
+
+    @Test
+    public void canonical_header_for_interned_mediaType() {
+        final MediaType mediaType = MediaType.intern(APPLICATION_XML.getMediaType());
+        
+        final ContentTypeHeader header = ContentTypeHeader.valueOf(mediaType, "UTF-8");
+        
+        assertSame(header, ContentTypeHeader.valueOf(mediaType, "UTF-8"));
+        assertEquals(APPLICATION_XML.getMediaType() + "; charset=UTF-8", header.toString());
+        assertArrayEquals((APPLICATION_XML.getMediaType() + "; charset=UTF-8").getBytes(), header.getHeaderValueBytes());
+        assertEquals(APPLICATION_XML.getMediaType(), ContentTypeHeader.valueOf(mediaType, null).toString());
+    }
+    
+    @Test
+    public void header_for_uninterned_mediaType_is_not_canonical() {
+        final MediaType mediaType = MediaType.valueOf("application/vnd.exquery.content-type-header");
+        
+        assertNotSame(ContentTypeHeader.valueOf(mediaType, null), ContentTypeHeader.valueOf(mediaType, null));
+        assertEquals("application/vnd.exquery.content-type-header", ContentTypeHeader.valueOf(mediaType, null).toString());
+    }
+    
+    @Test
+    public void canonical_header_for_parsed_headerValue() {
+        final String headerValue = APPLICATION_XML.getMediaType() + "; charset=UTF-8";
+        
+        assertSame(ContentTypeHeader.valueOf(headerValue), ContentTypeHeader.valueOf(headerValue));
+    }
 }
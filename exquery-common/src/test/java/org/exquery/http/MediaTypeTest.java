@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.http;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the interned Media Type value type
+ *
+ * @author Adam Retter
+ */
+public class MediaTypeTest {
+
+    @Test
+    public void components() {
+        final MediaType mediaType = MediaType.valueOf("Application/XHTML+XML; Charset=UTF-8; a=\"b\\\"c\"");
+
+        assertEquals("application", mediaType.getType());
+        assertEquals("xhtml+xml", mediaType.getSubtype());
+        assertEquals("xml", mediaType.getSuffix());
+        assertEquals("UTF-8", mediaType.getParameter("charset"));
+        assertEquals("b\"c", mediaType.getParameter("a"));
+        assertNull(mediaType.getParameter("q"));
+        assertEquals("application/xhtml+xml;charset=UTF-8;a=\"b\\\"c\"", mediaType.toString());
+    }
+
+    @Test
+    public void noSuffix() {
+        assertNull(MediaType.valueOf("text/html").getSuffix());
+    }
+
+    @Test
+    public void internedInstancesAreIdentical() {
+        final MediaType interned = MediaType.intern("application/vnd.exquery+json");
+
+        assertSame(interned, MediaType.intern("application/vnd.exquery+json"));
+        assertSame(interned, MediaType.valueOf("application/vnd.exquery+json"));
+        assertSame(interned, MediaType.valueOf("APPLICATION/vnd.exquery+JSON"));
+        assertSame(interned, MediaType.valueOf("application/vnd.exquery+json; charset=UTF-8").getEssence());
+    }
+
+    @Test
+    public void commonMediaTypesAreInterned() {
+        assertSame(MediaType.intern("application/xml"), MediaType.valueOf(" application/xml "));
+    }
+
+    @Test
+    public void valueOfDoesNotIntern() {
+        final MediaType mediaType = MediaType.valueOf("application/vnd.exquery.not-interned");
+
+        assertNotSame(mediaType, MediaType.valueOf("application/vnd.exquery.not-interned"));
+        assertEquals(mediaType, MediaType.valueOf("application/vnd.exquery.not-interned"));
+        assertEquals(mediaType.hashCode(), MediaType.valueOf("application/vnd.exquery.not-interned").hashCode());
+    }
+
+    @Test
+    public void includes() {
+        final MediaType xml = MediaType.valueOf("application/xml; charset=UTF-8");
+
+        assertTrue(MediaType.intern("application/xml").includes(xml));
+        assertTrue(MediaType.intern("application/*").includes(xml));
+        assertTrue(MediaType.intern("*/*").includes(xml));
+        assertFalse(MediaType.intern("text/*").includes(xml));
+        assertFalse(MediaType.intern("application/json").includes(xml));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void missingSubtype() {
+        MediaType.valueOf("application");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void wildcardTypeWithSubtype() {
+        MediaType.valueOf("*/xml");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidParameter() {
+        MediaType.valueOf("application/xml; charset");
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq;
+
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+
+/**
+ * A RESTful XQuery Service which may be serviced asynchronously
+ *
+ * @author Adam Retter
+ */
+public interface AsyncRestXqService extends RestXqService {
+    
+    /**
+     * Service the incoming HttpRequest with the RESTXQ Service
+     * and write the response to the HttpResponse, without
+     * waiting for the Resource Function to be executed
+     * 
+     * @param httpRequest The request to service
+     * @param httpResponse The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param completion Notified once the response has been written, or if an unexpected error occured whilst processing the request
+     */
+    public void serviceAsync(final HttpRequest httpRequest, final HttpResponse httpResponse, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion);
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals that work on behalf of a request should stop,
+ * e.g. because the deadline for the request has expired
+ * 
+ * Cancellation is cooperative, long running work should
+ * check {@link #isCancelled()} periodically, or register
+ * a listener to be notified of the cancellation.
+ *
+ * @author Adam Retter
+ */
+public interface RestXqCancellationToken {
+    
+    /**
+     * Determines whether the work has been cancelled
+     * 
+     * @return true if the work has been cancelled
+     */
+    public boolean isCancelled();
+    
+    /**
+     * Gets the time remaining before the work is cancelled
+     * 
+     * @param unit The unit of the result
+     * 
+     * @return The remaining time, or zero or less if the work has been cancelled
+     */
+    public long getRemainingTime(final TimeUnit unit);
+    
+    /**
+     * Adds a listener to be notified when the work is cancelled
+     * 
+     * If the work has already been cancelled then the listener
+     * is notified immediately. The listener may be notified
+     * on a different thread to the one doing the work.
+     * 
+     * @param listener The listener to notify
+     */
+    public void addCancellationListener(final Runnable listener);
+}
@@ -93,6 +93,31 @@ public class RestXqErrorCodes extends ErrorCodes {
     public static RestXqErrorCode RQST0045 = new RestXqErrorCode("RQST0045", "It is a static error if a REST cookie-param Annotations default value is present and is not a super-type of function parameter to which it maps");
     public static RestXqErrorCode RQST0046 = new RestXqErrorCode("RQST0046", "It is a static error if a REST cookie-param Annotation function parameter does not describe a function parameter");
     
+    //negotiated-param annotation errors
+    public static RestXqErrorCode RQST0047 = new RestXqErrorCode("RQST0047", "It is a static error if a REST negotiated-param Annotation does not have two literal values");
+    public static RestXqErrorCode RQST0048 = new RestXqErrorCode("RQST0048", "It is a static error if a REST negotiated-param Annotations negotiated field is not one of the literal Strings 'charset', 'language' or 'encoding'");
+    public static RestXqErrorCode RQST0049 = new RestXqErrorCode("RQST0049", "It is a static error if a REST negotiated-param Annotations function parameter is not a literal String or is an empty literal String");
+    public static RestXqErrorCode RQST0050 = new RestXqErrorCode("RQST0050", "It is a static error if a REST negotiated-param Annotation function parameter does not describe a function parameter");
+    
+    //max-concurrency annotation errors
+    public static RestXqErrorCode RQST0051 = new RestXqErrorCode("RQST0051", "It is a static error if a REST max-concurrency Annotation does not have exactly one literal value");
+    public static RestXqErrorCode RQST0052 = new RestXqErrorCode("RQST0052", "It is a static error if a REST max-concurrency Annotations literal value is not a positive integer");
+    
+    //priority annotation errors
+    public static RestXqErrorCode RQST0053 = new RestXqErrorCode("RQST0053", "It is a static error if a REST priority Annotation does not have exactly one literal value");
+    public static RestXqErrorCode RQST0054 = new RestXqErrorCode("RQST0054", "It is a static error if a REST priority Annotations literal value is not an integer between 0 and 9");
+    
+    //deadline annotation errors
+    public static RestXqErrorCode RQST0055 = new RestXqErrorCode("RQST0055", "It is a static error if a REST deadline Annotation does not have exactly one literal value");
+    public static RestXqErrorCode RQST0056 = new RestXqErrorCode("RQST0056", "It is a static error if a REST deadline Annotations literal value is not a positive integer");
+    
+    //rate-limit annotation errors
+    public static RestXqErrorCode RQST0057 = new RestXqErrorCode("RQST0057", "It is a static error if a REST rate-limit Annotation does not have exactly two literal values");
+    public static RestXqErrorCode RQST0058 = new RestXqErrorCode("RQST0058", "It is a static error if a REST rate-limit Annotations literal values are not positive integers");
+    
+    //repeated annotation errors
+    public static RestXqErrorCode RQST0059 = new RestXqErrorCode("RQST0059", "It is a static error if a Resource Function has more than one REST max-concurrency, priority, deadline or rate-limit Annotation of the same name");
+    
     //consumes annotation errors
     public static RestXqErrorCode RQST0027 = new RestXqErrorCode("RQST0027", "It is a static error if a REST consumes Annotation is empty");
     public static RestXqErrorCode RQST0028 = new RestXqErrorCode("RQST0028", "It is a static error if a REST consumes Annotation contains literals which are not strings");
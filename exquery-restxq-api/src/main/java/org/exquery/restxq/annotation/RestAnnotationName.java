@@ -51,7 +51,13 @@ public enum RestAnnotationName {
     formparam("form-param"),
     queryparam("query-param"),
     headerparam("header-param"),
-    cookieparam("cookie-param");
+    cookieparam("cookie-param"),
+    negotiatedparam("negotiated-param"),
+
+    maxconcurrency("max-concurrency"),
+    priority,
+    deadline,
+    ratelimit("rate-limit");
 
     final QName name;
     RestAnnotationName() {
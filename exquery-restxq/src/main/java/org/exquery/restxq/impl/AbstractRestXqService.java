@@ -28,15 +28,22 @@ package org.exquery.restxq.impl;
 
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.exquery.http.AcceptHeader;
 import org.exquery.http.AcceptHeader.Accept;
 import org.exquery.http.HttpMethod;
 import org.exquery.http.HttpRequest;
 import org.exquery.http.HttpResponse;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.AsyncRestXqService;
+import org.exquery.restxq.CancellableResourceFunctionExecuter;
 import org.exquery.restxq.ResourceFunction;
 import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
 import org.exquery.restxq.RestXqService;
 import org.exquery.restxq.RestXqServiceException;
 import org.exquery.restxq.RestXqServiceSerializer;
@@ -44,7 +51,11 @@ import org.exquery.restxq.annotation.ConsumesAnnotation;
 import org.exquery.restxq.annotation.HttpMethodAnnotation;
 import org.exquery.restxq.annotation.HttpMethodWithBodyAnnotation;
 import org.exquery.restxq.annotation.ParameterAnnotation;
+import org.exquery.restxq.annotation.PathAnnotation;
 import org.exquery.restxq.annotation.ProducesAnnotation;
+import org.exquery.restxq.impl.annotation.NegotiatedParameterAnnotation;
+import org.exquery.restxq.impl.annotation.PathAnnotationImpl;
+import org.exquery.restxq.impl.serialization.AbstractRestXqServiceSerializer;
 import org.exquery.xdm.type.SequenceImpl;
 import org.exquery.xdm.type.StringTypedValue;
 import org.exquery.xquery.FunctionSignature;
@@ -55,14 +66,48 @@ import org.exquery.xquery.TypedArgumentValue;
  *
  * @author Adam Retter
  */
-public abstract class AbstractRestXqService implements RestXqService {
+public abstract class AbstractRestXqService implements AsyncRestXqService {
 
+    /**
+     * Indicates that servicing a request has no deadline
+     */
+    public final static long NO_DEADLINE = -1;
+    
     private final ResourceFunction resourceFunction;
+    private volatile long defaultDeadline = NO_DEADLINE;
 
     public AbstractRestXqService(final ResourceFunction resourceFunction) {
         this.resourceFunction = resourceFunction;
     }
     
+    /**
+     * Gets the time which may be taken to service a request,
+     * either from the %rest:deadline annotation of the Resource Function,
+     * or else the default deadline of the registry
+     * 
+     * Once the deadline expires the result of the Resource Function is closed,
+     * and the request is answered with a 504 Gateway Timeout response.
+     * 
+     * @return The deadline in milliseconds, or {@link #NO_DEADLINE}
+     */
+    public long getDeadline() {
+        if(resourceFunction instanceof ResourceFunctionImpl) {
+            final ResourceFunctionImpl resourceFunctionImpl = (ResourceFunctionImpl)resourceFunction;
+            if(resourceFunctionImpl.getDeadlineAnnotation() != null) {
+                return resourceFunctionImpl.getDeadlineAnnotation().getDeadline();
+            }
+        }
+        return defaultDeadline;
+    }
+    
+    /**
+     * @param defaultDeadline The deadline in milliseconds to use when the Resource Function
+     * does not have a %rest:deadline annotation, or {@link #NO_DEADLINE}
+     */
+    void setDefaultDeadline(final long defaultDeadline) {
+        this.defaultDeadline = defaultDeadline;
+    }
+    
     /**
      * @see org.exquery.restxq.RestXqService#getResourceFunction() 
      */
@@ -107,13 +152,13 @@ public abstract class AbstractRestXqService implements RestXqService {
             
             //3) check we can consume the request
             if(!canServiceConsume(request)) {
-                //TODO HTTP 415 - in RESTXQServiceRegistry.findService, if no service matches we should be able to return a HTTP reason!
+                //NOTE: see RestXqServiceRegistryImpl#selectService for the HTTP 415 reason
                 return false;
             }
                 
             //4) check we can produce the request
             if(!canServiceProduce(request)) {
-                //TODO HTTP 406 - in RESTXQServiceRegistry.findService, if no service matches we should be able to return a HTTP reason!
+                //NOTE: see RestXqServiceRegistryImpl#selectService for the HTTP 406 reason
                 return false;
             }
                 
@@ -124,12 +169,29 @@ public abstract class AbstractRestXqService implements RestXqService {
     }
 
     private boolean canServiceConsume(final HttpRequest request) {
-        if(getResourceFunction().getConsumesAnnotations().isEmpty()) {
+        return canConsume(getResourceFunction(), request);
+    }
+    
+    private boolean canServiceProduce(final HttpRequest request) {
+        return canProduce(getResourceFunction(), request);
+    }
+    
+    /**
+     * Determines if a Resource Function can consume the request
+     * i.e. matches the Content-Type header
+     * 
+     * @param resourceFunction The Resource Function
+     * @param request The HTTP Request
+     * 
+     * @return true if the Resource Function can consume the request
+     */
+    static boolean canConsume(final ResourceFunction resourceFunction, final HttpRequest request) {
+        if(resourceFunction.getConsumesAnnotations().isEmpty()) {
             
             //if there are no constraints we can consume anything
             return true;
         } else {
-            for(final ConsumesAnnotation consumesAnnotation : getResourceFunction().getConsumesAnnotations()) {
+            for(final ConsumesAnnotation consumesAnnotation : resourceFunction.getConsumesAnnotations()) {
                 if(consumesAnnotation.matchesMediaType(request)) {
                     return true;
                 }
@@ -139,13 +201,22 @@ public abstract class AbstractRestXqService implements RestXqService {
         return false;
     }
     
-    private boolean canServiceProduce(final HttpRequest request) {
-        if(getResourceFunction().getProducesAnnotations().isEmpty()) {
+    /**
+     * Determines if a Resource Function can produce a response for the request
+     * i.e. matches the Accept header
+     * 
+     * @param resourceFunction The Resource Function
+     * @param request The HTTP Request
+     * 
+     * @return true if the Resource Function can produce a response for the request
+     */
+    static boolean canProduce(final ResourceFunction resourceFunction, final HttpRequest request) {
+        if(resourceFunction.getProducesAnnotations().isEmpty()) {
             
             //if there are no constraints we can produce anything
             return true;
         } else {
-            for(final ProducesAnnotation producesAnnotation : getResourceFunction().getProducesAnnotations()) {
+            for(final ProducesAnnotation producesAnnotation : resourceFunction.getProducesAnnotations()) {
                 if(producesAnnotation.matchesMediaType(request)) {
                     return true;
                 }
@@ -184,15 +255,254 @@ public abstract class AbstractRestXqService implements RestXqService {
      */
     @Override
     public void service(final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer) throws RestXqServiceException {
+        service(request, response, resourceFunctionExecuter, restXqServiceSerializer, null);
+    }
+    
+    /**
+     * Service the request and send the response
+     * 
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param pathParameters Path parameters which have already been extracted from the request path,
+     * or null if they should be extracted from the request
+     * 
+     * @throws RestXqServiceException If an unexpected error occured whilst processing the request
+     */
+    public void service(final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final Map<String, String> pathParameters) throws RestXqServiceException {
+        
+        final NegotiatedContent negotiatedContent = negotiateContent(request, restXqServiceSerializer);
+        final Set<TypedArgumentValue> typedArgumentValues = extractParameters(request, pathParameters, negotiatedContent);
+        service(request, response, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues);
+    }
+    
+    /**
+     * Service the request with parameters which have already
+     * been extracted from it, and send the response
+     */
+    void service(final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final NegotiatedContent negotiatedContent, final Set<TypedArgumentValue> typedArgumentValues) throws RestXqServiceException {
+        final long timeout = getDeadline();
+        if(timeout == NO_DEADLINE) {
+            final Sequence result = resourceFunctionExecuter.execute(getResourceFunction(), typedArgumentValues, request);
+            serializeResult(request, response, restXqServiceSerializer, negotiatedContent, result);
+            return;
+        }
+        
+        final RestXqDeadline deadline = new RestXqDeadline(timeout, TimeUnit.MILLISECONDS);
+        try {
+            final Sequence result;
+            if(resourceFunctionExecuter instanceof CancellableResourceFunctionExecuter) {
+                result = deadline.executed(((CancellableResourceFunctionExecuter)resourceFunctionExecuter).execute(getResourceFunction(), typedArgumentValues, request, deadline));
+            } else {
+                result = deadline.executed(resourceFunctionExecuter.execute(getResourceFunction(), typedArgumentValues, request));
+            }
+            
+            //NOTE: if the deadline expired whilst executing, the result is released, not serialized
+            if(!deadline.isCancelled()) {
+                serializeResult(request, deadline.guard(response), restXqServiceSerializer, negotiatedContent, result);
+                return;
+            }
+            release(result);
+        } catch(final RestXqServiceException rqse) {
+            if(!deadline.isCancelled()) {
+                throw rqse;
+            }
+        } catch(final RuntimeException re) {
+            if(!deadline.isCancelled()) {
+                throw re;
+            }
+        } finally {
+            deadline.close();
+        }
+        
+        deadline.sendGatewayTimeout(response);
+    }
+    
+    /**
+     * Service the request and send the response asynchronously
+     * 
+     * @see org.exquery.restxq.AsyncRestXqService#serviceAsync(org.exquery.http.HttpRequest, org.exquery.http.HttpResponse, org.exquery.restxq.AsyncResourceFunctionExecuter, org.exquery.restxq.RestXqServiceSerializer, org.exquery.restxq.RestXqCompletion)
+     */
+    @Override
+    public void serviceAsync(final HttpRequest request, final HttpResponse response, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion) {
+        serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, null, completion);
+    }
+    
+    /**
+     * Service the request and send the response asynchronously
+     * 
+     * The parameters are extracted from the request on the calling thread,
+     * the result of the Resource Function is serialized on the thread which
+     * completes its execution. The calling thread does not wait for either.
+     * 
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param pathParameters Path parameters which have already been extracted from the request path,
+     * or null if they should be extracted from the request
+     * @param completion Notified once the response has been written, or if an unexpected error occured whilst processing the request
+     */
+    public void serviceAsync(final HttpRequest request, final HttpResponse response, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final Map<String, String> pathParameters, final RestXqCompletion<Void> completion) {
+        
+        final NegotiatedContent negotiatedContent;
+        final Set<TypedArgumentValue> typedArgumentValues;
+        try {
+            negotiatedContent = negotiateContent(request, restXqServiceSerializer);
+            typedArgumentValues = extractParameters(request, pathParameters, negotiatedContent);
+        } catch(final RestXqServiceException rqse) {
+            completion.failed(rqse);
+            return;
+        } catch(final RuntimeException re) {
+            completion.failed(new RestXqServiceException(re.getMessage(), re));
+            return;
+        }
+        
+        serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues, completion);
+    }
+    
+    /**
+     * Service the request asynchronously with parameters which
+     * have already been extracted from it, and send the response
+     */
+    void serviceAsync(final HttpRequest request, final HttpResponse response, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final NegotiatedContent negotiatedContent, final Set<TypedArgumentValue> typedArgumentValues, final RestXqCompletion<Void> completion) {
+        final long timeout = getDeadline();
+        final RestXqDeadline deadline = timeout == NO_DEADLINE ? null : new RestXqDeadline(timeout, TimeUnit.MILLISECONDS);
+        
+        //the request is answered once, either by the execution or by the expiry of the deadline
+        final AtomicBoolean answered = new AtomicBoolean();
+        if(deadline != null) {
+            deadline.addCancellationListener(new Runnable() {
+                @Override
+                public void run() {
+                    if(answered.compareAndSet(false, true)) {
+                        //expired whilst executing
+                        sendGatewayTimeout(deadline, response, completion);
+                    }
+                }
+            });
+        }
         
-        final Set<TypedArgumentValue> typedArgumentValues = extractParameters(request);
+        try {
+            resourceFunctionExecuter.execute(getResourceFunction(), typedArgumentValues, request, new RestXqCompletion<Sequence>() {
+                @Override
+                public void completed(final Sequence result) {
+                    if(!answered.compareAndSet(false, true)) {
+                        //already answered on expiry, just release the result
+                        release(result);
+                        return;
+                    }
+                    
+                    try {
+                        if(deadline == null) {
+                            serializeResult(request, response, restXqServiceSerializer, negotiatedContent, result);
+                        } else {
+                            serializeResult(request, deadline.guard(response), restXqServiceSerializer, negotiatedContent, deadline.executed(result));
+                        }
+                    } catch(final RestXqServiceException rqse) {
+                        AbstractRestXqService.failed(deadline, response, completion, rqse);
+                        return;
+                    } catch(final RuntimeException re) {
+                        AbstractRestXqService.failed(deadline, response, completion, new RestXqServiceException(re.getMessage(), re));
+                        return;
+                    }
+                    
+                    if(deadline != null) {
+                        deadline.close();
+                    }
+                    completion.completed(null);
+                }
 
-        Sequence result = null;
+                @Override
+                public void failed(final RestXqServiceException e) {
+                    if(answered.compareAndSet(false, true)) {
+                        AbstractRestXqService.failed(deadline, response, completion, e);
+                    }
+                }
+            });
+        } catch(final RuntimeException re) {
+            //the executer failed before it could accept the completion
+            if(answered.compareAndSet(false, true)) {
+                failed(deadline, response, completion, new RestXqServiceException(re.getMessage(), re));
+            }
+        }
+    }
+    
+    /**
+     * Reports the failure of servicing a request asynchronously,
+     * unless the failure was caused by the expiry of its deadline
+     */
+    private static void failed(final RestXqDeadline deadline, final HttpResponse response, final RestXqCompletion<Void> completion, final RestXqServiceException e) {
+        if(deadline != null && deadline.isCancelled()) {
+            sendGatewayTimeout(deadline, response, completion);
+        } else {
+            if(deadline != null) {
+                deadline.close();
+            }
+            completion.failed(e);
+        }
+    }
+    
+    private static void sendGatewayTimeout(final RestXqDeadline deadline, final HttpResponse response, final RestXqCompletion<Void> completion) {
+        deadline.close();
         try {
-            result = resourceFunctionExecuter.execute(getResourceFunction(), typedArgumentValues, request);
-            restXqServiceSerializer.serialize(result, getResourceFunction().getSerializationAnnotations(), response);
+            deadline.sendGatewayTimeout(response);
+        } catch(final RestXqServiceException rqse) {
+            completion.failed(rqse);
+            return;
+        }
+        completion.completed(null);
+    }
+    
+    /**
+     * Negotiates the charset, language and content-coding,
+     * if the serializer is configured to
+     * 
+     * @return The negotiated content, or null if there is no negotiation
+     */
+    NegotiatedContent negotiateContent(final HttpRequest request, final RestXqServiceSerializer restXqServiceSerializer) {
+        if(restXqServiceSerializer instanceof AbstractRestXqServiceSerializer) {
+            final RestXqContentNegotiation contentNegotiation = ((AbstractRestXqServiceSerializer)restXqServiceSerializer).getContentNegotiation();
+            if(contentNegotiation != null) {
+                return contentNegotiation.negotiate(request);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Closes the result of a Resource Function which will not be serialized
+     * 
+     * @param result The result of the Resource Function, or null
+     */
+    private static void release(final Sequence result) {
+        if(result != null) {
+            try {
+                result.close();
+            } catch(final Sequence.SequenceException se) {
+                //nothing more can be done, the request has expired
+            }
+        }
+    }
+    
+    /**
+     * Serializes the result of the Resource Function, and then closes it
+     * 
+     * @param result The result of the Resource Function
+     */
+    private void serializeResult(final HttpRequest request, final HttpResponse response, final RestXqServiceSerializer restXqServiceSerializer, final NegotiatedContent negotiatedContent, final Sequence result) throws RestXqServiceException {
+        try {
+            if(request.getMethod() == HttpMethod.HEAD && restXqServiceSerializer instanceof AbstractRestXqServiceSerializer) {
+                //never serialize the body for a HEAD request
+                ((AbstractRestXqServiceSerializer)restXqServiceSerializer).serializeHead(result, getResourceFunction().getSerializationAnnotations(), negotiatedContent, response);
+            } else if(negotiatedContent != null) {
+                ((AbstractRestXqServiceSerializer)restXqServiceSerializer).serialize(result, getResourceFunction().getSerializationAnnotations(), negotiatedContent, response);
+            } else {
+                restXqServiceSerializer.serialize(result, getResourceFunction().getSerializationAnnotations(), response);
+            }
         } finally {
-            if (result != null) {
+            if(result != null) {
                 try {
                     result.close();
                 } catch (final Sequence.SequenceException e) {
@@ -229,12 +539,52 @@ public abstract class AbstractRestXqService implements RestXqService {
      * @throws RestXqServiceException If an error occurred whilst processing the request
      */
     protected Set<TypedArgumentValue> extractParameters(final HttpRequest request) throws RestXqServiceException {
+        return extractParameters(request, null);
+    }
+    
+    /**
+     * Extract Annotated Parameters from the Request
+     * 
+     * @param request The HTTP Request to process
+     * @param pathParameters Path parameters which have already been extracted from the request path,
+     * or null if they should be extracted from the request
+     *
+     * @return The Map of Parameters to values, the key is the parameter
+     * name and the value is the sequence of values extracted from the request
+     *
+     * @throws RestXqServiceException If an error occurred whilst processing the request
+     */
+    protected Set<TypedArgumentValue> extractParameters(final HttpRequest request, final Map<String, String> pathParameters) throws RestXqServiceException {
+        return extractParameters(request, pathParameters, null);
+    }
+    
+    /**
+     * Extract Annotated Parameters from the Request
+     * 
+     * @param request The HTTP Request to process
+     * @param pathParameters Path parameters which have already been extracted from the request path,
+     * or null if they should be extracted from the request
+     * @param negotiatedContent The content negotiated for the response, or null if there was no negotiation
+     *
+     * @return The Map of Parameters to values, the key is the parameter
+     * name and the value is the sequence of values extracted from the request
+     *
+     * @throws RestXqServiceException If an error occurred whilst processing the request
+     */
+    protected Set<TypedArgumentValue> extractParameters(final HttpRequest request, final Map<String, String> pathParameters, final NegotiatedContent negotiatedContent) throws RestXqServiceException {
         
         final Set<TypedArgumentValue> paramNameValues = new HashSet<TypedArgumentValue>();
         
         //extract the param mappings for the Path Annotation
         if(getResourceFunction().getPathAnnotation() != null) {
-            for(final Entry<String, String> pathParameter : getResourceFunction().getPathAnnotation().extractPathParameters(request.getPath()).entrySet()) {
+            final Map<String, String> pathParamNameAndValues;
+            if(pathParameters != null) {
+                pathParamNameAndValues = pathParameters;
+            } else {
+                pathParamNameAndValues = getResourceFunction().getPathAnnotation().extractPathParameters(request.getPath());
+            }
+            
+            for(final Entry<String, String> pathParameter : pathParamNameAndValues.entrySet()) {
 
                 paramNameValues.add(new TypedArgumentValue<String>(){
                     @Override
@@ -274,7 +624,13 @@ public abstract class AbstractRestXqService implements RestXqService {
         
         //extract the param mappings for Param Annotations
         for(final ParameterAnnotation parameterAnnotation : getResourceFunction().getParameterAnnotations()) {
-            final TypedArgumentValue typedArgumentValue = parameterAnnotation.extractParameter(request);
+            final TypedArgumentValue typedArgumentValue;
+            if(parameterAnnotation instanceof NegotiatedParameterAnnotation) {
+                final NegotiatedParameterAnnotation negotiatedParameterAnnotation = (NegotiatedParameterAnnotation)parameterAnnotation;
+                typedArgumentValue = negotiatedParameterAnnotation.extractParameter(negotiatedContent == null ? null : negotiatedContent.get(negotiatedParameterAnnotation.getDimension()));
+            } else {
+                typedArgumentValue = parameterAnnotation.extractParameter(request);
+            }
             paramNameValues.add(new TypedArgumentValue(){
 
                 @Override
@@ -380,6 +736,11 @@ public abstract class AbstractRestXqService implements RestXqService {
         }
         
         long result = otherPathSpecificityMetric - pathSpecificityMetric;
+        if(result == 0) {
+            //a template constrained by a regular expression is more specific than one which is not
+            result = getPathConstraintMetric(other) - getPathConstraintMetric(this);
+        }
+        
         if(result > 0) {
             return 1;
         } else if(result < 0) {
@@ -388,4 +749,13 @@ public abstract class AbstractRestXqService implements RestXqService {
             return 0;
         }
     }
+    
+    private static long getPathConstraintMetric(final RestXqService service) {
+        final PathAnnotation pathAnnotation = service.getResourceFunction().getPathAnnotation();
+        if(pathAnnotation instanceof PathAnnotationImpl) {
+            return ((PathAnnotationImpl)pathAnnotation).getPathConstraintMetric();
+        } else {
+            return 0;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.CountDownLatch;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqServiceException;
+
+/**
+ * A Completion which allows a thread
+ * to wait for the outcome of an asynchronous operation
+ *
+ * @param <T> The type of the result of the operation
+ * 
+ * @author Adam Retter
+ */
+public class BlockingRestXqCompletion<T> implements RestXqCompletion<T> {
+    
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile T result = null;
+    private volatile RestXqServiceException failure = null;
+
+    @Override
+    public void completed(final T result) {
+        this.result = result;
+        latch.countDown();
+    }
+
+    @Override
+    public void failed(final RestXqServiceException e) {
+        this.failure = e;
+        latch.countDown();
+    }
+    
+    /**
+     * Waits for the operation to complete
+     * 
+     * @return The result of the operation
+     * 
+     * @throws RestXqServiceException If the operation failed, or
+     * the thread was interrupted whilst waiting
+     */
+    public T get() throws RestXqServiceException {
+        try {
+            latch.await();
+        } catch(final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RestXqServiceException("Interrupted whilst waiting for completion", ie);
+        }
+        
+        if(failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+
+/**
+ * A HTTP Response which is held in memory, so that
+ * it may later be sent as one or more real responses
+ *
+ * @author Adam Retter
+ */
+public class BufferedHttpResponse implements HttpResponse {
+    
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private HttpStatus status = null;
+    private String reason = null;
+    private String contentType = null;
+    
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return body;
+    }
+
+    /**
+     * A buffered response is never sent to the client
+     * 
+     * @return false
+     */
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void setHeader(final String httpHeaderName, final String value) {
+        for(final String[] header : headers) {
+            if(header[0].equalsIgnoreCase(httpHeaderName)) {
+                header[1] = value;
+                return;
+            }
+        }
+        headers.add(new String[] { httpHeaderName, value });
+    }
+
+    @Override
+    public void setStatus(final HttpStatus status, final String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    @Override
+    public void setStatus(final HttpStatus status) {
+        setStatus(status, null);
+    }
+
+    @Override
+    public boolean containsHeader(final String httpHeaderName) {
+        for(final String[] header : headers) {
+            if(header[0].equalsIgnoreCase(httpHeaderName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void setContentType(final String contentType) {
+        this.contentType = contentType;
+    }
+    
+    /**
+     * Gets the status of the response
+     * 
+     * @return The status, or null if no status was set
+     */
+    public HttpStatus getStatus() {
+        return status;
+    }
+    
+    /**
+     * Gets the reason phrase of the response
+     * 
+     * @return The reason phrase, or null if no reason phrase was set
+     */
+    public String getReason() {
+        return reason;
+    }
+    
+    /**
+     * Gets the content type of the response
+     * 
+     * @return The content type, or null if no content type was set
+     */
+    public String getContentType() {
+        return contentType;
+    }
+    
+    /**
+     * Gets the names of the headers of the response, in the order they were first set
+     * 
+     * @return The names of the headers
+     */
+    public List<String> getHeaderNames() {
+        final List<String> headerNames = new ArrayList<String>(headers.size());
+        for(final String[] header : headers) {
+            headerNames.add(header[0]);
+        }
+        return headerNames;
+    }
+    
+    /**
+     * Gets the value of a header of the response
+     * 
+     * @param httpHeaderName The name of the header
+     * 
+     * @return The value of the header, or null if the header was not set
+     */
+    public String getHeader(final String httpHeaderName) {
+        for(final String[] header : headers) {
+            if(header[0].equalsIgnoreCase(httpHeaderName)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the body of the response
+     * 
+     * @return The bytes of the body
+     */
+    public byte[] getBody() {
+        return body.toByteArray();
+    }
+    
+    /**
+     * Sends the buffered response as a real response
+     * 
+     * This may be called many times, and from many threads,
+     * once nothing more is being written to the buffered response.
+     * 
+     * @param response The response to send the buffered response as
+     * 
+     * @throws IOException If the body could not be written to the response
+     */
+    public void sendTo(final HttpResponse response) throws IOException {
+        if(status != null) {
+            if(reason != null) {
+                response.setStatus(status, reason);
+            } else {
+                response.setStatus(status);
+            }
+        }
+        
+        for(final String[] header : headers) {
+            response.setHeader(header[0], header[1]);
+        }
+        
+        if(contentType != null) {
+            response.setContentType(contentType);
+        }
+        
+        if(body.size() > 0) {
+            final OutputStream os = response.getOutputStream();
+            body.writeTo(os);
+            os.flush();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import org.exquery.http.ContentNegotiator.Dimension;
+
+/**
+ * The charset, language and content-coding chosen
+ * for the response to a HTTP Request
+ *
+ * @see RestXqContentNegotiation
+ *
+ * @author Adam Retter
+ */
+public final class NegotiatedContent {
+    
+    /* @Nullable */ private final String charset;
+    /* @Nullable */ private final String language;
+    /* @Nullable */ private final String encoding;
+    
+    /**
+     * @param charset The chosen charset, or null if not negotiated or not acceptable
+     * @param language The chosen language, or null if not negotiated or not acceptable
+     * @param encoding The chosen content-coding, or null if not negotiated or not acceptable
+     */
+    public NegotiatedContent(final String charset, final String language, final String encoding) {
+        this.charset = charset;
+        this.language = language;
+        this.encoding = encoding;
+    }
+    
+    /**
+     * Gets the chosen charset
+     * 
+     * @return The charset, or null if not negotiated or not acceptable
+     */
+    public String getCharset() {
+        return charset;
+    }
+    
+    /**
+     * Gets the chosen language
+     * 
+     * @return The language, or null if not negotiated or not acceptable
+     */
+    public String getLanguage() {
+        return language;
+    }
+    
+    /**
+     * Gets the chosen content-coding
+     * 
+     * @return The content-coding, or null if not negotiated or not acceptable
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+    
+    /**
+     * Gets the chosen value for a dimension
+     * 
+     * @param dimension The dimension
+     * 
+     * @return The chosen value, or null if not negotiated or not acceptable
+     */
+    public String get(final Dimension dimension) {
+        switch(dimension) {
+            case CHARSET:
+                return charset;
+            case LANGUAGE:
+                return language;
+            case ENCODING:
+                return encoding;
+            default:
+                throw new IllegalArgumentException("Unknown dimension: " + dimension);
+        }
+    }
+}
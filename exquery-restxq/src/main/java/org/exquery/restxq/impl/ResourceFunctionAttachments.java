@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+
+/**
+ * Holds state attached to Resource Functions by a
+ * {@link org.exquery.restxq.ResourceFunctionExecuter}, e.g.
+ * a compiled or prepared query, or a {@link ResourceFunctionContextPool},
+ * so that it need not be looked up or recompiled for each execution
+ * 
+ * Each attachment is identified by a typed {@link Key}. The attachments
+ * of a Resource Function are invalidated when it is de-registered from
+ * the registry, and any attachments which are {@link AutoCloseable}
+ * are then closed. An execution which is still in-flight may attach
+ * to the Resource Function after it has been invalidated, such an
+ * attachment is not kept, instead it is closed at once, as otherwise
+ * it would never be closed. The Resource Function may be attached to
+ * again once it is registered again.
+ * 
+ * The attachments are thread-safe.
+ *
+ * @author Adam Retter
+ */
+public class ResourceFunctionAttachments implements RestXqServiceRegistryListener {
+    
+    private final ConcurrentMap<ResourceFunction, ConcurrentMap<Key<?>, Object>> attachments = new ConcurrentHashMap<ResourceFunction, ConcurrentMap<Key<?>, Object>>();
+    
+    //the Resource Functions which have been invalidated, and not registered since
+    private final Map<ResourceFunction, Boolean> invalidated = Collections.synchronizedMap(new WeakHashMap<ResourceFunction, Boolean>());
+    
+    /**
+     * Gets an attachment of a Resource Function
+     * 
+     * @param resourceFunction The Resource Function
+     * @param key The key of the attachment
+     * 
+     * @return The attachment, or null if there is no such attachment
+     */
+    public <T> T get(final ResourceFunction resourceFunction, final Key<T> key) {
+        final ConcurrentMap<Key<?>, Object> functionAttachments = attachments.get(resourceFunction);
+        if(functionAttachments == null) {
+            return null;
+        }
+        return key.cast(functionAttachments.get(key));
+    }
+    
+    /**
+     * Gets an attachment of a Resource Function,
+     * creating and attaching it if there is no such attachment
+     * 
+     * The factory may be called by several threads at the same time,
+     * in which case only one of the attachments is kept, and the others
+     * are closed if they are {@link AutoCloseable}.
+     * 
+     * @param resourceFunction The Resource Function
+     * @param key The key of the attachment
+     * @param factory Creates the attachment
+     * 
+     * @return The attachment
+     */
+    public <T> T get(final ResourceFunction resourceFunction, final Key<T> key, final Factory<T> factory) {
+        final T attachment = get(resourceFunction, key);
+        if(attachment != null) {
+            return attachment;
+        }
+        
+        final T newAttachment = factory.create(resourceFunction);
+        final T existing = putIfAbsent(resourceFunction, key, newAttachment);
+        if(existing != null) {
+            close(newAttachment);
+            return existing;
+        }
+        return newAttachment;
+    }
+    
+    /**
+     * Attaches an attachment to a Resource Function,
+     * if there is not already such an attachment
+     * 
+     * @param resourceFunction The Resource Function
+     * @param key The key of the attachment
+     * @param attachment The attachment
+     * 
+     * @return The existing attachment, or null if the attachment was attached
+     */
+    public <T> T putIfAbsent(final ResourceFunction resourceFunction, final Key<T> key, final T attachment) {
+        final ConcurrentMap<Key<?>, Object> functionAttachments = getFunctionAttachments(resourceFunction);
+        final T existing = key.cast(functionAttachments.putIfAbsent(key, attachment));
+        if(existing == null) {
+            discardIfInvalidated(resourceFunction, functionAttachments, key, attachment);
+        }
+        return existing;
+    }
+    
+    /**
+     * Attaches an attachment to a Resource Function,
+     * replacing any existing such attachment
+     * 
+     * The replaced attachment is not closed.
+     * 
+     * @param resourceFunction The Resource Function
+     * @param key The key of the attachment
+     * @param attachment The attachment
+     * 
+     * @return The replaced attachment, or null if there was no such attachment
+     */
+    public <T> T put(final ResourceFunction resourceFunction, final Key<T> key, final T attachment) {
+        final ConcurrentMap<Key<?>, Object> functionAttachments = getFunctionAttachments(resourceFunction);
+        final T replaced = key.cast(functionAttachments.put(key, attachment));
+        discardIfInvalidated(resourceFunction, functionAttachments, key, attachment);
+        return replaced;
+    }
+    
+    /**
+     * Removes an attachment from a Resource Function
+     * 
+     * The removed attachment is not closed.
+     * 
+     * @param resourceFunction The Resource Function
+     * @param key The key of the attachment
+     * 
+     * @return The removed attachment, or null if there was no such attachment
+     */
+    public <T> T remove(final ResourceFunction resourceFunction, final Key<T> key) {
+        final ConcurrentMap<Key<?>, Object> functionAttachments = attachments.get(resourceFunction);
+        if(functionAttachments == null) {
+            return null;
+        }
+        return key.cast(functionAttachments.remove(key));
+    }
+    
+    /**
+     * Removes and closes all of the attachments of a Resource Function
+     * 
+     * @param resourceFunction The Resource Function
+     */
+    public void invalidate(final ResourceFunction resourceFunction) {
+        //NOTE: marked before the attachments are removed, so that a racing attachment is always discarded
+        invalidated.put(resourceFunction, Boolean.TRUE);
+        
+        final ConcurrentMap<Key<?>, Object> functionAttachments = attachments.remove(resourceFunction);
+        if(functionAttachments != null) {
+            for(final Map.Entry<Key<?>, Object> attachment : functionAttachments.entrySet()) {
+                if(functionAttachments.remove(attachment.getKey(), attachment.getValue())) {
+                    close(attachment.getValue());
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void registered(final RestXqService service) {
+        //attachments are made by the executer, once registered again
+        invalidated.remove(service.getResourceFunction());
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        invalidate(service.getResourceFunction());
+    }
+    
+    private ConcurrentMap<Key<?>, Object> getFunctionAttachments(final ResourceFunction resourceFunction) {
+        ConcurrentMap<Key<?>, Object> functionAttachments = attachments.get(resourceFunction);
+        if(functionAttachments == null) {
+            functionAttachments = new ConcurrentHashMap<Key<?>, Object>();
+            final ConcurrentMap<Key<?>, Object> existing = attachments.putIfAbsent(resourceFunction, functionAttachments);
+            if(existing != null) {
+                functionAttachments = existing;
+            }
+        }
+        return functionAttachments;
+    }
+    
+    /**
+     * Closes an attachment which was made after its Resource Function
+     * was invalidated, unless the invalidation already closed it
+     */
+    private void discardIfInvalidated(final ResourceFunction resourceFunction, final ConcurrentMap<Key<?>, Object> functionAttachments, final Key<?> key, final Object attachment) {
+        if(invalidated.containsKey(resourceFunction)) {
+            attachments.remove(resourceFunction, functionAttachments);
+            if(functionAttachments.remove(key, attachment)) {
+                close(attachment);
+            }
+        }
+    }
+    
+    private static void close(final Object attachment) {
+        if(attachment instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)attachment).close();
+            } catch(final Exception e) {
+                //nothing more can be done, the attachment is no longer used
+            }
+        }
+    }
+    
+    /**
+     * Identifies an attachment and its type
+     * 
+     * Keys are compared by identity, so each kind
+     * of attachment should have a single key.
+     * 
+     * @param <T> The type of the attachment
+     */
+    public final static class Key<T> {
+        private final String name;
+        
+        /**
+         * @param name The name of the attachment, used for diagnostics
+         */
+        public Key(final String name) {
+            this.name = name;
+        }
+        
+        /**
+         * Gets the name of the attachment
+         * 
+         * @return The name of the attachment
+         */
+        public String getName() {
+            return name;
+        }
+        
+        @SuppressWarnings("unchecked")
+        T cast(final Object attachment) {
+            //NOTE: attachments may only be made through a key of the same type
+            return (T)attachment;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+    
+    /**
+     * Creates an attachment for a Resource Function
+     * 
+     * @param <T> The type of the attachment
+     */
+    public interface Factory<T> {
+        
+        /**
+         * Creates an attachment
+         * 
+         * @param resourceFunction The Resource Function that the attachment is for
+         * 
+         * @return The attachment
+         */
+        public T create(final ResourceFunction resourceFunction);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.exquery.ExQueryException;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.impl.annotation.RestAnnotationFactory;
+import org.exquery.xquery3.Annotation;
+
+/**
+ * Compiles many Resource Functions in parallel
+ * 
+ * Each function declaration has its RESTXQ Annotations
+ * instantiated and initialised (i.e. validated against the
+ * function signature and compiled) by {@link RestAnnotationFactory},
+ * before a Resource Function is created from them by
+ * {@link ResourceFunctionFactory}. The declarations are divided
+ * between the workers of a Fork/Join Pool.
+ * 
+ * Failures, including unexpected runtime exceptions from an
+ * annotation, do not stop the compilation, instead they are
+ * collected so that all of the problems with a set of
+ * XQuery modules may be reported at once. The compiled
+ * Resource Functions can then be wrapped as Services
+ * and registered in bulk with
+ * {@link RestXqServiceRegistryImpl#register(Iterable)}.
+ *
+ * @author Adam Retter
+ */
+public class ResourceFunctionCompiler {
+    
+    /**
+     * The number of declarations below which
+     * a task compiles them itself rather than
+     * forking further tasks
+     */
+    private final static int SEQUENTIAL_THRESHOLD = 32;
+    
+    private final ForkJoinPool pool;
+    
+    /**
+     * Creates a compiler which uses a Fork/Join Pool
+     * shared by all such compilers
+     */
+    public ResourceFunctionCompiler() {
+        this(Pool.POOL);
+    }
+    
+    /**
+     * @param pool The Fork/Join Pool on which to compile
+     */
+    public ResourceFunctionCompiler(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Compiles the Resource Functions of the function declarations
+     * 
+     * Declarations which have no RESTXQ Annotations are
+     * not Resource Functions and so are skipped.
+     * 
+     * @param declarations The function declarations to compile
+     * 
+     * @return The result of the compilation, the Resource Functions
+     * are in the same order as their declarations
+     */
+    public Result compile(final List<FunctionDeclaration> declarations) {
+        final FunctionDeclaration[] input = declarations.toArray(new FunctionDeclaration[declarations.size()]);
+        final ResourceFunction[] compiled = new ResourceFunction[input.length];
+        final ExQueryException[] errors = new ExQueryException[input.length];
+        
+        if(input.length > 0) {
+            pool.invoke(new CompileTask(input, compiled, errors, 0, input.length));
+        }
+        
+        final List<ResourceFunction> resourceFunctions = new ArrayList<ResourceFunction>(input.length);
+        final List<Failure> failures = new ArrayList<Failure>();
+        for(int i = 0; i < input.length; i++) {
+            if(errors[i] != null) {
+                failures.add(new Failure(input[i], errors[i]));
+            } else if(compiled[i] != null) {
+                resourceFunctions.add(compiled[i]);
+            }
+        }
+        
+        return new Result(resourceFunctions, failures);
+    }
+    
+    /**
+     * Compiles the Resource Function of a single function declaration
+     * 
+     * @param declaration The function declaration
+     * 
+     * @return The Resource Function, or null if the function
+     * declaration has no RESTXQ Annotations
+     * 
+     * @throws ExQueryException if an annotation is invalid
+     */
+    static ResourceFunction compile(final FunctionDeclaration declaration) throws ExQueryException {
+        final Set<Annotation> restXqAnnotations = new HashSet<Annotation>();
+        for(final Annotation annotation : declaration.getAnnotations()) {
+            if(RestAnnotationFactory.isRestXqAnnotation(annotation.getName())) {
+                restXqAnnotations.add(RestAnnotationFactory.getAnnotation(annotation));
+            }
+        }
+        
+        if(restXqAnnotations.isEmpty()) {
+            return null;
+        }
+        
+        return ResourceFunctionFactory.create(declaration.getXQueryLocation(), restXqAnnotations);
+    }
+    
+    /**
+     * Task which compiles a range of the function declarations
+     */
+    private static class CompileTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = -3125794425311465834L;
+        
+        private final FunctionDeclaration[] input;
+        private final ResourceFunction[] compiled;
+        private final ExQueryException[] errors;
+        private final int from;
+        private final int to;
+        
+        public CompileTask(final FunctionDeclaration[] input, final ResourceFunction[] compiled, final ExQueryException[] errors, final int from, final int to) {
+            this.input = input;
+            this.compiled = compiled;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(to - from <= SEQUENTIAL_THRESHOLD) {
+                for(int i = from; i < to; i++) {
+                    try {
+                        compiled[i] = compile(input[i]);
+                    } catch(final ExQueryException eqe) {
+                        errors[i] = eqe;
+                    } catch(final RuntimeException re) {
+                        errors[i] = new ExQueryException("Unable to compile Resource Function: " + re.getMessage(), re);
+                    }
+                }
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new CompileTask(input, compiled, errors, from, mid), new CompileTask(input, compiled, errors, mid, to));
+            }
+        }
+    }
+    
+    /**
+     * Holds the Fork/Join Pool shared by compilers,
+     * which is only started once a compiler is first used
+     */
+    private final static class Pool {
+        final static ForkJoinPool POOL = new ForkJoinPool();
+    }
+    
+    /**
+     * The Annotations of a function declared in an XQuery module
+     */
+    public static class FunctionDeclaration {
+        private final URI xqueryLocation;
+        private final Set<Annotation> annotations;
+        
+        /**
+         * @param xqueryLocation The URI of the XQuery that contains the function
+         * @param annotations The Annotations of the function
+         */
+        public FunctionDeclaration(final URI xqueryLocation, final Set<Annotation> annotations) {
+            this.xqueryLocation = xqueryLocation;
+            this.annotations = annotations;
+        }
+
+        public URI getXQueryLocation() {
+            return xqueryLocation;
+        }
+
+        public Set<Annotation> getAnnotations() {
+            return annotations;
+        }
+    }
+    
+    /**
+     * A function declaration which could not be compiled
+     */
+    public static class Failure {
+        private final FunctionDeclaration declaration;
+        private final ExQueryException exception;
+        
+        public Failure(final FunctionDeclaration declaration, final ExQueryException exception) {
+            this.declaration = declaration;
+            this.exception = exception;
+        }
+
+        public FunctionDeclaration getDeclaration() {
+            return declaration;
+        }
+
+        /**
+         * Gets the reason for the failure, typically
+         * a {@link org.exquery.restxq.annotation.RestAnnotationException}
+         * 
+         * @return The reason for the failure
+         */
+        public ExQueryException getException() {
+            return exception;
+        }
+    }
+    
+    /**
+     * The result of compiling many function declarations
+     */
+    public static class Result {
+        private final List<ResourceFunction> resourceFunctions;
+        private final List<Failure> failures;
+        
+        public Result(final List<ResourceFunction> resourceFunctions, final List<Failure> failures) {
+            this.resourceFunctions = Collections.unmodifiableList(resourceFunctions);
+            this.failures = Collections.unmodifiableList(failures);
+        }
+
+        /**
+         * Gets the Resource Functions which were compiled
+         * 
+         * @return The compiled Resource Functions
+         */
+        public List<ResourceFunction> getResourceFunctions() {
+            return resourceFunctions;
+        }
+
+        /**
+         * Gets the function declarations which could not be compiled
+         * 
+         * @return The failures, or an empty list if there were no failures
+         */
+        public List<Failure> getFailures() {
+            return failures;
+        }
+        
+        public boolean hasFailures() {
+            return !failures.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exquery.restxq.ResourceFunction;
+
+/**
+ * A pool of contexts for executing a Resource Function,
+ * e.g. query contexts of an XQuery engine, so that each thread
+ * executing the Resource Function can borrow a context rather
+ * than creating one
+ * 
+ * A context is used by one thread at a time, between
+ * {@link #borrow()} and {@link #release(Object)}. Idle contexts
+ * beyond the size of the pool are discarded. The pool is usually
+ * attached to its Resource Function by {@link ResourceFunctionAttachments},
+ * and so is closed when the Resource Function is de-registered.
+ *
+ * @param <T> The type of the contexts
+ * 
+ * @author Adam Retter
+ */
+public class ResourceFunctionContextPool<T> implements AutoCloseable {
+    
+    private final ResourceFunction resourceFunction;
+    private final ResourceFunctionAttachments.Factory<T> factory;
+    private final int maxIdle;
+    private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile boolean closed = false;
+    
+    /**
+     * @param resourceFunction The Resource Function that the contexts are for
+     * @param factory Creates a context when there is no idle context
+     * @param maxIdle The maximum number of idle contexts to keep
+     */
+    public ResourceFunctionContextPool(final ResourceFunction resourceFunction, final ResourceFunctionAttachments.Factory<T> factory, final int maxIdle) {
+        if(maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative: " + maxIdle);
+        }
+        this.resourceFunction = resourceFunction;
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+    
+    /**
+     * Borrows a context, which must be released once the thread is done with it
+     * 
+     * @return An idle context, or a new context if there is no idle context
+     */
+    public T borrow() {
+        final T context = idle.poll();
+        if(context != null) {
+            idleCount.decrementAndGet();
+            return context;
+        }
+        return factory.create(resourceFunction);
+    }
+    
+    /**
+     * Releases a borrowed context back to the pool
+     * 
+     * If the pool is full, or has been closed, then the
+     * context is closed if it is {@link AutoCloseable}.
+     * 
+     * @param context The context which was borrowed
+     */
+    public void release(final T context) {
+        if(!closed && idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(context);
+            
+            //the pool may have been closed whilst the context was offered
+            if(closed) {
+                drain();
+            }
+        } else {
+            idleCount.decrementAndGet();
+            close(context);
+        }
+    }
+    
+    /**
+     * Gets the number of idle contexts in the pool
+     * 
+     * @return The number of idle contexts
+     */
+    public int getIdleCount() {
+        return Math.max(0, idleCount.get());
+    }
+    
+    /**
+     * Closes the pool, and any idle contexts
+     * 
+     * Contexts which are released after the pool is closed are also closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+    }
+    
+    private void drain() {
+        T context;
+        while((context = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            close(context);
+        }
+    }
+    
+    private static void close(final Object context) {
+        if(context instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)context).close();
+            } catch(final Exception e) {
+                //nothing more can be done, the context is no longer used
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+
+/**
+ * Adapters between synchronous and asynchronous Resource Function Executers
+ *
+ * @author Adam Retter
+ */
+public final class ResourceFunctionExecuters {
+    
+    private ResourceFunctionExecuters() {
+    }
+    
+    /**
+     * Adapts a synchronous Executer, executing the
+     * Resource Function on the calling thread
+     * 
+     * @param resourceFunctionExecuter The synchronous Executer
+     * 
+     * @return An asynchronous Executer
+     */
+    public static AsyncResourceFunctionExecuter asAsync(final ResourceFunctionExecuter resourceFunctionExecuter) {
+        return new AsyncResourceFunctionExecuter() {
+            @Override
+            public void execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCompletion<Sequence> completion) {
+                executeAndComplete(resourceFunctionExecuter, resourceFunction, arguments, request, completion);
+            }
+        };
+    }
+    
+    /**
+     * Adapts a synchronous Executer, executing the
+     * Resource Function on a thread of the Executor
+     * 
+     * @param resourceFunctionExecuter The synchronous Executer
+     * @param executor The Executor to execute the Resource Function with
+     * 
+     * @return An asynchronous Executer
+     */
+    public static AsyncResourceFunctionExecuter asAsync(final ResourceFunctionExecuter resourceFunctionExecuter, final Executor executor) {
+        return new AsyncResourceFunctionExecuter() {
+            @Override
+            public void execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCompletion<Sequence> completion) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            executeAndComplete(resourceFunctionExecuter, resourceFunction, arguments, request, completion);
+                        }
+                    });
+                } catch(final RejectedExecutionException ree) {
+                    completion.failed(new RestXqServiceException("Unable to schedule execution of the Resource Function: " + ree.getMessage(), ree));
+                }
+            }
+        };
+    }
+    
+    /**
+     * Adapts an asynchronous Executer, the calling
+     * thread waits for the Resource Function to be executed
+     * 
+     * @param resourceFunctionExecuter The asynchronous Executer
+     * 
+     * @return A synchronous Executer
+     */
+    public static ResourceFunctionExecuter asSync(final AsyncResourceFunctionExecuter resourceFunctionExecuter) {
+        return new ResourceFunctionExecuter() {
+            @Override
+            public Sequence execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request) throws RestXqServiceException {
+                final BlockingRestXqCompletion<Sequence> completion = new BlockingRestXqCompletion<Sequence>();
+                resourceFunctionExecuter.execute(resourceFunction, arguments, request, completion);
+                return completion.get();
+            }
+        };
+    }
+    
+    private static void executeAndComplete(final ResourceFunctionExecuter resourceFunctionExecuter, final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCompletion<Sequence> completion) {
+        final Sequence result;
+        try {
+            result = resourceFunctionExecuter.execute(resourceFunction, arguments, request);
+        } catch(final RestXqServiceException rqse) {
+            completion.failed(rqse);
+            return;
+        } catch(final RuntimeException re) {
+            completion.failed(new RestXqServiceException(re.getMessage(), re));
+            return;
+        }
+        completion.completed(result);
+    }
+}
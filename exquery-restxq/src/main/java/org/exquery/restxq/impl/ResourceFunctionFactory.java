@@ -32,11 +32,17 @@ import javax.xml.namespace.QName;
 import org.exquery.ExQueryException;
 import org.exquery.restxq.Namespace;
 import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqErrorCodes;
 import org.exquery.restxq.annotation.ConsumesAnnotation;
 import org.exquery.restxq.annotation.HttpMethodAnnotation;
 import org.exquery.restxq.annotation.ParameterAnnotation;
 import org.exquery.restxq.annotation.PathAnnotation;
 import org.exquery.restxq.annotation.ProducesAnnotation;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.restxq.impl.annotation.DeadlineAnnotation;
+import org.exquery.restxq.impl.annotation.MaxConcurrencyAnnotation;
+import org.exquery.restxq.impl.annotation.PriorityAnnotation;
+import org.exquery.restxq.impl.annotation.RateLimitAnnotation;
 import org.exquery.serialization.annotation.SerializationAnnotation;
 import org.exquery.xquery3.Annotation;
 
@@ -60,7 +66,8 @@ public class ResourceFunctionFactory {
      * 
      * @return The Resource Function
      * 
-     * @throws ExQueryException if provided annotations are not either RESTXQ or Serialization Annotations
+     * @throws ExQueryException if provided annotations are not either RESTXQ or Serialization Annotations,
+     * or an annotation which may only be applied once is repeated
      */
     public static ResourceFunction create(final URI xQueryLocation, final Set<Annotation> annotations) throws ExQueryException {
         final ResourceFunctionImpl resourceFunction = new ResourceFunctionImpl();
@@ -87,6 +94,18 @@ public class ResourceFunctionFactory {
                 resourceFunction.getParameterAnnotations().add((ParameterAnnotation)annotation);
             } else if(annotation instanceof SerializationAnnotation) {
                 resourceFunction.getSerializationAnnotations().add((SerializationAnnotation)annotation);
+            } else if(annotation instanceof MaxConcurrencyAnnotation) {
+                checkNotRepeated(resourceFunction.getMaxConcurrencyAnnotation());
+                resourceFunction.setMaxConcurrencyAnnotation((MaxConcurrencyAnnotation)annotation);
+            } else if(annotation instanceof PriorityAnnotation) {
+                checkNotRepeated(resourceFunction.getPriorityAnnotation());
+                resourceFunction.setPriorityAnnotation((PriorityAnnotation)annotation);
+            } else if(annotation instanceof DeadlineAnnotation) {
+                checkNotRepeated(resourceFunction.getDeadlineAnnotation());
+                resourceFunction.setDeadlineAnnotation((DeadlineAnnotation)annotation);
+            } else if(annotation instanceof RateLimitAnnotation) {
+                checkNotRepeated(resourceFunction.getRateLimitAnnotation());
+                resourceFunction.setRateLimitAnnotation((RateLimitAnnotation)annotation);
             }
         }
         
@@ -97,4 +116,18 @@ public class ResourceFunctionFactory {
         
         return resourceFunction;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Checks that an annotation which may only be
+     * applied once has not already been applied
+     * 
+     * @param existing The annotation of the same name already applied, or null
+     * 
+     * @throws RestAnnotationException if the annotation has already been applied
+     */
+    private static void checkNotRepeated(final Annotation existing) throws RestAnnotationException {
+        if(existing != null) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0059);
+        }
+    }
+}
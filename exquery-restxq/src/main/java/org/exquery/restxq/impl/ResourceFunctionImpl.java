@@ -35,6 +35,10 @@ import org.exquery.restxq.annotation.HttpMethodAnnotation;
 import org.exquery.restxq.annotation.ParameterAnnotation;
 import org.exquery.restxq.annotation.PathAnnotation;
 import org.exquery.restxq.annotation.ProducesAnnotation;
+import org.exquery.restxq.impl.annotation.DeadlineAnnotation;
+import org.exquery.restxq.impl.annotation.MaxConcurrencyAnnotation;
+import org.exquery.restxq.impl.annotation.PriorityAnnotation;
+import org.exquery.restxq.impl.annotation.RateLimitAnnotation;
 import org.exquery.serialization.annotation.SerializationAnnotation;
 import org.exquery.xquery3.FunctionSignature;
 
@@ -53,6 +57,10 @@ public class ResourceFunctionImpl implements ResourceFunction {
     private Set<ProducesAnnotation> producesAnnotations = new HashSet<ProducesAnnotation>();
     private Set<ParameterAnnotation> parameterAnnotations = new HashSet<ParameterAnnotation>();
     private Set<SerializationAnnotation> serializationAnnotations = new HashSet<SerializationAnnotation>();
+    private MaxConcurrencyAnnotation maxConcurrencyAnnotation;
+    private PriorityAnnotation priorityAnnotation;
+    private DeadlineAnnotation deadlineAnnotation;
+    private RateLimitAnnotation rateLimitAnnotation;
     
     @Override
     public URI getXQueryLocation() {
@@ -105,4 +113,56 @@ public class ResourceFunctionImpl implements ResourceFunction {
     public Set<SerializationAnnotation> getSerializationAnnotations() {
         return serializationAnnotations;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Returns the Max Concurrency Annotation applied to the Resource Function
+     * 
+     * @return The Max Concurrency Annotation of the Resource Function, or null if there is none
+     */
+    public MaxConcurrencyAnnotation getMaxConcurrencyAnnotation() {
+        return maxConcurrencyAnnotation;
+    }
+    
+    void setMaxConcurrencyAnnotation(final MaxConcurrencyAnnotation maxConcurrencyAnnotation) {
+        this.maxConcurrencyAnnotation = maxConcurrencyAnnotation;
+    }
+    
+    /**
+     * Returns the Priority Annotation applied to the Resource Function
+     * 
+     * @return The Priority Annotation of the Resource Function, or null if there is none
+     */
+    public PriorityAnnotation getPriorityAnnotation() {
+        return priorityAnnotation;
+    }
+    
+    void setPriorityAnnotation(final PriorityAnnotation priorityAnnotation) {
+        this.priorityAnnotation = priorityAnnotation;
+    }
+    
+    /**
+     * Returns the Deadline Annotation applied to the Resource Function
+     * 
+     * @return The Deadline Annotation of the Resource Function, or null if there is none
+     */
+    public DeadlineAnnotation getDeadlineAnnotation() {
+        return deadlineAnnotation;
+    }
+    
+    void setDeadlineAnnotation(final DeadlineAnnotation deadlineAnnotation) {
+        this.deadlineAnnotation = deadlineAnnotation;
+    }
+    
+    /**
+     * Returns the Rate Limit Annotation applied to the Resource Function
+     * 
+     * @return The Rate Limit Annotation of the Resource Function, or null if there is none
+     */
+    public RateLimitAnnotation getRateLimitAnnotation() {
+        return rateLimitAnnotation;
+    }
+    
+    void setRateLimitAnnotation(final RateLimitAnnotation rateLimitAnnotation) {
+        this.rateLimitAnnotation = rateLimitAnnotation;
+    }
+}
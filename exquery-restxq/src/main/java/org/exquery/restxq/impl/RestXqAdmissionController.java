@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.impl.annotation.PriorityAnnotation;
+
+/**
+ * Decides whether requests are admitted for servicing,
+ * shedding load when requests take too long
+ * 
+ * For each Resource Function the controller tracks the number of
+ * requests in-flight, and the latency of admitted requests, from their
+ * admission until they have been serviced. The latency includes any
+ * time spent waiting for a thread, but as the default executor of the
+ * dispatcher does not queue, overload mostly shows as requests taking
+ * longer to be serviced. In the manner of CoDel, whilst the latency
+ * stays above a target for a whole interval the Resource Function is
+ * overloaded, and further requests to it are rejected until its
+ * in-flight requests have drained. Each such interval also raises a
+ * shedding priority shared by all Resource Functions, so that requests
+ * to Resource Functions with a lower priority than it are rejected
+ * first. The shedding priority falls again by one for each interval
+ * in which no request took longer than the target.
+ * 
+ * The priority of a Resource Function is set either by %rest:priority,
+ * by {@link #setPriority(ResourceFunction, int)}, or else is
+ * {@link PriorityAnnotation#DEFAULT_PRIORITY}. Requests with
+ * the highest priority are only rejected when their own
+ * Resource Function is overloaded.
+ * 
+ * The controller should be registered as a listener with the
+ * {@link org.exquery.restxq.RestXqServiceRegistry} so that the state
+ * of de-registered Resource Functions is discarded.
+ *
+ * @author Adam Retter
+ */
+public class RestXqAdmissionController implements RestXqServiceRegistryListener {
+    
+    private final Ticker ticker;
+    private final long targetLatency;
+    private final long interval;
+    
+    private final ConcurrentMap<ResourceFunction, Integer> priorities = new ConcurrentHashMap<ResourceFunction, Integer>();
+    private final ConcurrentMap<ResourceFunction, Flow> flows = new ConcurrentHashMap<ResourceFunction, Flow>();
+    
+    //read on every admission, and so only changed by compare-and-set
+    private final AtomicInteger sheddingPriority = new AtomicInteger(PriorityAnnotation.MIN_PRIORITY);
+    private volatile long lastAboveTarget;
+    private final AtomicLong lastRaised;
+    private final AtomicLong lastLowered;
+    
+    /**
+     * @param targetLatency The longest that requests should take, from
+     * their admission until they have been serviced
+     * @param interval The time for which requests may take longer than the target
+     * before a Resource Function is considered overloaded
+     * @param unit The unit of the targetLatency and interval
+     */
+    public RestXqAdmissionController(final long targetLatency, final long interval, final TimeUnit unit) {
+        this(Ticker.SYSTEM, targetLatency, interval, unit);
+    }
+    
+    RestXqAdmissionController(final Ticker ticker, final long targetLatency, final long interval, final TimeUnit unit) {
+        if(targetLatency < 0) {
+            throw new IllegalArgumentException("targetLatency must not be negative: " + targetLatency);
+        }
+        if(interval < 1) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        
+        this.ticker = ticker;
+        this.targetLatency = unit.toNanos(targetLatency);
+        this.interval = unit.toNanos(interval);
+        
+        final long now = ticker.nanoTime();
+        this.lastAboveTarget = now - this.interval;
+        this.lastRaised = new AtomicLong(now - this.interval);
+        this.lastLowered = new AtomicLong(now);
+    }
+    
+    /**
+     * Sets the priority of the requests serviced by a Resource Function,
+     * overriding any %rest:priority annotation of the Resource Function
+     * 
+     * @param resourceFunction The Resource Function
+     * @param priority The priority, between {@link PriorityAnnotation#MIN_PRIORITY}
+     * and {@link PriorityAnnotation#MAX_PRIORITY}
+     */
+    public void setPriority(final ResourceFunction resourceFunction, final int priority) {
+        if(priority < PriorityAnnotation.MIN_PRIORITY || priority > PriorityAnnotation.MAX_PRIORITY) {
+            throw new IllegalArgumentException("A priority must be between " + PriorityAnnotation.MIN_PRIORITY + " and " + PriorityAnnotation.MAX_PRIORITY + ": " + priority);
+        }
+        priorities.put(resourceFunction, priority);
+    }
+    
+    /**
+     * Gets the priority of the requests serviced by a Resource Function
+     * 
+     * @param resourceFunction The Resource Function
+     * 
+     * @return The priority
+     */
+    public int getPriority(final ResourceFunction resourceFunction) {
+        final Integer priority = priorities.get(resourceFunction);
+        if(priority != null) {
+            return priority;
+        }
+        
+        if(resourceFunction instanceof ResourceFunctionImpl) {
+            final ResourceFunctionImpl resourceFunctionImpl = (ResourceFunctionImpl)resourceFunction;
+            if(resourceFunctionImpl.getPriorityAnnotation() != null) {
+                return resourceFunctionImpl.getPriorityAnnotation().getPriority();
+            }
+        }
+        
+        return PriorityAnnotation.DEFAULT_PRIORITY;
+    }
+    
+    /**
+     * Gets the priority below which requests are currently rejected
+     * 
+     * @return The shedding priority
+     */
+    public int getSheddingPriority() {
+        return getSheddingPriority(ticker.nanoTime());
+    }
+    
+    /**
+     * Determines whether a Resource Function is currently overloaded
+     * 
+     * @param resourceFunction The Resource Function
+     * 
+     * @return true if the Resource Function is overloaded
+     */
+    public boolean isOverloaded(final ResourceFunction resourceFunction) {
+        final Flow flow = flows.get(resourceFunction);
+        return flow != null && flow.isOverloaded();
+    }
+    
+    /**
+     * Attempts to admit a request to a Resource Function
+     * 
+     * A request which is admitted must be reported by calling
+     * {@link Admission#finished()} once it has been serviced,
+     * or {@link Admission#abandon()} if it will not be serviced.
+     * 
+     * @param resourceFunction The Resource Function which is to service the request
+     * 
+     * @return The admission of the request, or null if the request is rejected
+     */
+    public Admission admit(final ResourceFunction resourceFunction) {
+        if(getPriority(resourceFunction) < getSheddingPriority(ticker.nanoTime())) {
+            return null;
+        }
+        
+        final Flow flow = getFlow(resourceFunction);
+        if(!flow.tryEnter()) {
+            return null;
+        }
+        
+        return new Admission(flow, ticker.nanoTime());
+    }
+    
+    @Override
+    public void registered(final RestXqService service) {
+        //flows are created on first use
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        priorities.remove(service.getResourceFunction());
+        flows.remove(service.getResourceFunction());
+    }
+    
+    private Flow getFlow(final ResourceFunction resourceFunction) {
+        Flow flow = flows.get(resourceFunction);
+        if(flow == null) {
+            flow = new Flow();
+            final Flow existing = flows.putIfAbsent(resourceFunction, flow);
+            if(existing != null) {
+                flow = existing;
+            }
+        }
+        return flow;
+    }
+    
+    /**
+     * Lowers the shedding priority if an interval has passed since
+     * it was last lowered, and no request has taken longer than the
+     * target since then. Of the threads which see that the interval
+     * has passed, only the one that claims it lowers the priority.
+     */
+    private int getSheddingPriority(final long now) {
+        final int priority = sheddingPriority.get();
+        if(priority > PriorityAnnotation.MIN_PRIORITY && now - lastAboveTarget >= interval) {
+            final long lowered = lastLowered.get();
+            if(now - lowered >= interval && lastLowered.compareAndSet(lowered, now)) {
+                sheddingPriority.compareAndSet(priority, priority - 1);
+                return sheddingPriority.get();
+            }
+        }
+        return priority;
+    }
+    
+    private void aboveTarget(final long now, final boolean overloaded) {
+        lastAboveTarget = now;
+        if(overloaded) {
+            final long raised = lastRaised.get();
+            if(now - raised >= interval && lastRaised.compareAndSet(raised, now)) {
+                int priority;
+                do {
+                    priority = sheddingPriority.get();
+                    if(priority == PriorityAnnotation.MAX_PRIORITY) {
+                        return;
+                    }
+                } while(!sheddingPriority.compareAndSet(priority, priority + 1));
+                lastLowered.set(now);
+            }
+        }
+    }
+    
+    /**
+     * The admission of a request
+     */
+    public final class Admission {
+        private final Flow flow;
+        private final long admittedAt;
+        private boolean finished = false;
+        
+        private Admission(final Flow flow, final long admittedAt) {
+            this.flow = flow;
+            this.admittedAt = admittedAt;
+        }
+        
+        /**
+         * Reports that the request has been serviced
+         */
+        public void finished() {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            flow.exit();
+            
+            final long now = ticker.nanoTime();
+            final long latency = now - admittedAt;
+            if(latency > targetLatency) {
+                aboveTarget(now, flow.aboveTarget(now, interval));
+            } else {
+                flow.belowTarget();
+            }
+        }
+        
+        /**
+         * Reports that the request will not be serviced
+         * 
+         * No latency is recorded, as a request rejected after its admission
+         * says nothing of how long the Resource Function takes.
+         */
+        public void abandon() {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            flow.exit();
+        }
+    }
+    
+    /**
+     * The requests to a Resource Function
+     */
+    private final static class Flow {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile boolean overloaded = false;
+        private long firstAboveTarget = 0;
+        private volatile boolean aboveTarget = false;
+        
+        /**
+         * Whilst overloaded only admits a request
+         * once all in-flight requests have drained
+         */
+        boolean tryEnter() {
+            if(isOverloaded()) {
+                return inFlight.compareAndSet(0, 1);
+            }
+            inFlight.incrementAndGet();
+            return true;
+        }
+        
+        void exit() {
+            inFlight.decrementAndGet();
+        }
+        
+        boolean isOverloaded() {
+            return overloaded;
+        }
+        
+        /**
+         * @return true if the latency has been above target for an interval
+         */
+        synchronized boolean aboveTarget(final long now, final long interval) {
+            if(!aboveTarget) {
+                aboveTarget = true;
+                firstAboveTarget = now;
+                return false;
+            }
+            
+            if(now - firstAboveTarget >= interval) {
+                overloaded = true;
+                firstAboveTarget = now;
+                return true;
+            }
+            return false;
+        }
+        
+        void belowTarget() {
+            //only takes the lock when there is a change to make
+            if(aboveTarget || overloaded) {
+                synchronized(this) {
+                    aboveTarget = false;
+                    overloaded = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.Namespace;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+
+/**
+ * Executes many RESTXQ sub-requests in a single HTTP request
+ * 
+ * The body of the batch request is an XML envelope, e.g.
+ * 
+ * <pre>
+ * &lt;rest:batch xmlns:rest="http://exquery.org/ns/restxq"&gt;
+ *     &lt;rest:request method="GET" href="/customers/1?detail=full"&gt;
+ *         &lt;rest:header name="Accept" value="application/xml"/&gt;
+ *     &lt;/rest:request&gt;
+ *     &lt;rest:request href="/orders/7"/&gt;
+ * &lt;/rest:batch&gt;
+ * </pre>
+ * 
+ * Each sub-request is routed through the registry and dispatched as if
+ * it had been received on its own, and so is subject to the same limits
+ * of the dispatcher as any other request; a rejected sub-request is
+ * answered with a 429 or 503 part. Each sub-request is based on the
+ * batch request, from which it takes its connection details and cookies.
+ * Only GET and HEAD sub-requests are permitted, as they are independent
+ * of each other; any other method is answered with a 405 part.
+ * 
+ * At most maxParallelism sub-requests of a batch are executed at the
+ * same time, and their responses are written as a multipart/mixed
+ * response, each part being an application/http message. Parts are
+ * written in the order of the sub-requests, each as soon as it and
+ * the parts before it have completed, so that a slow sub-request does
+ * not delay the parts before it. A sub-request which has not completed
+ * within the timeout of the batch is answered with a 504 part.
+ *
+ * @author Adam Retter
+ */
+public class RestXqBatchHandler {
+    
+    public final static String BATCH_ELEMENT = "batch";
+    public final static String REQUEST_ELEMENT = "request";
+    public final static String HEADER_ELEMENT = "header";
+    
+    private final static String METHOD_ATTRIBUTE = "method";
+    private final static String HREF_ATTRIBUTE = "href";
+    private final static String NAME_ATTRIBUTE = "name";
+    private final static String VALUE_ATTRIBUTE = "value";
+    
+    private final static String MULTIPART_MIXED = "multipart/mixed";
+    private final static String APPLICATION_HTTP = "application/http";
+    private final static String HTTP_VERSION = "HTTP/1.1";
+    private final static String CRLF = "\r\n";
+    private final static Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    private final static String BATCH_METHODS = HttpMethod.GET.name() + ", " + HttpMethod.HEAD.name();
+    private final static long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+    
+    private final static XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+    
+    private final RestXqServiceRegistryImpl registry;
+    private final RestXqServiceDispatcher dispatcher;
+    private final ResourceFunctionExecuter resourceFunctionExecuter;
+    private final RestXqServiceSerializer restXqServiceSerializer;
+    private final Executor executor;
+    private final int maxParallelism;
+    private final int maxSubRequests;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    
+    /**
+     * @param registry The registry through which sub-requests are routed
+     * @param dispatcher The dispatcher through which sub-requests are serviced
+     * @param resourceFunctionExecuter The executer for the Resource Functions
+     * @param restXqServiceSerializer The serializer for the results of the Resource Functions
+     * @param executor The executor on which the sub-requests are dispatched. This must
+     * not be the executor which services the batch request itself, as a batch request
+     * waits for its sub-requests, and so could hold the threads that they need
+     * @param maxParallelism The maximum number of sub-requests of a batch which are executed at the same time
+     * @param maxSubRequests The maximum number of sub-requests in a batch
+     * 
+     * @throws IllegalArgumentException if maxParallelism or maxSubRequests is less than 1
+     */
+    public RestXqBatchHandler(final RestXqServiceRegistryImpl registry, final RestXqServiceDispatcher dispatcher, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final Executor executor, final int maxParallelism, final int maxSubRequests) {
+        if(maxParallelism < 1) {
+            throw new IllegalArgumentException("maxParallelism must be at least 1: " + maxParallelism);
+        }
+        if(maxSubRequests < 1) {
+            throw new IllegalArgumentException("maxSubRequests must be at least 1: " + maxSubRequests);
+        }
+        this.registry = registry;
+        this.dispatcher = dispatcher;
+        this.resourceFunctionExecuter = resourceFunctionExecuter;
+        this.restXqServiceSerializer = restXqServiceSerializer;
+        this.executor = executor;
+        this.maxParallelism = maxParallelism;
+        this.maxSubRequests = maxSubRequests;
+    }
+    
+    /**
+     * Sets the time that a batch request waits for its sub-requests,
+     * after which any sub-request that has not completed is answered
+     * with a 504 (Gateway Timeout) part
+     * 
+     * @param timeout The time to wait
+     * @param unit The unit of the timeout
+     * 
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public void setTimeout(final long timeout, final TimeUnit unit) {
+        if(timeout < 1) {
+            throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        }
+        this.timeout = unit.toNanos(timeout);
+    }
+    
+    /**
+     * Services a batch request
+     * 
+     * If the envelope is not valid then the response is 400 (Bad Request),
+     * and if it contains more than maxSubRequests sub-requests then the
+     * response is 413 (Request Entity Too Large).
+     * 
+     * @param request The batch request
+     * @param response The response to write the parts to
+     * 
+     * @throws RestXqServiceException if the batch request cannot be read,
+     * or the response cannot be written
+     */
+    public void service(final HttpRequest request, final HttpResponse response) throws RestXqServiceException {
+        final List<Part> parts;
+        try {
+            parts = parse(request);
+        } catch(final IOException ioe) {
+            throw new RestXqServiceException("Unable to read batch request: " + ioe.getMessage(), ioe);
+        } catch(final XMLStreamException xmlse) {
+            response.setStatus(HttpStatus.Bad_Request, xmlse.getMessage());
+            return;
+        } catch(final IllegalArgumentException iae) {
+            response.setStatus(HttpStatus.Bad_Request, iae.getMessage());
+            return;
+        }
+        
+        if(parts == null) {
+            response.setStatus(HttpStatus.Request_Entity_Too_Large, "Batch contains more than " + maxSubRequests + " requests");
+            return;
+        }
+        
+        //start the workers, which take the sub-requests in order
+        final long deadline = System.nanoTime() + timeout;
+        final AtomicInteger next = new AtomicInteger();
+        final int workers = Math.min(maxParallelism, parts.size());
+        for(int i = 0; i < workers; i++) {
+            executor.execute(new Worker(parts, next));
+        }
+        
+        final String boundary = "batch_" + UUID.randomUUID().toString();
+        response.setStatus(HttpStatus.OK);
+        response.setContentType(MULTIPART_MIXED + "; boundary=" + boundary);
+        
+        try {
+            final OutputStream os = response.getOutputStream();
+            for(final Part part : parts) {
+                if(!part.await(deadline - System.nanoTime())) {
+                    final BufferedHttpResponse timedOut = new BufferedHttpResponse();
+                    timedOut.setStatus(HttpStatus.Gateway_Timeout, "Batch request timed out");
+                    part.complete(timedOut);
+                }
+                write(os, boundary, part);
+                os.flush();
+            }
+            os.write(("--" + boundary + "--" + CRLF).getBytes(HEADER_CHARSET));
+            os.flush();
+        } catch(final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RestXqServiceException("Interrupted whilst waiting for batch requests", ie);
+        } catch(final IOException ioe) {
+            throw new RestXqServiceException("Unable to write batch response: " + ioe.getMessage(), ioe);
+        }
+    }
+    
+    /**
+     * Executes a sub-request, buffering its response
+     * 
+     * @param part The part for the sub-request
+     * @param worker The worker to continue with once a dispatched sub-request has completed
+     * 
+     * @return true if the sub-request was dispatched, and so will complete later,
+     * false if it has already completed
+     */
+    private boolean execute(final Part part, final Worker worker) {
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        BufferedHttpResponse completed = null;
+        boolean dispatched = false;
+        try {
+            if(part.request.getMethod() != HttpMethod.GET && part.request.getMethod() != HttpMethod.HEAD) {
+                response.setStatus(HttpStatus.Method_Not_Allowed);
+                response.setHeader(HttpHeader.ALLOW.getHeaderName(), BATCH_METHODS);
+                completed = response;
+            } else {
+                final RestXqServiceSelection selection = registry.selectService(part.request);
+                if(selection.isFound()) {
+                    //a rejected sub-request is completed with the status set by the dispatcher
+                    dispatcher.dispatch(selection.getResolution(), part.request, response, resourceFunctionExecuter, restXqServiceSerializer, new RestXqCompletion<Void>() {
+                        @Override
+                        public void completed(final Void result) {
+                            part.complete(response);
+                            executor.execute(worker);
+                        }
+
+                        @Override
+                        public void failed(final RestXqServiceException e) {
+                            part.complete(error(e.getMessage()));
+                            executor.execute(worker);
+                        }
+                    });
+                    dispatched = true;
+                } else {
+                    response.setStatus(selection.getHttpStatus());
+                    if(selection.getHttpStatus() == HttpStatus.Method_Not_Allowed) {
+                        response.setHeader(HttpHeader.ALLOW.getHeaderName(), selection.getAllowHeaderValue());
+                    }
+                    completed = response;
+                }
+            }
+        } catch(final RuntimeException re) {
+            completed = error(re.getMessage());
+        } finally {
+            //the part must always complete, even if an Error was thrown
+            if(!dispatched) {
+                part.complete(completed != null ? completed : error("Batch request failed"));
+            }
+        }
+        return dispatched;
+    }
+    
+    private static BufferedHttpResponse error(final String reason) {
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        response.setStatus(HttpStatus.Internal_Server_Error, reason);
+        return response;
+    }
+    
+    /**
+     * Writes the response of a sub-request as a part of the batch response
+     */
+    private static void write(final OutputStream os, final String boundary, final Part part) throws IOException {
+        final BufferedHttpResponse response = part.getResponse();
+        final HttpStatus status = response.getStatus() != null ? response.getStatus() : HttpStatus.OK;
+        final String reason = response.getReason() != null ? response.getReason() : status.name().replace('_', ' ');
+        
+        final StringBuilder head = new StringBuilder();
+        head.append("--").append(boundary).append(CRLF);
+        head.append(HttpHeader.CONTENT_TYPE.getHeaderName()).append(": ").append(APPLICATION_HTTP).append(CRLF);
+        head.append(CRLF);
+        
+        head.append(HTTP_VERSION).append(' ').append(status.getStatus()).append(' ').append(reason).append(CRLF);
+        if(response.getContentType() != null) {
+            head.append(HttpHeader.CONTENT_TYPE.getHeaderName()).append(": ").append(response.getContentType()).append(CRLF);
+        }
+        for(final String headerName : response.getHeaderNames()) {
+            head.append(headerName).append(": ").append(response.getHeader(headerName)).append(CRLF);
+        }
+        
+        final byte[] body = part.request.getMethod() == HttpMethod.HEAD ? new byte[0] : response.getBody();
+        if(!response.containsHeader(HttpHeader.CONTENT_LENGTH.getHeaderName())) {
+            head.append(HttpHeader.CONTENT_LENGTH.getHeaderName()).append(": ").append(body.length).append(CRLF);
+        }
+        head.append(CRLF);
+        
+        os.write(head.toString().getBytes(HEADER_CHARSET));
+        os.write(body);
+        os.write(CRLF.getBytes(HEADER_CHARSET));
+    }
+    
+    /**
+     * Parses the sub-requests from the envelope of a batch request
+     * 
+     * @return The parts for the sub-requests, or null if there are more than maxSubRequests
+     * 
+     * @throws XMLStreamException if the envelope is not well-formed XML
+     * @throws IllegalArgumentException if the envelope is not a valid batch
+     */
+    private List<Part> parse(final HttpRequest request) throws IOException, XMLStreamException {
+        final List<Part> parts = new ArrayList<Part>();
+        final InputStream is = request.getInputStream();
+        final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(is);
+        try {
+            reader.nextTag();
+            requireElement(reader, BATCH_ELEMENT);
+            
+            while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                requireElement(reader, REQUEST_ELEMENT);
+                
+                //an over-large batch is not read in full
+                if(parts.size() == maxSubRequests) {
+                    return null;
+                }
+                
+                final String method = reader.getAttributeValue(null, METHOD_ATTRIBUTE);
+                final String href = reader.getAttributeValue(null, HREF_ATTRIBUTE);
+                if(href == null || !href.startsWith("/")) {
+                    throw new IllegalArgumentException("Batch request must have an absolute path for its href: " + href);
+                }
+                
+                final List<String[]> headers = new ArrayList<String[]>();
+                while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    requireElement(reader, HEADER_ELEMENT);
+                    final String name = reader.getAttributeValue(null, NAME_ATTRIBUTE);
+                    final String value = reader.getAttributeValue(null, VALUE_ATTRIBUTE);
+                    if(name == null || value == null) {
+                        throw new IllegalArgumentException("Batch request header must have a name and value");
+                    }
+                    headers.add(new String[]{ name, value });
+                    reader.nextTag();   //end of header
+                }
+                
+                final int idxQuery = href.indexOf('?');
+                final String path = idxQuery == -1 ? href : href.substring(0, idxQuery);
+                final String query = idxQuery == -1 ? null : href.substring(idxQuery + 1);
+                parts.add(new Part(new SyntheticHttpRequest(request, toMethod(method), path, query, headers)));
+            }
+            return parts;
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private static void requireElement(final XMLStreamReader reader, final String localName) {
+        if(!Namespace.ANNOTATION_NS.equals(reader.getNamespaceURI()) || !localName.equals(reader.getLocalName())) {
+            throw new IllegalArgumentException("Expected element {" + Namespace.ANNOTATION_NS + "}" + localName + " but found: " + reader.getName());
+        }
+    }
+    
+    private static HttpMethod toMethod(final String method) {
+        if(method == null) {
+            return HttpMethod.GET;
+        }
+        try {
+            return HttpMethod.valueOf(method.toUpperCase());
+        } catch(final IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Unknown HTTP Method for batch request: " + method);
+        }
+    }
+    
+    /**
+     * Takes the sub-requests of a batch in order, one at a time
+     * 
+     * A worker does not wait for a dispatched sub-request, instead
+     * it is resubmitted to the executor once the sub-request completes.
+     */
+    private final class Worker implements Runnable {
+        private final List<Part> parts;
+        private final AtomicInteger next;
+        
+        public Worker(final List<Part> parts, final AtomicInteger next) {
+            this.parts = parts;
+            this.next = next;
+        }
+        
+        @Override
+        public void run() {
+            int idx;
+            while((idx = next.getAndIncrement()) < parts.size()) {
+                final Part part = parts.get(idx);
+                
+                //a part which has already timed out is not executed
+                if(part.getResponse() == null && execute(part, this)) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * A sub-request of a batch, and its response once executed
+     * 
+     * Only the first response is kept, so that a sub-request
+     * which completes after it timed out is ignored.
+     */
+    private final static class Part {
+        private final SyntheticHttpRequest request;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<BufferedHttpResponse> response = new AtomicReference<BufferedHttpResponse>();
+        
+        public Part(final SyntheticHttpRequest request) {
+            this.request = request;
+        }
+        
+        public void complete(final BufferedHttpResponse response) {
+            if(this.response.compareAndSet(null, response)) {
+                done.countDown();
+            }
+        }
+        
+        /**
+         * @param timeout The time in nanoseconds to wait for the response
+         * 
+         * @return true if the part has completed, false if it timed out
+         */
+        public boolean await(final long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.NANOSECONDS);
+        }
+        
+        public BufferedHttpResponse getResponse() {
+            return response.get();
+        }
+    }
+}
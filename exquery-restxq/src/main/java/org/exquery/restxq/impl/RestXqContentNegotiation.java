@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import org.exquery.http.ContentNegotiator;
+import org.exquery.http.ContentNegotiator.Dimension;
+import org.exquery.http.HttpRequest;
+
+/**
+ * Negotiates the charset, language and content-coding
+ * of the responses of RESTXQ Services from the
+ * Accept-Charset, Accept-Language and Accept-Encoding
+ * headers of HTTP Requests
+ * 
+ * The chosen values are made available to Resource Functions
+ * through %rest:negotiated-param, and are used by the serializer
+ * to choose the output encoding and compression,
+ * see {@link org.exquery.restxq.impl.serialization.AbstractRestXqServiceSerializer#setContentNegotiation(RestXqContentNegotiation)}
+ *
+ * @author Adam Retter
+ */
+public class RestXqContentNegotiation {
+    
+    /* @Nullable */ private final ContentNegotiator charsetNegotiator;
+    /* @Nullable */ private final ContentNegotiator languageNegotiator;
+    /* @Nullable */ private final ContentNegotiator encodingNegotiator;
+    private final String varyHeaderValue;
+    
+    /**
+     * @param charsetNegotiator The negotiator for charsets, or null if charsets are not negotiated
+     * @param languageNegotiator The negotiator for languages, or null if languages are not negotiated
+     * @param encodingNegotiator The negotiator for content-codings, or null if content-codings are not negotiated
+     * 
+     * @throws IllegalArgumentException if a negotiator is for the wrong dimension
+     */
+    public RestXqContentNegotiation(final ContentNegotiator charsetNegotiator, final ContentNegotiator languageNegotiator, final ContentNegotiator encodingNegotiator) {
+        this.charsetNegotiator = checkDimension(charsetNegotiator, Dimension.CHARSET);
+        this.languageNegotiator = checkDimension(languageNegotiator, Dimension.LANGUAGE);
+        this.encodingNegotiator = checkDimension(encodingNegotiator, Dimension.ENCODING);
+        
+        final StringBuilder builder = new StringBuilder();
+        for(final ContentNegotiator negotiator : new ContentNegotiator[] { charsetNegotiator, languageNegotiator, encodingNegotiator }) {
+            if(negotiator != null) {
+                if(builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(negotiator.getDimension().getAcceptHeader().getHeaderName());
+            }
+        }
+        this.varyHeaderValue = builder.toString();
+    }
+    
+    /**
+     * Negotiates the content of the response to a HTTP Request
+     * 
+     * @param request The HTTP Request
+     * 
+     * @return The negotiated content
+     */
+    public NegotiatedContent negotiate(final HttpRequest request) {
+        return new NegotiatedContent(
+            charsetNegotiator == null ? null : charsetNegotiator.negotiate(request),
+            languageNegotiator == null ? null : languageNegotiator.negotiate(request),
+            encodingNegotiator == null ? null : encodingNegotiator.negotiate(request)
+        );
+    }
+    
+    /**
+     * Gets the value for the HTTP Vary header of a negotiated response
+     * 
+     * @return The names of the headers which are negotiated, or
+     * an empty string if nothing is negotiated
+     */
+    public String getVaryHeaderValue() {
+        return varyHeaderValue;
+    }
+    
+    private static ContentNegotiator checkDimension(final ContentNegotiator negotiator, final Dimension dimension) {
+        if(negotiator != null && negotiator.getDimension() != dimension) {
+            throw new IllegalArgumentException("Expected a negotiator for " + dimension + " but was for " + negotiator.getDimension());
+        }
+        return negotiator;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.RestXqCancellationToken;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedValue;
+
+/**
+ * The deadline for servicing a request
+ * 
+ * The deadline is a cancellation token which is cancelled when
+ * the deadline expires. On expiry any further writes to the
+ * guarded response fail, so that the serialization of the result
+ * stops. The result is never closed on expiry, as it may be being
+ * iterated, instead it is closed by the thread which serializes it.
+ * The work done before expiry is reported to the client in a
+ * Server-Timing header of the 504 Gateway Timeout response.
+ * 
+ * The deadline must be closed once the request has been serviced.
+ *
+ * @author Adam Retter
+ */
+public class RestXqDeadline implements RestXqCancellationToken {
+    
+    private final long start;
+    private final long expiry;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final ScheduledFuture<?> timer;
+    
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private volatile boolean cancelled = false;
+    private volatile long executed = 0;
+    private volatile long stopped = 0;
+    
+    /**
+     * Starts a deadline
+     * 
+     * @param timeout The time until the deadline expires
+     * @param unit The unit of the timeout
+     */
+    public RestXqDeadline(final long timeout, final TimeUnit unit) {
+        this.start = System.nanoTime();
+        this.expiry = start + unit.toNanos(timeout);
+        this.timer = RestXqTimer.getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        }, timeout, unit);
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public long getRemainingTime(final TimeUnit unit) {
+        if(cancelled) {
+            return 0;
+        }
+        return unit.convert(expiry - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void addCancellationListener(final Runnable listener) {
+        synchronized(this) {
+            if(listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        if(cancelled) {
+            listener.run();
+        }
+    }
+    
+    /**
+     * Cancels the work, notifying the listeners
+     */
+    public void cancel() {
+        final List<Runnable> toNotify;
+        synchronized(this) {
+            if(listeners == null) {
+                return;
+            }
+            cancelled = true;
+            stopped = System.nanoTime();
+            toNotify = listeners;
+            listeners = null;
+        }
+        for(final Runnable listener : toNotify) {
+            listener.run();
+        }
+    }
+    
+    /**
+     * Stops the deadline, once the request has been serviced
+     * 
+     * No listeners are notified after the deadline is closed.
+     */
+    public void close() {
+        timer.cancel(false);
+        synchronized(this) {
+            if(listeners != null) {
+                stopped = System.nanoTime();
+                listeners = null;
+            }
+        }
+    }
+    
+    /**
+     * Records that the Resource Function has been executed
+     * 
+     * @param result The result of the Resource Function
+     * 
+     * @return The result, which may be closed more than once
+     */
+    public Sequence executed(final Sequence result) {
+        executed = System.nanoTime();
+        if(result == null) {
+            return null;
+        }
+        return new CloseOnceSequence(result);
+    }
+    
+    /**
+     * Guards a response, so that writes to the
+     * response fail once the deadline has expired
+     * 
+     * @param response The response to guard
+     * 
+     * @return The guarded response
+     */
+    public HttpResponse guard(final HttpResponse response) {
+        return new GuardedHttpResponse(response);
+    }
+    
+    /**
+     * Gets the time spent executing the Resource Function
+     * 
+     * @param unit The unit of the result
+     * 
+     * @return The time spent executing, which is until expiry if the execution did not complete
+     */
+    public long getExecutionTime(final TimeUnit unit) {
+        final long end = executed != 0 ? executed : stoppedOrNow();
+        return unit.convert(end - start, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Gets the time spent serializing the result of the Resource Function
+     * 
+     * @param unit The unit of the result
+     * 
+     * @return The time spent serializing, or zero if serialization did not start
+     */
+    public long getSerializationTime(final TimeUnit unit) {
+        if(executed == 0) {
+            return 0;
+        }
+        return unit.convert(stoppedOrNow() - executed, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Gets the number of bytes written to the guarded response
+     * 
+     * @return The number of bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+    
+    /**
+     * Answers the request with a 504 Gateway Timeout response,
+     * reporting the work done before the deadline expired
+     * in a Server-Timing header
+     * 
+     * @param response The response to the request
+     * 
+     * @throws RestXqServiceException If any of the response has already been written,
+     * and so the request can not be answered without sending a partial body
+     */
+    public void sendGatewayTimeout(final HttpResponse response) throws RestXqServiceException {
+        if(response.isCommitted() || getBytesWritten() > 0) {
+            throw new RestXqServiceException("Deadline expired after " + getBytesWritten() + " bytes of the response had been sent");
+        }
+        
+        response.setStatus(HttpStatus.Gateway_Timeout);
+        response.setHeader(HttpHeader.SERVER_TIMING.getHeaderName(), getServerTiming());
+    }
+    
+    /**
+     * Gets the work done, as the value of a Server-Timing header
+     * 
+     * @return The Server-Timing header value
+     */
+    String getServerTiming() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("execute;dur=").append(formatMillis(getExecutionTime(TimeUnit.MICROSECONDS)));
+        if(executed != 0) {
+            builder.append(", serialize;dur=").append(formatMillis(getSerializationTime(TimeUnit.MICROSECONDS)))
+                    .append(";desc=\"").append(getBytesWritten()).append(" bytes\"");
+        }
+        return builder.toString();
+    }
+    
+    private long stoppedOrNow() {
+        final long end = stopped;
+        return end != 0 ? end : System.nanoTime();
+    }
+    
+    private static String formatMillis(final long micros) {
+        return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+    }
+    
+    /**
+     * A response whose output stream fails once the deadline has expired
+     */
+    private class GuardedHttpResponse implements HttpResponse {
+        private final HttpResponse response;
+        private OutputStream guardedOutputStream = null;
+        
+        GuardedHttpResponse(final HttpResponse response) {
+            this.response = response;
+        }
+        
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if(guardedOutputStream == null) {
+                guardedOutputStream = new GuardedOutputStream(response.getOutputStream());
+            }
+            return guardedOutputStream;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return response.isCommitted();
+        }
+
+        @Override
+        public void setHeader(final String httpHeaderName, final String value) {
+            response.setHeader(httpHeaderName, value);
+        }
+
+        @Override
+        public void setStatus(final HttpStatus status, final String reason) {
+            response.setStatus(status, reason);
+        }
+
+        @Override
+        public void setStatus(final HttpStatus status) {
+            response.setStatus(status);
+        }
+
+        @Override
+        public boolean containsHeader(final String httpHeaderName) {
+            return response.containsHeader(httpHeaderName);
+        }
+
+        @Override
+        public void setContentType(final String contentType) {
+            response.setContentType(contentType);
+        }
+    }
+    
+    /**
+     * An output stream which fails once the deadline has expired
+     */
+    private class GuardedOutputStream extends FilterOutputStream {
+        GuardedOutputStream(final OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            checkDeadline();
+            out.write(b);
+            bytesWritten.incrementAndGet();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            checkDeadline();
+            out.write(b, off, len);
+            bytesWritten.addAndGet(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkDeadline();
+            out.flush();
+        }
+        
+        private void checkDeadline() throws InterruptedIOException {
+            if(cancelled) {
+                throw new InterruptedIOException("Deadline expired");
+            }
+        }
+    }
+    
+    /**
+     * A sequence which closes the underlying sequence at most once
+     */
+    private final static class CloseOnceSequence implements Sequence {
+        private final Sequence sequence;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        CloseOnceSequence(final Sequence sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Iterator<TypedValue> iterator() {
+            return sequence.iterator();
+        }
+
+        @Override
+        public TypedValue head() {
+            return sequence.head();
+        }
+
+        @Override
+        public Sequence tail() {
+            return sequence.tail();
+        }
+
+        @Override
+        public void close() throws SequenceException {
+            if(closed.compareAndSet(false, true)) {
+                sequence.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.URI;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.impl.RestXqServicesMap.CandidatePathMatcher;
+import org.exquery.restxq.impl.RestXqServicesMap.RegisteredService;
+import org.exquery.restxq.impl.annotation.PathAnnotationImpl;
+
+/**
+ * A specialised matcher for a frozen snapshot of the
+ * Services in a {@link RestXqServicesMap}
+ * 
+ * Services whose paths consist of whole literal or unconstrained
+ * template segments are compiled into tables indexed by the number
+ * of segments in the path. A request path is split into segment
+ * offsets once, and is then matched against the table for its segment
+ * count by comparing the hashes and characters of literal segments,
+ * without any regular expressions. The template values are
+ * taken from the segment offsets of the request path.
+ * 
+ * Services with any other paths are matched by their Path
+ * Annotation as usual.
+ * 
+ * The table records the generation of the registry from which
+ * it was built, and must not be used once the registry has
+ * changed, see {@link RestXqServiceRegistryImpl#freezeRoutes()}.
+ *
+ * @author Adam Retter
+ */
+public class RestXqFrozenRouteTable {
+    
+    private final static int[] NO_ROUTES = new int[0];
+    
+    private final long generation;
+    
+    /**
+     * All of the Services in Path Specificity order
+     */
+    private final RegisteredService[] services;
+    
+    /**
+     * Tables of Services indexed by the number of segments in their path
+     */
+    private final SegmentTable[] bySegmentCount;
+    
+    /**
+     * Indexes of Services (in Path Specificity order) which
+     * are not in a Segment Table, and so must be matched by
+     * their Path Annotation
+     */
+    private final int[] residual;
+    
+    private RestXqFrozenRouteTable(final long generation, final RegisteredService[] services, final SegmentTable[] bySegmentCount, final int[] residual) {
+        this.generation = generation;
+        this.services = services;
+        this.bySegmentCount = bySegmentCount;
+        this.residual = residual;
+    }
+    
+    /**
+     * Builds a frozen route table from the Services in a Map
+     * 
+     * @param servicesMap The Map of Services
+     * @param generation The generation of the registry which holds the Map,
+     * read before the Services
+     * 
+     * @return The frozen route table
+     */
+    static RestXqFrozenRouteTable freeze(final RestXqServicesMap servicesMap, final long generation) {
+        final RegisteredService[] services = servicesMap.getRegisteredServices();
+        
+        final Map<Integer, List<Integer>> routesBySegmentCount = new HashMap<Integer, List<Integer>>();
+        final List<Integer> residualRoutes = new ArrayList<Integer>();
+        int maxSegmentCount = -1;
+        
+        for(int i = 0; i < services.length; i++) {
+            final String[] segments = getSegments(services[i]);
+            if(segments == null) {
+                residualRoutes.add(i);
+            } else {
+                List<Integer> routes = routesBySegmentCount.get(segments.length);
+                if(routes == null) {
+                    routes = new ArrayList<Integer>();
+                    routesBySegmentCount.put(segments.length, routes);
+                }
+                routes.add(i);
+                maxSegmentCount = Math.max(maxSegmentCount, segments.length);
+            }
+        }
+        
+        final SegmentTable[] bySegmentCount = new SegmentTable[maxSegmentCount + 1];
+        for(final Map.Entry<Integer, List<Integer>> routes : routesBySegmentCount.entrySet()) {
+            bySegmentCount[routes.getKey()] = new SegmentTable(services, routes.getKey(), routes.getValue());
+        }
+        
+        return new RestXqFrozenRouteTable(generation, services, bySegmentCount, toArray(residualRoutes));
+    }
+    
+    /**
+     * Gets the generation of the registry from which this table was built
+     * 
+     * @return The generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Selects the RESTXQ Service for a request
+     * 
+     * @see RestXqServicesMap#select(HttpRequest)
+     * 
+     * @param request The HTTP Request to select the Service for
+     * 
+     * @return The selection for the request
+     */
+    public RestXqServiceSelection select(final HttpRequest request) {
+        final String path = request.getPath();
+        
+        //split the path into segments
+        int[] delimiters = null;
+        int[] hashes = null;
+        SegmentTable table = null;
+        if(path != null && !path.isEmpty() && path.charAt(0) == URI.PATH_SEGMENT_DELIMITER) {
+            int segmentCount = 0;
+            for(int i = 0; i < path.length(); i++) {
+                if(path.charAt(i) == URI.PATH_SEGMENT_DELIMITER) {
+                    segmentCount++;
+                }
+            }
+            
+            if(segmentCount < bySegmentCount.length) {
+                table = bySegmentCount[segmentCount];
+            }
+            
+            if(table != null) {
+                delimiters = new int[segmentCount + 1];
+                hashes = new int[segmentCount];
+                int segment = -1;
+                int hash = 0;
+                for(int i = 0; i < path.length(); i++) {
+                    final char c = path.charAt(i);
+                    if(c == URI.PATH_SEGMENT_DELIMITER) {
+                        if(segment > -1) {
+                            hashes[segment] = hash;
+                        }
+                        delimiters[++segment] = i;
+                        hash = 0;
+                    } else {
+                        hash = 31 * hash + c;
+                    }
+                }
+                hashes[segment] = hash;
+                delimiters[segmentCount] = path.length();
+            }
+        }
+        
+        //find the candidates whose paths match, in Path Specificity order
+        final int[] tableRoutes = table == null ? NO_ROUTES : table.serviceIdx;
+        final RegisteredService[] candidates = new RegisteredService[tableRoutes.length + residual.length];
+        final int[] candidateRoutes = new int[candidates.length];
+        int candidateCount = 0;
+        
+        int t = 0;
+        int r = 0;
+        while(t < tableRoutes.length || r < residual.length) {
+            if(r == residual.length || (t < tableRoutes.length && tableRoutes[t] < residual[r])) {
+                if(table.matches(t, path, delimiters, hashes)) {
+                    candidateRoutes[candidateCount] = t;
+                    candidates[candidateCount++] = services[tableRoutes[t]];
+                }
+                t++;
+            } else {
+                final RegisteredService service = services[residual[r]];
+                final PathAnnotation pathAnnotation = service.service.getResourceFunction().getPathAnnotation();
+                if(pathAnnotation == null || pathAnnotation.matchesPath(path)) {
+                    candidateRoutes[candidateCount] = -1;
+                    candidates[candidateCount++] = service;
+                }
+                r++;
+            }
+        }
+        
+        final SegmentTable matchedTable = table;
+        final int[] matchedDelimiters = delimiters;
+        return RestXqServicesMap.select(request, candidates, candidateCount, new CandidatePathMatcher() {
+            @Override
+            public boolean matchesPath(final int candidateIdx, final String path) {
+                return true;
+            }
+
+            @Override
+            public Map<String, String> extractPathParameters(final int candidateIdx, final String path) {
+                final int route = candidateRoutes[candidateIdx];
+                if(route > -1) {
+                    return matchedTable.extractPathParameters(route, path, matchedDelimiters);
+                }
+                
+                final PathAnnotation pathAnnotation = candidates[candidateIdx].service.getResourceFunction().getPathAnnotation();
+                if(pathAnnotation == null) {
+                    return Collections.<String, String>emptyMap();
+                } else {
+                    return pathAnnotation.extractPathParameters(path);
+                }
+            }
+        });
+    }
+    
+    private static String[] getSegments(final RegisteredService service) {
+        final PathAnnotation pathAnnotation = service.service.getResourceFunction().getPathAnnotation();
+        if(pathAnnotation instanceof PathAnnotationImpl) {
+            return ((PathAnnotationImpl)pathAnnotation).getSegments();
+        } else {
+            return null;
+        }
+    }
+    
+    private static int[] toArray(final List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+    
+    /**
+     * Table of the Services whose paths have
+     * the same number of whole segments
+     */
+    private static class SegmentTable {
+        
+        /**
+         * route to index of the Service, in Path Specificity order
+         */
+        final int[] serviceIdx;
+        
+        /**
+         * route to segment to literal, or null for a template
+         */
+        final String[][] literals;
+        
+        /**
+         * route to segment to hash of literal
+         */
+        final int[][] literalHashes;
+        
+        /**
+         * route to template to parameter name
+         */
+        final String[][] templateParamNames;
+        
+        /**
+         * route to template to segment
+         */
+        final int[][] templateSegments;
+        
+        SegmentTable(final RegisteredService[] services, final int segmentCount, final List<Integer> routes) {
+            this.serviceIdx = toArray(routes);
+            this.literals = new String[serviceIdx.length][];
+            this.literalHashes = new int[serviceIdx.length][segmentCount];
+            this.templateParamNames = new String[serviceIdx.length][];
+            this.templateSegments = new int[serviceIdx.length][];
+            
+            for(int route = 0; route < serviceIdx.length; route++) {
+                final PathAnnotationImpl pathAnnotation = (PathAnnotationImpl)services[serviceIdx[route]].service.getResourceFunction().getPathAnnotation();
+                final String[] segments = pathAnnotation.getSegments();
+                final Map<Integer, String> groupParamNames = pathAnnotation.getGroupParamNames();
+                
+                literals[route] = segments;
+                final List<Integer> templates = new ArrayList<Integer>();
+                for(int segment = 0; segment < segmentCount; segment++) {
+                    if(segments[segment] != null) {
+                        literalHashes[route][segment] = segments[segment].hashCode();
+                    } else {
+                        templates.add(segment);
+                    }
+                }
+                
+                templateSegments[route] = toArray(templates);
+                templateParamNames[route] = new String[templates.size()];
+                for(int template = 0; template < templates.size(); template++) {
+                    //the n-th template is group n+1
+                    templateParamNames[route][template] = groupParamNames.get(template + 1);
+                }
+            }
+        }
+        
+        boolean matches(final int route, final String path, final int[] delimiters, final int[] hashes) {
+            final String[] routeLiterals = literals[route];
+            for(int segment = 0; segment < routeLiterals.length; segment++) {
+                final int start = delimiters[segment] + 1;
+                final int end = delimiters[segment + 1];
+                final String literal = routeLiterals[segment];
+                if(literal != null) {
+                    if(hashes[segment] != literalHashes[route][segment]
+                            || literal.length() != end - start
+                            || !path.regionMatches(start, literal, 0, literal.length())) {
+                        return false;
+                    }
+                } else if(!PathAnnotationImpl.isTemplateValue(path, start, end)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        Map<String, String> extractPathParameters(final int route, final String path, final int[] delimiters) {
+            final Map<String, String> pathParameters = new HashMap<String, String>();
+            for(int template = 0; template < templateSegments[route].length; template++) {
+                final int segment = templateSegments[route][template];
+                pathParameters.put(templateParamNames[route][template], path.substring(delimiters[segment] + 1, delimiters[segment + 1]));
+            }
+            return pathParameters;
+        }
+    }
+}
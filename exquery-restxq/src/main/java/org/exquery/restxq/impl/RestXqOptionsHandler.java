@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.EnumSet;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+
+/**
+ * Handler which is notified when the Registry
+ * automatically answers a HTTP OPTIONS request
+ *
+ * Allows adopters to add further headers to
+ * the response, for example those required for
+ * CORS (Cross-Origin Resource Sharing) pre-flight
+ * requests
+ *
+ * @author Adam Retter
+ */
+public interface RestXqOptionsHandler {
+
+    /**
+     * Called after the Allow header has been set on the response
+     * to an automatically answered HTTP OPTIONS request
+     *
+     * @param request The HTTP OPTIONS request
+     * @param allowedMethods The HTTP Methods which are allowed for the request path
+     * @param response The HTTP response
+     */
+    public void handleOptions(final HttpRequest request, final EnumSet<HttpMethod> allowedMethods, final HttpResponse response);
+}
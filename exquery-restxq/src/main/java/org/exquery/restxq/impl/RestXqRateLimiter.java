@@ -0,0 +1,289 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.impl.annotation.RateLimitAnnotation;
+
+/**
+ * Limits the rate of requests from each client to a Resource Function
+ * 
+ * Each client of a Resource Function has a token bucket, which holds
+ * up to the number of requests permitted within the period, and is
+ * refilled evenly over the period. Clients are identified by the value
+ * of a configured header, e.g. an API key, or otherwise by their
+ * remote address.
+ * 
+ * A bucket is held as a single theoretical arrival time, in the manner
+ * of the Generic Cell Rate Algorithm, so that taking a token is one
+ * compare-and-set and no lock is ever held. The buckets of each
+ * Resource Function are held in their own concurrent map, sized for
+ * {@link #CONCURRENCY_LEVEL} concurrently updating threads. Buckets
+ * which have refilled are no different to a new bucket, and so are
+ * evicted by a sweep which starts at most once per period. A sweep is shared out between requests, each of which
+ * examines at most {@link #EVICTION_BATCH} buckets, so that no request
+ * pays for examining every bucket. A request which takes a token from
+ * a bucket as it is evicted may go uncounted.
+ * 
+ * The rate limit of a Resource Function is set either by %rest:rate-limit,
+ * or by {@link #setRateLimit(ResourceFunction, int, long, TimeUnit)},
+ * otherwise the requests to the Resource Function are not limited.
+ * 
+ * The limiter should be registered as a listener with the
+ * {@link org.exquery.restxq.RestXqServiceRegistry} so that the state
+ * of de-registered Resource Functions is discarded.
+ *
+ * @author Adam Retter
+ */
+public class RestXqRateLimiter implements RestXqServiceRegistryListener {
+    
+    /**
+     * The estimated number of threads concurrently updating the
+     * buckets of each Resource Function, given to the concurrent
+     * map of the buckets as its concurrencyLevel
+     */
+    public final static int CONCURRENCY_LEVEL = 16;
+    
+    /**
+     * The number of buckets examined for eviction by each request, whilst a sweep is in progress
+     */
+    public final static int EVICTION_BATCH = 32;
+    
+    /**
+     * Indicates that a request is permitted
+     */
+    public final static long PERMITTED = 0;
+    
+    private final static String UNKNOWN_CLIENT = "";
+    private final static Limit NO_LIMIT = new Limit(0, 0, 0);
+    
+    private final Ticker ticker;
+    private final String keyHeader;
+    private final ConcurrentMap<ResourceFunction, Limit> limits = new ConcurrentHashMap<ResourceFunction, Limit>();
+    
+    /**
+     * Creates a rate limiter which identifies
+     * clients by their remote address
+     */
+    public RestXqRateLimiter() {
+        this(null);
+    }
+    
+    /**
+     * @param keyHeader The name of the HTTP header which identifies clients,
+     * clients which do not send the header are identified by their remote address,
+     * or null to always identify clients by their remote address
+     */
+    public RestXqRateLimiter(final String keyHeader) {
+        this(Ticker.SYSTEM, keyHeader);
+    }
+    
+    RestXqRateLimiter(final Ticker ticker, final String keyHeader) {
+        this.ticker = ticker;
+        this.keyHeader = keyHeader;
+    }
+    
+    /**
+     * Sets the rate limit of a Resource Function,
+     * overriding any %rest:rate-limit annotation
+     * 
+     * @param resourceFunction The Resource Function
+     * @param requests The number of requests from each client which may be serviced within the period
+     * @param period The period
+     * @param unit The unit of the period
+     * 
+     * @throws IllegalArgumentException if requests or period are less than 1
+     */
+    public void setRateLimit(final ResourceFunction resourceFunction, final int requests, final long period, final TimeUnit unit) {
+        if(requests < 1) {
+            throw new IllegalArgumentException("requests must be positive: " + requests);
+        }
+        if(period < 1) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        limits.put(resourceFunction, new Limit(requests, unit.toNanos(period), ticker.nanoTime()));
+    }
+    
+    /**
+     * Attempts to take a token for a request to a Resource Function
+     * 
+     * @param resourceFunction The Resource Function which is to service the request
+     * @param request The request
+     * 
+     * @return {@link #PERMITTED} if the request is permitted, otherwise the
+     * time in nanoseconds until a request from the same client would be permitted
+     */
+    public long tryAcquire(final ResourceFunction resourceFunction, final HttpRequest request) {
+        final Limit limit = getLimit(resourceFunction);
+        if(limit == NO_LIMIT) {
+            return PERMITTED;
+        }
+        
+        return limit.tryAcquire(getKey(request), ticker.nanoTime());
+    }
+    
+    /**
+     * Gets the number of clients which have a bucket for a Resource Function
+     * 
+     * @param resourceFunction The Resource Function
+     * 
+     * @return The number of buckets
+     */
+    public int getBucketCount(final ResourceFunction resourceFunction) {
+        final Limit limit = limits.get(resourceFunction);
+        return limit == null ? 0 : limit.buckets.size();
+    }
+    
+    @Override
+    public void registered(final RestXqService service) {
+        //limits are created on first use
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        limits.remove(service.getResourceFunction());
+    }
+    
+    private String getKey(final HttpRequest request) {
+        if(keyHeader != null) {
+            final String key = request.getHeader(keyHeader);
+            if(key != null) {
+                return key;
+            }
+        }
+        
+        final String remoteAddress = request.getRemoteAddress();
+        return remoteAddress != null ? remoteAddress : UNKNOWN_CLIENT;
+    }
+    
+    private Limit getLimit(final ResourceFunction resourceFunction) {
+        Limit limit = limits.get(resourceFunction);
+        if(limit == null) {
+            limit = NO_LIMIT;
+            if(resourceFunction instanceof ResourceFunctionImpl) {
+                final RateLimitAnnotation rateLimitAnnotation = ((ResourceFunctionImpl)resourceFunction).getRateLimitAnnotation();
+                if(rateLimitAnnotation != null) {
+                    limit = new Limit(rateLimitAnnotation.getRequests(), TimeUnit.SECONDS.toNanos(rateLimitAnnotation.getPeriod()), ticker.nanoTime());
+                }
+            }
+            
+            final Limit existing = limits.putIfAbsent(resourceFunction, limit);
+            if(existing != null) {
+                limit = existing;
+            }
+        }
+        return limit;
+    }
+    
+    /**
+     * The rate limit of a Resource Function,
+     * and the buckets of its clients
+     */
+    private final static class Limit {
+        private final long period;
+        private final long emissionInterval;
+        private final long tolerance;
+        private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>(16, 0.75f, CONCURRENCY_LEVEL);
+        private final AtomicLong nextEviction;
+        private final AtomicBoolean sweeping = new AtomicBoolean();
+        private Iterator<Map.Entry<String, AtomicLong>> sweep = null;   //guarded by sweeping
+        
+        Limit(final int requests, final long period, final long now) {
+            this.period = period;
+            this.emissionInterval = requests == 0 ? 0 : period / requests;
+            this.tolerance = period - emissionInterval;
+            this.nextEviction = new AtomicLong(now + period);
+        }
+        
+        long tryAcquire(final String key, final long now) {
+            if(now - nextEviction.get() >= 0) {
+                evict(now);
+            }
+            
+            AtomicLong bucket = buckets.get(key);
+            if(bucket == null) {
+                bucket = new AtomicLong(now);
+                final AtomicLong existing = buckets.putIfAbsent(key, bucket);
+                if(existing != null) {
+                    bucket = existing;
+                }
+            }
+            
+            while(true) {
+                final long arrival = bucket.get();
+                final long start = arrival - now > 0 ? arrival : now;
+                final long wait = start - tolerance - now;
+                if(wait > 0) {
+                    return wait;
+                }
+                if(bucket.compareAndSet(arrival, start + emissionInterval)) {
+                    return PERMITTED;
+                }
+            }
+        }
+        
+        /**
+         * Continues the sweep, evicting the next buckets which have refilled,
+         * unless another request is already doing so
+         */
+        private void evict(final long now) {
+            if(!sweeping.compareAndSet(false, true)) {
+                return;
+            }
+            
+            try {
+                if(sweep == null) {
+                    sweep = buckets.entrySet().iterator();
+                }
+                
+                for(int i = 0; i < EVICTION_BATCH && sweep.hasNext(); i++) {
+                    final Map.Entry<String, AtomicLong> bucket = sweep.next();
+                    if(bucket.getValue().get() - now <= 0) {
+                        buckets.remove(bucket.getKey(), bucket.getValue());
+                    }
+                }
+                
+                if(!sweep.hasNext()) {
+                    sweep = null;
+                    nextEviction.set(now + period);
+                }
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals that RESTXQ Services are ready to receive traffic,
+ * e.g. once they have been warmed up by {@link RestXqWarmUp}
+ *
+ * @author Adam Retter
+ */
+public class RestXqReadiness {
+    
+    private final CountDownLatch latch = new CountDownLatch(1);
+    
+    /**
+     * Determines whether the Services are ready
+     * 
+     * @return true if the Services are ready
+     */
+    public boolean isReady() {
+        return latch.getCount() == 0;
+    }
+    
+    /**
+     * Waits for the Services to be ready
+     * 
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * 
+     * @return true if the Services are ready, false if the timeout elapsed first
+     * 
+     * @throws InterruptedException If the thread was interrupted whilst waiting
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+    
+    /**
+     * Signals that the Services are ready
+     */
+    public void ready() {
+        latch.countDown();
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+import org.exquery.xquery.TypedValue;
+
+/**
+ * Coalesces identical concurrent GET requests, so that
+ * a Resource Function is executed once for all of them
+ * 
+ * Requests are identical when they are resolved to the same
+ * RESTXQ Service, with the same argument values, and negotiate
+ * the same content. The first such request is serviced as usual,
+ * whilst any identical requests which arrive before it is complete
+ * wait for it, and are then sent a copy of its serialized response.
+ * 
+ * Coalescing is opt-in for each Resource Function, see
+ * {@link #setCoalesced(ResourceFunction, boolean)}, as it is only
+ * correct for Resource Functions whose response is determined by
+ * their arguments. Requests whose arguments are not all atomic
+ * values are never coalesced.
+ * 
+ * The coalescer should be registered as a listener with the
+ * {@link org.exquery.restxq.RestXqServiceRegistry} so that the settings
+ * of de-registered Resource Functions are discarded.
+ *
+ * @author Adam Retter
+ */
+public class RestXqRequestCoalescer implements RestXqServiceRegistryListener {
+    
+    private final Set<ResourceFunction> coalesced = Collections.newSetFromMap(new ConcurrentHashMap<ResourceFunction, Boolean>());
+    private final ConcurrentMap<FlightKey, Flight> flights = new ConcurrentHashMap<FlightKey, Flight>();
+    
+    /**
+     * Sets whether identical concurrent GET requests
+     * to a Resource Function are coalesced
+     * 
+     * @param resourceFunction The Resource Function
+     * @param coalesce true to coalesce requests, false otherwise
+     */
+    public void setCoalesced(final ResourceFunction resourceFunction, final boolean coalesce) {
+        if(coalesce) {
+            coalesced.add(resourceFunction);
+        } else {
+            coalesced.remove(resourceFunction);
+        }
+    }
+    
+    /**
+     * Determines whether identical concurrent GET requests
+     * to a Resource Function are coalesced
+     * 
+     * @param resourceFunction The Resource Function
+     * 
+     * @return true if requests are coalesced
+     */
+    public boolean isCoalesced(final ResourceFunction resourceFunction) {
+        return coalesced.contains(resourceFunction);
+    }
+    
+    /**
+     * Service the request with the resolved RESTXQ Service,
+     * coalescing it with any identical request that is already being serviced
+     * 
+     * @param resolution The resolution of the request to a RESTXQ Service
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * 
+     * @throws RestXqServiceException If an unexpected error occured whilst processing the request,
+     * or whilst processing the identical request
+     */
+    public void service(final RestXqServiceResolution resolution, final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer) throws RestXqServiceException {
+        if(!isCoalescable(resolution.getService(), request)) {
+            resolution.service(request, response, resourceFunctionExecuter, restXqServiceSerializer);
+            return;
+        }
+        
+        final AbstractRestXqService service = (AbstractRestXqService)resolution.getService();
+        final NegotiatedContent negotiatedContent = service.negotiateContent(request, restXqServiceSerializer);
+        final Set<TypedArgumentValue> typedArgumentValues = service.extractParameters(request, resolution.getPathParameters(), negotiatedContent);
+        
+        final FlightKey key = FlightKey.of(service, typedArgumentValues, negotiatedContent);
+        if(key == null) {
+            service.service(request, response, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues);
+            return;
+        }
+        
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+        final BufferedHttpResponse bufferedResponse;
+        if(existing == null) {
+            //first request, service it for all
+            bufferedResponse = new BufferedHttpResponse();
+            try {
+                service.service(request, bufferedResponse, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues);
+                flight.completed(bufferedResponse);
+            } catch(final RestXqServiceException rqse) {
+                flight.failed(rqse);
+                throw rqse;
+            } catch(final RuntimeException re) {
+                flight.failed(new RestXqServiceException(re.getMessage(), re));
+                throw re;
+            } finally {
+                flights.remove(key, flight);
+                
+                //releases the identical requests should an Error have been thrown, otherwise ignored
+                flight.failed(new RestXqServiceException("Identical request failed unexpectedly"));
+            }
+        } else {
+            //identical request, wait for the first
+            final BlockingRestXqCompletion<BufferedHttpResponse> waiter = new BlockingRestXqCompletion<BufferedHttpResponse>();
+            existing.addWaiter(waiter);
+            bufferedResponse = waiter.get();
+        }
+        
+        send(bufferedResponse, response);
+    }
+    
+    /**
+     * Service the request with the resolved RESTXQ Service asynchronously,
+     * coalescing it with any identical request that is already being serviced
+     * 
+     * @param resolution The resolution of the request to a RESTXQ Service
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param completion Notified once the response has been written, or if an unexpected error occured
+     * whilst processing the request, or whilst processing the identical request
+     */
+    public void serviceAsync(final RestXqServiceResolution resolution, final HttpRequest request, final HttpResponse response, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion) {
+        if(!isCoalescable(resolution.getService(), request)) {
+            resolution.serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, completion);
+            return;
+        }
+        
+        final AbstractRestXqService service = (AbstractRestXqService)resolution.getService();
+        final NegotiatedContent negotiatedContent;
+        final Set<TypedArgumentValue> typedArgumentValues;
+        try {
+            negotiatedContent = service.negotiateContent(request, restXqServiceSerializer);
+            typedArgumentValues = service.extractParameters(request, resolution.getPathParameters(), negotiatedContent);
+        } catch(final RestXqServiceException rqse) {
+            completion.failed(rqse);
+            return;
+        } catch(final RuntimeException re) {
+            completion.failed(new RestXqServiceException(re.getMessage(), re));
+            return;
+        }
+        
+        final FlightKey key = FlightKey.of(service, typedArgumentValues, negotiatedContent);
+        if(key == null) {
+            service.serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues, completion);
+            return;
+        }
+        
+        final RestXqCompletion<BufferedHttpResponse> sender = new RestXqCompletion<BufferedHttpResponse>() {
+            @Override
+            public void completed(final BufferedHttpResponse bufferedResponse) {
+                try {
+                    send(bufferedResponse, response);
+                } catch(final RestXqServiceException rqse) {
+                    completion.failed(rqse);
+                    return;
+                }
+                completion.completed(null);
+            }
+
+            @Override
+            public void failed(final RestXqServiceException e) {
+                completion.failed(e);
+            }
+        };
+        
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+        if(existing == null) {
+            //first request, service it for all
+            flight.addWaiter(sender);
+            final BufferedHttpResponse bufferedResponse = new BufferedHttpResponse();
+            boolean started = false;
+            try {
+                service.serviceAsync(request, bufferedResponse, resourceFunctionExecuter, restXqServiceSerializer, negotiatedContent, typedArgumentValues, new RestXqCompletion<Void>() {
+                    @Override
+                    public void completed(final Void result) {
+                        flights.remove(key, flight);
+                        flight.completed(bufferedResponse);
+                    }
+
+                    @Override
+                    public void failed(final RestXqServiceException e) {
+                        flights.remove(key, flight);
+                        flight.failed(e);
+                    }
+                });
+                started = true;
+            } finally {
+                //releases the identical requests should an Error have been thrown
+                if(!started) {
+                    flights.remove(key, flight);
+                    flight.failed(new RestXqServiceException("Identical request failed unexpectedly"));
+                }
+            }
+        } else {
+            //identical request, wait for the first
+            existing.addWaiter(sender);
+        }
+    }
+    
+    @Override
+    public void registered(final RestXqService service) {
+        //coalescing is opt-in
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        coalesced.remove(service.getResourceFunction());
+    }
+    
+    private boolean isCoalescable(final RestXqService service, final HttpRequest request) {
+        return request.getMethod() == HttpMethod.GET
+                && service instanceof AbstractRestXqService
+                && isCoalesced(service.getResourceFunction());
+    }
+    
+    private static void send(final BufferedHttpResponse bufferedResponse, final HttpResponse response) throws RestXqServiceException {
+        try {
+            bufferedResponse.sendTo(response);
+        } catch(final IOException ioe) {
+            throw new RestXqServiceException(ioe.getMessage(), ioe);
+        }
+    }
+    
+    /**
+     * The servicing of a request, which identical requests may wait for
+     */
+    private final static class Flight {
+        private List<RestXqCompletion<BufferedHttpResponse>> waiters = new ArrayList<RestXqCompletion<BufferedHttpResponse>>();
+        private BufferedHttpResponse result = null;
+        private RestXqServiceException failure = null;
+        
+        void addWaiter(final RestXqCompletion<BufferedHttpResponse> waiter) {
+            synchronized(this) {
+                if(waiters != null) {
+                    waiters.add(waiter);
+                    return;
+                }
+            }
+            notify(waiter);
+        }
+        
+        void completed(final BufferedHttpResponse result) {
+            notifyWaiters(result, null);
+        }
+        
+        void failed(final RestXqServiceException failure) {
+            notifyWaiters(null, failure);
+        }
+        
+        /**
+         * Notifies the waiters of the outcome of the flight,
+         * only the first outcome is kept, any later one is ignored
+         */
+        private void notifyWaiters(final BufferedHttpResponse result, final RestXqServiceException failure) {
+            final List<RestXqCompletion<BufferedHttpResponse>> toNotify;
+            synchronized(this) {
+                if(waiters == null) {
+                    return;
+                }
+                this.result = result;
+                this.failure = failure;
+                toNotify = waiters;
+                waiters = null;
+            }
+            for(final RestXqCompletion<BufferedHttpResponse> waiter : toNotify) {
+                notify(waiter);
+            }
+        }
+        
+        private void notify(final RestXqCompletion<BufferedHttpResponse> waiter) {
+            if(failure != null) {
+                waiter.failed(failure);
+            } else {
+                waiter.completed(result);
+            }
+        }
+    }
+    
+    /**
+     * Identifies identical requests
+     */
+    private final static class FlightKey {
+        private final RestXqService service;
+        private final List<Object> values;
+        private final int hashCode;
+        
+        private FlightKey(final RestXqService service, final List<Object> values) {
+            this.service = service;
+            this.values = values;
+            this.hashCode = 31 * System.identityHashCode(service) + values.hashCode();
+        }
+        
+        /**
+         * @return The key, or null if the arguments are not all atomic values
+         */
+        static FlightKey of(final RestXqService service, final Set<TypedArgumentValue> typedArgumentValues, final NegotiatedContent negotiatedContent) {
+            final List<TypedArgumentValue> sortedArgumentValues = new ArrayList<TypedArgumentValue>(typedArgumentValues);
+            Collections.sort(sortedArgumentValues, ARGUMENT_NAME_COMPARATOR);
+            
+            final List<Object> values = new ArrayList<Object>();
+            for(final TypedArgumentValue typedArgumentValue : sortedArgumentValues) {
+                values.add(typedArgumentValue.getArgumentName());
+                final List<Object> argumentValues = new ArrayList<Object>();
+                final Sequence<?> sequence = typedArgumentValue.getTypedValue();
+                for(final TypedValue<?> typedValue : sequence) {
+                    final Object value = typedValue.getValue();
+                    if(!(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                        return null;
+                    }
+                    argumentValues.add(value);
+                }
+                values.add(argumentValues);
+            }
+            
+            if(negotiatedContent != null) {
+                values.add(negotiatedContent.getCharset());
+                values.add(negotiatedContent.getLanguage());
+                values.add(negotiatedContent.getEncoding());
+            }
+            
+            return new FlightKey(service, values);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if(this == obj) {
+                return true;
+            }
+            if(!(obj instanceof FlightKey)) {
+                return false;
+            }
+            final FlightKey other = (FlightKey)obj;
+            return service == other.service && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+    
+    private final static Comparator<TypedArgumentValue> ARGUMENT_NAME_COMPARATOR = new Comparator<TypedArgumentValue>() {
+        @Override
+        public int compare(final TypedArgumentValue a, final TypedArgumentValue b) {
+            return a.getArgumentName().compareTo(b.getArgumentName());
+        }
+    };
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.exquery.ExQueryException;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.impl.annotation.PathAnnotationImpl;
+import org.exquery.restxq.impl.annotation.RestAnnotationFactory;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.FunctionArgument;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery.Type;
+import org.exquery.xquery3.Annotation;
+import org.exquery.xquery3.FunctionSignature;
+
+/**
+ * A snapshot of the compiled Resource Functions of
+ * a number of XQuery modules, which may be written to
+ * and read from a versioned binary file
+ * 
+ * Each module in the snapshot is recorded with a hash
+ * of its content. When restarting, the snapshot can be read
+ * and the Resource Functions of each module whose content hash
+ * has not changed are restored from the snapshot, only
+ * the modules which have changed need to be compiled again.
+ * 
+ * For each Resource Function the snapshot holds the function
+ * signature and the name and literals of each of its annotations,
+ * i.e. the path template, media types, parameter mappings etc.
+ * The compiled path template of a {@link PathAnnotationImpl}
+ * (its regular expression, literal prefix, parameter groups,
+ * specificity metrics and segments) is also held, so that it is restored without
+ * being parsed and validated again.
+ *
+ * @author Adam Retter
+ */
+public class RestXqRouteSnapshot {
+    
+    /**
+     * Identifies a RESTXQ Route Snapshot file, "RXQS"
+     */
+    public final static int MAGIC = 0x52585153;
+    
+    /**
+     * The version of the file format, must be incremented
+     * whenever the format changes, including whenever the
+     * set of annotations written for a Resource Function changes,
+     * otherwise a snapshot written by an older version would be
+     * restored without the annotations it lacks
+     */
+    public final static int FORMAT_VERSION = 4;
+    
+    /**
+     * The algorithm used by {@link #contentHash(InputStream)}
+     */
+    public final static String CONTENT_HASH_ALGORITHM = "SHA-256";
+    
+    /**
+     * The largest count of anything in a snapshot, e.g. of modules,
+     * Resource Functions or annotations, or of the bytes of a content hash.
+     * A larger count is taken to mean that the snapshot is corrupt.
+     */
+    public final static int MAX_COUNT = 65536;
+    
+    private final Map<URI, Module> modules = new LinkedHashMap<URI, Module>();
+    
+    /**
+     * Adds the Resource Functions of a module to the snapshot
+     * 
+     * @param xqueryLocation The URI of the XQuery module
+     * @param contentHash The hash of the content of the XQuery module
+     * @param resourceFunctions The Resource Functions of the XQuery module
+     */
+    public void addModule(final URI xqueryLocation, final byte[] contentHash, final List<ResourceFunction> resourceFunctions) {
+        modules.put(xqueryLocation, new Module(xqueryLocation, contentHash, resourceFunctions));
+    }
+    
+    /**
+     * Gets a module from the snapshot
+     * 
+     * @param xqueryLocation The URI of the XQuery module
+     * 
+     * @return The module, or null if the module is not in the snapshot
+     */
+    public Module getModule(final URI xqueryLocation) {
+        return modules.get(xqueryLocation);
+    }
+    
+    /**
+     * Gets all of the modules in the snapshot
+     * 
+     * @return The modules
+     */
+    public Collection<Module> getModules() {
+        return Collections.unmodifiableCollection(modules.values());
+    }
+    
+    /**
+     * Determines if the snapshot holds the Resource
+     * Functions for the current content of a module
+     * 
+     * @param xqueryLocation The URI of the XQuery module
+     * @param contentHash The hash of the current content of the XQuery module
+     * 
+     * @return true if the module is in the snapshot and its content has not changed
+     */
+    public boolean isCurrent(final URI xqueryLocation, final byte[] contentHash) {
+        final Module module = modules.get(xqueryLocation);
+        return module != null && Arrays.equals(module.getContentHash(), contentHash);
+    }
+    
+    /**
+     * Calculates the hash of the content of an XQuery module
+     * 
+     * @param content The content of the XQuery module
+     * 
+     * @return The hash of the content
+     * 
+     * @throws IOException if the content cannot be read
+     */
+    public static byte[] contentHash(final InputStream content) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch(final NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+        
+        final byte[] buf = new byte[8192];
+        int read = -1;
+        while((read = content.read(buf)) > -1) {
+            digest.update(buf, 0, read);
+        }
+        return digest.digest();
+    }
+    
+    /**
+     * Writes the snapshot
+     * 
+     * @param os The stream to write the snapshot to
+     * 
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void write(final OutputStream os) throws IOException {
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        
+        out.writeInt(modules.size());
+        for(final Module module : modules.values()) {
+            out.writeUTF(module.getXQueryLocation().toString());
+            out.writeInt(module.getContentHash().length);
+            out.write(module.getContentHash());
+            
+            out.writeInt(module.getResourceFunctions().size());
+            for(final ResourceFunction resourceFunction : module.getResourceFunctions()) {
+                writeResourceFunction(out, resourceFunction);
+            }
+        }
+        
+        out.flush();
+    }
+    
+    /**
+     * Reads a snapshot
+     * 
+     * @param is The stream to read the snapshot from
+     * 
+     * @return The snapshot
+     * 
+     * @throws IOException if the snapshot cannot be read, is corrupt, is of
+     * an unsupported version, or its Resource Functions cannot be restored
+     */
+    public static RestXqRouteSnapshot read(final InputStream is) throws IOException {
+        final DataInputStream in = new DataInputStream(is);
+        if(in.readInt() != MAGIC) {
+            throw new IOException("Not a RESTXQ Route Snapshot");
+        }
+        final int version = in.readInt();
+        if(version != FORMAT_VERSION) {
+            throw new IOException("Unsupported RESTXQ Route Snapshot version: " + version);
+        }
+        
+        final RestXqRouteSnapshot snapshot = new RestXqRouteSnapshot();
+        
+        final int moduleCount = readCount(in, "modules");
+        for(int i = 0; i < moduleCount; i++) {
+            final URI xqueryLocation = readURI(in);
+            final byte[] contentHash = new byte[readCount(in, "content hash bytes")];
+            in.readFully(contentHash);
+            
+            final int resourceFunctionCount = readCount(in, "Resource Functions");
+            final List<ResourceFunction> resourceFunctions = new ArrayList<ResourceFunction>(resourceFunctionCount);
+            for(int j = 0; j < resourceFunctionCount; j++) {
+                resourceFunctions.add(readResourceFunction(in, xqueryLocation));
+            }
+            
+            snapshot.addModule(xqueryLocation, contentHash, resourceFunctions);
+        }
+        
+        return snapshot;
+    }
+    
+    private static void writeResourceFunction(final DataOutputStream out, final ResourceFunction resourceFunction) throws IOException {
+        
+        //function signature
+        final FunctionSignature functionSignature = resourceFunction.getFunctionSignature();
+        writeQName(out, functionSignature.getName());
+        final FunctionArgument[] arguments = functionSignature.getArguments();
+        out.writeInt(arguments.length);
+        for(final FunctionArgument argument : arguments) {
+            out.writeUTF(argument.getName());
+            out.writeUTF(argument.getType().name());
+            out.writeUTF(argument.getCardinality().name());
+        }
+        
+        //annotations
+        final List<Annotation> annotations = new ArrayList<Annotation>();
+        if(resourceFunction.getPathAnnotation() != null) {
+            annotations.add(resourceFunction.getPathAnnotation());
+        }
+        annotations.addAll(resourceFunction.getHttpMethodAnnotations());
+        annotations.addAll(resourceFunction.getConsumesAnnotations());
+        annotations.addAll(resourceFunction.getProducesAnnotations());
+        annotations.addAll(resourceFunction.getParameterAnnotations());
+        annotations.addAll(resourceFunction.getSerializationAnnotations());
+        if(resourceFunction instanceof ResourceFunctionImpl) {
+            final ResourceFunctionImpl resourceFunctionImpl = (ResourceFunctionImpl)resourceFunction;
+            if(resourceFunctionImpl.getMaxConcurrencyAnnotation() != null) {
+                annotations.add(resourceFunctionImpl.getMaxConcurrencyAnnotation());
+            }
+            if(resourceFunctionImpl.getPriorityAnnotation() != null) {
+                annotations.add(resourceFunctionImpl.getPriorityAnnotation());
+            }
+            if(resourceFunctionImpl.getDeadlineAnnotation() != null) {
+                annotations.add(resourceFunctionImpl.getDeadlineAnnotation());
+            }
+            if(resourceFunctionImpl.getRateLimitAnnotation() != null) {
+                annotations.add(resourceFunctionImpl.getRateLimitAnnotation());
+            }
+        }
+        
+        out.writeInt(annotations.size());
+        for(final Annotation annotation : annotations) {
+            writeQName(out, annotation.getName());
+            final Literal[] literals = annotation.getLiterals();
+            out.writeInt(literals.length);
+            for(final Literal literal : literals) {
+                out.writeUTF(literal.getType().name());
+                out.writeUTF(literal.getValue());
+            }
+            
+            //compiled path template
+            if(annotation instanceof PathAnnotationImpl) {
+                final PathAnnotationImpl pathAnnotation = (PathAnnotationImpl)annotation;
+                out.writeBoolean(true);
+                out.writeUTF(pathAnnotation.getPathRegExp());
+                out.writeUTF(pathAnnotation.getLiteralPrefix());
+                out.writeInt(pathAnnotation.getGroupParamNames().size());
+                for(final Map.Entry<Integer, String> groupParamName : pathAnnotation.getGroupParamNames().entrySet()) {
+                    out.writeInt(groupParamName.getKey());
+                    out.writeUTF(groupParamName.getValue());
+                }
+                out.writeLong(pathAnnotation.getPathSpecificityMetric());
+                out.writeLong(pathAnnotation.getPathConstraintMetric());
+                final String[] segments = pathAnnotation.getSegments();
+                if(segments == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(segments.length);
+                    for(final String segment : segments) {
+                        out.writeBoolean(segment != null);
+                        if(segment != null) {
+                            out.writeUTF(segment);
+                        }
+                    }
+                }
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+    }
+    
+    private static ResourceFunction readResourceFunction(final DataInputStream in, final URI xqueryLocation) throws IOException {
+        
+        //function signature
+        final QName functionName = readQName(in);
+        final FunctionArgument[] arguments = new FunctionArgument[readCount(in, "function arguments")];
+        for(int i = 0; i < arguments.length; i++) {
+            final String name = in.readUTF();
+            final Type type = readEnum(Type.class, in.readUTF());
+            final Cardinality cardinality = readEnum(Cardinality.class, in.readUTF());
+            arguments[i] = new SnapshotFunctionArgument(name, type, cardinality);
+        }
+        
+        final int annotationCount = readCount(in, "annotations");
+        final SnapshotFunctionSignature functionSignature = new SnapshotFunctionSignature(functionName, arguments, new Annotation[annotationCount]);
+        
+        //annotations
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        try {
+            for(int i = 0; i < annotationCount; i++) {
+                final QName annotationName = readQName(in);
+                final Literal[] literals = new Literal[readCount(in, "literals")];
+                for(int j = 0; j < literals.length; j++) {
+                    final Type type = readEnum(Type.class, in.readUTF());
+                    literals[j] = new SnapshotLiteral(type, in.readUTF());
+                }
+                
+                final SnapshotAnnotation snapshotAnnotation = new SnapshotAnnotation(annotationName, literals, functionSignature);
+                functionSignature.annotations[i] = snapshotAnnotation;
+                
+                if(in.readBoolean()) {
+                    //restore the compiled path template
+                    final String pathRegExp = in.readUTF();
+                    final String literalPrefix = in.readUTF();
+                    final int groupCount = readCount(in, "path parameter groups");
+                    final Map<Integer, String> groupParamNames = new HashMap<Integer, String>();
+                    for(int j = 0; j < groupCount; j++) {
+                        groupParamNames.put(in.readInt(), in.readUTF());
+                    }
+                    final long pathSpecificityMetric = in.readLong();
+                    final long pathConstraintMetric = in.readLong();
+                    final int segmentCount = in.readInt();
+                    final String[] segments;
+                    if(segmentCount == -1) {
+                        segments = null;
+                    } else {
+                        segments = new String[checkCount(segmentCount, "path segments")];
+                        for(int j = 0; j < segmentCount; j++) {
+                            segments[j] = in.readBoolean() ? in.readUTF() : null;
+                        }
+                    }
+                    
+                    final PathAnnotationImpl pathAnnotation = new PathAnnotationImpl();
+                    pathAnnotation.setName(annotationName);
+                    pathAnnotation.setFunctionSignature(functionSignature);
+                    pathAnnotation.setLiterals(literals);
+                    pathAnnotation.restore(pathRegExp, literalPrefix, groupParamNames, pathSpecificityMetric, pathConstraintMetric, segments);
+                    annotations.add(pathAnnotation);
+                } else {
+                    annotations.add(RestAnnotationFactory.getAnnotation(snapshotAnnotation));
+                }
+            }
+            
+            return ResourceFunctionFactory.create(xqueryLocation, annotations);
+        } catch(final ExQueryException eqe) {
+            throw new IOException("Unable to restore Resource Function " + functionName + " from RESTXQ Route Snapshot: " + eqe.getMessage(), eqe);
+        } catch(final IllegalArgumentException iae) {
+            throw new IOException("Unable to restore Resource Function " + functionName + " from RESTXQ Route Snapshot: " + iae.getMessage(), iae);
+        }
+    }
+    
+    /**
+     * Reads a count from the snapshot
+     * 
+     * @param what What is counted, used for diagnostics
+     * 
+     * @return The count
+     * 
+     * @throws IOException if the count is negative or larger than {@link #MAX_COUNT},
+     * i.e. the snapshot is corrupt
+     */
+    private static int readCount(final DataInputStream in, final String what) throws IOException {
+        return checkCount(in.readInt(), what);
+    }
+    
+    private static int checkCount(final int count, final String what) throws IOException {
+        if(count < 0 || count > MAX_COUNT) {
+            throw new IOException("Corrupt RESTXQ Route Snapshot, invalid count of " + what + ": " + count);
+        }
+        return count;
+    }
+    
+    private static void writeQName(final DataOutputStream out, final QName qname) throws IOException {
+        out.writeUTF(qname.getNamespaceURI());
+        out.writeUTF(qname.getLocalPart());
+        out.writeUTF(qname.getPrefix());
+    }
+    
+    private static QName readQName(final DataInputStream in) throws IOException {
+        final String namespaceURI = in.readUTF();
+        final String localPart = in.readUTF();
+        final String prefix = in.readUTF();
+        return new QName(namespaceURI, localPart, prefix);
+    }
+    
+    private static URI readURI(final DataInputStream in) throws IOException {
+        final String uri = in.readUTF();
+        try {
+            return new URI(uri);
+        } catch(final URISyntaxException use) {
+            throw new IOException("Invalid module URI in RESTXQ Route Snapshot: " + uri, use);
+        }
+    }
+    
+    private static <T extends Enum<T>> T readEnum(final Class<T> enumClass, final String name) throws IOException {
+        try {
+            return Enum.valueOf(enumClass, name);
+        } catch(final IllegalArgumentException iae) {
+            throw new IOException("Unknown " + enumClass.getSimpleName() + " in RESTXQ Route Snapshot: " + name, iae);
+        }
+    }
+    
+    /**
+     * The Resource Functions of an XQuery module in the snapshot
+     */
+    public static class Module {
+        private final URI xqueryLocation;
+        private final byte[] contentHash;
+        private final List<ResourceFunction> resourceFunctions;
+
+        public Module(final URI xqueryLocation, final byte[] contentHash, final List<ResourceFunction> resourceFunctions) {
+            this.xqueryLocation = xqueryLocation;
+            this.contentHash = contentHash;
+            this.resourceFunctions = Collections.unmodifiableList(resourceFunctions);
+        }
+
+        public URI getXQueryLocation() {
+            return xqueryLocation;
+        }
+
+        public byte[] getContentHash() {
+            return contentHash;
+        }
+
+        public List<ResourceFunction> getResourceFunctions() {
+            return resourceFunctions;
+        }
+    }
+    
+    private static class SnapshotLiteral implements Literal {
+        private final Type type;
+        private final String value;
+
+        public SnapshotLiteral(final Type type, final String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+    
+    private static class SnapshotFunctionArgument implements FunctionArgument {
+        private final String name;
+        private final Type type;
+        private final Cardinality cardinality;
+
+        public SnapshotFunctionArgument(final String name, final Type type, final Cardinality cardinality) {
+            this.name = name;
+            this.type = type;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public Cardinality getCardinality() {
+            return cardinality;
+        }
+    }
+    
+    private static class SnapshotFunctionSignature implements FunctionSignature {
+        private final QName name;
+        private final FunctionArgument[] arguments;
+        private final Annotation[] annotations;
+
+        public SnapshotFunctionSignature(final QName name, final FunctionArgument[] arguments, final Annotation[] annotations) {
+            this.name = name;
+            this.arguments = arguments;
+            this.annotations = annotations;
+        }
+
+        @Override
+        public QName getName() {
+            return name;
+        }
+
+        @Override
+        public int getArgumentCount() {
+            return arguments.length;
+        }
+
+        @Override
+        public FunctionArgument[] getArguments() {
+            return arguments;
+        }
+
+        @Override
+        public Annotation[] getAnnotations() {
+            return annotations;
+        }
+    }
+    
+    private static class SnapshotAnnotation implements Annotation {
+        private final QName name;
+        private final Literal[] literals;
+        private final FunctionSignature functionSignature;
+
+        public SnapshotAnnotation(final QName name, final Literal[] literals, final FunctionSignature functionSignature) {
+            this.name = name;
+            this.literals = literals;
+            this.functionSignature = functionSignature;
+        }
+
+        @Override
+        public QName getName() {
+            return name;
+        }
+
+        @Override
+        public Literal[] getLiterals() {
+            return literals;
+        }
+
+        @Override
+        public FunctionSignature getFunctionSignature() {
+            return functionSignature;
+        }
+    }
+}
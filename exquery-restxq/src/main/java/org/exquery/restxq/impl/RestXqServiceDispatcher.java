@@ -0,0 +1,476 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.RestXqServiceSerializer;
+
+/**
+ * Dispatches the servicing of requests by RESTXQ Services
+ * onto their own threads, isolating Resource Functions
+ * from each other with bulkheads
+ * 
+ * Each Resource Function may service a limited number of requests
+ * at the same time, set either by %rest:max-concurrency, by
+ * {@link #setMaxConcurrency(ResourceFunction, int)}, or else
+ * by the default limit of the dispatcher. The number of requests
+ * serviced by all Resource Functions at the same time may also
+ * be limited. A request which would exceed either limit is not
+ * serviced, instead it is rejected with a 503 Service Unavailable
+ * response and a Retry-After header. A slow Resource Function
+ * therefore can not hold the threads needed by any other.
+ * 
+ * Load may also be shed adaptively, by setting a
+ * {@link RestXqAdmissionController} which is consulted
+ * before a request is queued for servicing.
+ * 
+ * If a {@link RestXqReadiness} is set, then all requests
+ * are rejected until it signals that the Services are ready.
+ * 
+ * By default requests are serviced on virtual threads when the JVM
+ * provides them, otherwise on a pool of threads that grows on demand.
+ * 
+ * The dispatcher should be registered as a listener with the
+ * {@link org.exquery.restxq.RestXqServiceRegistry} so that the bulkheads
+ * of de-registered Resource Functions are discarded.
+ *
+ * @author Adam Retter
+ */
+public class RestXqServiceDispatcher implements RestXqServiceRegistryListener {
+    
+    /**
+     * Indicates that there is no limit
+     */
+    public final static int UNLIMITED = -1;
+    
+    private final static String VIRTUAL_THREAD_EXECUTOR_FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+    private final static Bulkhead NO_BULKHEAD = new Bulkhead(UNLIMITED);
+    
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Bulkhead inFlight;
+    private final int defaultMaxConcurrency;
+    private final String retryAfter;
+    private volatile RestXqAdmissionController admissionController = null;
+    private volatile RestXqReadiness readiness = null;
+    private volatile RestXqRateLimiter rateLimiter = null;
+    
+    private final ConcurrentMap<ResourceFunction, Integer> maxConcurrencies = new ConcurrentHashMap<ResourceFunction, Integer>();
+    private final ConcurrentMap<ResourceFunction, Bulkhead> bulkheads = new ConcurrentHashMap<ResourceFunction, Bulkhead>();
+    
+    /**
+     * Creates a dispatcher which services requests on virtual threads,
+     * or if they are not available on a pool of threads that grows on demand
+     * 
+     * @param maxInFlight The maximum number of requests serviced at the same time, or {@link #UNLIMITED}
+     * @param defaultMaxConcurrency The maximum number of requests serviced by
+     * each Resource Function at the same time, unless the Resource Function
+     * has its own limit, or {@link #UNLIMITED}
+     * @param retryAfterSeconds The number of seconds after which a client should retry a rejected request
+     */
+    public RestXqServiceDispatcher(final int maxInFlight, final int defaultMaxConcurrency, final int retryAfterSeconds) {
+        this(newDefaultExecutor(), true, maxInFlight, defaultMaxConcurrency, retryAfterSeconds);
+    }
+    
+    /**
+     * @param executor The executor to service requests on
+     * @param maxInFlight The maximum number of requests serviced at the same time, or {@link #UNLIMITED}
+     * @param defaultMaxConcurrency The maximum number of requests serviced by
+     * each Resource Function at the same time, unless the Resource Function
+     * has its own limit, or {@link #UNLIMITED}
+     * @param retryAfterSeconds The number of seconds after which a client should retry a rejected request
+     */
+    public RestXqServiceDispatcher(final Executor executor, final int maxInFlight, final int defaultMaxConcurrency, final int retryAfterSeconds) {
+        this(executor, false, maxInFlight, defaultMaxConcurrency, retryAfterSeconds);
+    }
+    
+    private RestXqServiceDispatcher(final Executor executor, final boolean ownsExecutor, final int maxInFlight, final int defaultMaxConcurrency, final int retryAfterSeconds) {
+        checkLimit(maxInFlight);
+        checkLimit(defaultMaxConcurrency);
+        if(retryAfterSeconds < 0) {
+            throw new IllegalArgumentException("retryAfterSeconds must not be negative: " + retryAfterSeconds);
+        }
+        
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.inFlight = new Bulkhead(maxInFlight);
+        this.defaultMaxConcurrency = defaultMaxConcurrency;
+        this.retryAfter = String.valueOf(retryAfterSeconds);
+    }
+    
+    /**
+     * Sets the maximum number of requests which may be serviced
+     * by a Resource Function at the same time, overriding any
+     * %rest:max-concurrency annotation of the Resource Function
+     * 
+     * Requests already being serviced by the Resource Function
+     * do not count towards the new limit.
+     * 
+     * @param resourceFunction The Resource Function
+     * @param maxConcurrency The maximum number of concurrent requests, or {@link #UNLIMITED}
+     */
+    public void setMaxConcurrency(final ResourceFunction resourceFunction, final int maxConcurrency) {
+        checkLimit(maxConcurrency);
+        maxConcurrencies.put(resourceFunction, maxConcurrency);
+        bulkheads.put(resourceFunction, newBulkhead(maxConcurrency));
+    }
+    
+    /**
+     * Sets the controller which decides whether requests are admitted
+     * 
+     * @param admissionController The admission controller, or null to admit
+     * all requests within the limits of the dispatcher
+     */
+    public void setAdmissionController(final RestXqAdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+    
+    /**
+     * Sets the readiness which must be signalled before requests are serviced
+     * 
+     * @param readiness The readiness, or null if requests may always be serviced
+     */
+    public void setReadiness(final RestXqReadiness readiness) {
+        this.readiness = readiness;
+    }
+    
+    /**
+     * Sets the limiter of the rate of requests from each client
+     * 
+     * Requests which exceed the rate limit of their Resource Function
+     * are rejected with 429 (Too Many Requests) before they are admitted.
+     * 
+     * @param rateLimiter The rate limiter, or null to not limit the rate of requests
+     */
+    public void setRateLimiter(final RestXqRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+    
+    /**
+     * Gets the maximum number of requests which may be serviced
+     * by a Resource Function at the same time
+     * 
+     * @param resourceFunction The Resource Function
+     * 
+     * @return The maximum number of concurrent requests, or {@link #UNLIMITED}
+     */
+    public int getMaxConcurrency(final ResourceFunction resourceFunction) {
+        final Integer maxConcurrency = maxConcurrencies.get(resourceFunction);
+        if(maxConcurrency != null) {
+            return maxConcurrency;
+        }
+        
+        if(resourceFunction instanceof ResourceFunctionImpl) {
+            final ResourceFunctionImpl resourceFunctionImpl = (ResourceFunctionImpl)resourceFunction;
+            if(resourceFunctionImpl.getMaxConcurrencyAnnotation() != null) {
+                return resourceFunctionImpl.getMaxConcurrencyAnnotation().getMaxConcurrency();
+            }
+        }
+        
+        return defaultMaxConcurrency;
+    }
+    
+    /**
+     * Dispatches the servicing of a request by a RESTXQ Service
+     * 
+     * @param resolution The resolution of the request to a RESTXQ Service
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param completion Notified once the response has been written, or has been rejected,
+     * or if an unexpected error occured whilst processing the request
+     * 
+     * @return true if the request was dispatched, false if it was rejected
+     */
+    public boolean dispatch(final RestXqServiceResolution resolution, final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion) {
+        return dispatch(resolution.getService().getResourceFunction(), new Servicing() {
+            @Override
+            public void service() throws RestXqServiceException {
+                resolution.service(request, response, resourceFunctionExecuter, restXqServiceSerializer);
+            }
+        }, request, response, completion);
+    }
+    
+    /**
+     * Dispatches the servicing of a request by a RESTXQ Service
+     * 
+     * @param service The RESTXQ Service
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param completion Notified once the response has been written, or has been rejected,
+     * or if an unexpected error occured whilst processing the request
+     * 
+     * @return true if the request was dispatched, false if it was rejected
+     */
+    public boolean dispatch(final RestXqService service, final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion) {
+        return dispatch(service.getResourceFunction(), new Servicing() {
+            @Override
+            public void service() throws RestXqServiceException {
+                service.service(request, response, resourceFunctionExecuter, restXqServiceSerializer);
+            }
+        }, request, response, completion);
+    }
+    
+    private boolean dispatch(final ResourceFunction resourceFunction, final Servicing servicing, final HttpRequest request, final HttpResponse response, final RestXqCompletion<Void> completion) {
+        final RestXqReadiness currentReadiness = readiness;
+        if(currentReadiness != null && !currentReadiness.isReady()) {
+            reject(response, completion);
+            return false;
+        }
+        
+        final RestXqRateLimiter limiter = rateLimiter;
+        if(limiter != null) {
+            final long wait = limiter.tryAcquire(resourceFunction, request);
+            if(wait != RestXqRateLimiter.PERMITTED) {
+                response.setStatus(HttpStatus.Too_Many_Requests);
+                response.setHeader(HttpHeader.RETRY_AFTER.getHeaderName(), toRetryAfter(wait));
+                completion.completed(null);
+                return false;
+            }
+        }
+        
+        final RestXqAdmissionController controller = admissionController;
+        final RestXqAdmissionController.Admission admission;
+        if(controller != null) {
+            admission = controller.admit(resourceFunction);
+            if(admission == null) {
+                reject(response, completion);
+                return false;
+            }
+        } else {
+            admission = null;
+        }
+        
+        if(!inFlight.tryAcquire()) {
+            abandon(admission);
+            reject(response, completion);
+            return false;
+        }
+        
+        final Bulkhead bulkhead = getBulkhead(resourceFunction);
+        if(!bulkhead.tryAcquire()) {
+            inFlight.release();
+            abandon(admission);
+            reject(response, completion);
+            return false;
+        }
+        
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RestXqServiceException failure = null;
+                    Error error = null;
+                    try {
+                        servicing.service();
+                    } catch(final RestXqServiceException rqse) {
+                        failure = rqse;
+                    } catch(final RuntimeException re) {
+                        failure = new RestXqServiceException(re.getMessage(), re);
+                    } catch(final Error e) {
+                        //the completion must still be notified, so that nothing waits on it forever
+                        error = e;
+                        failure = new RestXqServiceException(e.getMessage(), e);
+                    } finally {
+                        bulkhead.release();
+                        inFlight.release();
+                        finished(admission);
+                    }
+                    
+                    if(failure != null) {
+                        completion.failed(failure);
+                    } else {
+                        completion.completed(null);
+                    }
+                    
+                    if(error != null) {
+                        throw error;
+                    }
+                }
+            });
+        } catch(final RejectedExecutionException ree) {
+            bulkhead.release();
+            inFlight.release();
+            abandon(admission);
+            reject(response, completion);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Shuts down the threads of the dispatcher, if the dispatcher created them
+     */
+    public void shutdown() {
+        if(ownsExecutor && executor instanceof ExecutorService) {
+            ((ExecutorService)executor).shutdown();
+        }
+    }
+    
+    @Override
+    public void registered(final RestXqService service) {
+        //bulkheads are created on first use
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        maxConcurrencies.remove(service.getResourceFunction());
+        bulkheads.remove(service.getResourceFunction());
+    }
+    
+    private Bulkhead getBulkhead(final ResourceFunction resourceFunction) {
+        Bulkhead bulkhead = bulkheads.get(resourceFunction);
+        if(bulkhead == null) {
+            bulkhead = newBulkhead(getMaxConcurrency(resourceFunction));
+            final Bulkhead existing = bulkheads.putIfAbsent(resourceFunction, bulkhead);
+            if(existing != null) {
+                bulkhead = existing;
+            }
+        }
+        return bulkhead;
+    }
+    
+    private void reject(final HttpResponse response, final RestXqCompletion<Void> completion) {
+        response.setStatus(HttpStatus.Service_Unavailable);
+        response.setHeader(HttpHeader.RETRY_AFTER.getHeaderName(), retryAfter);
+        completion.completed(null);
+    }
+    
+    /**
+     * @param wait The time in nanoseconds until a request would be permitted
+     * 
+     * @return The value for a Retry-After header, in whole seconds rounded up
+     */
+    private static String toRetryAfter(final long wait) {
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        return String.valueOf((wait + second - 1) / second);
+    }
+    
+    private static void finished(final RestXqAdmissionController.Admission admission) {
+        if(admission != null) {
+            admission.finished();
+        }
+    }
+    
+    private static void abandon(final RestXqAdmissionController.Admission admission) {
+        if(admission != null) {
+            admission.abandon();
+        }
+    }
+    
+    private static Bulkhead newBulkhead(final int limit) {
+        return limit == UNLIMITED ? NO_BULKHEAD : new Bulkhead(limit);
+    }
+    
+    private static void checkLimit(final int limit) {
+        if(limit != UNLIMITED && limit < 1) {
+            throw new IllegalArgumentException("A limit must be positive or UNLIMITED: " + limit);
+        }
+    }
+    
+    /**
+     * Creates an Executor which runs each task on a new virtual thread,
+     * or if the JVM does not support virtual threads, on a pool
+     * of daemon threads which grows on demand
+     */
+    private static Executor newDefaultExecutor() {
+        try {
+            final Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_FACTORY_METHOD);
+            return (Executor)newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch(final NoSuchMethodException nsme) {
+            //virtual threads are not available
+        } catch(final IllegalAccessException iae) {
+            //virtual threads are not available
+        } catch(final InvocationTargetException ite) {
+            //virtual threads are not available
+        }
+        
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "restxq-dispatcher-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Services a request
+     */
+    private interface Servicing {
+        void service() throws RestXqServiceException;
+    }
+    
+    /**
+     * Limits the number of holders at the same time
+     */
+    private final static class Bulkhead {
+        /* @Nullable */ private final Semaphore permits;
+        
+        Bulkhead(final int limit) {
+            this.permits = limit == UNLIMITED ? null : new Semaphore(limit);
+        }
+        
+        boolean tryAcquire() {
+            return permits == null || permits.tryAcquire();
+        }
+        
+        void release() {
+            if(permits != null) {
+                permits.release();
+            }
+        }
+    }
+}
@@ -33,11 +33,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.exquery.http.HttpHeader;
 import org.exquery.http.HttpMethod;
 import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
 import org.exquery.restxq.RestXqService;
 import org.exquery.restxq.RestXqServiceRegistry;
 import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.impl.RestXqServiceSelection.Outcome;
 import org.exquery.restxq.impl.RestXqServicesMap.RestXqServiceMapVisitor;
 
 /**
@@ -49,11 +53,130 @@ public class RestXqServiceRegistryImpl implements RestXqServiceRegistry {
 
     private final RestXqServicesMap services = new RestXqServicesMap();
     private final List<RestXqServiceRegistryListener> listeners = new ArrayList<RestXqServiceRegistryListener>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile RestXqServiceResolutionCache resolutionCache = null;
+    private volatile RestXqOptionsHandler optionsHandler = null;
+    private volatile RestXqFrozenRouteTable frozenRouteTable = null;
+    private volatile long defaultDeadline = AbstractRestXqService.NO_DEADLINE;
+    private final ResourceFunctionAttachments attachments = new ResourceFunctionAttachments();
     
     private RestXqServicesMap getServices() {
         return services;
     }
     
+    /**
+     * Gets the generation of this Registry
+     * 
+     * The generation is incremented each time that
+     * a Service is registered or de-registered
+     * 
+     * @return The current generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * Sets a cache to hold the resolution of HTTP Requests to Services
+     * 
+     * @param resolutionCache The cache to use, or null to disable caching
+     */
+    public void setResolutionCache(final RestXqServiceResolutionCache resolutionCache) {
+        this.resolutionCache = resolutionCache;
+    }
+    
+    /**
+     * Sets a handler to be called when a HTTP OPTIONS request
+     * is automatically answered, e.g. to add CORS headers
+     * 
+     * @param optionsHandler The handler, or null for no handler
+     */
+    public void setOptionsHandler(final RestXqOptionsHandler optionsHandler) {
+        this.optionsHandler = optionsHandler;
+    }
+    
+    /**
+     * Freezes the currently registered Services into a route table
+     * which is used to select Services until the registry changes
+     * 
+     * Once a Service is registered or de-registered the table is
+     * ignored and Services are selected as usual, so this should be
+     * called again after (re-)deployment of Services
+     * 
+     * @return The frozen route table
+     */
+    public RestXqFrozenRouteTable freezeRoutes() {
+        //NOTE: the generation must be read before the services are frozen
+        final RestXqFrozenRouteTable table = RestXqFrozenRouteTable.freeze(getServices(), generation.get());
+        this.frozenRouteTable = table;
+        return table;
+    }
+    
+    /**
+     * Discards any frozen route table
+     */
+    public void unfreezeRoutes() {
+        this.frozenRouteTable = null;
+    }
+    
+    /**
+     * Sets the deadline for servicing requests by Services
+     * whose Resource Function has no %rest:deadline annotation
+     * 
+     * The deadline applies to Services which are already
+     * registered, and to those registered later.
+     * 
+     * @param defaultDeadline The deadline in milliseconds, or {@link AbstractRestXqService#NO_DEADLINE}
+     */
+    public void setDefaultDeadline(final long defaultDeadline) {
+        if(defaultDeadline != AbstractRestXqService.NO_DEADLINE && defaultDeadline < 1) {
+            throw new IllegalArgumentException("A deadline must be positive or NO_DEADLINE: " + defaultDeadline);
+        }
+        
+        this.defaultDeadline = defaultDeadline;
+        for(final RestXqService service : this) {
+            applyDefaultDeadline(service);
+        }
+    }
+    
+    /**
+     * Gets the deadline for servicing requests by Services
+     * whose Resource Function has no %rest:deadline annotation
+     * 
+     * @return The deadline in milliseconds, or {@link AbstractRestXqService#NO_DEADLINE}
+     */
+    public long getDefaultDeadline() {
+        return defaultDeadline;
+    }
+    
+    private void applyDefaultDeadline(final RestXqService service) {
+        if(service instanceof AbstractRestXqService) {
+            ((AbstractRestXqService)service).setDefaultDeadline(defaultDeadline);
+        }
+    }
+    
+    /**
+     * Gets the state attached to the Resource Functions of the registered
+     * Services, e.g. by a {@link org.exquery.restxq.ResourceFunctionExecuter}
+     * 
+     * The attachments of a Resource Function are invalidated
+     * when its Service is de-registered.
+     * 
+     * @return The attachments
+     */
+    public ResourceFunctionAttachments getAttachments() {
+        return attachments;
+    }
+    
+    /**
+     * Gets the cache which holds the resolution of HTTP Requests to Services
+     * 
+     * @return The cache, or null if caching is disabled
+     */
+    public RestXqServiceResolutionCache getResolutionCache() {
+        return resolutionCache;
+    }
+    
     @Override
     public void register(final RestXqService service) {
         final EnumSet<HttpMethod> servicedMethods = service.getServicedMethods();
@@ -63,19 +186,50 @@ public class RestXqServiceRegistryImpl implements RestXqServiceRegistry {
             //TODO future work - if no method annotation, this service could apply to ANY method!
 
         } else {
+            applyDefaultDeadline(service);
+            attachments.registered(service);
             for(final HttpMethod servicedMethod : servicedMethods) {
                 getServices().put(servicedMethod, service);
                 for(final RestXqServiceRegistryListener listener : listeners) {
                     listener.registered(service);
                 }
             }
+            generation.incrementAndGet();
         }
     }
 
+    /**
+     * Registers several RESTXQ Services with the registry
+     * 
+     * The Services are loaded into the registry in bulk,
+     * so this is much faster than registering each Service
+     * in turn when there are many Services.
+     *
+     * @param services The Services to register with the registry
+     */
     @Override
     public void register(final Iterable<RestXqService> services) {
+        final List<RestXqService> methodServices = new ArrayList<RestXqService>();
         for(final RestXqService service : services) {
-            register(service);
+            if(!service.getServicedMethods().isEmpty()) {
+                applyDefaultDeadline(service);
+                attachments.registered(service);
+                methodServices.add(service);
+            }
+            //TODO future work - if no method annotation, this service could apply to ANY method!
+        }
+        
+        if(!methodServices.isEmpty()) {
+            getServices().putAll(methodServices);
+            for(final RestXqService service : methodServices) {
+                //listeners are notified for each serviced method, as by register(RestXqService)
+                for(final HttpMethod servicedMethod : service.getServicedMethods()) {
+                    for(final RestXqServiceRegistryListener listener : listeners) {
+                        listener.registered(service);
+                    }
+                }
+            }
+            generation.incrementAndGet();
         }
     }
 
@@ -96,19 +250,123 @@ public class RestXqServiceRegistryImpl implements RestXqServiceRegistry {
     
     @Override
     public RestXqService findService(final HttpRequest request) {
-        return getServices().get(request.getMethod(), request);
+        final RestXqServiceResolution resolution = resolveService(request);
+        if(resolution == null) {
+            return null;
+        }
+        return resolution.getService();
+    }
+    
+    /**
+     * Find the RESTXQ Service which can Service the HTTP Request
+     * along with the path parameters extracted from the request
+     * 
+     * @param request The HTTP Request for which to try and find a matching RESTXQ Service
+     * 
+     * @return The resolution of the request, or null if no suitable
+     * RESTXQ Service can be found
+     */
+    public RestXqServiceResolution resolveService(final HttpRequest request) {
+        return selectService(request).getResolution();
+    }
+    
+    /**
+     * Select the RESTXQ Service which can Service the HTTP Request
+     * 
+     * When no suitable Service can be found, the selection describes
+     * why, i.e. HTTP 404, 405 (with the allowed methods), 415 or 406,
+     * so that an error response can be sent without searching the registry again.
+     * 
+     * If a resolution cache has been set, then the cache is consulted
+     * before searching the registry, and successful selections
+     * (including those for automatic OPTIONS) are added to the cache.
+     * 
+     * If the routes have been frozen, see {@link #freezeRoutes()}, and the
+     * registry has not changed since, then the frozen route table is searched.
+     * 
+     * @param request The HTTP Request for which to try and find a matching RESTXQ Service
+     * 
+     * @return The selection for the request
+     */
+    public RestXqServiceSelection selectService(final HttpRequest request) {
+        final RestXqServiceResolutionCache cache = resolutionCache;
+        
+        //NOTE: the generation must be read before the services are searched
+        final long currentGeneration = generation.get();
+        if(cache != null) {
+            final RestXqServiceSelection cached = cache.get(currentGeneration, request);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        
+        final RestXqFrozenRouteTable table = frozenRouteTable;
+        final RestXqServiceSelection selection;
+        if(table != null && table.getGeneration() == currentGeneration) {
+            selection = table.select(request);
+        } else {
+            selection = getServices().select(request);
+        }
         
         //TODO future work - else consult the ANY METHOD bucket?
+        
+        if(cache != null && (selection.isFound() || selection.getOutcome() == Outcome.OPTIONS)) {
+            cache.put(currentGeneration, request, selection);
+        }
+        return selection;
+    }
+    
+    /**
+     * Answers a HTTP OPTIONS request directly from the registry
+     * without executing any Resource Function
+     * 
+     * Sets the Allow header from the HTTP Methods of the Services
+     * which match the request path, and then calls the
+     * options handler (if any).
+     * 
+     * @param selection The selection for the request, whose outcome
+     * must be {@link Outcome#OPTIONS}
+     * @param request The HTTP OPTIONS request
+     * @param response The HTTP response
+     * 
+     * @throws IllegalArgumentException if the outcome of the selection is not {@link Outcome#OPTIONS}
+     */
+    public void serviceOptions(final RestXqServiceSelection selection, final HttpRequest request, final HttpResponse response) {
+        if(selection.getOutcome() != Outcome.OPTIONS) {
+            throw new IllegalArgumentException("Selection is not for an automatic OPTIONS response: " + selection.getOutcome());
+        }
+        
+        response.setStatus(selection.getHttpStatus());
+        response.setHeader(HttpHeader.ALLOW.getHeaderName(), selection.getAllowHeaderValue());
+        response.setHeader(HttpHeader.CONTENT_LENGTH.getHeaderName(), "0");
+        
+        final RestXqOptionsHandler handler = optionsHandler;
+        if(handler != null) {
+            handler.handleOptions(request, selection.getAllowedMethods(), response);
+        }
     }
     
     @Override
     public void deregister(final URI xqueryLocation) {
-        getServices().removeAll(xqueryLocation, listeners);
+        getServices().removeAll(xqueryLocation, getDeregistrationListeners());
+        generation.incrementAndGet();
     }
     
     @Override
     public void deregister(final RestXqService service) {
-        getServices().remove(service, listeners);
+        getServices().remove(service, getDeregistrationListeners());
+        generation.incrementAndGet();
+    }
+    
+    /**
+     * Gets the listeners to notify when Services are de-registered,
+     * which always includes the attachments
+     */
+    private List<RestXqServiceRegistryListener> getDeregistrationListeners() {
+        final List<RestXqServiceRegistryListener> deregistrationListeners = new ArrayList<RestXqServiceRegistryListener>(listeners.size() + 1);
+        deregistrationListeners.addAll(listeners);
+        deregistrationListeners.add(attachments);
+        return deregistrationListeners;
     }
     
     /**
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.AsyncRestXqService;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+
+/**
+ * The result of resolving a HTTP Request to a RESTXQ Service
+ *
+ * Holds the chosen RESTXQ Service together with the values
+ * of the path parameters that were extracted from the
+ * request path, so that they need not be extracted again
+ * when the Service is invoked
+ *
+ * @author Adam Retter
+ */
+public final class RestXqServiceResolution {
+
+    private final RestXqService service;
+    private final Map<String, String> pathParameters;
+
+    /**
+     * @param service The RESTXQ Service that was chosen for the request
+     * @param pathParameters The path parameter names and values extracted from the request path
+     */
+    public RestXqServiceResolution(final RestXqService service, final Map<String, String> pathParameters) {
+        this.service = service;
+        this.pathParameters = Collections.unmodifiableMap(pathParameters);
+    }
+
+    /**
+     * Gets the RESTXQ Service which was chosen for the request
+     *
+     * @return The RESTXQ Service
+     */
+    public RestXqService getService() {
+        return service;
+    }
+
+    /**
+     * Gets the path parameters which were extracted from the request path
+     *
+     * @return An unmodifiable Map of path parameter names to values
+     */
+    public Map<String, String> getPathParameters() {
+        return pathParameters;
+    }
+
+    /**
+     * Service the request with the chosen RESTXQ Service
+     * 
+     * The path parameters held by this resolution are reused
+     * where the Service supports it, rather than being extracted
+     * from the request path again
+     * 
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * 
+     * @throws RestXqServiceException If an unexpected error occured whilst processing the request
+     */
+    public void service(final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer) throws RestXqServiceException {
+        if(service instanceof AbstractRestXqService) {
+            ((AbstractRestXqService)service).service(request, response, resourceFunctionExecuter, restXqServiceSerializer, pathParameters);
+        } else {
+            service.service(request, response, resourceFunctionExecuter, restXqServiceSerializer);
+        }
+    }
+
+    /**
+     * Service the request with the chosen RESTXQ Service asynchronously
+     * 
+     * Services which cannot be serviced asynchronously are
+     * serviced on the calling thread, which then waits for
+     * the Resource Function to be executed
+     * 
+     * @param request The request to service
+     * @param response The response to write the service result to
+     * @param resourceFunctionExecuter The Executer to execute the Resource Function
+     * @param restXqServiceSerializer Serializer for serializing the response of the service
+     * @param completion Notified once the response has been written, or if an unexpected error occured whilst processing the request
+     */
+    public void serviceAsync(final HttpRequest request, final HttpResponse response, final AsyncResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqCompletion<Void> completion) {
+        if(service instanceof AbstractRestXqService) {
+            ((AbstractRestXqService)service).serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, pathParameters, completion);
+        } else if(service instanceof AsyncRestXqService) {
+            ((AsyncRestXqService)service).serviceAsync(request, response, resourceFunctionExecuter, restXqServiceSerializer, completion);
+        } else {
+            try {
+                service.service(request, response, ResourceFunctionExecuters.asSync(resourceFunctionExecuter), restXqServiceSerializer);
+            } catch(final RestXqServiceException rqse) {
+                completion.failed(rqse);
+                return;
+            }
+            completion.completed(null);
+        }
+    }
+}
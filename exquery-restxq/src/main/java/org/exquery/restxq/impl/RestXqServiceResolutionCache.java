@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+
+/**
+ * Bounded, Thread-Safe cache of the resolution of HTTP Requests
+ * to RESTXQ Services
+ *
+ * Entries are keyed on the HTTP Method, the request Path and the
+ * Content-Type and Accept headers of the request, as those are the
+ * only parts of a request which influence the choice of Service.
+ *
+ * Each entry is tagged with the generation of the registry at the
+ * time the resolution was started, an entry from an older generation
+ * is never returned. When the cache is full arbitrary entries are
+ * evicted to make room for new ones.
+ *
+ * @author Adam Retter
+ */
+public class RestXqServiceResolutionCache {
+
+    private final int maxEntries;
+    private final ConcurrentMap<Key, Entry> entries;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxEntries The maximum number of resolutions to hold in the cache
+     *
+     * @throws IllegalArgumentException if maxEntries is less than one
+     */
+    public RestXqServiceResolutionCache(final int maxEntries) {
+        if(maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be greater than zero");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<Key, Entry>(Math.min(maxEntries, 1024));
+    }
+
+    /**
+     * Gets a cached selection for the HTTP Request
+     *
+     * @param generation The current generation of the registry
+     * @param request The HTTP Request
+     *
+     * @return The cached selection, or null if there is no
+     * selection for the request in the current generation
+     */
+    public RestXqServiceSelection get(final long generation, final HttpRequest request) {
+        final Key key = new Key(request);
+        final Entry entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+
+        if(entry.generation != generation) {
+            //stale, the registry has changed since this was cached
+            if(entries.remove(key, entry)) {
+                size.decrementAndGet();
+            }
+            return null;
+        }
+
+        return entry.selection;
+    }
+
+    /**
+     * Caches the selection of a Service for a HTTP Request
+     *
+     * @param generation The generation of the registry which was
+     * read before the selection was started
+     * @param request The HTTP Request
+     * @param selection The selection for the request
+     */
+    public void put(final long generation, final HttpRequest request, final RestXqServiceSelection selection) {
+        final Key key = new Key(request);
+        final Entry entry = new Entry(generation, selection);
+
+        final Entry previous = entries.put(key, entry);
+        if(previous == null && size.incrementAndGet() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache
+     */
+    public void clear() {
+        final Iterator<Key> itKeys = entries.keySet().iterator();
+        while(itKeys.hasNext()) {
+            itKeys.next();
+            itKeys.remove();
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the approximate number of entries in the cache
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Evicts entries until the cache is no
+     * larger than its maximum size
+     */
+    private void evict() {
+        final Iterator<Entry> itEntries = entries.values().iterator();
+        while(size.get() > maxEntries && itEntries.hasNext()) {
+            itEntries.next();
+            itEntries.remove();
+            size.decrementAndGet();
+        }
+    }
+
+    private static class Entry {
+        final long generation;
+        final RestXqServiceSelection selection;
+
+        Entry(final long generation, final RestXqServiceSelection selection) {
+            this.generation = generation;
+            this.selection = selection;
+        }
+    }
+
+    /**
+     * The parts of a HTTP Request which determine the RESTXQ Service
+     */
+    private static class Key {
+        private final HttpMethod method;
+        private final String path;
+        private final String contentType;
+        private final String accept;
+        private final int hashCode;
+
+        Key(final HttpRequest request) {
+            this.method = request.getMethod();
+            this.path = request.getPath();
+            this.contentType = request.getContentType();
+            this.accept = request.getHeader(HttpHeader.ACCEPT.getHeaderName());
+
+            int hash = method == null ? 0 : method.hashCode();
+            hash = 31 * hash + (path == null ? 0 : path.hashCode());
+            hash = 31 * hash + (contentType == null ? 0 : contentType.hashCode());
+            hash = 31 * hash + (accept == null ? 0 : accept.hashCode());
+            this.hashCode = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if(this == obj) {
+                return true;
+            }
+
+            if(!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key)obj;
+            return hashCode == other.hashCode
+                    && method == other.method
+                    && equal(path, other.path)
+                    && equal(contentType, other.contentType)
+                    && equal(accept, other.accept);
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
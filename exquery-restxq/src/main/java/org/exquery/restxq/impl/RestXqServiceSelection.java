@@ -0,0 +1,222 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.EnumSet;
+import java.util.Iterator;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpStatus;
+
+/**
+ * The outcome of selecting a RESTXQ Service for a HTTP Request
+ *
+ * Either holds the resolution of the request to a Service,
+ * or the reason why no Service could be selected, so that
+ * an appropriate HTTP error response can be sent without
+ * searching the registry again
+ *
+ * @author Adam Retter
+ */
+public final class RestXqServiceSelection {
+
+    /**
+     * The outcome of selecting a Service
+     *
+     * When no Service is selected, the outcome describes
+     * the furthest that any candidate Service got in
+     * matching the request
+     */
+    public enum Outcome {
+
+        /**
+         * A Service was selected
+         */
+        FOUND(HttpStatus.OK),
+
+        /**
+         * No Service has a path which matches the request path
+         */
+        NO_PATH_MATCH(HttpStatus.Not_Found),
+
+        /**
+         * One or more Services match the request path,
+         * but none of them support the request method
+         */
+        METHOD_NOT_ALLOWED(HttpStatus.Method_Not_Allowed),
+
+        /**
+         * One or more Services match the request path and method,
+         * but none of them can consume the request Content-Type
+         */
+        UNSUPPORTED_MEDIA_TYPE(HttpStatus.Unsupported_Media_Type),
+
+        /**
+         * One or more Services match the request path and method
+         * and can consume the request, but none of them can produce
+         * a response which is acceptable to the client
+         */
+        NOT_ACCEPTABLE(HttpStatus.Not_Acceptable),
+
+        /**
+         * The request is a HTTP OPTIONS request, for which no Service
+         * explicitly supports OPTIONS, but one or more Services match
+         * the request path. The Registry can answer the request
+         * directly from the allowed methods.
+         */
+        OPTIONS(HttpStatus.OK);
+
+        private final HttpStatus httpStatus;
+
+        Outcome(final HttpStatus httpStatus) {
+            this.httpStatus = httpStatus;
+        }
+
+        /**
+         * Gets the HTTP Status which corresponds to the outcome
+         *
+         * @return The HTTP Status
+         */
+        public HttpStatus getHttpStatus() {
+            return httpStatus;
+        }
+    }
+
+    private final Outcome outcome;
+    private final RestXqServiceResolution resolution;
+    private final EnumSet<HttpMethod> allowedMethods;
+
+    private RestXqServiceSelection(final Outcome outcome, final RestXqServiceResolution resolution, final EnumSet<HttpMethod> allowedMethods) {
+        this.outcome = outcome;
+        this.resolution = resolution;
+        this.allowedMethods = allowedMethods;
+    }
+
+    /**
+     * Creates a selection where a Service was found
+     *
+     * @param resolution The resolution of the request to the Service
+     * @param allowedMethods The HTTP Methods of all Services which match the request path
+     *
+     * @return The selection
+     */
+    public static RestXqServiceSelection found(final RestXqServiceResolution resolution, final EnumSet<HttpMethod> allowedMethods) {
+        return new RestXqServiceSelection(Outcome.FOUND, resolution, allowedMethods);
+    }
+
+    /**
+     * Creates a selection where no Service was found
+     *
+     * @param outcome The reason why no Service was found
+     * @param allowedMethods The HTTP Methods of all Services which match the request path
+     *
+     * @return The selection
+     *
+     * @throws IllegalArgumentException if the outcome is {@link Outcome#FOUND} or {@link Outcome#OPTIONS}
+     */
+    public static RestXqServiceSelection notFound(final Outcome outcome, final EnumSet<HttpMethod> allowedMethods) {
+        if(outcome == Outcome.FOUND || outcome == Outcome.OPTIONS) {
+            throw new IllegalArgumentException("A selection which was not found requires a reason");
+        }
+        return new RestXqServiceSelection(outcome, null, allowedMethods);
+    }
+
+    /**
+     * Creates a selection for a HTTP OPTIONS request which
+     * may be answered directly from the allowed methods
+     *
+     * @param allowedMethods The HTTP Methods of all Services which match the request path
+     *
+     * @return The selection
+     */
+    public static RestXqServiceSelection options(final EnumSet<HttpMethod> allowedMethods) {
+        return new RestXqServiceSelection(Outcome.OPTIONS, null, allowedMethods);
+    }
+
+    /**
+     * Gets the outcome of the selection
+     *
+     * @return The outcome
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Determines if a Service was selected
+     *
+     * @return true if a Service was selected, false otherwise
+     */
+    public boolean isFound() {
+        return outcome == Outcome.FOUND;
+    }
+
+    /**
+     * Gets the HTTP Status which corresponds to the outcome of the selection
+     *
+     * @return The HTTP Status
+     */
+    public HttpStatus getHttpStatus() {
+        return outcome.getHttpStatus();
+    }
+
+    /**
+     * Gets the resolution of the request to a Service
+     *
+     * @return The resolution, or null if no Service was selected
+     */
+    public RestXqServiceResolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Gets the HTTP Methods supported by all the
+     * Services whose path matches the request path
+     *
+     * @return The allowed HTTP Methods, empty if no Service matches the path
+     */
+    public EnumSet<HttpMethod> getAllowedMethods() {
+        return EnumSet.copyOf(allowedMethods);
+    }
+
+    /**
+     * Gets the value for a HTTP Allow header
+     * listing the allowed HTTP Methods
+     *
+     * @return The value of the Allow header, e.g. "GET, POST"
+     */
+    public String getAllowHeaderValue() {
+        final StringBuilder builder = new StringBuilder();
+        final Iterator<HttpMethod> itMethods = allowedMethods.iterator();
+        while(itMethods.hasNext()) {
+            builder.append(itMethods.next().name());
+            if(itMethods.hasNext()) {
+                builder.append(", ");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -35,6 +35,8 @@ import org.exquery.http.HttpMethod;
 import org.exquery.http.HttpRequest;
 import org.exquery.restxq.RestXqService;
 import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.impl.RestXqServiceSelection.Outcome;
 
 /**
  * Simple Thread-Safe Map that maintains the association between HttpMethods
@@ -46,6 +48,13 @@ public class RestXqServicesMap {
         
     private final Map<HttpMethod, List<RestXqService>> orderedServices = new EnumMap<HttpMethod, List<RestXqService>>(HttpMethod.class);
     private final Map<HttpMethod, ReentrantReadWriteLock> methodLocks = new EnumMap<HttpMethod, ReentrantReadWriteLock>(HttpMethod.class);
+    
+    /**
+     * All services regardless of HttpMethod, in Path Specificity order,
+     * replaced on every modification so that it may be read without locking
+     */
+    private final Object registeredServicesLock = new Object();
+    private volatile RegisteredService[] registeredServices = new RegisteredService[0];
 
     /**
      * Put a RESTXQ Service in the Map
@@ -78,6 +87,8 @@ public class RestXqServicesMap {
             Collections.sort(list);
 
             orderedServices.put(method, list);
+            
+            addRegisteredService(method, service);
 
             return oldValue;
         } finally {
@@ -85,6 +96,64 @@ public class RestXqServicesMap {
         }
     }
     
+    /**
+     * Put many RESTXQ Services in the Map
+     * 
+     * Each Service is associated with all of the HttpMethods
+     * that it services. Unlike calling {@link #put(HttpMethod, RestXqService)}
+     * for each Service, the Services for each HttpMethod are sorted only
+     * once, which makes this suitable for loading a large number of Services.
+     * 
+     * @param services The RESTXQ Services to put in the Map
+     */
+    public void putAll(final Iterable<RestXqService> services) {
+        
+        //group the services by method
+        final Map<HttpMethod, Set<RestXqService>> servicesByMethod = new EnumMap<HttpMethod, Set<RestXqService>>(HttpMethod.class);
+        for(final RestXqService service : services) {
+            for(final HttpMethod method : service.getServicedMethods()) {
+                Set<RestXqService> methodServices = servicesByMethod.get(method);
+                if(methodServices == null) {
+                    methodServices = new LinkedHashSet<RestXqService>();
+                    servicesByMethod.put(method, methodServices);
+                }
+                methodServices.add(service);
+            }
+        }
+        
+        for(final Map.Entry<HttpMethod, Set<RestXqService>> methodServices : servicesByMethod.entrySet()) {
+            final HttpMethod method = methodServices.getKey();
+            final ReentrantReadWriteLock lock = getOrCreateMethodLock(method);
+        
+            try {
+                lock.writeLock().lock();
+
+                final List<RestXqService> list;
+                final List<RestXqService> existing = orderedServices.get(method);
+                if(existing == null) {
+                    list = new ArrayList<RestXqService>(methodServices.getValue().size());
+                } else {
+                    list = new ArrayList<RestXqService>(existing.size() + methodServices.getValue().size());
+                    for(final RestXqService service : existing) {
+                        //replace any previous Service
+                        if(!methodServices.getValue().contains(service)) {
+                            list.add(service);
+                        }
+                    }
+                }
+                
+                list.addAll(methodServices.getValue());
+                Collections.sort(list);
+
+                orderedServices.put(method, list);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        addRegisteredServices(servicesByMethod);
+    }
+    
     /**
      * Visitor Interface for iterating over the RESTXQ Services Map
      */
@@ -181,7 +250,9 @@ public class RestXqServicesMap {
                 
                 for(final RestXqService service : services) {
                     if(service.canService(request)) {
-                        if(acceptHeader != null && result != null) {
+                        if(result == null) {
+                            result = service;
+                        } else if(acceptHeader != null) {
                             /* Does this service Produce an Internet Media Type
                              * which has a higher Quality Factor in the Accept header
                              * that the last result?
@@ -190,9 +261,8 @@ public class RestXqServicesMap {
                                 //yes, so this service has preference over the last result
                                 result = service;
                             }
-                        } else {
-                            result = service;
                         }
+                        //otherwise the last result has a more specific path, so has preference
 
                     }
                 }
@@ -204,6 +274,190 @@ public class RestXqServicesMap {
         }
     }
     
+    /**
+     * Selects the RESTXQ Service for a request in a single pass
+     * over all of the Services in the Map
+     * 
+     * Unlike {@link #get(HttpMethod, HttpRequest)} this records why
+     * candidate Services were rejected, so that when no Service
+     * matches, the appropriate HTTP error can be reported
+     * without searching the Map again.
+     * 
+     * A HEAD request for which there is no HEAD Service falls
+     * back to the GET Service for the same request. An OPTIONS
+     * request for which there is no OPTIONS Service results in
+     * {@link Outcome#OPTIONS} if any Service matches the path.
+     * 
+     * @param request The HTTP Request to select the Service for
+     * 
+     * @return The selection for the request
+     */
+    public RestXqServiceSelection select(final HttpRequest request) {
+        final RegisteredService[] candidates = registeredServices;
+        return select(request, candidates, candidates.length, null);
+    }
+    
+    /**
+     * Selects the RESTXQ Service for a request in a single pass
+     * over candidate Services
+     * 
+     * @param request The HTTP Request to select the Service for
+     * @param candidates The candidate Services in Path Specificity order
+     * @param candidateCount The number of candidates in the array
+     * @param candidatePathMatcher Matches the paths of the candidates, or null
+     * to match them with their Path Annotations
+     * 
+     * @return The selection for the request
+     */
+    static RestXqServiceSelection select(final HttpRequest request, final RegisteredService[] candidates, final int candidateCount, final CandidatePathMatcher candidatePathMatcher) {
+        final HttpMethod method = request.getMethod();
+        final String path = request.getPath();
+        
+        final EnumSet<HttpMethod> allowedMethods = EnumSet.noneOf(HttpMethod.class);
+        boolean methodMatched = false;
+        boolean consumable = false;
+        
+        AcceptHeader acceptHeader = null;
+        boolean acceptHeaderParsed = false;
+        
+        RestXqService result = null;
+        int resultIdx = -1;
+        RestXqService headFallbackResult = null;
+        int headFallbackResultIdx = -1;
+        for(int i = 0; i < candidateCount; i++) {
+            final RegisteredService candidate = candidates[i];
+            final RestXqService service = candidate.service;
+            
+            //1) check the path matches
+            if(candidatePathMatcher != null) {
+                if(!candidatePathMatcher.matchesPath(i, path)) {
+                    continue;
+                }
+            } else {
+                final PathAnnotation pathAnnotation = service.getResourceFunction().getPathAnnotation();
+                if(pathAnnotation != null && !pathAnnotation.matchesPath(path)) {
+                    continue;
+                }
+            }
+            allowedMethods.addAll(candidate.methods);
+            if(candidate.methods.contains(HttpMethod.GET)) {
+                //HEAD is always available where GET is
+                allowedMethods.add(HttpMethod.HEAD);
+            }
+            
+            //OPTIONS is always available for a path which matches
+            allowedMethods.add(HttpMethod.OPTIONS);
+            
+            //2) check the method matches, a HEAD request may fall back to a GET service
+            final boolean methodMatch = candidate.methods.contains(method);
+            final boolean headFallback = !methodMatch && method == HttpMethod.HEAD && candidate.methods.contains(HttpMethod.GET);
+            if(!(methodMatch || headFallback)) {
+                continue;
+            }
+            methodMatched = true;
+            
+            //3) check we can consume the request
+            if(!AbstractRestXqService.canConsume(service.getResourceFunction(), request)) {
+                continue;
+            }
+            consumable = true;
+            
+            //4) check we can produce the request
+            if(!AbstractRestXqService.canProduce(service.getResourceFunction(), request)) {
+                continue;
+            }
+            
+            if((methodMatch ? result : headFallbackResult) != null && !acceptHeaderParsed) {
+                acceptHeader = parseAcceptHeader(request);
+                acceptHeaderParsed = true;
+            }
+            
+            if(methodMatch) {
+                result = preferredService(result, service, acceptHeader);
+                if(result == service) {
+                    resultIdx = i;
+                }
+            } else {
+                headFallbackResult = preferredService(headFallbackResult, service, acceptHeader);
+                if(headFallbackResult == service) {
+                    headFallbackResultIdx = i;
+                }
+            }
+        }
+        
+        //a Service which explicitly supports HEAD has preference over a GET Service
+        if(result == null) {
+            result = headFallbackResult;
+            resultIdx = headFallbackResultIdx;
+        }
+        
+        if(result != null) {
+            final Map<String, String> pathParameters;
+            if(candidatePathMatcher != null) {
+                pathParameters = candidatePathMatcher.extractPathParameters(resultIdx, path);
+            } else if(result.getResourceFunction().getPathAnnotation() != null) {
+                pathParameters = result.getResourceFunction().getPathAnnotation().extractPathParameters(path);
+            } else {
+                pathParameters = Collections.<String, String>emptyMap();
+            }
+            return RestXqServiceSelection.found(new RestXqServiceResolution(result, pathParameters), allowedMethods);
+        } else if(allowedMethods.isEmpty()) {
+            return RestXqServiceSelection.notFound(Outcome.NO_PATH_MATCH, allowedMethods);
+        } else if(!methodMatched && method == HttpMethod.OPTIONS) {
+            return RestXqServiceSelection.options(allowedMethods);
+        } else if(!methodMatched) {
+            return RestXqServiceSelection.notFound(Outcome.METHOD_NOT_ALLOWED, allowedMethods);
+        } else if(!consumable) {
+            return RestXqServiceSelection.notFound(Outcome.UNSUPPORTED_MEDIA_TYPE, allowedMethods);
+        } else {
+            return RestXqServiceSelection.notFound(Outcome.NOT_ACCEPTABLE, allowedMethods);
+        }
+    }
+    
+    /**
+     * Chooses between the current result and a further candidate
+     * 
+     * NOTE: the choice is the same as that made by get(HttpMethod, HttpRequest)
+     * 
+     * @param result The current result, or null if there is no result yet
+     * @param service The candidate Service
+     * @param acceptHeader The Accept header of the request, or null
+     * 
+     * @return The preferred Service
+     */
+    private static RestXqService preferredService(final RestXqService result, final RestXqService service, final AcceptHeader acceptHeader) {
+        if(result == null) {
+            return service;
+        } else if(acceptHeader != null) {
+            /* Does this service Produce an Internet Media Type
+             * which has a higher Quality Factor in the Accept header
+             * that the last result?
+             */
+            if(service.maxProducesQualityFactor(acceptHeader) > result.maxProducesQualityFactor(acceptHeader)) {
+                return service;
+            } else {
+                return result;
+            }
+        } else {
+            //services are ordered by path specificity, so the last result has a more specific path
+            return result;
+        }
+    }
+    
+    private static AcceptHeader parseAcceptHeader(final HttpRequest request) {
+        final String acceptHeaderValue = request.getHeader(HttpHeader.ACCEPT.getHeaderName());
+        if(acceptHeaderValue == null) {
+            return null;
+        }
+        
+        try {
+            return new AcceptHeader(acceptHeaderValue);
+        } catch (final IllegalArgumentException e) {
+            // TODO(AR) signal that the incoming request's accept header is invalid (i.e. not valid HTTP 1.1)?
+            return null;
+        }
+    }
+    
     /**
      * Removes all RESTXQ Services from the Map that come from the XQuery
      * located at the URI xqueryLocation
@@ -235,6 +489,7 @@ public class RestXqServicesMap {
                     //remove the labelled service
                     for(final RestXqService serviceToRemove : servicesToRemove) {
                         serviceList.remove(serviceToRemove);
+                        removeRegisteredService(key, serviceToRemove);
                     }
 
                     //update the service list
@@ -282,6 +537,7 @@ public class RestXqServicesMap {
                 if(serviceToRemove != null) {
                     //remove the labelled service
                     serviceList.remove(serviceToRemove);
+                    removeRegisteredService(key, serviceToRemove);
 
                     //update the service list
                     orderedServices.put(key, serviceList);
@@ -297,6 +553,142 @@ public class RestXqServicesMap {
         }
     }
 
+    /**
+     * Records that a Service has been put in the Map for a HTTP Method
+     * 
+     * @param method The HTTP Method
+     * @param service The RESTXQ Service
+     */
+    private void addRegisteredService(final HttpMethod method, final RestXqService service) {
+        synchronized(registeredServicesLock) {
+            final List<RegisteredService> list = new ArrayList<RegisteredService>(registeredServices.length + 1);
+            final EnumSet<HttpMethod> methods = EnumSet.of(method);
+            for(final RegisteredService registeredService : registeredServices) {
+                if(registeredService.service.equals(service)) {
+                    methods.addAll(registeredService.methods);
+                } else {
+                    list.add(registeredService);
+                }
+            }
+            list.add(new RegisteredService(service, methods));
+            Collections.sort(list);
+            
+            registeredServices = list.toArray(new RegisteredService[list.size()]);
+        }
+    }
+    
+    /**
+     * Records that many Services have been put in the Map
+     * 
+     * @param servicesByMethod The RESTXQ Services for each HTTP Method
+     */
+    private void addRegisteredServices(final Map<HttpMethod, Set<RestXqService>> servicesByMethod) {
+        synchronized(registeredServicesLock) {
+            final Map<RestXqService, EnumSet<HttpMethod>> methodsByService = new LinkedHashMap<RestXqService, EnumSet<HttpMethod>>();
+            for(final Map.Entry<HttpMethod, Set<RestXqService>> methodServices : servicesByMethod.entrySet()) {
+                for(final RestXqService service : methodServices.getValue()) {
+                    EnumSet<HttpMethod> methods = methodsByService.get(service);
+                    if(methods == null) {
+                        methods = EnumSet.noneOf(HttpMethod.class);
+                        methodsByService.put(service, methods);
+                    }
+                    methods.add(methodServices.getKey());
+                }
+            }
+            
+            final List<RegisteredService> list = new ArrayList<RegisteredService>(registeredServices.length + methodsByService.size());
+            for(final RegisteredService registeredService : registeredServices) {
+                final EnumSet<HttpMethod> methods = methodsByService.get(registeredService.service);
+                if(methods != null) {
+                    //the service is already registered for some methods
+                    methods.addAll(registeredService.methods);
+                } else {
+                    list.add(registeredService);
+                }
+            }
+            for(final Map.Entry<RestXqService, EnumSet<HttpMethod>> serviceMethods : methodsByService.entrySet()) {
+                list.add(new RegisteredService(serviceMethods.getKey(), serviceMethods.getValue()));
+            }
+            Collections.sort(list);
+            
+            registeredServices = list.toArray(new RegisteredService[list.size()]);
+        }
+    }
+    
+    /**
+     * Records that a Service has been removed from the Map for a HTTP Method
+     * 
+     * @param method The HTTP Method
+     * @param service The RESTXQ Service
+     */
+    private void removeRegisteredService(final HttpMethod method, final RestXqService service) {
+        synchronized(registeredServicesLock) {
+            final List<RegisteredService> list = new ArrayList<RegisteredService>(registeredServices.length);
+            for(final RegisteredService registeredService : registeredServices) {
+                if(registeredService.service.equals(service)) {
+                    final EnumSet<HttpMethod> methods = EnumSet.copyOf(registeredService.methods);
+                    methods.remove(method);
+                    if(!methods.isEmpty()) {
+                        list.add(new RegisteredService(registeredService.service, methods));
+                    }
+                } else {
+                    list.add(registeredService);
+                }
+            }
+            
+            registeredServices = list.toArray(new RegisteredService[list.size()]);
+        }
+    }
+    
+    /**
+     * Matches the request path against candidate Services by their index
+     */
+    interface CandidatePathMatcher {
+        
+        /**
+         * @param candidateIdx The index of the candidate Service
+         * @param path The request path
+         * 
+         * @return true if the path of the candidate Service matches the request path
+         */
+        public boolean matchesPath(final int candidateIdx, final String path);
+        
+        /**
+         * @param candidateIdx The index of the candidate Service, whose path matches
+         * @param path The request path
+         * 
+         * @return The path parameters of the candidate Service
+         */
+        public Map<String, String> extractPathParameters(final int candidateIdx, final String path);
+    }
+
+    /**
+     * Gets all of the Services in the Map, regardless of HttpMethod
+     * 
+     * @return The Services in Path Specificity order, the array must not be modified
+     */
+    RegisteredService[] getRegisteredServices() {
+        return registeredServices;
+    }
+
+    /**
+     * A Service and the HTTP Methods for which it is in the Map
+     */
+    static class RegisteredService implements Comparable<RegisteredService> {
+        final RestXqService service;
+        final EnumSet<HttpMethod> methods;
+
+        RegisteredService(final RestXqService service, final EnumSet<HttpMethod> methods) {
+            this.service = service;
+            this.methods = methods;
+        }
+
+        @Override
+        public int compareTo(final RegisteredService other) {
+            return service.compareTo(other.service);
+        }
+    }
+
     /**
      * Gets of Creates a Lock for a specific HTTP Method
      * 
@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exquery.http.HttpMethod;
+import org.exquery.restxq.PreparableResourceFunctionExecuter;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceRegistry;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.impl.annotation.PathAnnotationImpl;
+
+/**
+ * Warms up the registered RESTXQ Services before they receive traffic,
+ * so that the first requests do not pay for query compilation,
+ * class loading and JIT compilation
+ * 
+ * Each Resource Function is prepared by the executer, if it is a
+ * {@link PreparableResourceFunctionExecuter}. If a serializer is
+ * given then each GET Service whose path has no templates is also
+ * sent a synthetic request, without headers or parameters, so that
+ * its Resource Function is executed with the default values of its
+ * parameters and its result is serialized and discarded.
+ * 
+ * The Services are warmed up in parallel, within a time budget. Once
+ * the warm-up completes, or the budget is exhausted, the readiness
+ * is signalled, see {@link #getReadiness()}. Failures whilst warming
+ * up are counted but otherwise ignored.
+ *
+ * @author Adam Retter
+ */
+public class RestXqWarmUp {
+    
+    private final RestXqServiceRegistry registry;
+    private final ResourceFunctionExecuter resourceFunctionExecuter;
+    /* @Nullable */ private final RestXqServiceSerializer restXqServiceSerializer;
+    private final RestXqReadiness readiness;
+    
+    private final AtomicInteger prepared = new AtomicInteger();
+    private final AtomicInteger replayed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    
+    /**
+     * @param registry The registry of the Services to warm up
+     * @param resourceFunctionExecuter The Executer to prepare and execute the Resource Functions
+     * @param restXqServiceSerializer Serializer for serializing the results of synthetic
+     * requests, or null if synthetic requests should not be sent
+     * @param readiness The readiness to signal once the Services have been warmed up
+     */
+    public RestXqWarmUp(final RestXqServiceRegistry registry, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer, final RestXqReadiness readiness) {
+        this.registry = registry;
+        this.resourceFunctionExecuter = resourceFunctionExecuter;
+        this.restXqServiceSerializer = restXqServiceSerializer;
+        this.readiness = readiness;
+    }
+    
+    /**
+     * Gets the readiness which is signalled once the Services have been warmed up
+     * 
+     * @return The readiness
+     */
+    public RestXqReadiness getReadiness() {
+        return readiness;
+    }
+    
+    /**
+     * Warms up the Services on a pool of threads, one for each processor
+     * 
+     * @param budget The maximum time to spend warming up
+     * @param unit The unit of the budget
+     * 
+     * @return true if the warm-up completed within the budget
+     * 
+     * @throws InterruptedException If the thread was interrupted whilst waiting for the warm-up
+     */
+    public boolean warmUp(final long budget, final TimeUnit unit) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "restxq-warm-up-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            return warmUp(executor, budget, unit);
+        } finally {
+            //NOTE: any warm-up still running after the budget is left to finish
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Warms up the Services
+     * 
+     * @param executor The executor to warm up the Services on
+     * @param budget The maximum time to spend warming up
+     * @param unit The unit of the budget
+     * 
+     * @return true if the warm-up completed within the budget
+     * 
+     * @throws InterruptedException If the thread was interrupted whilst waiting for the warm-up
+     */
+    public boolean warmUp(final Executor executor, final long budget, final TimeUnit unit) throws InterruptedException {
+        try {
+            final List<RestXqService> services = getDistinctServices();
+            final CountDownLatch remaining = new CountDownLatch(services.size());
+            for(final RestXqService service : services) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                warmUp(service);
+                            } finally {
+                                remaining.countDown();
+                            }
+                        }
+                    });
+                } catch(final RejectedExecutionException ree) {
+                    failed.incrementAndGet();
+                    remaining.countDown();
+                }
+            }
+            
+            return remaining.await(budget, unit);
+        } finally {
+            readiness.ready();
+        }
+    }
+    
+    /**
+     * Gets the number of Resource Functions which have been prepared
+     * 
+     * @return The number of prepared Resource Functions
+     */
+    public int getPreparedCount() {
+        return prepared.get();
+    }
+    
+    /**
+     * Gets the number of synthetic requests which have been serviced
+     * 
+     * @return The number of synthetic requests
+     */
+    public int getReplayedCount() {
+        return replayed.get();
+    }
+    
+    /**
+     * Gets the number of Resource Functions which failed to be
+     * prepared, or synthetic requests which failed to be serviced
+     * 
+     * @return The number of failures
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+    
+    private void warmUp(final RestXqService service) {
+        final ResourceFunction resourceFunction = service.getResourceFunction();
+        
+        if(resourceFunctionExecuter instanceof PreparableResourceFunctionExecuter) {
+            try {
+                ((PreparableResourceFunctionExecuter)resourceFunctionExecuter).prepare(resourceFunction);
+                prepared.incrementAndGet();
+            } catch(final RestXqServiceException rqse) {
+                failed.incrementAndGet();
+                return;
+            } catch(final RuntimeException re) {
+                failed.incrementAndGet();
+                return;
+            }
+        }
+        
+        final String path = getSyntheticRequestPath(service);
+        if(path != null) {
+            try {
+                ((AbstractRestXqService)service).service(new SyntheticHttpRequest(HttpMethod.GET, path), new BufferedHttpResponse(), resourceFunctionExecuter, restXqServiceSerializer, Collections.<String, String>emptyMap());
+                replayed.incrementAndGet();
+            } catch(final RestXqServiceException rqse) {
+                failed.incrementAndGet();
+            } catch(final RuntimeException re) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Gets the path for a synthetic request to a Service
+     * 
+     * @return The path, or null if a synthetic request should not be sent to the Service
+     */
+    private String getSyntheticRequestPath(final RestXqService service) {
+        if(restXqServiceSerializer == null
+                || !(service instanceof AbstractRestXqService)
+                || !service.getServicedMethods().contains(HttpMethod.GET)) {
+            return null;
+        }
+        
+        final PathAnnotation pathAnnotation = service.getResourceFunction().getPathAnnotation();
+        if(!(pathAnnotation instanceof PathAnnotationImpl)) {
+            return null;
+        }
+        
+        final PathAnnotationImpl pathAnnotationImpl = (PathAnnotationImpl)pathAnnotation;
+        if(!pathAnnotationImpl.getGroupParamNames().isEmpty()) {
+            //there are no values for the path templates
+            return null;
+        }
+        return pathAnnotationImpl.getLiteralPrefix();
+    }
+    
+    /**
+     * Gets each registered Service once, although
+     * it may be registered for several methods
+     */
+    private List<RestXqService> getDistinctServices() {
+        final Map<RestXqService, Boolean> distinct = new IdentityHashMap<RestXqService, Boolean>();
+        final List<RestXqService> services = new ArrayList<RestXqService>();
+        for(final RestXqService service : registry) {
+            if(distinct.put(service, Boolean.TRUE) == null) {
+                services.add(service);
+            }
+        }
+        return services;
+    }
+}
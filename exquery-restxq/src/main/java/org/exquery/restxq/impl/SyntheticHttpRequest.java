@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+
+/**
+ * A HTTP Request without a body, which is made
+ * by the server rather than received from a client
+ * 
+ * Without headers or query parameters, the Resource Function
+ * which services the request is given the default values of its
+ * parameters. A request may also be based on a request received
+ * from a client, whose connection details and cookies it shares.
+ *
+ * @author Adam Retter
+ */
+final class SyntheticHttpRequest implements HttpRequest {
+    
+    private final static String SCHEME = "http";
+    private final static String HOSTNAME = "localhost";
+    private final static String ADDRESS = "127.0.0.1";
+    private final static int PORT = 80;
+    private final static String QUERY_ENCODING = "UTF-8";
+    
+    /* @Nullable */ private final HttpRequest base;
+    private final HttpMethod method;
+    private final String path;
+    /* @Nullable */ private final String query;
+    private final Map<String, List<String>> queryParams;
+    private final Map<String, String> headers;
+    private final List<String> headerNames;
+    
+    /**
+     * @param method The method of the request
+     * @param path The path of the request
+     */
+    SyntheticHttpRequest(final HttpMethod method, final String path) {
+        this(null, method, path, null, Collections.<String[]>emptyList());
+    }
+    
+    /**
+     * @param base The request which this request is based on, or null
+     * @param method The method of the request
+     * @param path The path of the request
+     * @param query The query string of the request, or null
+     * @param headers The names and values of the headers of the request
+     */
+    SyntheticHttpRequest(final HttpRequest base, final HttpMethod method, final String path, final String query, final List<String[]> headers) {
+        this.base = base;
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.queryParams = parseQuery(query);
+        this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        this.headerNames = new ArrayList<String>();
+        for(final String[] header : headers) {
+            if(this.headers.put(header[0], header[1]) == null) {
+                this.headerNames.add(header[0]);
+            }
+        }
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getScheme() {
+        return base != null ? base.getScheme() : SCHEME;
+    }
+
+    @Override
+    public String getHostname() {
+        return base != null ? base.getHostname() : HOSTNAME;
+    }
+
+    @Override
+    public int getPort() {
+        return base != null ? base.getPort() : PORT;
+    }
+
+    @Override
+    public String getQuery() {
+        return query;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getURI() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(getScheme()).append("://").append(getHostname());
+        if(base != null) {
+            builder.append(':').append(getPort());
+        }
+        builder.append(path);
+        return builder.toString();
+    }
+
+    @Override
+    public String getAddress() {
+        return base != null ? base.getAddress() : ADDRESS;
+    }
+
+    @Override
+    public String getRemoteHostname() {
+        return base != null ? base.getRemoteHostname() : HOSTNAME;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return base != null ? base.getRemoteAddress() : ADDRESS;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return base != null ? base.getRemotePort() : 0;
+    }
+
+    @Override
+    public String getCookieValue(final String cookieName) {
+        return base != null ? base.getCookieValue(cookieName) : null;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public List<String> getHeaderNames() {
+        return Collections.unmodifiableList(headerNames);
+    }
+
+    @Override
+    public String getHeader(final String httpHeaderName) {
+        return headers.get(httpHeaderName);
+    }
+
+    @Override
+    public String getContentType() {
+        return null;
+    }
+
+    @Override
+    public int getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return null;
+    }
+
+    @Override
+    public List<String> getParameterNames() {
+        return new ArrayList<String>(queryParams.keySet());
+    }
+
+    @Override
+    public <F> F getFormParam(final String key) {
+        return null;
+    }
+
+    /**
+     * @return a String if the query parameter has a single value,
+     * a List of String if it has several values, or null if there is no such parameter
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <Q> Q getQueryParam(final String key) {
+        final List<String> values = queryParams.get(key);
+        if(values == null) {
+            return null;
+        } else if(values.size() == 1) {
+            return (Q)values.get(0);
+        } else {
+            return (Q)values;
+        }
+    }
+    
+    private static Map<String, List<String>> parseQuery(final String query) {
+        if(query == null || query.isEmpty()) {
+            return Collections.<String, List<String>>emptyMap();
+        }
+        
+        final Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+        for(final String param : query.split("&")) {
+            if(param.isEmpty()) {
+                continue;
+            }
+            
+            final int idxEquals = param.indexOf('=');
+            final String name = decode(idxEquals == -1 ? param : param.substring(0, idxEquals));
+            final String value = idxEquals == -1 ? "" : decode(param.substring(idxEquals + 1));
+            
+            List<String> values = params.get(name);
+            if(values == null) {
+                values = new ArrayList<String>(1);
+                params.put(name, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+    
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, QUERY_ENCODING);
+        } catch(final UnsupportedEncodingException uee) {
+            //UTF-8 is always supported
+            throw new IllegalStateException(uee.getMessage(), uee);
+        }
+    }
+}
@@ -26,11 +26,13 @@
  */
 package org.exquery.restxq.impl.annotation;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.exquery.http.ContentTypeHeader;
 import org.exquery.http.HttpRequest;
 import org.exquery.http.InternetMediaType;
+import org.exquery.http.MediaType;
 import org.exquery.restxq.RestXqErrorCodes;
 import org.exquery.restxq.RestXqErrorCodes.RestXqErrorCode;
 import org.exquery.restxq.annotation.ConsumesAnnotation;
@@ -49,7 +51,7 @@ public class ConsumesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
     //Regular Expression to match any Internet Media Type
     private final static Pattern ptnMediaType = Pattern.compile("(?:" + InternetMediaType.mediaType_regExp + ")|(?:" + InternetMediaType.typeName_regExp + "\\" + org.exquery.InternetMediaType.SUBTYPE_DELIMITER + "\\" + org.exquery.InternetMediaType.WILDCARD + ")");
     
-    private Pattern ptnMatchMediaTypes;
+    private Set<MediaType> mediaTypes;
     
     /**
      * Checks that the Parameter Annotation is compatible
@@ -60,20 +62,16 @@ public class ConsumesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
     @Override
     public void initialise() throws RestAnnotationException {
         super.initialise();
-        this.ptnMatchMediaTypes = parseAnnotationValue();
-    }
-    
-    protected Pattern getMediaTypesPatternMatcher() {
-        return ptnMatchMediaTypes;
+        this.mediaTypes = parseAnnotationValue();
     }
     
     /**
      * Parses the Media Type Annotation Value
      * 
-     * @return The RegularExpression describing the media types against which a media type may be matched
+     * @return The canonical media types against which a media type may be matched
      * @throws RestAnnotationException if the media type annotations values are invalid
      */
-    protected Pattern parseAnnotationValue() throws RestAnnotationException {
+    protected Set<MediaType> parseAnnotationValue() throws RestAnnotationException {
         final Literal[] annotationLiterals = getLiterals();
         
         if(annotationLiterals.length == 0) {
@@ -88,15 +86,15 @@ public class ConsumesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
      * 
      * @param mediaTypesLiterals The literals of the Media Type annotation
      * 
-     * @return The RegularExpression describing the media types against which a media type may be matched
+     * @return The canonical media types against which a media type may be matched
      * 
      * @throws RestAnnotationException if the media type annotations values are invalid
      */
-    protected Pattern parseAnnotationLiterals(final Literal mediaTypesLiterals[]) throws RestAnnotationException {
+    protected Set<MediaType> parseAnnotationLiterals(final Literal mediaTypesLiterals[]) throws RestAnnotationException {
 
         Matcher mtcMediaType = null;
         
-        final StringBuilder builder = new StringBuilder();
+        final Set<MediaType> mediaTypes = new LinkedHashSet<MediaType>();
         
         for(final Literal mediaTypeLiteral : mediaTypesLiterals) {
         
@@ -119,16 +117,10 @@ public class ConsumesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
                 throw new RestAnnotationException(getInvalidMediaTypeErr());
             }
             
-            //add to match pattern
-            if(builder.length() != 0) {
-                builder.append("|");
-            }
-            builder.append("(?:");
-            builder.append(encodeAsRegExp(mediaType));
-            builder.append(")");
+            mediaTypes.add(MediaType.intern(mediaType));
         }
         
-        return Pattern.compile(builder.toString());
+        return mediaTypes;
     }
     
     @Override
@@ -145,9 +137,20 @@ public class ConsumesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
     
     @Override
     public boolean matchesMediaType(final String mediaType) {
-        final ContentTypeHeader contentTypeHeader = new ContentTypeHeader(mediaType);
+        final MediaType contentType;
+        try {
+            contentType = MediaType.valueOf(mediaType);
+        } catch(final IllegalArgumentException iae) {
+            //we cannot consume a Content-Type that we cannot understand
+            return false;
+        }
         
-        return getMediaTypesPatternMatcher().matcher(contentTypeHeader.getInternetMediaType()).matches();
+        for(final MediaType consumable : mediaTypes) {
+            if(consumable.includes(contentType)) {
+                return true;
+            }
+        }
+        return false;
     }
     
     @Override
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.annotation;
+
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.RestXqErrorCodes.RestXqErrorCode;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery.Type;
+
+/**
+ * Implementation of RESTXQ Deadline Annotation
+ * i.e. %rest:deadline
+ * 
+ * Limits the time in milliseconds which may be taken to
+ * service a request by a Resource Function, e.g.
+ * %rest:deadline(5000)
+ *
+ * @author Adam Retter
+ */
+public class DeadlineAnnotation extends AbstractRestAnnotation {
+    
+    private long deadline;
+    
+    @Override
+    public void initialise() throws RestAnnotationException {
+        super.initialise();
+        this.deadline = parseAnnotationValue();
+    }
+    
+    /**
+     * Gets the time which may be taken to service
+     * a request by the Resource Function
+     * 
+     * @return The deadline in milliseconds
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+    
+    /**
+     * Parses the Deadline Annotation Value
+     * 
+     * @return The deadline in milliseconds
+     * 
+     * @throws RestAnnotationException if the annotation value is invalid
+     */
+    protected long parseAnnotationValue() throws RestAnnotationException {
+        final Literal[] annotationLiterals = getLiterals();
+        if(annotationLiterals.length != 1) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0055);
+        }
+        
+        final Literal literal = annotationLiterals[0];
+        if(literal.getType() != Type.INTEGER && literal.getType() != Type.STRING) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0056);
+        }
+        
+        final long value;
+        try {
+            value = Long.parseLong(literal.getValue().trim());
+        } catch(final NumberFormatException nfe) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0056);
+        }
+        
+        if(value < 1) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0056);
+        }
+        
+        return value;
+    }
+
+    @Override
+    protected Cardinality getRequiredFunctionParameterCardinality() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterCardinalityErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected Type getRequiredFunctionParameterType() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterTypeErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+}
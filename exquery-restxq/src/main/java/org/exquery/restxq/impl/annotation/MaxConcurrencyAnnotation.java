@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.annotation;
+
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.RestXqErrorCodes.RestXqErrorCode;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery.Type;
+
+/**
+ * Implementation of RESTXQ Max Concurrency Annotation
+ * i.e. %rest:max-concurrency
+ * 
+ * Limits the number of requests which may be serviced
+ * by a Resource Function at the same time, e.g.
+ * %rest:max-concurrency(10)
+ *
+ * @author Adam Retter
+ */
+public class MaxConcurrencyAnnotation extends AbstractRestAnnotation {
+    
+    private int maxConcurrency;
+    
+    @Override
+    public void initialise() throws RestAnnotationException {
+        super.initialise();
+        this.maxConcurrency = parseAnnotationValue();
+    }
+    
+    /**
+     * Gets the maximum number of requests which may
+     * be serviced by the Resource Function at the same time
+     * 
+     * @return The maximum number of concurrent requests
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+    
+    /**
+     * Parses the Max Concurrency Annotation Value
+     * 
+     * @return The maximum number of concurrent requests
+     * 
+     * @throws RestAnnotationException if the annotation value is invalid
+     */
+    protected int parseAnnotationValue() throws RestAnnotationException {
+        final Literal[] annotationLiterals = getLiterals();
+        if(annotationLiterals.length != 1) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0051);
+        }
+        
+        final Literal literal = annotationLiterals[0];
+        if(literal.getType() != Type.INTEGER && literal.getType() != Type.STRING) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0052);
+        }
+        
+        final int value;
+        try {
+            value = Integer.parseInt(literal.getValue().trim());
+        } catch(final NumberFormatException nfe) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0052);
+        }
+        
+        if(value < 1) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0052);
+        }
+        
+        return value;
+    }
+
+    @Override
+    protected Cardinality getRequiredFunctionParameterCardinality() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterCardinalityErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected Type getRequiredFunctionParameterType() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterTypeErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+}
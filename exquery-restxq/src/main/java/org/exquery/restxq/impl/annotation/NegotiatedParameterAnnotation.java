@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.annotation;
+
+import java.util.Locale;
+import org.exquery.http.ContentNegotiator.Dimension;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.xdm.type.SequenceImpl;
+import org.exquery.xdm.type.StringTypedValue;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+
+/**
+ * Implementation of RESTXQ Negotiated Parameter Annotation
+ * i.e. %rest:negotiated-param
+ * 
+ * Injects the charset, language or content-coding which was
+ * negotiated for the response, e.g.
+ * %rest:negotiated-param("charset", "{$charset}")
+ *
+ * @author Adam Retter
+ */
+public class NegotiatedParameterAnnotation extends AbstractParameterAnnotation {
+    
+    private Dimension dimension;
+    
+    @Override
+    protected ParameterAnnotationMapping parseAnnotationValue() throws RestAnnotationException {
+        final ParameterAnnotationMapping mapping = super.parseAnnotationValue();
+        
+        try {
+            this.dimension = Dimension.valueOf(mapping.getParameterName().toUpperCase(Locale.ENGLISH));
+        } catch(final IllegalArgumentException iae) {
+            throw new RestAnnotationException(getInvalidParameterNameErr());
+        }
+        
+        return mapping;
+    }
+    
+    /**
+     * Gets the dimension of the response which is negotiated
+     * 
+     * @return The negotiated dimension
+     */
+    public Dimension getDimension() {
+        return dimension;
+    }
+    
+    /**
+     * The negotiated value is not known from the request alone,
+     * so an empty sequence is always extracted
+     * 
+     * @see #extractParameter(String)
+     * @see AbstractParameterAnnotation#extractParameter(org.exquery.http.HttpRequest)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypedArgumentValue<T> extractParameter(final HttpRequest request) {
+        return (TypedArgumentValue<T>)extractParameter((String)null);
+    }
+    
+    /**
+     * Extracts the Parameter from the negotiated value
+     * 
+     * @param negotiatedValue The value chosen for the dimension, or null
+     * if the dimension was not negotiated or nothing was acceptable
+     * 
+     * @return The extracted Parameter value
+     */
+    public TypedArgumentValue<String> extractParameter(/* @Nullable */ final String negotiatedValue) {
+       return new TypedArgumentValue<String> () {
+
+            @Override
+            public String getArgumentName() {
+                return getParameterAnnotationMapping().getFunctionArgumentName();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Sequence<String> getTypedValue() {
+                if(negotiatedValue == null) {
+                    return Sequence.EMPTY_SEQUENCE;
+                } else {
+                    return new SequenceImpl<String>(new StringTypedValue(negotiatedValue));
+                }
+            }
+        };
+    }
+    
+    @Override
+    protected Cardinality getRequiredFunctionParameterCardinality() {
+        //function parameters that take negotiated values must permit be zero or one items
+        return Cardinality.ZERO_OR_ONE;
+    }
+    
+    //<editor-fold desc="Error Codes">
+    
+    /**
+     * @see AbstractParameterAnnotation#getInvalidAnnotationParamsErr()
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidAnnotationParamsErr() {
+        return RestXqErrorCodes.RQST0047;
+    }
+
+    /**
+     * @see AbstractParameterAnnotation#getInvalidParameterNameErr()
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidParameterNameErr() {
+        return RestXqErrorCodes.RQST0048;
+    }
+
+    /**
+     * @see AbstractParameterAnnotation#getInvalidFunctionArgumentNameErr()
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidFunctionArgumentNameErr() {
+        return RestXqErrorCodes.RQST0049;
+    }
+
+    /**
+     * Not required, a negotiated-param has no default value
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidDefaultValueErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    /**
+     * Not required, a negotiated-param has no default value
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidDefaultValueTypeErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+    
+    /**
+     * @see AbstractParameterAnnotation#getInvalidAnnotationParametersSyntaxErr()
+     */
+    @Override
+    protected RestXqErrorCodes.RestXqErrorCode getInvalidAnnotationParametersSyntaxErr() {
+        return RestXqErrorCodes.RQST0050;
+    }
+    
+    //</editor-fold>
+}
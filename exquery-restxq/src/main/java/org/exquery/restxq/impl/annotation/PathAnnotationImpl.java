@@ -35,9 +35,7 @@ import org.exquery.xquery.Cardinality;
 import org.exquery.xquery.Literal;
 import org.exquery.xquery.Type;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -53,13 +51,27 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
     protected final static int PATH_SEGMENT_PARAM_SPECIFICITY = 0;
     protected final static int PATH_SEGMENT_SOLID_SPECIFICITY = 1;
     
+    /**
+     * Matches a function parameter with an optional regular expression
+     * constraint on the value e.g. {$id} or {$id=[0-9]+}
+     * 
+     * The constraint may contain quantifier braces e.g. {$year=[0-9]{4}}
+     */
+    public final static String constrainedFunctionArgumentRegExp = "\\{\\$((?:[A-Za-z0-9_\\-]+:)?[A-Za-z0-9_\\-]+)(?:=((?:[^{}]|\\{[0-9,]+\\})+))?\\}";
+    public final static Pattern constrainedFunctionArgumentPattern = Pattern.compile(constrainedFunctionArgumentRegExp);
+    
     //combines official RFC URI path segment regexp  with our encoded function argument regexp
-    public final static String pathSegmentRegExp = "(?:"  + URI.pchar_regExp + "|" + functionArgumentRegExp + ")";
+    public final static String pathSegmentRegExp = "(?:"  + URI.pchar_regExp + "|" + constrainedFunctionArgumentRegExp + ")";
     
     //path segment extractor
     public final static Pattern ptnPathSegment = Pattern.compile(pathSegmentRegExp);
     
-    //regexp to validate entire path
+    /*
+     * regexp to validate entire path
+     * 
+     * NOTE: Path literals are parsed by PathTemplateScanner, which
+     * accepts exactly the same paths without backtracking
+     */
     public final static String pathRegExp = "^(?:" + URI.PATH_SEGMENT_DELIMITER + "?" + pathSegmentRegExp + ")+$";
     
     //validator for Path
@@ -83,10 +95,88 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         this.pathRegularExpression = parsePath();
     }
 
+    /**
+     * Initialises the Path Annotation from the results
+     * of a previous initialisation, without parsing or
+     * validating the path literal again
+     * 
+     * The Name, Function Signature and Literals must
+     * have already been set.
+     * 
+     * @param pathRegExp The Regular Expression for matching paths, as returned by {@link #getPathRegExp()}
+     * @param literalPrefix The literal prefix of the path, as returned by {@link #getLiteralPrefix()}
+     * @param groupParamNames The group parameter names, as returned by {@link #getGroupParamNames()}
+     * @param pathSpecificityMetric The specificity metric of the path
+     * @param pathConstraintMetric The constraint metric of the path
+     * @param segments The segments of the path, as returned by {@link #getSegments()}
+     */
+    public void restore(final String pathRegExp, final String literalPrefix, final Map<Integer, String> groupParamNames, final long pathSpecificityMetric, final long pathConstraintMetric, final String[] segments) {
+        this.pathRegularExpression = new PathInformation(getLiterals()[0].getValue(), pathRegExp, literalPrefix, groupParamNames, pathSpecificityMetric, pathConstraintMetric, segments);
+    }
+    
+    /**
+     * Determines if a part of a request path is a valid value for an
+     * unconstrained template, i.e. one or more pchar
+     * 
+     * @param path The request path
+     * @param from The index of the start of the value in the path
+     * @param to The index of the end of the value in the path
+     * 
+     * @return true if the part of the path is a valid template value
+     */
+    public static boolean isTemplateValue(final String path, final int from, final int to) {
+        return from < to && PathTemplateScanner.scanPChars(path, from, to) == to;
+    }
+    
+    /**
+     * Gets the segments of the path, if every part of the path
+     * is a whole segment and there are no constrained templates
+     * 
+     * The n-th template segment provides the value of
+     * the parameter for group n+1, see {@link #getGroupParamNames()}
+     * 
+     * @return The segments of the path, where each is either the literal
+     * segment or null for a template, or null if the path has parts which
+     * are not whole segments or has constrained templates
+     */
+    public String[] getSegments() {
+        return getPathInformation().getSegments();
+    }
+    
+    /**
+     * Gets the Regular Expression used for matching paths
+     * 
+     * @return The Regular Expression
+     */
+    public String getPathRegExp() {
+        return getPathInformation().getPathRegExp();
+    }
+    
+    /**
+     * Gets the literal prefix of the path, i.e. everything
+     * before the first template. Every path which matches
+     * starts with the literal prefix.
+     * 
+     * @return The literal prefix, or the entire path if it has no templates
+     */
+    public String getLiteralPrefix() {
+        return getPathInformation().getLiteralPrefix();
+    }
+    
+    /**
+     * Gets the names of the function parameters for the
+     * groups in the Regular Expression used for matching paths
+     * 
+     * @return A mapping of group indexes in the regular expression to parameter names
+     */
+    public Map<Integer, String> getGroupParamNames() {
+        return getPathInformation().getGroupParamNames();
+    }
+
     @Override
     public boolean matchesPath(final String path) {
 
-        if (path == null) {
+        if (path == null || !path.startsWith(getPathInformation().getLiteralPrefix())) {
             return false;
         }
 
@@ -99,17 +189,18 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         
         final Map<String, String> pathParamNameAndValues = new HashMap<String, String>();
 
-        if (uriPath == null) {
+        if (uriPath == null || !uriPath.startsWith(getPathInformation().getLiteralPrefix())) {
             return pathParamNameAndValues;
         }
 
         final Matcher m = getPathInformation().getPathMatcher(uriPath);        
 
         if(m.matches()) {
-            for(int i = 1 ; i <= m.groupCount(); i++) {
-
-                final String paramName = getPathInformation().getFnParamNameForGroup(i);
-                final String paramValue = m.group(i);
+            //NOTE: a constraint may itself contain groups, so only the groups of templates are extracted
+            for(final Map.Entry<Integer, String> groupParamName : getPathInformation().getGroupParamNames().entrySet()) {
+                
+                final String paramName = groupParamName.getValue();
+                final String paramValue = m.group(groupParamName.getKey());
 
                 pathParamNameAndValues.put(paramName, paramValue);
             }
@@ -132,6 +223,21 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         return getPathInformation().getPathSpecificityMetric();
     }
     
+    /**
+     * Gets a metric describing which templated path segments
+     * are constrained by a regular expression
+     * 
+     * @return The returned value encodes the constrained templates of the path
+     * in binary. A constrained template is 1, and any other path segment is 0.
+     * The binary number has a leading 1 bit.
+     * 
+     * When comparing paths which have the same Path Specificity Metric,
+     * the path with the higher Constraint Metric is considered more specific
+     */
+    public long getPathConstraintMetric() {
+        return getPathInformation().getPathConstraintMetric();
+    }
+    
     /**
      * Get the Path Information
      * 
@@ -166,87 +272,14 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
             throw new RestAnnotationException(RestXqErrorCodes.RQST0003);
         }
 
-        //validate the Path
-        final Matcher mchPath = ptnPath.matcher(pathStr);
-        if(!mchPath.matches()) {
-            throw new RestAnnotationException(RestXqErrorCodes.RQST0004);
-        }
-
-        //extract the Path segments
-        final StringBuilder thisPathExprRegExp = new StringBuilder();
-        final List<String> pathFnParams = new ArrayList<String>();
-
-        final Matcher mchPathSegment = ptnPathSegment.matcher(pathStr);
-
-        final Map<Integer, String> groupParamNames = new HashMap<Integer, String>();
-        int groupCount = 0;
-
-        long pathSpecificityMetric = 0;
-        
-        while(mchPathSegment.find()) {
-            final String pathSegmentOrPart = pathStr.substring(mchPathSegment.start(), mchPathSegment.end());
-
-            final Matcher mtcFnParameter = functionArgumentPattern.matcher(pathSegmentOrPart);
-
-            //only prepend `URI.PATH_SEGMENT_DELIMITER` if this is the start of the path, or a segment and not part of a segment
-            final int idxPrePathSegment = mchPathSegment.start() -1;
-            if(idxPrePathSegment > -1) {
-                if(pathStr.charAt(idxPrePathSegment) == URI.PATH_SEGMENT_DELIMITER) {
-                    thisPathExprRegExp.append(URI.PATH_SEGMENT_DELIMITER);
-                }
-            } else {
-                //this is the start of a path
-                thisPathExprRegExp.append(URI.PATH_SEGMENT_DELIMITER);
-            }
-
-            /*
-             * if this is the first iteration, increase
-             * the pathSpecificityMetric so that our
-             * left shift always first shifts 1,
-             * and therefore our binary counting
-             * works.
-             */
-            if(pathSpecificityMetric == 0) {
-                pathSpecificityMetric = 1;
-            }
-            
-            /* 
-             * left shift the last specifity segment of the path
-             */
-            pathSpecificityMetric <<= 1;
-            
-            if(mtcFnParameter.matches()) {
-                //is a path function parameter
-                final String fnParamName = mtcFnParameter.replaceFirst("$1");
-                pathFnParams.add(fnParamName);
-
-                thisPathExprRegExp.append("(");
-                thisPathExprRegExp.append(URI.pchar_regExp);
-                thisPathExprRegExp.append(")");
-
-                //record the position of the param in the path
-                groupParamNames.put(++groupCount, fnParamName);
-                
-                //record the specifity of this path segment
-                pathSpecificityMetric ^= PATH_SEGMENT_PARAM_SPECIFICITY;
-            } else {
-                //is just a string path segment
-                thisPathExprRegExp.append("(?:");
-                thisPathExprRegExp.append(Pattern.quote(pathSegmentOrPart));
-                thisPathExprRegExp.append(")");
-                
-                //record the specifity of this path segment
-                pathSpecificityMetric ^= PATH_SEGMENT_SOLID_SPECIFICITY;
-            }
-        }
+        //validate the Path, and extract the Path segments
+        final PathTemplateScanner scanner = PathTemplateScanner.scan(pathStr);
 
         //check the function that has this annotation has parameters as declared by the annotation
-        checkFnDeclaresParameters(getFunctionSignature(), pathFnParams);
+        checkFnDeclaresParameters(getFunctionSignature(), scanner.getFnParamNames());
 
-        //we now have a pattern for matching the URI path!
-        final Pattern ptnThisPath = Pattern.compile(thisPathExprRegExp.toString());
-
-        return new PathInformation(pathStr, ptnThisPath, groupParamNames, pathSpecificityMetric);
+        //we now have a pattern for matching the URI path, which is compiled on first use
+        return new PathInformation(pathStr, scanner.getPathRegExp(), scanner.getLiteralPrefix(), scanner.getGroupParamNames(), scanner.getPathSpecificityMetric(), scanner.getPathConstraintMetric(), scanner.getSegments());
     }
 
     //TODO enforcing that annotations other than path annotations have optional parameters is not the right thing to do here!
@@ -313,7 +346,17 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         /**
          * Regular Expression to match a corresponding path with the Parameters of the Path setup as Groups in the Expression
          */
-        private final Pattern ptnPath;
+        private final String pathRegExp;
+        
+        /**
+         * Compiled pathRegExp, compiled on first use
+         */
+        private volatile Pattern ptnPath = null;
+        
+        /**
+         * The literal part of the path before the first template
+         */
+        private final String literalPrefix;
         
         /**
          * Map of Group indices in the Regular Expression (ptnPath) to Parameter Names
@@ -325,18 +368,34 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
          */
         private final long pathSpecificityMetric;
         
+        /**
+         * Metric describing the constrained templates of the path
+         */
+        private final long pathConstraintMetric;
+        
+        /**
+         * The whole segments of the path, null elements are templates
+         */
+        private final String[] segments;
+        
         /**
          *
          * @param pathLiteral The original path literal provided as the parameter to the Path Annotation
-         * @param ptnPath The Regular Expression that matches a path against the pathLiteral
+         * @param pathRegExp The Regular Expression that matches a path against the pathLiteral
+         * @param literalPrefix The literal part of the path before the first template
          * @param groupParamNames A mapping of group indexes in the regular expression to parameter names
          * @param pathSpecificityMetric The specificity metric of the path
+         * @param pathConstraintMetric The constraint metric of the path
+         * @param segments The whole segments of the path, or null if the path is not made of whole segments
          */
-        public PathInformation(final String pathLiteral, final Pattern ptnPath, final Map<Integer, String> groupParamNames, final long pathSpecificityMetric) {
+        public PathInformation(final String pathLiteral, final String pathRegExp, final String literalPrefix, final Map<Integer, String> groupParamNames, final long pathSpecificityMetric, final long pathConstraintMetric, final String[] segments) {
             this.pathLiteral = pathLiteral;
-            this.ptnPath = ptnPath;
+            this.pathRegExp = pathRegExp;
+            this.literalPrefix = literalPrefix;
             this.groupParamNames = groupParamNames;
             this.pathSpecificityMetric = pathSpecificityMetric;
+            this.pathConstraintMetric = pathConstraintMetric;
+            this.segments = segments;
         }
 
         /**
@@ -362,7 +421,44 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
          * @return The Mather for the Path Regular Expression
          */
         public Matcher getPathMatcher(final String path) {
-            return ptnPath.matcher(path);
+            return getPathPattern().matcher(path);
+        }
+        
+        /**
+         * Gets the compiled Path Regular Expression
+         * 
+         * The Regular Expression is compiled on first use, so
+         * that paths which are never requested are never compiled.
+         * Should two threads race to compile it, each compiles
+         * an identical immutable Pattern, and either may be published.
+         * 
+         * @return The compiled Path Regular Expression
+         */
+        private Pattern getPathPattern() {
+            Pattern pattern = ptnPath;
+            if(pattern == null) {
+                pattern = Pattern.compile(pathRegExp);
+                ptnPath = pattern;
+            }
+            return pattern;
+        }
+        
+        /**
+         * Gets the Path Regular Expression
+         * 
+         * @return The Path Regular Expression
+         */
+        public String getPathRegExp() {
+            return pathRegExp;
+        }
+        
+        /**
+         * Gets the literal part of the path before the first template
+         * 
+         * @return The literal prefix
+         */
+        public String getLiteralPrefix() {
+            return literalPrefix;
         }
 
         /**
@@ -376,6 +472,15 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         public String getFnParamNameForGroup(final int groupIndex) {
             return groupParamNames.get(groupIndex);
         }
+        
+        /**
+         * Gets the Parameter Names for the Groups in the Path Regular Expression
+         * 
+         * @return A mapping of group indexes in the regular expression to parameter names
+         */
+        public Map<Integer, String> getGroupParamNames() {
+            return groupParamNames;
+        }
 
         
         /**
@@ -386,5 +491,24 @@ public class PathAnnotationImpl extends AbstractRestAnnotation implements PathAn
         public long getPathSpecificityMetric() {
             return pathSpecificityMetric;
         }
+        
+        /**
+         * Gets the constraint metric of this path
+         * 
+         * @return the Constraint metric of this path
+         */
+        public long getPathConstraintMetric() {
+            return pathConstraintMetric;
+        }
+        
+        /**
+         * Gets the whole segments of this path
+         * 
+         * @return the segments, null elements are templates,
+         * or null if the path is not made of whole segments
+         */
+        public String[] getSegments() {
+            return segments == null ? null : segments.clone();
+        }
     }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.annotation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.exquery.http.URI;
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.annotation.RestAnnotationException;
+
+/**
+ * Scanner for the Path literal of a Path Annotation
+ * 
+ * Validates the path, splits it into literal and templated
+ * parts, builds the Regular Expression for matching request
+ * paths and computes the specificity metrics, all in a single
+ * left to right pass over the path without backtracking.
+ * 
+ * Accepts exactly the same paths as {@link PathAnnotationImpl#pathRegExp}.
+ * 
+ * @author Adam Retter
+ */
+final class PathTemplateScanner {
+    
+    private final String path;
+    private int pos = 0;
+    
+    private final StringBuilder pathRegExp = new StringBuilder();
+    private final StringBuilder literalPrefix = new StringBuilder();
+    private boolean inLiteralPrefix = true;
+    private final List<String> segments = new ArrayList<String>();
+    private boolean wholeSegments = true;
+    private final List<String> fnParamNames = new ArrayList<String>();
+    private final Map<Integer, String> groupParamNames = new HashMap<Integer, String>();
+    private int groupCount = 0;
+    
+    private long pathSpecificityMetric = 0;
+    private long pathConstraintMetric = 0;
+    
+    private PathTemplateScanner(final String path) {
+        this.path = path;
+    }
+    
+    /**
+     * Scans a Path literal
+     * 
+     * @param path The Path literal of a Path Annotation
+     * 
+     * @return The scanner holding the results of the scan
+     * 
+     * @throws RestAnnotationException if the Path literal is invalid
+     */
+    public static PathTemplateScanner scan(final String path) throws RestAnnotationException {
+        final PathTemplateScanner scanner = new PathTemplateScanner(path);
+        scanner.scanPath();
+        return scanner;
+    }
+    
+    /**
+     * Gets the Regular Expression for matching request paths
+     * 
+     * @return The Regular Expression, with a group for each templated part of the path
+     */
+    public String getPathRegExp() {
+        return pathRegExp.toString();
+    }
+    
+    /**
+     * Gets the literal part of the path before the first template
+     * 
+     * @return The literal prefix, or the entire path if it has no templates
+     */
+    public String getLiteralPrefix() {
+        return literalPrefix.toString();
+    }
+    
+    /**
+     * Gets the segments of the path, if every part of the path
+     * is a whole segment and there are no constrained templates
+     * 
+     * @return The segments of the path, where each is either the literal
+     * segment or null for a template, or null if the path has parts which
+     * are not whole segments or has constrained templates
+     */
+    public String[] getSegments() {
+        if(!wholeSegments) {
+            return null;
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+    
+    /**
+     * Gets the names of the function parameters in the order that their templates appear in the path
+     * 
+     * @return The function parameter names
+     */
+    public List<String> getFnParamNames() {
+        return fnParamNames;
+    }
+    
+    /**
+     * Gets the function parameter names for the groups in the Regular Expression
+     * 
+     * @return A mapping of group indexes in the regular expression to parameter names
+     */
+    public Map<Integer, String> getGroupParamNames() {
+        return groupParamNames;
+    }
+    
+    /**
+     * @see PathAnnotationImpl#getPathSpecificityMetric()
+     * 
+     * @return The specificity metric of the path
+     */
+    public long getPathSpecificityMetric() {
+        return pathSpecificityMetric;
+    }
+    
+    /**
+     * @see PathAnnotationImpl#getPathConstraintMetric()
+     * 
+     * @return The constraint metric of the path
+     */
+    public long getPathConstraintMetric() {
+        return pathConstraintMetric;
+    }
+    
+    private void scanPath() throws RestAnnotationException {
+        final int len = path.length();
+        
+        /*
+         * the path is a sequence of parts, each of which
+         * may optionally be preceded by a single delimiter
+         */
+        while(pos < len) {
+            
+            //only prepend `URI.PATH_SEGMENT_DELIMITER` if this is the start of the path, or a segment and not part of a segment
+            boolean delimited = (pos == 0);
+            if(path.charAt(pos) == URI.PATH_SEGMENT_DELIMITER) {
+                delimited = true;
+                pos++;
+                if(pos == len) {
+                    throw invalidPath();
+                }
+            }
+            
+            if(delimited) {
+                pathRegExp.append(URI.PATH_SEGMENT_DELIMITER);
+                if(inLiteralPrefix) {
+                    literalPrefix.append(URI.PATH_SEGMENT_DELIMITER);
+                }
+            } else {
+                //part of a segment
+                wholeSegments = false;
+            }
+            
+            /*
+             * if this is the first part, increase
+             * the metrics so that our left shift
+             * always first shifts 1, and therefore
+             * our binary counting works.
+             */
+            if(pathSpecificityMetric == 0) {
+                pathSpecificityMetric = 1;
+                pathConstraintMetric = 1;
+            }
+            pathSpecificityMetric <<= 1;
+            pathConstraintMetric <<= 1;
+            
+            if(path.charAt(pos) == '{') {
+                inLiteralPrefix = false;
+                scanTemplate();
+                pathSpecificityMetric ^= PathAnnotationImpl.PATH_SEGMENT_PARAM_SPECIFICITY;
+            } else {
+                scanLiteral();
+                pathSpecificityMetric ^= PathAnnotationImpl.PATH_SEGMENT_SOLID_SPECIFICITY;
+            }
+        }
+    }
+    
+    /**
+     * Scans a literal part of the path, i.e. one or more pchar
+     */
+    private void scanLiteral() throws RestAnnotationException {
+        final int start = pos;
+        final int len = path.length();
+        
+        pos = scanPChars(path, pos, len);
+        
+        if(pos == start) {
+            throw invalidPath();
+        }
+        
+        final String literal = path.substring(start, pos);
+        pathRegExp.append("(?:");
+        pathRegExp.append(Pattern.quote(literal));
+        pathRegExp.append(")");
+        
+        if(inLiteralPrefix) {
+            literalPrefix.append(literal);
+        }
+        segments.add(literal);
+    }
+    
+    /**
+     * Scans a templated part of the path, i.e. {$name} or {$name=constraint}
+     */
+    private void scanTemplate() throws RestAnnotationException {
+        final int len = path.length();
+        
+        //skip '{'
+        pos++;
+        if(pos == len || path.charAt(pos) != '$') {
+            throw invalidPath();
+        }
+        pos++;
+        
+        //name, with an optional prefix
+        final int nameStart = pos;
+        scanNameChars();
+        if(pos < len && path.charAt(pos) == ':') {
+            pos++;
+            scanNameChars();
+        }
+        final String fnParamName = path.substring(nameStart, pos);
+        
+        //optional constraint
+        String constraint = null;
+        if(pos < len && path.charAt(pos) == '=') {
+            pos++;
+            constraint = scanConstraint();
+        }
+        
+        if(pos == len || path.charAt(pos) != '}') {
+            throw invalidPath();
+        }
+        pos++;
+        
+        fnParamNames.add(fnParamName);
+        
+        pathRegExp.append("(");
+        if(constraint == null) {
+            pathRegExp.append(URI.pchar_regExp);
+        } else {
+            pathRegExp.append(constraint);
+            pathConstraintMetric ^= 1;
+            wholeSegments = false;
+        }
+        segments.add(null);
+        pathRegExp.append(")");
+        
+        //record the position of the param in the path
+        groupParamNames.put(++groupCount, fnParamName);
+        
+        //skip over any groups within the constraint
+        if(constraint != null) {
+            groupCount += compileConstraint(constraint).matcher("").groupCount();
+        }
+    }
+    
+    /**
+     * Scans one or more characters of a template name
+     */
+    private void scanNameChars() throws RestAnnotationException {
+        final int start = pos;
+        final int len = path.length();
+        while(pos < len && isNameChar(path.charAt(pos))) {
+            pos++;
+        }
+        if(pos == start) {
+            throw invalidPath();
+        }
+    }
+    
+    /**
+     * Scans the regular expression constraint of a template
+     * 
+     * The constraint may not contain braces, except
+     * for quantifiers of the form {n}, {n,} or {n,m}
+     * 
+     * @return The constraint
+     */
+    private String scanConstraint() throws RestAnnotationException {
+        final int start = pos;
+        final int len = path.length();
+        
+        while(pos < len) {
+            final char c = path.charAt(pos);
+            if(c == '}') {
+                break;
+            } else if(c == '{') {
+                //quantifier
+                final int quantifierStart = ++pos;
+                while(pos < len && (isDigit(path.charAt(pos)) || path.charAt(pos) == ',')) {
+                    pos++;
+                }
+                if(pos == quantifierStart || pos == len || path.charAt(pos) != '}') {
+                    throw invalidPath();
+                }
+                pos++;
+            } else {
+                pos++;
+            }
+        }
+        
+        if(pos == start) {
+            throw invalidPath();
+        }
+        
+        return path.substring(start, pos);
+    }
+    
+    private Pattern compileConstraint(final String constraint) throws RestAnnotationException {
+        try {
+            return Pattern.compile(constraint);
+        } catch(final PatternSyntaxException pse) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0004, pse);
+        }
+    }
+    
+    /**
+     * Scans pchar (including pct-encoded) characters
+     * 
+     * @param str The string to scan
+     * @param from The index in the string to start scanning from
+     * @param to The index in the string to stop scanning at
+     * 
+     * @return The index of the first character which is not a pchar, or to
+     */
+    static int scanPChars(final String str, final int from, final int to) {
+        int i = from;
+        while(i < to) {
+            final char c = str.charAt(i);
+            if(c == '%') {
+                //pct-encoded
+                if(i + 2 < to && isHexDig(str.charAt(i + 1)) && isHexDig(str.charAt(i + 2))) {
+                    i += 3;
+                } else {
+                    break;
+                }
+            } else if(isPChar(c)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+    
+    private RestAnnotationException invalidPath() {
+        return new RestAnnotationException(RestXqErrorCodes.RQST0004);
+    }
+    
+    /**
+     * pchar = unreserved / sub-delims / ":" / "@"
+     * (pct-encoded is handled separately)
+     */
+    private static boolean isPChar(final char c) {
+        if(isAlpha(c) || isDigit(c)) {
+            return true;
+        }
+        
+        switch(c) {
+            //unreserved
+            case '-': case '.': case '_': case '~':
+            //sub-delims
+            case '!': case '$': case '&': case '\'': case '(': case ')':
+            case '*': case '+': case ',': case ';': case '=':
+            //other
+            case ':': case '@':
+                return true;
+            
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean isNameChar(final char c) {
+        return isAlpha(c) || isDigit(c) || c == '_' || c == '-';
+    }
+    
+    private static boolean isHexDig(final char c) {
+        return isDigit(c) || (c >= 'A' && c <= 'F');
+    }
+    
+    private static boolean isAlpha(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+    
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
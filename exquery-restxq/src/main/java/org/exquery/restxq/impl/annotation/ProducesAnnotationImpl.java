@@ -30,11 +30,11 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.exquery.http.AcceptHeader;
-import org.exquery.http.AcceptHeader.Accept;
+import org.exquery.http.CompactAcceptHeader;
 import org.exquery.http.HttpHeaderName;
 import org.exquery.http.HttpRequest;
 import org.exquery.http.InternetMediaType;
+import org.exquery.http.MediaType;
 import org.exquery.restxq.RestXqErrorCodes;
 import org.exquery.restxq.RestXqErrorCodes.RestXqErrorCode;
 import org.exquery.restxq.annotation.ProducesAnnotation;
@@ -53,7 +53,7 @@ public class ProducesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
     //Regular Expression to match any Internet Media Type
     private final static Pattern ptnMediaType = Pattern.compile(InternetMediaType.mediaType_regExp);
     
-    private Set<String> internetMediaTypes;
+    private Set<MediaType> internetMediaTypes;
     
     /**
      * Checks that the Parameter Annotation is compatible
@@ -73,8 +73,7 @@ public class ProducesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
      * @return The media type which we will produce
      * @throws RestAnnotationException if the media type annotations values are invalid
      */
-    //protected Set<String> parseAnnotationValue() throws RestAnnotationException {
-    protected Set<String> parseAnnotationValue() throws RestAnnotationException {
+    protected Set<MediaType> parseAnnotationValue() throws RestAnnotationException {
         final Literal[] annotationLiterals = getLiterals();
         
         if(annotationLiterals.length == 0) {
@@ -89,15 +88,15 @@ public class ProducesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
      * 
      * @param mediaTypesLiterals The literals of the Media Type annotation
      * 
-     * @return The RegularExpression describing the media types against which a media type may be matched
+     * @return The canonical media types which we will produce
      * 
      * @throws RestAnnotationException if the media type annotations values are invalid
      */
-    protected Set<String> parseAnnotationLiterals(final Literal mediaTypesLiterals[]) throws RestAnnotationException {
+    protected Set<MediaType> parseAnnotationLiterals(final Literal mediaTypesLiterals[]) throws RestAnnotationException {
 
         Matcher mtcMediaType = null;
         
-        final Set<String> mediaTypes = new HashSet<String>();
+        final Set<MediaType> mediaTypes = new HashSet<MediaType>();
         
         for(final Literal mediaTypeLiteral : mediaTypesLiterals) {
         
@@ -120,7 +119,7 @@ public class ProducesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
                 throw new RestAnnotationException(getInvalidMediaTypeErr());
             }
             
-            mediaTypes.add(mediaType);
+            mediaTypes.add(MediaType.intern(mediaType));
         }
         
         return mediaTypes;
@@ -138,27 +137,17 @@ public class ProducesAnnotationImpl extends AbstractMediaTypeAnnotation implemen
     
     @Override
     public boolean matchesMediaType(final String mediaType) {
-        final AcceptHeader acceptHeader;
+        final CompactAcceptHeader acceptHeader = CompactAcceptHeader.forCurrentThread();
         try {
-            acceptHeader = new AcceptHeader(mediaType);
+            acceptHeader.parse(mediaType);
         } catch (final IllegalArgumentException e) {
             // TODO(AR) signal that the incoming media-type header is invalid (i.e. not valid HTTP 1.1)?
             return false;
         }
 
-        for(final Accept accept : acceptHeader.getAccepts()) {
-        
-            final Pattern pEncodedMediaType = Pattern.compile(encodeAsRegExp(accept.getMediaRange()));
-            Matcher mtcMediaType = null;
-
-            for(final String internetMediaType : internetMediaTypes) {
-                if(mtcMediaType == null) {
-                    mtcMediaType = pEncodedMediaType.matcher(internetMediaType);
-                } else {
-                    mtcMediaType = mtcMediaType.reset(internetMediaType);
-                }
-
-                if(mtcMediaType.matches()) {
+        for(int rank = 0; rank < acceptHeader.size(); rank++) {
+            for(final MediaType internetMediaType : internetMediaTypes) {
+                if(acceptHeader.matchesMediaType(rank, internetMediaType)) {
                     return true;
                 }
             }
@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.annotation;
+
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.RestXqErrorCodes.RestXqErrorCode;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery.Type;
+
+/**
+ * Implementation of RESTXQ Rate Limit Annotation
+ * i.e. %rest:rate-limit
+ * 
+ * Limits the number of requests from each client which
+ * may be serviced by a Resource Function within a period
+ * of seconds, e.g. 100 requests per minute
+ * %rest:rate-limit(100, 60)
+ *
+ * @author Adam Retter
+ */
+public class RateLimitAnnotation extends AbstractRestAnnotation {
+    
+    private int requests;
+    private long period;
+    
+    @Override
+    public void initialise() throws RestAnnotationException {
+        super.initialise();
+        
+        final Literal[] annotationLiterals = getLiterals();
+        if(annotationLiterals.length != 2) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0057);
+        }
+        
+        final long requestsValue = parsePositiveInteger(annotationLiterals[0]);
+        if(requestsValue > Integer.MAX_VALUE) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0058);
+        }
+        this.requests = (int)requestsValue;
+        this.period = parsePositiveInteger(annotationLiterals[1]);
+    }
+    
+    /**
+     * Gets the number of requests from each client
+     * which may be serviced within the period
+     * 
+     * @return The number of requests
+     */
+    public int getRequests() {
+        return requests;
+    }
+    
+    /**
+     * Gets the period within which the number
+     * of requests may be serviced
+     * 
+     * @return The period in seconds
+     */
+    public long getPeriod() {
+        return period;
+    }
+    
+    /**
+     * Parses a Rate Limit Annotation Value
+     * 
+     * @param literal The annotation value
+     * 
+     * @return The positive integer
+     * 
+     * @throws RestAnnotationException if the annotation value is invalid
+     */
+    protected long parsePositiveInteger(final Literal literal) throws RestAnnotationException {
+        if(literal.getType() != Type.INTEGER && literal.getType() != Type.STRING) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0058);
+        }
+        
+        final long value;
+        try {
+            value = Long.parseLong(literal.getValue().trim());
+        } catch(final NumberFormatException nfe) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0058);
+        }
+        
+        if(value < 1) {
+            throw new RestAnnotationException(RestXqErrorCodes.RQST0058);
+        }
+        
+        return value;
+    }
+
+    @Override
+    protected Cardinality getRequiredFunctionParameterCardinality() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterCardinalityErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected Type getRequiredFunctionParameterType() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+
+    @Override
+    protected RestXqErrorCode getInvalidFunctionParameterTypeErr() {
+        throw new UnsupportedOperationException("Not required.");
+    }
+}
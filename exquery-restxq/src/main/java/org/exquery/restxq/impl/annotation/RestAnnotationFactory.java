@@ -146,6 +146,26 @@ public class RestAnnotationFactory {
                 restAnnotation = new CookieParameterAnnotation();
                 break;
                 
+            case negotiatedparam:
+                restAnnotation = new NegotiatedParameterAnnotation();
+                break;
+                
+            case maxconcurrency:
+                restAnnotation = new MaxConcurrencyAnnotation();
+                break;
+                
+            case priority:
+                restAnnotation = new PriorityAnnotation();
+                break;
+                
+            case deadline:
+                restAnnotation = new DeadlineAnnotation();
+                break;
+                
+            case ratelimit:
+                restAnnotation = new RateLimitAnnotation();
+                break;
+                
             default:
                 throw new IllegalArgumentException("Unknown annotation: " + annotation.getName().toString());
         }
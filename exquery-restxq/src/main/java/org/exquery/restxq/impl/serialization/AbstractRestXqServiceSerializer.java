@@ -27,20 +27,36 @@
 package org.exquery.restxq.impl.serialization;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
 import org.exquery.InternetMediaType;
+import org.exquery.http.ContentNegotiator;
 import org.exquery.http.ContentTypeHeader;
+import org.exquery.http.HttpHeader;
 import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.http.MediaType;
 import org.exquery.restxq.Namespace;
 import org.exquery.restxq.RestXqServiceException;
 import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.BufferedHttpResponse;
+import org.exquery.restxq.impl.NegotiatedContent;
+import org.exquery.restxq.impl.RestXqContentNegotiation;
+import org.exquery.restxq.impl.RestXqTimer;
 import org.exquery.restxq.impl.serialization.XmlWriter.Attribute;
 import org.exquery.serialization.annotation.*;
 import org.exquery.serialization.annotation.MethodAnnotation.SupportedMethod;
+import org.exquery.xdm.type.SequenceImpl;
 import org.exquery.xquery.Sequence;
 import org.exquery.xquery.Type;
 import org.exquery.xquery.TypedValue;
@@ -55,15 +71,113 @@ import org.w3c.dom.Element;
 public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSerializer {
     
     private final static String DEFAULT_ENCODING = "UTF-8";
+    private final static String CONTENT_CODING_GZIP = "gzip";
+    private final static String CONTENT_CODING_X_GZIP = "x-gzip";
+    private final static String CONTENT_CODING_DEFLATE = "deflate";
     private final static String DEFAULT_INTERNET_MEDIA_TYPE = InternetMediaType.APPLICATION_XML.getMediaType();
     private final static String DEFAULT_CONTENT_TYPE = DEFAULT_INTERNET_MEDIA_TYPE + "; charset=" + DEFAULT_ENCODING;
     
+    private final static MediaType EVENT_STREAM_MEDIA_TYPE = MediaType.valueOf(InternetMediaType.TEXT_EVENT_STREAM.getMediaType());
+    private final static Charset EVENT_STREAM_CHARSET = Charset.forName("UTF-8");
+    private final static String EVENT_STREAM_CACHE_CONTROL = "no-cache";
+    private final static byte[] EVENT_STREAM_HEARTBEAT = ": heartbeat\n\n".getBytes(EVENT_STREAM_CHARSET);
+    private final static int DEFAULT_EVENT_STREAM_FLUSH_ITEMS = 1;
+    private final static long DEFAULT_EVENT_STREAM_HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    
     private final static Map<SerializationProperty, String> DEFAULT_SERIALIZATION_PROPERTIES = new EnumMap<SerializationProperty, String>(SerializationProperty.class);
     static {
         DEFAULT_SERIALIZATION_PROPERTIES.put(SerializationProperty.INDENT, "yes");
         DEFAULT_SERIALIZATION_PROPERTIES.put(SerializationProperty.ENCODING, DEFAULT_ENCODING);
         DEFAULT_SERIALIZATION_PROPERTIES.put(SerializationProperty.MEDIA_TYPE, DEFAULT_INTERNET_MEDIA_TYPE);
     }
+
+    private final static Map<SupportedMethod, String> DEFAULT_METHOD_MEDIA_TYPES = new EnumMap<SupportedMethod, String>(SupportedMethod.class);
+    static {
+        for(final SupportedMethod method : SupportedMethod.values()) {
+            if(method.equals(SupportedMethod.binary)) {
+                DEFAULT_METHOD_MEDIA_TYPES.put(method, InternetMediaType.APPLICATION_OCTET_STREAM.getMediaType());
+            } else {
+                DEFAULT_METHOD_MEDIA_TYPES.put(method, method.getDefaultInternetMediaType().getMediaType());
+            }
+        }
+    }
+    
+    private volatile RestXqContentNegotiation contentNegotiation = null;
+    private volatile int eventStreamFlushItems = DEFAULT_EVENT_STREAM_FLUSH_ITEMS;
+    private volatile long eventStreamFlushInterval = 0;
+    private volatile long eventStreamHeartbeatInterval = DEFAULT_EVENT_STREAM_HEARTBEAT_INTERVAL;
+    
+    /**
+     * Sets the negotiation of the charset, language and content-coding
+     * of responses
+     * 
+     * When set, the negotiated charset is used as the output encoding
+     * unless a Resource Function specifies %output:encoding, the negotiated
+     * language is sent as the Content-Language, and the body is compressed
+     * with the negotiated content-coding if it is supported,
+     * see {@link #isSupportedContentCoding(String)}. A rest:response which sets
+     * the Content-Language or Content-Encoding headers has precedence.
+     * 
+     * @param contentNegotiation The content negotiation, or null to disable negotiation
+     */
+    public void setContentNegotiation(final RestXqContentNegotiation contentNegotiation) {
+        this.contentNegotiation = contentNegotiation;
+    }
+    
+    /**
+     * Gets the negotiation of the charset, language and content-coding
+     * of responses
+     * 
+     * @return The content negotiation, or null if negotiation is disabled
+     */
+    public RestXqContentNegotiation getContentNegotiation() {
+        return contentNegotiation;
+    }
+    
+    /**
+     * Sets when the events of a text/event-stream response are flushed
+     * 
+     * Events are flushed once the given number of events have been written
+     * since the last flush, or once the interval has elapsed since the
+     * first event which has not been flushed, whichever is sooner.
+     * By default every event is flushed as soon as it is written.
+     * 
+     * @param items The number of events after which to flush
+     * @param interval The interval after which to flush, or 0 for no interval
+     * @param unit The unit of the interval
+     * 
+     * @throws IllegalArgumentException if items is less than 1 or interval is negative
+     */
+    public void setEventStreamFlush(final int items, final long interval, final TimeUnit unit) {
+        if(items < 1) {
+            throw new IllegalArgumentException("items must be at least 1: " + items);
+        }
+        if(interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + interval);
+        }
+        this.eventStreamFlushItems = items;
+        this.eventStreamFlushInterval = unit.toMillis(interval);
+    }
+    
+    /**
+     * Sets the interval at which a heartbeat comment is sent on a
+     * text/event-stream response when no event has been written
+     * 
+     * Heartbeats keep idle connections open whilst a Resource Function
+     * is producing the next item of its result, and detect clients
+     * which have disconnected. The default interval is 15 seconds.
+     * 
+     * @param interval The heartbeat interval, or 0 to disable heartbeats
+     * @param unit The unit of the interval
+     * 
+     * @throws IllegalArgumentException if interval is negative
+     */
+    public void setEventStreamHeartbeat(final long interval, final TimeUnit unit) {
+        if(interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + interval);
+        }
+        this.eventStreamHeartbeatInterval = unit.toMillis(interval);
+    }
     
     /**
      * Gets the Default Encoding
@@ -105,6 +219,61 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
      */
     @Override
     public void serialize(final Sequence result, final Set<SerializationAnnotation> serializationAnnotations, final HttpResponse response) throws RestXqServiceException {
+        serialize(result, serializationAnnotations, null, response, true);
+    }
+    
+    /**
+     * Serializes the result of a RESTXQ Service
+     * using the content negotiated for the response
+     *
+     * @param result The result of the RESTXQ Service's Resource Function invokation
+     * @param serializationAnnotations Serialization Annotations which were present on the Resource Function
+     * @param negotiatedContent The content negotiated for the response, or null if there was no negotiation
+     * @param response The HTTP Response to Serialize the result to
+     *
+     * @throws RestXqServiceException If an error occurs during serialization
+     */
+    public void serialize(final Sequence result, final Set<SerializationAnnotation> serializationAnnotations, final NegotiatedContent negotiatedContent, final HttpResponse response) throws RestXqServiceException {
+        serialize(result, serializationAnnotations, negotiatedContent, response, true);
+    }
+    
+    /**
+     * Serializes only the HTTP headers of the result of a RESTXQ Service,
+     * as is required to respond to a HTTP HEAD request
+     * 
+     * The rest:response (if any) and the Content-Type are processed
+     * as they would be for {@link #serialize(Sequence, Set, HttpResponse)},
+     * however the body of the result is never serialized. If the length of the
+     * body can be cheaply determined then the Content-Length header is also set.
+     *
+     * @param result The result of the RESTXQ Service's Resource Function invokation
+     * @param serializationAnnotations Serialization Annotations which were present on the Resource Function
+     * @param response The HTTP Response to Serialize the result to
+     *
+     * @throws RestXqServiceException If an error occurs during serialization
+     */
+    public void serializeHead(final Sequence result, final Set<SerializationAnnotation> serializationAnnotations, final HttpResponse response) throws RestXqServiceException {
+        serialize(result, serializationAnnotations, null, response, false);
+    }
+    
+    /**
+     * Serializes only the HTTP headers of the result of a RESTXQ Service
+     * using the content negotiated for the response
+     *
+     * @see #serializeHead(Sequence, Set, HttpResponse)
+     *
+     * @param result The result of the RESTXQ Service's Resource Function invokation
+     * @param serializationAnnotations Serialization Annotations which were present on the Resource Function
+     * @param negotiatedContent The content negotiated for the response, or null if there was no negotiation
+     * @param response The HTTP Response to Serialize the result to
+     *
+     * @throws RestXqServiceException If an error occurs during serialization
+     */
+    public void serializeHead(final Sequence result, final Set<SerializationAnnotation> serializationAnnotations, final NegotiatedContent negotiatedContent, final HttpResponse response) throws RestXqServiceException {
+        serialize(result, serializationAnnotations, negotiatedContent, response, false);
+    }
+    
+    private void serialize(final Sequence result, final Set<SerializationAnnotation> serializationAnnotations, final NegotiatedContent negotiatedContent, final HttpResponse response, final boolean includeBody) throws RestXqServiceException {
         
         // some xquery functions can write directly to the output stream
         // (response:stream-binary() etc...)
@@ -113,14 +282,23 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
             return;
         }
         
-        final Iterator<TypedValue> itResult = result.iterator();
+        if(negotiatedContent != null) {
+            setVary(response);
+        }
+        
+        @SuppressWarnings("unchecked")
+        final Iterator<TypedValue<?>> itResult = result.iterator();
         if(itResult.hasNext()) {
-            final TypedValue firstResultPart = itResult.next();
+            final TypedValue<?> firstResultPart = itResult.next();
             
             //determine if the first element in the sequence is rest:response
             Element elem = null;
+            XMLStreamReader reader = null;
             
-            if(firstResultPart.getType().equals(Type.DOCUMENT)) {
+            if(firstResultPart.getValue() instanceof XMLStreamReader) {
+                //executers may provide the element as a stream of events
+                reader = (XMLStreamReader)firstResultPart.getValue();
+            } else if(firstResultPart.getType().equals(Type.DOCUMENT)) {
                 elem = ((Document)firstResultPart.getValue()).getDocumentElement();
             } else if(firstResultPart.getType().equals(Type.ELEMENT)) {
                 elem = (Element)firstResultPart.getValue();
@@ -129,21 +307,145 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
             final Map<SerializationProperty, String> serializationProperties = new EnumMap<SerializationProperty, String>(SerializationProperty.class);
             serializationProperties.putAll(getDefaultSerializationProperties());
             
+            //the negotiated charset overrides the default, but not %output:encoding
+            if(negotiatedContent != null && negotiatedContent.getCharset() != null) {
+                serializationProperties.put(SerializationProperty.ENCODING, negotiatedContent.getCharset());
+            }
+            
             //serialize either 1) rest:response and optional body, or 2) just the body
-            if(elem != null && new QName(elem.getNamespaceURI(), elem.getLocalName()).equals(RestResponseHandler.REST_RESPONSE_ELEMENT_NAME)) {
+            if(isRestResponse(elem) || isRestResponse(reader)) {
                 //set the rest:response and serialize the body if it exists
                 
                 processSerializationAnnotations(serializationAnnotations, serializationProperties);
-                new RestResponseHandler().process(elem, serializationProperties, response);
+                if(reader != null) {
+                    new RestResponseHandler().process(reader, serializationProperties, response);
+                } else {
+                    new RestResponseHandler().process(elem, serializationProperties, response);
+                }
+                setContentLanguage(response, negotiatedContent);
                 if(itResult.hasNext()) {
-                    
-                    final Sequence seqBody = result.tail();
-                    serializeBody(seqBody, response, serializationProperties);
+                    serializeBody(result.tail(), response, serializationProperties, negotiatedContent, includeBody);
+                } else if(!includeBody) {
+                    setContentLength(response, 0);
                 }
             } else {
                 //serialize just the body
                 processSerializationAnnotations(serializationAnnotations, serializationProperties);
-                serializeBody(result, response, serializationProperties);
+                setContentLanguage(response, negotiatedContent);
+                serializeBody(result, response, serializationProperties, negotiatedContent, includeBody);
+            }
+        } else if(!includeBody) {
+            setContentLength(response, 0);
+        }
+    }
+    
+    private static boolean isRestResponse(final Element elem) {
+        return elem != null && new QName(elem.getNamespaceURI(), elem.getLocalName()).equals(RestResponseHandler.REST_RESPONSE_ELEMENT_NAME);
+    }
+    
+    private static boolean isRestResponse(final XMLStreamReader reader) {
+        return reader != null && reader.isStartElement() && reader.getName().equals(RestResponseHandler.REST_RESPONSE_ELEMENT_NAME);
+    }
+    
+    /**
+     * Serializes the body, or just the headers which describe the body,
+     * encoding the body with the negotiated content-coding
+     */
+    private void serializeBody(final Sequence result, final HttpResponse response, final Map<SerializationProperty, String> serializationProperties, final NegotiatedContent negotiatedContent, final boolean includeBody) throws RestXqServiceException {
+        if(includeBody && isEventStream(serializationProperties)) {
+            //events are never content-coded, as the encoder would hold them back
+            serializeEventStream(result, response, serializationProperties);
+            return;
+        }
+        
+        final ContentEncodingHttpResponse encodingResponse = getContentEncodingResponse(response, negotiatedContent);
+        final HttpResponse bodyResponse = encodingResponse == null ? response : encodingResponse;
+        
+        if(includeBody) {
+            serializeBody(result, bodyResponse, serializationProperties);
+        } else {
+            serializeBodyHeaders(result, bodyResponse, serializationProperties);
+        }
+        
+        if(encodingResponse != null) {
+            try {
+                encodingResponse.finish();
+            } catch(final IOException ioe) {
+                throw new RestXqServiceException(ioe.getMessage(), ioe);
+            }
+        }
+    }
+    
+    private static boolean isEventStream(final Map<SerializationProperty, String> serializationProperties) {
+        final String mediaType = serializationProperties.get(SerializationProperty.MEDIA_TYPE);
+        if(mediaType == null || mediaType.isEmpty()) {
+            return false;
+        }
+        
+        try {
+            return MediaType.valueOf(mediaType).getEssence().equals(EVENT_STREAM_MEDIA_TYPE);
+        } catch(final IllegalArgumentException iae) {
+            return false;
+        }
+    }
+    
+    /**
+     * Serializes the result as a text/event-stream
+     * 
+     * The result is iterated lazily, and each item is serialized
+     * as the data of one event, so that events are sent as the
+     * Resource Function produces them. If the client disconnects,
+     * which heartbeats detect whilst waiting for the next item, then
+     * no further items are serialized and the result is closed,
+     * and so it may be closed more than once. The result is only
+     * ever closed by the thread which iterates it.
+     *
+     * @param result The result to serialize
+     * @param response The response to serialize the result to
+     * @param serializationProperties Any properties that affect serialization
+     *
+     * @throws RestXqServiceException If a problem occurs during serialization,
+     * or the client disconnects
+     */
+    protected void serializeEventStream(final Sequence result, final HttpResponse response, final Map<SerializationProperty, String> serializationProperties) throws RestXqServiceException {
+        
+        //event streams are always UTF-8
+        final Map<SerializationProperty, String> eventProperties = new EnumMap<SerializationProperty, String>(serializationProperties);
+        eventProperties.put(SerializationProperty.ENCODING, EVENT_STREAM_CHARSET.name());
+        eventProperties.put(SerializationProperty.OMIT_XML_DECLARATION, "yes");
+        setContentType(response, eventProperties);
+        if(!response.containsHeader(HttpHeader.CACHE_CONTROL.getHeaderName())) {
+            response.setHeader(HttpHeader.CACHE_CONTROL.getHeaderName(), EVENT_STREAM_CACHE_CONTROL);
+        }
+        
+        final EventStream eventStream;
+        try {
+            eventStream = new EventStream(response.getOutputStream(), eventStreamFlushItems, eventStreamFlushInterval, eventStreamHeartbeatInterval);
+        } catch(final IOException ioe) {
+            throw new RestXqServiceException(ioe.getMessage(), ioe);
+        }
+        
+        try {
+            @SuppressWarnings("unchecked")
+            final Iterator<TypedValue<Object>> itResult = result.iterator();
+            while(!eventStream.isDisconnected() && itResult.hasNext()) {
+                final BufferedHttpResponse eventResponse = new BufferedHttpResponse();
+                serializeNodeBody(new SequenceImpl<Object>(itResult.next()), eventResponse, eventProperties);
+                eventStream.event(new String(eventResponse.getBody(), EVENT_STREAM_CHARSET));
+            }
+            eventStream.finish();
+        } catch(final IOException ioe) {
+            throw new RestXqServiceException("Unable to send event: " + ioe.getMessage(), ioe);
+        } finally {
+            eventStream.close();
+            
+            //the client has gone, so stop producing the result
+            if(eventStream.isDisconnected()) {
+                try {
+                    result.close();
+                } catch(final Sequence.SequenceException se) {
+                    //nothing more can be done
+                }
             }
         }
     }
@@ -215,19 +517,11 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
     }
     
     public static String getDefaultMediaTypeForMethod(final SupportedMethod method) {
-        
-        final String mediaType;
         if(method != null) {
-            if(method.equals(SupportedMethod.binary)) {
-                mediaType = InternetMediaType.APPLICATION_OCTET_STREAM.getMediaType();
-            } else {
-                mediaType = method.getDefaultInternetMediaType().getMediaType();
-            }
+            return DEFAULT_METHOD_MEDIA_TYPES.get(method);
         } else {
-            mediaType = DEFAULT_CONTENT_TYPE;
+            return DEFAULT_CONTENT_TYPE;
         }
-        
-        return mediaType;
     }
     
     /**
@@ -241,6 +535,69 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
      */
     protected void serializeBody(final Sequence result, final HttpResponse response, final Map<SerializationProperty, String> serializationProperties) throws RestXqServiceException {
         
+        final SupportedMethod method = getSerializationMethod(serializationProperties);
+        
+        //set the HTTP Content-Type header from the serialization properties
+        setContentType(response, serializationProperties);
+        
+        if(method != null && method.equals(SupportedMethod.binary)) {
+            serializeBinaryBody(result, response);
+        } else {
+            serializeNodeBody(result, response, serializationProperties);
+        }
+    }
+    
+    /**
+     * Set the HTTP headers which describe the body of the HTTP Response
+     * without serializing the body itself
+     * 
+     * @param result The result which would be serialized as the body
+     * @param response The response to set the headers on
+     * @param serializationProperties Any properties that affect serialization
+     */
+    protected void serializeBodyHeaders(final Sequence result, final HttpResponse response, final Map<SerializationProperty, String> serializationProperties) {
+        
+        //set the HTTP Content-Type header from the serialization properties
+        setContentType(response, serializationProperties);
+        
+        final long contentLength = getContentLength(result, getSerializationMethod(serializationProperties));
+        if(contentLength > -1) {
+            setContentLength(response, contentLength);
+        }
+    }
+    
+    /**
+     * Get the length in bytes of the serialized body
+     * if it can be determined without serializing the body
+     * 
+     * Only the lengths of binary content held as byte arrays
+     * are determined by default, but this may be overridden
+     * by implementations who can cheaply determine the
+     * length of other values.
+     * 
+     * @param result The result which would be serialized as the body
+     * @param method The serialization method, or null if the method is unknown
+     * 
+     * @return The length of the serialized body in bytes, or -1 if the length is unknown
+     */
+    protected long getContentLength(final Sequence result, final SupportedMethod method) {
+        if(method == null || !method.equals(SupportedMethod.binary)) {
+            return -1;
+        }
+        
+        long contentLength = 0;
+        for(final Object item : result) {
+            final Object value = ((TypedValue)item).getValue();
+            if(value instanceof byte[]) {
+                contentLength += ((byte[])value).length;
+            } else {
+                return -1;
+            }
+        }
+        return contentLength;
+    }
+    
+    private SupportedMethod getSerializationMethod(final Map<SerializationProperty, String> serializationProperties) {
         SupportedMethod method = null;
         
         try {
@@ -253,17 +610,94 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
             System.out.println(iae.getMessage());
         }
         
-        //set the HTTP Content-Type header from the serialization properties
+        return method;
+    }
+    
+    private void setContentType(final HttpResponse response, final Map<SerializationProperty, String> serializationProperties) {
         final String mediaType = serializationProperties.get(SerializationProperty.MEDIA_TYPE);
         if(mediaType != null && !mediaType.isEmpty()) {
             final String encoding = serializationProperties.get(SerializationProperty.ENCODING);
-            response.setContentType(new ContentTypeHeader(mediaType, encoding).toString());
+            response.setContentType(ContentTypeHeader.valueOf(MediaType.valueOf(mediaType), encoding).toString());
+        }
+    }
+    
+    private void setVary(final HttpResponse response) {
+        final RestXqContentNegotiation negotiation = getContentNegotiation();
+        if(negotiation != null && !negotiation.getVaryHeaderValue().isEmpty() && !response.containsHeader(HttpHeader.VARY.getHeaderName())) {
+            response.setHeader(HttpHeader.VARY.getHeaderName(), negotiation.getVaryHeaderValue());
+        }
+    }
+    
+    private void setContentLanguage(final HttpResponse response, final NegotiatedContent negotiatedContent) {
+        //a Content-Language set explicitly by rest:response has precedence
+        if(negotiatedContent != null && negotiatedContent.getLanguage() != null && !response.containsHeader(HttpHeader.CONTENT_LANGUAGE.getHeaderName())) {
+            response.setHeader(HttpHeader.CONTENT_LANGUAGE.getHeaderName(), negotiatedContent.getLanguage());
+        }
+    }
+    
+    /**
+     * @return A response which encodes the body with the negotiated content-coding,
+     * or null if the body should not be encoded
+     */
+    private ContentEncodingHttpResponse getContentEncodingResponse(final HttpResponse response, final NegotiatedContent negotiatedContent) {
+        if(negotiatedContent == null) {
+            return null;
         }
         
-        if(method != null && method.equals(SupportedMethod.binary)) {
-            serializeBinaryBody(result, response);
+        final String contentCoding = negotiatedContent.getEncoding();
+        
+        //a Content-Encoding set explicitly by rest:response has precedence
+        if(contentCoding == null || contentCoding.equalsIgnoreCase(ContentNegotiator.IDENTITY)
+                || !isSupportedContentCoding(contentCoding)
+                || response.containsHeader(HttpHeader.CONTENT_ENCODING.getHeaderName())) {
+            return null;
+        }
+        
+        response.setHeader(HttpHeader.CONTENT_ENCODING.getHeaderName(), contentCoding);
+        return new ContentEncodingHttpResponse(response, contentCoding);
+    }
+    
+    /**
+     * Determines if a content-coding can be used to encode the body
+     * 
+     * By default gzip, x-gzip and deflate are supported, but this may be
+     * overridden along with {@link #encodeOutputStream(String, OutputStream)}
+     * by implementations who support other content-codings.
+     * 
+     * @param contentCoding The content-coding
+     * 
+     * @return true if the content-coding is supported
+     */
+    protected boolean isSupportedContentCoding(final String contentCoding) {
+        return contentCoding.equalsIgnoreCase(CONTENT_CODING_GZIP)
+            || contentCoding.equalsIgnoreCase(CONTENT_CODING_X_GZIP)
+            || contentCoding.equalsIgnoreCase(CONTENT_CODING_DEFLATE);
+    }
+    
+    /**
+     * Wraps the output stream of the HTTP Response to encode
+     * the body with a supported content-coding
+     * 
+     * @param contentCoding The content-coding, as accepted by {@link #isSupportedContentCoding(String)}
+     * @param os The output stream of the HTTP Response
+     * 
+     * @return The output stream to serialize the body to, if this is a
+     * {@link DeflaterOutputStream} it will be finished after serialization
+     * 
+     * @throws IOException If the output stream cannot be wrapped
+     */
+    protected OutputStream encodeOutputStream(final String contentCoding, final OutputStream os) throws IOException {
+        if(contentCoding.equalsIgnoreCase(CONTENT_CODING_DEFLATE)) {
+            return new DeflaterOutputStream(os);
         } else {
-            serializeNodeBody(result, response, serializationProperties);
+            return new GZIPOutputStream(os);
+        }
+    }
+    
+    private void setContentLength(final HttpResponse response, final long contentLength) {
+        //a Content-Length set explicitly by rest:response has precedence
+        if(!response.containsHeader(HttpHeader.CONTENT_LENGTH.getHeaderName())) {
+            response.setHeader(HttpHeader.CONTENT_LENGTH.getHeaderName(), Long.toString(contentLength));
         }
     }
     
@@ -365,4 +799,194 @@ public abstract class AbstractRestXqServiceSerializer implements RestXqServiceSe
             }
         };
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes events to the output stream of a text/event-stream response
+     * 
+     * Timed flushes and heartbeats are made from the timer thread,
+     * and so writes to the output stream are made whilst holding
+     * the lock of the event stream. A failed heartbeat only marks
+     * the stream as disconnected, it is for the thread which
+     * iterates the result to stop.
+     */
+    private final static class EventStream implements Runnable {
+        private final OutputStream os;
+        private final int flushItems;
+        private final long flushInterval;
+        private final long heartbeatInterval;
+        private final ScheduledFuture<?> timerTask;
+        
+        private int unflushedItems = 0;
+        private long firstUnflushed;
+        private long lastWritten;
+        private volatile boolean disconnected = false;
+        
+        EventStream(final OutputStream os, final int flushItems, final long flushInterval, final long heartbeatInterval) {
+            this.os = os;
+            this.flushItems = flushItems;
+            this.flushInterval = flushInterval;
+            this.heartbeatInterval = heartbeatInterval;
+            this.lastWritten = System.currentTimeMillis();
+            
+            final long period = minInterval(flushInterval, heartbeatInterval);
+            if(period > 0) {
+                this.timerTask = RestXqTimer.getTimer().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+            } else {
+                this.timerTask = null;
+            }
+        }
+        
+        private static long minInterval(final long a, final long b) {
+            if(a == 0) {
+                return b;
+            } else if(b == 0) {
+                return a;
+            } else {
+                return Math.min(a, b);
+            }
+        }
+        
+        /**
+         * Writes an event, each line of the data
+         * is written as a data field of the event
+         */
+        synchronized void event(final String data) throws IOException {
+            if(disconnected) {
+                throw new IOException("Client disconnected from event stream");
+            }
+            
+            final StringBuilder builder = new StringBuilder(data.length() + 8);
+            for(final String line : data.split("\r\n|\r|\n", -1)) {
+                builder.append("data: ").append(line).append('\n');
+            }
+            builder.append('\n');
+            
+            try {
+                os.write(builder.toString().getBytes(EVENT_STREAM_CHARSET));
+                lastWritten = System.currentTimeMillis();
+                if(unflushedItems++ == 0) {
+                    firstUnflushed = lastWritten;
+                }
+                if(unflushedItems >= flushItems) {
+                    flush();
+                }
+            } catch(final IOException ioe) {
+                disconnected = true;
+                throw ioe;
+            }
+        }
+        
+        synchronized void finish() throws IOException {
+            if(disconnected) {
+                throw new IOException("Client disconnected from event stream");
+            }
+            flush();
+        }
+        
+        boolean isDisconnected() {
+            return disconnected;
+        }
+        
+        void close() {
+            if(timerTask != null) {
+                timerTask.cancel(false);
+            }
+        }
+        
+        private void flush() throws IOException {
+            os.flush();
+            unflushedItems = 0;
+        }
+
+        @Override
+        public void run() {
+            synchronized(this) {
+                if(disconnected) {
+                    return;
+                }
+                
+                try {
+                    final long now = System.currentTimeMillis();
+                    if(unflushedItems > 0 && flushInterval > 0 && now - firstUnflushed >= flushInterval) {
+                        flush();
+                    } else if(heartbeatInterval > 0 && now - lastWritten >= heartbeatInterval) {
+                        os.write(EVENT_STREAM_HEARTBEAT);
+                        flush();
+                        lastWritten = now;
+                    }
+                    return;
+                } catch(final IOException ioe) {
+                    disconnected = true;
+                }
+            }
+            
+            //no more heartbeats are needed
+            close();
+        }
+    }
+
+    /**
+     * Encodes the body written to a HTTP Response with a content-coding
+     * 
+     * The Content-Length of the unencoded body is never set,
+     * as it would not be the length of the encoded body.
+     */
+    private class ContentEncodingHttpResponse implements HttpResponse {
+        private final HttpResponse response;
+        private final String contentCoding;
+        private OutputStream encodedOutputStream = null;
+        
+        ContentEncodingHttpResponse(final HttpResponse response, final String contentCoding) {
+            this.response = response;
+            this.contentCoding = contentCoding;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if(encodedOutputStream == null) {
+                encodedOutputStream = encodeOutputStream(contentCoding, response.getOutputStream());
+            }
+            return encodedOutputStream;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return response.isCommitted();
+        }
+
+        @Override
+        public void setHeader(final String httpHeaderName, final String value) {
+            if(!httpHeaderName.equalsIgnoreCase(HttpHeader.CONTENT_LENGTH.getHeaderName())) {
+                response.setHeader(httpHeaderName, value);
+            }
+        }
+
+        @Override
+        public void setStatus(final HttpStatus status, final String reason) {
+            response.setStatus(status, reason);
+        }
+
+        @Override
+        public void setStatus(final HttpStatus status) {
+            response.setStatus(status);
+        }
+
+        @Override
+        public boolean containsHeader(final String httpHeaderName) {
+            return response.containsHeader(httpHeaderName);
+        }
+
+        @Override
+        public void setContentType(final String contentType) {
+            response.setContentType(contentType);
+        }
+        
+        void finish() throws IOException {
+            if(encodedOutputStream instanceof DeflaterOutputStream) {
+                ((DeflaterOutputStream)encodedOutputStream).finish();
+            } else if(encodedOutputStream != null) {
+                encodedOutputStream.flush();
+            }
+        }
+    }
+}
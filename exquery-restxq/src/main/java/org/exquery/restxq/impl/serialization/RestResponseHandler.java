@@ -33,10 +33,16 @@ import org.exquery.http.HttpStatus;
 import org.exquery.restxq.Namespace;
 import org.exquery.restxq.RestXqServiceException;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -66,6 +72,9 @@ public class RestResponseHandler {
     /**
      * Processes a rest:response element and sets the appropriate headers and fields in the http response
      * 
+     * Only the children of the elements of the rest:response which
+     * are of interest are visited, the rest:response is never searched.
+     * 
      * @param restResponse The rest:response element
      * @param serializationProperties Any properties that affect serialization
      * @param response The response to serialize the result to
@@ -74,14 +83,70 @@ public class RestResponseHandler {
      */
     public void process(final Element restResponse, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) throws RestXqServiceException {
         
-        final NodeList nlSerializationParameters = restResponse.getElementsByTagNameNS(SERIALIZATION_PARAMETERS_ELEMENT_NAME.getNamespaceURI(), SERIALIZATION_PARAMETERS_ELEMENT_NAME.getLocalPart());
-        if(nlSerializationParameters.getLength() == 1) {
-            serializationProperties.putAll(processSerializationParameters((Element)nlSerializationParameters.item(0)));
+        final Element serializationParameters = getFirstChildElement(restResponse, SERIALIZATION_PARAMETERS_ELEMENT_NAME);
+        if(serializationParameters != null) {
+            serializationProperties.putAll(processSerializationParameters(serializationParameters));
         }
         
-        final NodeList nlHttpResponse = restResponse.getElementsByTagNameNS(HTTP_RESPONSE_ELEMENT_NAME.getNamespaceURI(), HTTP_RESPONSE_ELEMENT_NAME.getLocalPart());
-        if(nlHttpResponse.getLength() == 1) {
-            processHttpResponse((Element)nlHttpResponse.item(0), serializationProperties, response);
+        final Element httpResponse = getFirstChildElement(restResponse, HTTP_RESPONSE_ELEMENT_NAME);
+        if(httpResponse != null) {
+            processHttpResponse(httpResponse, serializationProperties, response);
+        }
+    }
+    
+    /**
+     * Processes a rest:response from a stream of events and sets the
+     * appropriate headers and fields in the http response as they are read
+     * 
+     * The status, headers and serialization parameters are applied
+     * in document order, so that no tree of the rest:response need be built.
+     * 
+     * @param restResponse A reader positioned at the start of the rest:response element,
+     * on return the reader is positioned at the end of the rest:response element
+     * @param serializationProperties Any properties that affect serialization
+     * @param response The response to serialize the result to
+     *
+     * @throws RestXqServiceException If a problem occurs during serialization
+     */
+    public void process(final XMLStreamReader restResponse, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) throws RestXqServiceException {
+        try {
+            if(!restResponse.isStartElement() || !REST_RESPONSE_ELEMENT_NAME.equals(restResponse.getName())) {
+                throw new RestXqServiceException("Expected the start of a rest:response element");
+            }
+            
+            int depth = 0;
+            QName child = null;
+            while(restResponse.hasNext()) {
+                final int event = restResponse.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    final QName name = restResponse.getName();
+                    if(depth == 1) {
+                        child = name;
+                        if(name.equals(HTTP_RESPONSE_ELEMENT_NAME)) {
+                            processHttpStatus(
+                                restResponse.getAttributeValue(null, STATUS_ATTR_NAME),
+                                restResponse.getAttributeValue(null, MESSAGE_ATTR_NAME),
+                                restResponse.getAttributeValue(null, REASON_ATTR_NAME),
+                                response
+                            );
+                        }
+                    } else if(depth == 2) {
+                        if(HTTP_RESPONSE_ELEMENT_NAME.equals(child) && name.equals(HTTP_HEADER_ELEMENT_NAME)) {
+                            processHttpHeader(restResponse.getAttributeValue(null, NAME_ATTR_NAME), restResponse.getAttributeValue(null, VALUE_ATTR_NAME), serializationProperties, response);
+                        } else if(SERIALIZATION_PARAMETERS_ELEMENT_NAME.equals(child) && name.equals(METHOD_ELEMENT_NAME)) {
+                            processMethod(restResponse.getAttributeValue(null, VALUE_ATTR_NAME), serializationProperties);
+                        }
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    if(depth == 0) {
+                        break;
+                    }
+                    depth--;
+                }
+            }
+        } catch(final XMLStreamException xmlse) {
+            throw new RestXqServiceException("Unable to read rest:response: " + xmlse.getMessage(), xmlse);
         }
     }
     
@@ -89,22 +154,43 @@ public class RestResponseHandler {
         final Map<SerializationProperty, String> serializationProperties = new EnumMap<SerializationProperty, String>(SerializationProperty.class);
         
         //get the output method
-        final NodeList nlMethod = serializationParameters.getElementsByTagNameNS(METHOD_ELEMENT_NAME.getNamespaceURI(), METHOD_ELEMENT_NAME.getLocalPart());
-        if(nlMethod.getLength() == 1) {
-            final Element elemMethod = (Element)nlMethod.item(0);
-            final String strMethod = elemMethod.getAttribute(VALUE_ATTR_NAME);
-            if(strMethod != null && !strMethod.isEmpty()) {
-                serializationProperties.put(SerializationProperty.METHOD, strMethod);
-            }
+        final Element elemMethod = getFirstChildElement(serializationParameters, METHOD_ELEMENT_NAME);
+        if(elemMethod != null) {
+            processMethod(elemMethod.getAttribute(VALUE_ATTR_NAME), serializationProperties);
         }
         
         return serializationProperties;
     }
+    
+    private void processMethod(final String strMethod, final Map<SerializationProperty, String> serializationProperties) {
+        if(strMethod != null && !strMethod.isEmpty()) {
+            serializationProperties.put(SerializationProperty.METHOD, strMethod);
+        }
+    }
 
     protected void processHttpResponse(final Element httpResponse, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) throws RestXqServiceException {
         
+        processHttpStatus(
+            httpResponse.getAttribute(STATUS_ATTR_NAME),
+            httpResponse.getAttribute(MESSAGE_ATTR_NAME),
+            httpResponse.getAttribute(REASON_ATTR_NAME),
+            response
+        );
+        
+        //process the http headers
+        processHttpHeaders(getChildElements(httpResponse, HTTP_HEADER_ELEMENT_NAME), serializationProperties, response);
+    }
+    
+    protected void processHttpHeaders(final NodeList nlHttpHeader, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) {
+        for(int i = 0; i < nlHttpHeader.getLength(); i++) {
+            final Element elemHeader = (Element)nlHttpHeader.item(i);
+            processHttpHeader(elemHeader.getAttribute(NAME_ATTR_NAME), elemHeader.getAttribute(VALUE_ATTR_NAME), serializationProperties, response);
+        }
+    }
+    
+    private void processHttpStatus(final String strStatus, final String message, final String reason, final HttpResponse response) throws RestXqServiceException {
+        
         //get the status code (if present)
-        final String strStatus = httpResponse.getAttribute(STATUS_ATTR_NAME);
         HttpStatus httpStatus = null;
         if(strStatus != null && !strStatus.isEmpty()) {
             final int status = Integer.parseInt(strStatus);
@@ -115,38 +201,65 @@ public class RestResponseHandler {
             }
         }
         
-        //get the message (if present)
-        final String message = httpResponse.getAttribute(MESSAGE_ATTR_NAME);
-
         //get the reason (if message is not present)
-        final String reason = (message == null || message.isEmpty()) ? httpResponse.getAttribute(REASON_ATTR_NAME) : message;
+        final String statusReason = (message == null || message.isEmpty()) ? reason : message;
         
         //set the status and reason
         if(httpStatus != null) {
-            if(reason != null && !reason.isEmpty()) {
-                response.setStatus(httpStatus, reason);
+            if(statusReason != null && !statusReason.isEmpty()) {
+                response.setStatus(httpStatus, statusReason);
             } else {
                 response.setStatus(httpStatus);
             }
         }
-        
-        //process the http headers
-        final NodeList nlHttpHeader = httpResponse.getElementsByTagNameNS(HTTP_HEADER_ELEMENT_NAME.getNamespaceURI(), HTTP_HEADER_ELEMENT_NAME.getLocalPart());
-        processHttpHeaders(nlHttpHeader, serializationProperties, response);
     }
 
-    protected void processHttpHeaders(final NodeList nlHttpHeader, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) {
-        for(int i = 0; i < nlHttpHeader.getLength(); i++) {
-            final Element elemHeader = (Element)nlHttpHeader.item(i);
-            final String name = elemHeader.getAttribute(NAME_ATTR_NAME);
-            final String value = elemHeader.getAttribute(VALUE_ATTR_NAME);
-            
-            if(name.equals(HttpHeader.CONTENT_TYPE.getHeaderName())) {
-                serializationProperties.put(SerializationProperty.MEDIA_TYPE, new ContentTypeHeader(value).getInternetMediaType());
-                //TODO how to select the Serializer based on the Content-Type? Should probably just use the %output:method
+    private void processHttpHeader(final String name, final String value, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) {
+        if(name == null || name.isEmpty()) {
+            return;
+        }
+        
+        if(name.equals(HttpHeader.CONTENT_TYPE.getHeaderName())) {
+            serializationProperties.put(SerializationProperty.MEDIA_TYPE, ContentTypeHeader.valueOf(value).getInternetMediaType());
+            //TODO how to select the Serializer based on the Content-Type? Should probably just use the %output:method
+        }
+        
+        response.setHeader(name, value);
+    }
+    
+    private static Element getFirstChildElement(final Element parent, final QName name) {
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(isElement(child, name)) {
+                return (Element)child;
+            }
+        }
+        return null;
+    }
+    
+    private static NodeList getChildElements(final Element parent, final QName name) {
+        final List<Node> elements = new ArrayList<Node>();
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(isElement(child, name)) {
+                elements.add(child);
             }
-            
-            response.setHeader(name, value);
         }
+        
+        return new NodeList() {
+            @Override
+            public Node item(final int index) {
+                return index >= 0 && index < elements.size() ? elements.get(index) : null;
+            }
+
+            @Override
+            public int getLength() {
+                return elements.size();
+            }
+        };
+    }
+    
+    private static boolean isElement(final Node node, final QName name) {
+        return node.getNodeType() == Node.ELEMENT_NODE
+            && name.getLocalPart().equals(node.getLocalName())
+            && name.getNamespaceURI().equals(node.getNamespaceURI());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqService;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for state attached to Resource Functions
+ *
+ * @author Adam Retter
+ */
+public class ResourceFunctionAttachmentsTest {
+    
+    private final static ResourceFunctionAttachments.Key<String> PREPARED_QUERY = new ResourceFunctionAttachments.Key<String>("prepared-query");
+    private final static ResourceFunctionAttachments.Key<ResourceFunctionContextPool<ContextMock>> CONTEXT_POOL = new ResourceFunctionAttachments.Key<ResourceFunctionContextPool<ContextMock>>("context-pool");
+    
+    @Test
+    public void attachments_per_resourceFunction() {
+        final ResourceFunctionAttachments attachments = new ResourceFunctionAttachments();
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        final ResourceFunction otherResourceFunction = mock(ResourceFunction.class);
+        
+        assertNull(attachments.get(resourceFunction, PREPARED_QUERY));
+        assertNull(attachments.putIfAbsent(resourceFunction, PREPARED_QUERY, "query"));
+        assertEquals("query", attachments.putIfAbsent(resourceFunction, PREPARED_QUERY, "other"));
+        
+        assertEquals("query", attachments.get(resourceFunction, PREPARED_QUERY));
+        assertNull(attachments.get(otherResourceFunction, PREPARED_QUERY));
+        
+        assertEquals("query", attachments.remove(resourceFunction, PREPARED_QUERY));
+        assertNull(attachments.get(resourceFunction, PREPARED_QUERY));
+    }
+    
+    @Test
+    public void factory_creates_once() {
+        final ResourceFunctionAttachments attachments = new ResourceFunctionAttachments();
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        final AtomicInteger created = new AtomicInteger();
+        final ResourceFunctionAttachments.Factory<String> factory = new ResourceFunctionAttachments.Factory<String>() {
+            @Override
+            public String create(final ResourceFunction resourceFunction) {
+                return "query-" + created.incrementAndGet();
+            }
+        };
+        
+        assertEquals("query-1", attachments.get(resourceFunction, PREPARED_QUERY, factory));
+        assertEquals("query-1", attachments.get(resourceFunction, PREPARED_QUERY, factory));
+        assertEquals(1, created.get());
+    }
+    
+    @Test
+    public void invalidate_closes_contextPool() {
+        final ResourceFunctionAttachments attachments = new ResourceFunctionAttachments();
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        
+        final ResourceFunctionContextPool<ContextMock> pool = attachments.get(resourceFunction, CONTEXT_POOL, new ResourceFunctionAttachments.Factory<ResourceFunctionContextPool<ContextMock>>() {
+            @Override
+            public ResourceFunctionContextPool<ContextMock> create(final ResourceFunction resourceFunction) {
+                return new ResourceFunctionContextPool<ContextMock>(resourceFunction, new ContextFactory(), 1);
+            }
+        });
+        
+        final ContextMock first = pool.borrow();
+        final ContextMock second = pool.borrow();
+        assertNotSame(first, second);
+        
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(second.closed);
+        
+        //idle contexts are reused
+        assertSame(first, pool.borrow());
+        pool.release(first);
+        
+        attachments.invalidate(resourceFunction);
+        assertTrue(first.closed);
+        assertEquals(0, pool.getIdleCount());
+        assertNull(attachments.get(resourceFunction, CONTEXT_POOL));
+    }
+    
+    @Test
+    public void attachment_after_invalidate_is_closed() {
+        final ResourceFunctionAttachments attachments = new ResourceFunctionAttachments();
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        final ResourceFunctionAttachments.Key<ContextMock> key = new ResourceFunctionAttachments.Key<ContextMock>("context");
+        attachments.invalidate(resourceFunction);
+        
+        //an execution still in-flight after de-registration does not leak its attachment
+        final ContextMock late = attachments.get(resourceFunction, key, new ContextFactory());
+        assertTrue(late.closed);
+        assertNull(attachments.get(resourceFunction, key));
+        
+        final ContextMock put = new ContextMock();
+        attachments.put(resourceFunction, key, put);
+        assertTrue(put.closed);
+        assertNull(attachments.get(resourceFunction, key));
+        
+        //once registered again, attachments are kept
+        final RestXqService service = mock(RestXqService.class);
+        when(service.getResourceFunction()).thenReturn(resourceFunction);
+        attachments.registered(service);
+        final ContextMock kept = attachments.get(resourceFunction, key, new ContextFactory());
+        assertFalse(kept.closed);
+        assertSame(kept, attachments.get(resourceFunction, key));
+    }
+    
+    private static class ContextFactory implements ResourceFunctionAttachments.Factory<ContextMock> {
+        @Override
+        public ContextMock create(final ResourceFunction resourceFunction) {
+            return new ContextMock();
+        }
+    }
+    
+    private static class ContextMock implements AutoCloseable {
+        private boolean closed = false;
+        
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
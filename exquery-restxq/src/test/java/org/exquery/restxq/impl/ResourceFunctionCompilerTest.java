@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.exquery.http.HttpMethod;
+import org.exquery.restxq.Namespace;
+import org.exquery.restxq.RestXqErrorCodes;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.restxq.impl.ResourceFunctionCompiler.FunctionDeclaration;
+import org.exquery.restxq.impl.ResourceFunctionCompiler.Result;
+import org.exquery.restxq.impl.annotation.StringLiteral;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery3.Annotation;
+import org.exquery.xquery3.FunctionSignature;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.annotation;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionSignature;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for ResourceFunctionCompiler
+ *
+ * @author Adam Retter
+ */
+public class ResourceFunctionCompilerTest {
+
+    @Test
+    public void compile_many_in_declaration_order() throws URISyntaxException {
+        final List<FunctionDeclaration> declarations = new ArrayList<FunctionDeclaration>();
+        for(int i = 0; i < 100; i++) {
+            declarations.add(declaration("/module" + i + ".xq", "/resource/" + i));
+        }
+
+        final Result result = new ResourceFunctionCompiler().compile(declarations);
+
+        assertFalse(result.hasFailures());
+        assertEquals(100, result.getResourceFunctions().size());
+        for(int i = 0; i < 100; i++) {
+            assertEquals(new URI("/module" + i + ".xq"), result.getResourceFunctions().get(i).getXQueryLocation());
+            assertEquals(HttpMethod.GET, result.getResourceFunctions().get(i).getHttpMethodAnnotations().iterator().next().getHttpMethod());
+            assertTrue(result.getResourceFunctions().get(i).getPathAnnotation().matchesPath("/resource/" + i));
+        }
+    }
+
+    @Test
+    public void compile_collects_all_failures() throws URISyntaxException {
+        final List<FunctionDeclaration> declarations = new ArrayList<FunctionDeclaration>();
+        declarations.add(declaration("/good.xq", "/good"));
+        declarations.add(declaration("/bad1.xq", "//bad"));
+        declarations.add(declaration("/bad2.xq", "/bad/{$missing}"));
+
+        final Result result = new ResourceFunctionCompiler().compile(declarations);
+
+        assertEquals(1, result.getResourceFunctions().size());
+        assertEquals(2, result.getFailures().size());
+        assertEquals(new URI("/bad1.xq"), result.getFailures().get(0).getDeclaration().getXQueryLocation());
+        assertEquals(RestXqErrorCodes.RQST0004, ((RestAnnotationException)result.getFailures().get(0).getException()).getErrorCode());
+        assertEquals(new URI("/bad2.xq"), result.getFailures().get(1).getDeclaration().getXQueryLocation());
+        assertTrue(result.getFailures().get(1).getException() instanceof RestAnnotationException);
+    }
+
+    @Test
+    public void compile_collects_runtime_failures() throws URISyntaxException {
+        final Annotation broken = mock(Annotation.class);
+        when(broken.getName()).thenThrow(new IllegalStateException("broken"));
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(broken);
+
+        final List<FunctionDeclaration> declarations = new ArrayList<FunctionDeclaration>();
+        declarations.add(new FunctionDeclaration(new URI("/broken.xq"), annotations));
+        declarations.add(declaration("/good.xq", "/good"));
+
+        final Result result = new ResourceFunctionCompiler().compile(declarations);
+
+        assertEquals(1, result.getResourceFunctions().size());
+        assertEquals(1, result.getFailures().size());
+        assertEquals(new URI("/broken.xq"), result.getFailures().get(0).getDeclaration().getXQueryLocation());
+        assertTrue(result.getFailures().get(0).getException().getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void compile_skips_functions_without_restxq_annotations() throws URISyntaxException {
+        final FunctionSignature functionSignature = functionSignature(new QName("http://local", "resource"));
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(annotation(new QName("http://other", "other"), new Literal[0], functionSignature));
+
+        final List<FunctionDeclaration> declarations = new ArrayList<FunctionDeclaration>();
+        declarations.add(new FunctionDeclaration(new URI("/other.xq"), annotations));
+
+        final Result result = new ResourceFunctionCompiler().compile(declarations);
+
+        assertTrue(result.getResourceFunctions().isEmpty());
+        assertFalse(result.hasFailures());
+    }
+
+    private FunctionDeclaration declaration(final String xqueryLocation, final String path) throws URISyntaxException {
+        final FunctionSignature functionSignature = functionSignature(new QName("http://local", "resource"));
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "GET"), new Literal[0], functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "path"), new Literal[]{ new StringLiteral(path) }, functionSignature));
+        return new FunctionDeclaration(new URI(xqueryLocation), annotations);
+    }
+}
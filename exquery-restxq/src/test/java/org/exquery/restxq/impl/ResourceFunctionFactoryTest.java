@@ -34,10 +34,14 @@ import javax.xml.namespace.QName;
 import org.exquery.ExQueryException;
 import org.exquery.restxq.Namespace;
 import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqErrorCodes;
 import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.annotation.RestAnnotationException;
+import org.exquery.restxq.impl.annotation.DeadlineAnnotation;
 import org.exquery.xquery3.Annotation;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -87,4 +91,23 @@ public class ResourceFunctionFactoryTest {
         assertNotNull(resourceFunction);
         assertEquals(mckPathAnnotation, resourceFunction.getPathAnnotation());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void create_fails_for_repeated_deadline() throws URISyntaxException, ExQueryException {
+        final QName qnDeadlineAnnotation = new QName(Namespace.ANNOTATION_NS, "deadline");
+        
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        for(int i = 0; i < 2; i++) {
+            final DeadlineAnnotation mckDeadlineAnnotation = mock(DeadlineAnnotation.class);
+            when(mckDeadlineAnnotation.getName()).thenReturn(qnDeadlineAnnotation);
+            annotations.add(mckDeadlineAnnotation);
+        }
+        
+        try {
+            ResourceFunctionFactory.create(new URI("/some.xquery"), annotations);
+            fail("Expected the repeated annotation to be rejected");
+        } catch(final RestAnnotationException rae) {
+            assertEquals(RestXqErrorCodes.RQST0059, rae.getErrorCode());
+        }
+    }
+}
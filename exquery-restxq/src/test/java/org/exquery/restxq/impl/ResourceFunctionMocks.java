@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.net.URI;
+import java.util.Collections;
+import javax.xml.namespace.QName;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.annotation.HttpMethodAnnotation;
+import org.exquery.restxq.impl.annotation.PathAnnotationImpl;
+import org.exquery.xquery.Cardinality;
+import org.exquery.xquery.FunctionArgument;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.Type;
+import org.exquery.xquery3.Annotation;
+import org.exquery.xquery3.FunctionSignature;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Mocks of Resource Functions and their parts, shared by the tests
+ *
+ * @author Adam Retter
+ */
+final class ResourceFunctionMocks {
+    
+    private ResourceFunctionMocks() {
+    }
+    
+    /**
+     * Mocks a Resource Function which matches exactly one path and method
+     * 
+     * @param method The HTTP Method of the Resource Function
+     * @param path The path matched by the Resource Function
+     * 
+     * @return The mocked Resource Function
+     */
+    static ResourceFunction resourceFunction(final HttpMethod method, final String path) {
+        final PathAnnotationImpl pathAnnotation = mock(PathAnnotationImpl.class);
+        when(pathAnnotation.getGroupParamNames()).thenReturn(Collections.<Integer, String>emptyMap());
+        when(pathAnnotation.getLiteralPrefix()).thenReturn(path);
+        when(pathAnnotation.matchesPath(path)).thenReturn(true);
+        
+        final HttpMethodAnnotation methodAnnotation = mock(HttpMethodAnnotation.class);
+        when(methodAnnotation.getHttpMethod()).thenReturn(method);
+        
+        final FunctionSignature functionSignature = functionSignature(new QName("http://somewhere", method.name().toLowerCase()));
+        
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        when(resourceFunction.getXQueryLocation()).thenReturn(URI.create("/some.xquery"));
+        when(resourceFunction.getFunctionSignature()).thenReturn(functionSignature);
+        when(resourceFunction.getPathAnnotation()).thenReturn(pathAnnotation);
+        when(resourceFunction.getHttpMethodAnnotations()).thenReturn(Collections.singleton(methodAnnotation));
+        return resourceFunction;
+    }
+    
+    /**
+     * Mocks a Function Signature
+     * 
+     * @param name The name of the function
+     * @param arguments The arguments of the function
+     * 
+     * @return The mocked Function Signature
+     */
+    static FunctionSignature functionSignature(final QName name, final FunctionArgument... arguments) {
+        final FunctionSignature functionSignature = mock(FunctionSignature.class);
+        when(functionSignature.getName()).thenReturn(name);
+        when(functionSignature.getArguments()).thenReturn(arguments);
+        when(functionSignature.getArgumentCount()).thenReturn(arguments.length);
+        return functionSignature;
+    }
+    
+    /**
+     * Mocks a Function Argument of type xs:string with a cardinality of one
+     * 
+     * @param name The name of the argument
+     * 
+     * @return The mocked Function Argument
+     */
+    static FunctionArgument functionArgument(final String name) {
+        final FunctionArgument argument = mock(FunctionArgument.class);
+        when(argument.getName()).thenReturn(name);
+        when(argument.getType()).thenReturn(Type.STRING);
+        when(argument.getCardinality()).thenReturn(Cardinality.ONE);
+        return argument;
+    }
+    
+    /**
+     * Mocks an Annotation on a function
+     * 
+     * @param name The name of the annotation
+     * @param literals The literals of the annotation
+     * @param functionSignature The signature of the annotated function
+     * 
+     * @return The mocked Annotation
+     */
+    static Annotation annotation(final QName name, final Literal[] literals, final FunctionSignature functionSignature) {
+        final Annotation annotation = mock(Annotation.class);
+        when(annotation.getName()).thenReturn(name);
+        when(annotation.getLiterals()).thenReturn(literals);
+        when(annotation.getFunctionSignature()).thenReturn(functionSignature);
+        return annotation;
+    }
+    
+    /**
+     * A RESTXQ Service which cannot extract a request body
+     */
+    static class RestXqServiceMock extends AbstractRestXqService {
+
+        public RestXqServiceMock(final ResourceFunction resourceFunction) {
+            super(resourceFunction);
+        }
+        
+        @Override
+        protected Sequence extractRequestBody(final HttpRequest request) throws RestXqServiceException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+    }
+}
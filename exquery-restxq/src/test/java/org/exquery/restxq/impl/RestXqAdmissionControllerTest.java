@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.annotation.PriorityAnnotation;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for adaptive admission of requests
+ *
+ * @author Adam Retter
+ */
+public class RestXqAdmissionControllerTest {
+    
+    private final static ResourceFunction SHARED_RESOURCE_FUNCTION = mock(ResourceFunction.class);
+    
+    @Test
+    public void admits_when_latency_below_target() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController controller = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        
+        for(int i = 0; i < 10; i++) {
+            final RestXqAdmissionController.Admission admission = controller.admit(resourceFunction);
+            assertNotNull(admission);
+            ticker.advance(5);
+            admission.finished();
+        }
+        
+        assertFalse(controller.isOverloaded(resourceFunction));
+        assertEquals(PriorityAnnotation.MIN_PRIORITY, controller.getSheddingPriority());
+    }
+    
+    @Test
+    public void overloaded_when_latency_above_target_for_interval() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController controller = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        
+        final RestXqAdmissionController.Admission first = controller.admit(resourceFunction);
+        final RestXqAdmissionController.Admission second = controller.admit(resourceFunction);
+        final RestXqAdmissionController.Admission third = controller.admit(resourceFunction);
+        
+        ticker.advance(50);
+        first.finished();
+        assertFalse(controller.isOverloaded(resourceFunction));
+        
+        ticker.advance(150);
+        second.finished();
+        assertTrue(controller.isOverloaded(resourceFunction));
+        assertEquals(PriorityAnnotation.MIN_PRIORITY + 1, controller.getSheddingPriority());
+        
+        //rejected until the in-flight requests have drained
+        assertNull(controller.admit(resourceFunction));
+        third.finished();
+        
+        final RestXqAdmissionController.Admission drained = controller.admit(resourceFunction);
+        assertNotNull(drained);
+        ticker.advance(5);
+        drained.finished();
+        assertFalse(controller.isOverloaded(resourceFunction));
+    }
+    
+    @Test
+    public void abandoned_request_keeps_overload() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController controller = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        overload(controller, ticker, resourceFunction);
+        assertTrue(controller.isOverloaded(resourceFunction));
+        
+        //a request rejected after admission, e.g. by a bulkhead, records no latency
+        final RestXqAdmissionController.Admission abandoned = controller.admit(resourceFunction);
+        assertNotNull(abandoned);
+        abandoned.abandon();
+        assertTrue(controller.isOverloaded(resourceFunction));
+        
+        //and does not hold its place in the flow
+        assertNotNull(controller.admit(resourceFunction));
+    }
+    
+    @Test
+    public void sheds_under_default_executor() throws RestXqServiceException, InterruptedException {
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 1);
+        final RestXqAdmissionController controller = new RestXqAdmissionController(10, 50, TimeUnit.MILLISECONDS);
+        dispatcher.setAdmissionController(controller);
+        
+        //the executor does not queue, and so overload shows as slow requests
+        final CountDownLatch release = new CountDownLatch(1);
+        final RestXqService fast = slowService(60, null);
+        final RestXqService slow = slowService(150, null);
+        final RestXqService stuck = slowService(0, release);
+        try {
+            final BlockingRestXqCompletion<Void> fastCompletion = new BlockingRestXqCompletion<Void>();
+            final BlockingRestXqCompletion<Void> slowCompletion = new BlockingRestXqCompletion<Void>();
+            assertTrue(dispatch(dispatcher, fast, mock(HttpResponse.class), fastCompletion));
+            assertTrue(dispatch(dispatcher, slow, mock(HttpResponse.class), slowCompletion));
+            assertTrue(dispatch(dispatcher, stuck, mock(HttpResponse.class), new BlockingRestXqCompletion<Void>()));
+            fastCompletion.get();
+            slowCompletion.get();
+            
+            assertTrue(controller.isOverloaded(stuck.getResourceFunction()));
+            final HttpResponse rejectedResponse = mock(HttpResponse.class);
+            assertFalse(dispatch(dispatcher, stuck, rejectedResponse, new BlockingRestXqCompletion<Void>()));
+            verify(rejectedResponse).setStatus(HttpStatus.Service_Unavailable);
+        } finally {
+            release.countDown();
+            dispatcher.shutdown();
+        }
+    }
+    
+    @Test
+    public void sheds_low_priority_first() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController controller = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        final ResourceFunction busy = mock(ResourceFunction.class);
+        final ResourceFunction low = mock(ResourceFunction.class);
+        controller.setPriority(low, PriorityAnnotation.MIN_PRIORITY);
+        final ResourceFunction normal = mock(ResourceFunction.class);
+        
+        overload(controller, ticker, busy);
+        
+        assertNull(controller.admit(low));
+        assertNotNull(controller.admit(normal));
+        
+        //recovers once no request has waited too long for an interval
+        ticker.advance(100);
+        assertEquals(PriorityAnnotation.MIN_PRIORITY, controller.getSheddingPriority());
+        assertNotNull(controller.admit(low));
+    }
+    
+    @Test
+    public void priority_from_annotation() {
+        final PriorityAnnotation priorityAnnotation = mock(PriorityAnnotation.class);
+        when(priorityAnnotation.getPriority()).thenReturn(8);
+        final ResourceFunctionImpl resourceFunction = mock(ResourceFunctionImpl.class);
+        when(resourceFunction.getPriorityAnnotation()).thenReturn(priorityAnnotation);
+        
+        final RestXqAdmissionController controller = new RestXqAdmissionController(10, 100, TimeUnit.MILLISECONDS);
+        assertEquals(8, controller.getPriority(resourceFunction));
+        assertEquals(PriorityAnnotation.DEFAULT_PRIORITY, controller.getPriority(mock(ResourceFunction.class)));
+        
+        controller.setPriority(resourceFunction, 1);
+        assertEquals(1, controller.getPriority(resourceFunction));
+    }
+    
+    @Test
+    public void deregistered_discards_state() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController controller = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        overload(controller, ticker, resourceFunction);
+        assertTrue(controller.isOverloaded(resourceFunction));
+        
+        final RestXqService service = mock(RestXqService.class);
+        when(service.getResourceFunction()).thenReturn(resourceFunction);
+        controller.deregistered(service);
+        assertFalse(controller.isOverloaded(resourceFunction));
+    }
+    
+    private void overload(final RestXqAdmissionController controller, final TickerMock ticker, final ResourceFunction resourceFunction) {
+        final RestXqAdmissionController.Admission first = controller.admit(resourceFunction);
+        final RestXqAdmissionController.Admission second = controller.admit(resourceFunction);
+        ticker.advance(50);
+        first.finished();
+        ticker.advance(100);
+        second.finished();
+    }
+    
+    private boolean dispatch(final RestXqServiceDispatcher dispatcher, final RestXqService service, final HttpResponse response, final BlockingRestXqCompletion<Void> completion) {
+        return dispatcher.dispatch(service, mock(HttpRequest.class), response, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), completion);
+    }
+    
+    /**
+     * Creates a Service of a shared Resource Function, which takes
+     * the given time to service a request, or until it is released
+     */
+    private RestXqService slowService(final long millis, final CountDownLatch release) throws RestXqServiceException {
+        final RestXqService service = mock(RestXqService.class);
+        when(service.getResourceFunction()).thenReturn(SHARED_RESOURCE_FUNCTION);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws InterruptedException {
+                if(release != null) {
+                    release.await();
+                } else {
+                    Thread.sleep(millis);
+                }
+                return null;
+            }
+        }).when(service).service(any(HttpRequest.class), any(HttpResponse.class), any(ResourceFunctionExecuter.class), any(RestXqServiceSerializer.class));
+        return service;
+    }
+}
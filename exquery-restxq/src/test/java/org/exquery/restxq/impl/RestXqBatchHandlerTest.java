@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.ResourceFunctionMocks.RestXqServiceMock;
+import org.exquery.serialization.annotation.SerializationAnnotation;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.resourceFunction;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for batches of RESTXQ sub-requests
+ *
+ * @author Adam Retter
+ */
+public class RestXqBatchHandlerTest {
+    
+    private final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+    
+    @Test
+    public void parts_in_order() throws RestXqServiceException, IOException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final ResourceFunction resourceFunction = resourceFunction(HttpMethod.GET, "/a");
+        registry.register(new RestXqServiceMock(resourceFunction));
+        
+        final ResourceFunctionExecuter executer = mock(ResourceFunctionExecuter.class);
+        when(executer.execute(eq(resourceFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenReturn(mock(Sequence.class));
+        final RestXqServiceSerializer serializer = mock(RestXqServiceSerializer.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws IOException {
+                final HttpResponse response = invocation.getArgument(2);
+                response.setStatus(HttpStatus.OK);
+                response.setContentType("text/plain");
+                response.getOutputStream().write("hello".getBytes("UTF-8"));
+                return null;
+            }
+        }).when(serializer).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+        
+        final RestXqBatchHandler handler = new RestXqBatchHandler(registry, directDispatcher(), executer, serializer, DIRECT_EXECUTOR, 2, 10);
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest(
+            "<rest:request href='/a?x=1'><rest:header name='Accept' value='text/plain'/></rest:request>"
+            + "<rest:request method='GET' href='/missing'/>"
+            + "<rest:request method='POST' href='/a'/>"), response);
+        
+        assertEquals(HttpStatus.OK, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/mixed; boundary="));
+        
+        final String body = new String(response.getBody(), "ISO-8859-1");
+        final int idxOk = body.indexOf("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello\r\n");
+        final int idxNotFound = body.indexOf("HTTP/1.1 404 Not Found");
+        final int idxNotAllowed = body.indexOf("HTTP/1.1 405 Method Not Allowed\r\nAllow: GET, HEAD");
+        assertTrue(idxOk > -1);
+        assertTrue(idxNotFound > idxOk);
+        assertTrue(idxNotAllowed > idxNotFound);
+        assertTrue(body.endsWith("--\r\n"));
+    }
+    
+    @Test
+    public void bad_envelope() throws RestXqServiceException, IOException {
+        final RestXqBatchHandler handler = new RestXqBatchHandler(new RestXqServiceRegistryImpl(), directDispatcher(), mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), DIRECT_EXECUTOR, 1, 10);
+        
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest("<rest:other/>"), response);
+        assertEquals(HttpStatus.Bad_Request, response.getStatus());
+    }
+    
+    @Test
+    public void too_many_requests() throws RestXqServiceException, IOException {
+        final RestXqBatchHandler handler = new RestXqBatchHandler(new RestXqServiceRegistryImpl(), directDispatcher(), mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), DIRECT_EXECUTOR, 1, 1);
+        
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest("<rest:request href='/a'/><rest:request href='/b'/>"), response);
+        assertEquals(HttpStatus.Request_Entity_Too_Large, response.getStatus());
+    }
+    
+    @Test
+    public void rejected_sub_request() throws RestXqServiceException, IOException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(new RestXqServiceMock(resourceFunction(HttpMethod.GET, "/a")));
+        
+        //sub-requests are subject to the limits of the dispatcher
+        final RestXqServiceDispatcher dispatcher = directDispatcher();
+        dispatcher.setReadiness(new RestXqReadiness());
+        
+        final RestXqBatchHandler handler = new RestXqBatchHandler(registry, dispatcher, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), DIRECT_EXECUTOR, 1, 10);
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest("<rest:request href='/a'/>"), response);
+        
+        final String body = new String(response.getBody(), "ISO-8859-1");
+        assertTrue(body.contains("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"));
+    }
+    
+    @Test
+    public void rate_limited_sub_request() throws RestXqServiceException, IOException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final ResourceFunction resourceFunction = resourceFunction(HttpMethod.GET, "/a");
+        registry.register(new RestXqServiceMock(resourceFunction));
+        
+        //a batch can not make more requests than its client is permitted
+        final RestXqServiceDispatcher dispatcher = directDispatcher();
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter();
+        rateLimiter.setRateLimit(resourceFunction, 1, 10, TimeUnit.SECONDS);
+        dispatcher.setRateLimiter(rateLimiter);
+        
+        final ResourceFunctionExecuter executer = mock(ResourceFunctionExecuter.class);
+        when(executer.execute(eq(resourceFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenReturn(mock(Sequence.class));
+        
+        final RestXqBatchHandler handler = new RestXqBatchHandler(registry, dispatcher, executer, mock(RestXqServiceSerializer.class), DIRECT_EXECUTOR, 1, 10);
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest("<rest:request href='/a'/><rest:request href='/a'/>"), response);
+        
+        final String body = new String(response.getBody(), "ISO-8859-1");
+        final int idxOk = body.indexOf("HTTP/1.1 200 OK");
+        assertTrue(idxOk > -1);
+        assertTrue(body.indexOf("HTTP/1.1 429 Too Many Requests\r\nRetry-After: ") > idxOk);
+    }
+    
+    @Test
+    public void error_in_sub_request() throws RestXqServiceException, IOException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final ResourceFunction failing = resourceFunction(HttpMethod.GET, "/a");
+        registry.register(new RestXqServiceMock(failing));
+        final ResourceFunction working = resourceFunction(HttpMethod.HEAD, "/b");
+        registry.register(new RestXqServiceMock(working));
+        
+        final ResourceFunctionExecuter executer = mock(ResourceFunctionExecuter.class);
+        when(executer.execute(eq(failing), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenThrow(new StackOverflowError("too deep"));
+        when(executer.execute(eq(working), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenReturn(mock(Sequence.class));
+        
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            final RestXqBatchHandler handler = new RestXqBatchHandler(registry, new RestXqServiceDispatcher(executorService, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 1), executer, mock(RestXqServiceSerializer.class), executorService, 1, 10);
+            handler.setTimeout(10, TimeUnit.SECONDS);
+            final BufferedHttpResponse response = new BufferedHttpResponse();
+            handler.service(batchRequest("<rest:request href='/a'/><rest:request method='HEAD' href='/b'/>"), response);
+            
+            //the failed part does not prevent the parts after it
+            final String body = new String(response.getBody(), "ISO-8859-1");
+            final int idxError = body.indexOf("HTTP/1.1 500 too deep");
+            assertTrue(idxError > -1);
+            assertTrue(body.indexOf("HTTP/1.1 200 OK") > idxError);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void timed_out_sub_request() throws RestXqServiceException, IOException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(new RestXqServiceMock(resourceFunction(HttpMethod.GET, "/a")));
+        
+        //the sub-request is never serviced
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+            }
+        }, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 1);
+        
+        final RestXqBatchHandler handler = new RestXqBatchHandler(registry, dispatcher, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), DIRECT_EXECUTOR, 1, 10);
+        handler.setTimeout(50, TimeUnit.MILLISECONDS);
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        handler.service(batchRequest("<rest:request href='/a'/>"), response);
+        
+        final String body = new String(response.getBody(), "ISO-8859-1");
+        assertTrue(body.contains("HTTP/1.1 504 Batch request timed out"));
+    }
+    
+    private static RestXqServiceDispatcher directDispatcher() {
+        return new RestXqServiceDispatcher(DIRECT_EXECUTOR, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 1);
+    }
+    
+    private HttpRequest batchRequest(final String requests) throws IOException {
+        final String envelope = "<rest:batch xmlns:rest='http://exquery.org/ns/restxq'>" + requests + "</rest:batch>";
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn(HttpMethod.POST);
+        when(request.getInputStream()).thenReturn(new ByteArrayInputStream(envelope.getBytes("UTF-8")));
+        return request;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.Namespace;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.impl.ResourceFunctionCompiler.FunctionDeclaration;
+import org.exquery.restxq.impl.ResourceFunctionMocks.RestXqServiceMock;
+import org.exquery.restxq.impl.RestXqServiceSelection.Outcome;
+import org.exquery.restxq.impl.annotation.StringLiteral;
+import org.exquery.xquery.FunctionArgument;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery3.Annotation;
+import org.exquery.xquery3.FunctionSignature;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.annotation;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionArgument;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionSignature;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for RestXqFrozenRouteTable
+ *
+ * @author Adam Retter
+ */
+public class RestXqFrozenRouteTableTest {
+
+    @Test
+    public void select_agrees_with_servicesMap() throws Exception {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final RestXqService person = service("person", "/person/{$id}", HttpMethod.GET, "id");
+        final RestXqService elisabeth = service("elisabeth", "/person/elisabeth", HttpMethod.GET);
+        final RestXqService part = service("part", "/person/{$id}/{$part}", HttpMethod.GET, "id", "part");
+        final RestXqService nose = service("nose", "/person/{$id=[0-9]+}/nose", HttpMethod.GET, "id");
+        final RestXqService prefixed = service("prefixed", "/p{$id}", HttpMethod.GET, "id");
+        registry.register(person);
+        registry.register(elisabeth);
+        registry.register(part);
+        registry.register(nose);
+        registry.register(prefixed);
+
+        final RestXqFrozenRouteTable table = registry.freezeRoutes();
+        assertEquals(registry.getGeneration(), table.getGeneration());
+        registry.unfreezeRoutes();
+
+        assertSelected(registry, table, elisabeth, HttpMethod.GET, "/person/elisabeth");
+        assertSelected(registry, table, person, HttpMethod.GET, "/person/adam");
+        assertSelected(registry, table, nose, HttpMethod.GET, "/person/1981/nose");
+        assertSelected(registry, table, part, HttpMethod.GET, "/person/adam/nose");
+        assertSelected(registry, table, prefixed, HttpMethod.GET, "/padam");
+        assertSelected(registry, table, null, HttpMethod.GET, "/person/");
+        assertSelected(registry, table, null, HttpMethod.GET, "/other/adam/nose/1");
+        assertSelected(registry, table, null, HttpMethod.POST, "/person/adam");
+
+        assertEquals("adam", table.select(request(HttpMethod.GET, "/person/adam/nose")).getResolution().getPathParameters().get("id"));
+        assertEquals("nose", table.select(request(HttpMethod.GET, "/person/adam/nose")).getResolution().getPathParameters().get("part"));
+        assertEquals("1981", table.select(request(HttpMethod.GET, "/person/1981/nose")).getResolution().getPathParameters().get("id"));
+        assertEquals(Outcome.METHOD_NOT_ALLOWED, table.select(request(HttpMethod.POST, "/person/adam")).getOutcome());
+    }
+
+    @Test
+    public void registry_ignores_stale_table() throws Exception {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("person", "/person/{$id}", HttpMethod.GET, "id"));
+        registry.freezeRoutes();
+
+        final RestXqService elisabeth = service("elisabeth", "/person/elisabeth", HttpMethod.GET);
+        registry.register(elisabeth);
+
+        assertSame(elisabeth, registry.selectService(request(HttpMethod.GET, "/person/elisabeth")).getResolution().getService());
+    }
+
+    private void assertSelected(final RestXqServiceRegistryImpl registry, final RestXqFrozenRouteTable table, final RestXqService expected, final HttpMethod method, final String path) {
+        final RestXqServiceSelection interpreted = registry.selectService(request(method, path));
+        final RestXqServiceSelection frozen = table.select(request(method, path));
+
+        assertEquals(interpreted.getOutcome(), frozen.getOutcome());
+        assertEquals(interpreted.getAllowedMethods(), frozen.getAllowedMethods());
+        if(expected != null) {
+            assertSame(expected, frozen.getResolution().getService());
+            assertEquals(interpreted.getResolution().getPathParameters(), frozen.getResolution().getPathParameters());
+        }
+    }
+
+    private HttpRequest request(final HttpMethod method, final String path) {
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getPath()).thenReturn(path);
+        return request;
+    }
+
+    private RestXqService service(final String name, final String path, final HttpMethod method, final String... argumentNames) throws Exception {
+        final FunctionArgument[] arguments = new FunctionArgument[argumentNames.length];
+        for(int i = 0; i < arguments.length; i++) {
+            arguments[i] = functionArgument(argumentNames[i]);
+        }
+
+        final FunctionSignature functionSignature = functionSignature(new QName("http://person", name, "p"), arguments);
+
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, method.name()), new Literal[0], functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "path"), new Literal[]{ new StringLiteral(path) }, functionSignature));
+
+        return new RestXqServiceMock(ResourceFunctionCompiler.compile(new FunctionDeclaration(new URI("/person.xq"), annotations)));
+    }
+}
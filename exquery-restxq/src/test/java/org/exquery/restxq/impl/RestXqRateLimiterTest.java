@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.ResourceFunction;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for limiting the rate of requests to Resource Functions
+ *
+ * @author Adam Retter
+ */
+public class RestXqRateLimiterTest {
+    
+    @Test
+    public void permits_up_to_limit_then_refills() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(ticker, null);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        rateLimiter.setRateLimit(resourceFunction, 3, 3, TimeUnit.SECONDS);
+        final HttpRequest request = request("10.0.0.1", null);
+        
+        for(int i = 0; i < 3; i++) {
+            assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request));
+        }
+        assertEquals(TimeUnit.SECONDS.toNanos(1), rateLimiter.tryAcquire(resourceFunction, request));
+        
+        //one token is refilled each second
+        ticker.advance(1000);
+        assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), rateLimiter.tryAcquire(resourceFunction, request));
+    }
+    
+    @Test
+    public void clients_have_own_buckets() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(ticker, "X-API-Key");
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        rateLimiter.setRateLimit(resourceFunction, 1, 1, TimeUnit.MINUTES);
+        
+        assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request("10.0.0.1", null)));
+        assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request("10.0.0.2", null)));
+        
+        //the key header takes precedence over the remote address
+        assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request("10.0.0.1", "key1")));
+        assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request("10.0.0.2", "key2")));
+        assertEquals(TimeUnit.MINUTES.toNanos(1), rateLimiter.tryAcquire(resourceFunction, request("10.0.0.3", "key1")));
+        
+        assertEquals(4, rateLimiter.getBucketCount(resourceFunction));
+    }
+    
+    @Test
+    public void evicts_refilled_buckets() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(ticker, null);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        rateLimiter.setRateLimit(resourceFunction, 10, 1, TimeUnit.SECONDS);
+        
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.0.1", null));
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.0.2", null));
+        assertEquals(2, rateLimiter.getBucketCount(resourceFunction));
+        
+        ticker.advance(1000);
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.0.3", null));
+        assertEquals(1, rateLimiter.getBucketCount(resourceFunction));
+    }
+    
+    @Test
+    public void eviction_is_shared_between_requests() {
+        final TickerMock ticker = new TickerMock();
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(ticker, null);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        rateLimiter.setRateLimit(resourceFunction, 10, 1, TimeUnit.SECONDS);
+        
+        final int clients = RestXqRateLimiter.EVICTION_BATCH * 2;
+        for(int i = 0; i < clients; i++) {
+            rateLimiter.tryAcquire(resourceFunction, request("10.0.0." + i, null));
+        }
+        
+        //each request only examines a batch of the buckets
+        ticker.advance(1000);
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.1.1", null));
+        assertEquals(clients - RestXqRateLimiter.EVICTION_BATCH + 1, rateLimiter.getBucketCount(resourceFunction));
+        
+        //the sweep may also find the bucket added since it started
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.1.1", null));
+        rateLimiter.tryAcquire(resourceFunction, request("10.0.1.1", null));
+        assertEquals(1, rateLimiter.getBucketCount(resourceFunction));
+    }
+    
+    @Test
+    public void unlimited_without_rate_limit() {
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(new TickerMock(), null);
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        
+        for(int i = 0; i < 100; i++) {
+            assertEquals(RestXqRateLimiter.PERMITTED, rateLimiter.tryAcquire(resourceFunction, request("10.0.0.1", null)));
+        }
+        assertEquals(0, rateLimiter.getBucketCount(resourceFunction));
+    }
+    
+    private HttpRequest request(final String remoteAddress, final String apiKey) {
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getRemoteAddress()).thenReturn(remoteAddress);
+        when(request.getHeader("X-API-Key")).thenReturn(apiKey);
+        return request;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCompletion;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.ResourceFunctionMocks.RestXqServiceMock;
+import org.exquery.serialization.annotation.SerializationAnnotation;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for coalescing identical concurrent requests
+ *
+ * @author Adam Retter
+ */
+public class RestXqRequestCoalescerTest {
+    
+    private final static byte[] BODY = "<result/>".getBytes();
+    
+    @Test
+    public void identical_requests_share_one_execution() throws RestXqServiceException, IOException {
+        final RestXqRequestCoalescer coalescer = new RestXqRequestCoalescer();
+        final RestXqServiceResolution resolution = new RestXqServiceResolution(new RestXqServiceMock(mock(ResourceFunction.class)), Collections.<String, String>emptyMap());
+        coalescer.setCoalesced(resolution.getService().getResourceFunction(), true);
+        final DeferredExecuter executer = new DeferredExecuter();
+        final RestXqServiceSerializer serializer = writingSerializer();
+        
+        final ResponseMock firstResponse = new ResponseMock();
+        final BlockingRestXqCompletion<Void> firstCompletion = new BlockingRestXqCompletion<Void>();
+        coalescer.serviceAsync(resolution, getRequest(), firstResponse, executer, serializer, firstCompletion);
+        
+        final ResponseMock secondResponse = new ResponseMock();
+        final BlockingRestXqCompletion<Void> secondCompletion = new BlockingRestXqCompletion<Void>();
+        coalescer.serviceAsync(resolution, getRequest(), secondResponse, executer, serializer, secondCompletion);
+        
+        assertEquals(1, executer.completions.size());
+        executer.completions.get(0).completed(mock(Sequence.class));
+        
+        firstCompletion.get();
+        secondCompletion.get();
+        assertArrayEquals(BODY, firstResponse.getBody());
+        assertArrayEquals(BODY, secondResponse.getBody());
+        assertEquals(HttpStatus.Created, secondResponse.getStatus());
+        
+        //once complete, a further request is executed again
+        coalescer.serviceAsync(resolution, getRequest(), new ResponseMock(), executer, serializer, new BlockingRestXqCompletion<Void>());
+        assertEquals(2, executer.completions.size());
+    }
+    
+    @Test
+    public void identical_requests_share_failure() throws RestXqServiceException {
+        final RestXqRequestCoalescer coalescer = new RestXqRequestCoalescer();
+        final RestXqServiceResolution resolution = new RestXqServiceResolution(new RestXqServiceMock(mock(ResourceFunction.class)), Collections.<String, String>emptyMap());
+        coalescer.setCoalesced(resolution.getService().getResourceFunction(), true);
+        final DeferredExecuter executer = new DeferredExecuter();
+        
+        final BlockingRestXqCompletion<Void> firstCompletion = new BlockingRestXqCompletion<Void>();
+        coalescer.serviceAsync(resolution, getRequest(), new ResponseMock(), executer, writingSerializer(), firstCompletion);
+        final BlockingRestXqCompletion<Void> secondCompletion = new BlockingRestXqCompletion<Void>();
+        coalescer.serviceAsync(resolution, getRequest(), new ResponseMock(), executer, writingSerializer(), secondCompletion);
+        
+        final RestXqServiceException failure = new RestXqServiceException("failed");
+        executer.completions.get(0).failed(failure);
+        
+        try {
+            secondCompletion.get();
+            fail("Expected the execution failure");
+        } catch(final RestXqServiceException rqse) {
+            assertSame(failure, rqse);
+        }
+    }
+    
+    @Test
+    public void identical_requests_released_on_error() throws RestXqServiceException, InterruptedException {
+        final RestXqRequestCoalescer coalescer = new RestXqRequestCoalescer();
+        final RestXqServiceResolution resolution = new RestXqServiceResolution(new RestXqServiceMock(mock(ResourceFunction.class)), Collections.<String, String>emptyMap());
+        coalescer.setCoalesced(resolution.getService().getResourceFunction(), true);
+        
+        final AtomicReference<Throwable> waiterFailure = new AtomicReference<Throwable>();
+        final Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    coalescer.service(resolution, getRequest(), new ResponseMock(), mock(ResourceFunctionExecuter.class), writingSerializer());
+                } catch(final Throwable t) {
+                    waiterFailure.set(t);
+                }
+            }
+        });
+        
+        //the first request fails with an Error, once an identical request waits for it
+        final ResourceFunctionExecuter executer = mock(ResourceFunctionExecuter.class);
+        when(executer.execute(any(ResourceFunction.class), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenAnswer(new Answer<Sequence>() {
+            @Override
+            public Sequence answer(final InvocationOnMock invocation) throws InterruptedException {
+                waiter.start();
+                while(waiter.getState() != Thread.State.WAITING) {
+                    Thread.sleep(1);
+                }
+                throw new StackOverflowError();
+            }
+        });
+        
+        try {
+            coalescer.service(resolution, getRequest(), new ResponseMock(), executer, writingSerializer());
+            fail("Expected the Error");
+        } catch(final StackOverflowError soe) {
+            waiter.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(waiter.isAlive());
+            assertTrue(waiterFailure.get() instanceof RestXqServiceException);
+        }
+    }
+    
+    @Test
+    public void requests_not_coalesced_unless_opted_in() throws RestXqServiceException {
+        final RestXqRequestCoalescer coalescer = new RestXqRequestCoalescer();
+        final RestXqServiceResolution resolution = new RestXqServiceResolution(new RestXqServiceMock(mock(ResourceFunction.class)), Collections.<String, String>emptyMap());
+        final DeferredExecuter executer = new DeferredExecuter();
+        
+        coalescer.serviceAsync(resolution, getRequest(), new ResponseMock(), executer, writingSerializer(), new BlockingRestXqCompletion<Void>());
+        coalescer.serviceAsync(resolution, getRequest(), new ResponseMock(), executer, writingSerializer(), new BlockingRestXqCompletion<Void>());
+        
+        assertEquals(2, executer.completions.size());
+        assertFalse(coalescer.isCoalesced(resolution.getService().getResourceFunction()));
+    }
+    
+    @Test
+    public void deregistered_discards_setting() {
+        final RestXqRequestCoalescer coalescer = new RestXqRequestCoalescer();
+        final RestXqServiceMock service = new RestXqServiceMock(mock(ResourceFunction.class));
+        coalescer.setCoalesced(service.getResourceFunction(), true);
+        assertTrue(coalescer.isCoalesced(service.getResourceFunction()));
+        
+        coalescer.deregistered(service);
+        assertFalse(coalescer.isCoalesced(service.getResourceFunction()));
+    }
+    
+    @Test
+    public void bufferedResponse_sends_headers_and_body() throws IOException {
+        final BufferedHttpResponse bufferedResponse = new BufferedHttpResponse();
+        bufferedResponse.setHeader("X-Test", "1");
+        bufferedResponse.setHeader("x-test", "2");
+        bufferedResponse.setContentType("application/xml");
+        bufferedResponse.getOutputStream().write(BODY);
+        assertTrue(bufferedResponse.containsHeader("X-TEST"));
+        
+        final HttpResponse response = mock(HttpResponse.class);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(os);
+        bufferedResponse.sendTo(response);
+        
+        verify(response).setHeader("X-Test", "2");
+        verify(response).setContentType("application/xml");
+        assertArrayEquals(BODY, os.toByteArray());
+    }
+    
+    private HttpRequest getRequest() {
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn(HttpMethod.GET);
+        return request;
+    }
+    
+    private RestXqServiceSerializer writingSerializer() throws RestXqServiceException {
+        final RestXqServiceSerializer serializer = mock(RestXqServiceSerializer.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final HttpResponse response = invocation.getArgument(2);
+                response.setStatus(HttpStatus.Created);
+                response.getOutputStream().write(BODY);
+                return null;
+            }
+        }).when(serializer).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<Set<SerializationAnnotation>>any(), any(HttpResponse.class));
+        return serializer;
+    }
+    
+    private static class ResponseMock extends BufferedHttpResponse {
+    }
+    
+    private static class DeferredExecuter implements AsyncResourceFunctionExecuter {
+        private final List<RestXqCompletion<Sequence>> completions = new ArrayList<RestXqCompletion<Sequence>>();
+        
+        @Override
+        public void execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCompletion<Sequence> completion) {
+            completions.add(completion);
+        }
+    }
+}
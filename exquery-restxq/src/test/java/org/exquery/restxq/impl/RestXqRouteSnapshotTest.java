@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.exquery.ExQueryException;
+import org.exquery.http.HttpMethod;
+import org.exquery.restxq.Namespace;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.impl.ResourceFunctionCompiler.FunctionDeclaration;
+import org.exquery.restxq.impl.annotation.StringLiteral;
+import org.exquery.xquery.Literal;
+import org.exquery.xquery3.Annotation;
+import org.exquery.xquery3.FunctionSignature;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.annotation;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionArgument;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionSignature;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for RestXqRouteSnapshot
+ *
+ * @author Adam Retter
+ */
+public class RestXqRouteSnapshotTest {
+
+    private final static byte[] CONTENT = "module namespace p = 'http://person';".getBytes();
+
+    @Test
+    public void write_read_roundTrip() throws URISyntaxException, ExQueryException, IOException {
+        final URI xqueryLocation = new URI("/person.xq");
+        final ResourceFunction resourceFunction = ResourceFunctionCompiler.compile(declaration(xqueryLocation));
+
+        final RestXqRouteSnapshot snapshot = new RestXqRouteSnapshot();
+        snapshot.addModule(xqueryLocation, RestXqRouteSnapshot.contentHash(new ByteArrayInputStream(CONTENT)), Arrays.asList(resourceFunction));
+
+        final RestXqRouteSnapshot restored = RestXqRouteSnapshot.read(new ByteArrayInputStream(write(snapshot)));
+
+        assertTrue(restored.isCurrent(xqueryLocation, RestXqRouteSnapshot.contentHash(new ByteArrayInputStream(CONTENT))));
+        assertFalse(restored.isCurrent(xqueryLocation, RestXqRouteSnapshot.contentHash(new ByteArrayInputStream("changed".getBytes()))));
+        assertFalse(restored.isCurrent(new URI("/other.xq"), RestXqRouteSnapshot.contentHash(new ByteArrayInputStream(CONTENT))));
+
+        final ResourceFunction restoredFunction = restored.getModule(xqueryLocation).getResourceFunctions().get(0);
+        assertEquals(xqueryLocation, restoredFunction.getXQueryLocation());
+        assertEquals(resourceFunction.getFunctionSignature().getName(), restoredFunction.getFunctionSignature().getName());
+        assertEquals(1, restoredFunction.getFunctionSignature().getArgumentCount());
+        assertEquals(HttpMethod.GET, restoredFunction.getHttpMethodAnnotations().iterator().next().getHttpMethod());
+        assertEquals(1, restoredFunction.getProducesAnnotations().size());
+        assertEquals(resourceFunction.getPathAnnotation().getPathSpecificityMetric(), restoredFunction.getPathAnnotation().getPathSpecificityMetric());
+        assertTrue(restoredFunction.getPathAnnotation().matchesPath("/person/1981"));
+        assertFalse(restoredFunction.getPathAnnotation().matchesPath("/person/elisabeth"));
+        assertEquals("1981", restoredFunction.getPathAnnotation().extractPathParameters("/person/1981").get("id"));
+        assertEquals(5000, ((ResourceFunctionImpl)restoredFunction).getDeadlineAnnotation().getDeadline());
+        assertEquals(10, ((ResourceFunctionImpl)restoredFunction).getRateLimitAnnotation().getRequests());
+        assertEquals(60, ((ResourceFunctionImpl)restoredFunction).getRateLimitAnnotation().getPeriod());
+    }
+
+    @Test(expected=IOException.class)
+    public void read_unsupportedVersion() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(RestXqRouteSnapshot.MAGIC);
+        out.writeInt(RestXqRouteSnapshot.FORMAT_VERSION + 1);
+        out.flush();
+
+        RestXqRouteSnapshot.read(new ByteArrayInputStream(os.toByteArray()));
+    }
+
+    @Test(expected=IOException.class)
+    public void read_corruptNegativeCount() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(RestXqRouteSnapshot.MAGIC);
+        out.writeInt(RestXqRouteSnapshot.FORMAT_VERSION);
+        out.writeInt(1);
+        out.writeUTF("/module.xq");
+        out.writeInt(-1);   //content hash length
+        out.flush();
+
+        RestXqRouteSnapshot.read(new ByteArrayInputStream(os.toByteArray()));
+    }
+
+    @Test(expected=IOException.class)
+    public void read_corruptHugeCount() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(RestXqRouteSnapshot.MAGIC);
+        out.writeInt(RestXqRouteSnapshot.FORMAT_VERSION);
+        out.writeInt(1);
+        out.writeUTF("/module.xq");
+        out.writeInt(0);    //content hash length
+        out.writeInt(Integer.MAX_VALUE);    //Resource Function count
+        out.flush();
+
+        RestXqRouteSnapshot.read(new ByteArrayInputStream(os.toByteArray()));
+    }
+
+    @Test(expected=IOException.class)
+    public void read_notASnapshot() throws IOException {
+        RestXqRouteSnapshot.read(new ByteArrayInputStream(CONTENT));
+    }
+
+    private byte[] write(final RestXqRouteSnapshot snapshot) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        snapshot.write(os);
+        return os.toByteArray();
+    }
+
+    private FunctionDeclaration declaration(final URI xqueryLocation) {
+        final FunctionSignature functionSignature = functionSignature(new QName("http://person", "get-person", "p"), functionArgument("id"));
+
+        final Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "GET"), new Literal[0], functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "path"), new Literal[]{ new StringLiteral("/person/{$id=[0-9]+}") }, functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "produces"), new Literal[]{ new StringLiteral("application/xml") }, functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "deadline"), new Literal[]{ new StringLiteral("5000") }, functionSignature));
+        annotations.add(annotation(new QName(Namespace.ANNOTATION_NS, "rate-limit"), new Literal[]{ new StringLiteral("10"), new StringLiteral("60") }, functionSignature));
+        return new FunctionDeclaration(xqueryLocation, annotations);
+    }
+}
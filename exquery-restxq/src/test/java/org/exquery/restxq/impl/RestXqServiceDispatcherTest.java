@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.annotation.MaxConcurrencyAnnotation;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the bulkheads of the RESTXQ Service Dispatcher
+ *
+ * @author Adam Retter
+ */
+public class RestXqServiceDispatcherTest {
+    
+    @Test
+    public void rejects_when_resourceFunction_limit_reached() throws RestXqServiceException {
+        final DeferredExecutor executor = new DeferredExecutor();
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(executor, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 5);
+        final RestXqService service = mockService(mock(ResourceFunction.class));
+        dispatcher.setMaxConcurrency(service.getResourceFunction(), 1);
+        
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+        
+        final HttpResponse rejectedResponse = mock(HttpResponse.class);
+        final BlockingRestXqCompletion<Void> rejectedCompletion = new BlockingRestXqCompletion<Void>();
+        assertFalse(dispatcher.dispatch(service, mock(HttpRequest.class), rejectedResponse, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), rejectedCompletion));
+        rejectedCompletion.get();
+        verify(rejectedResponse).setStatus(HttpStatus.Service_Unavailable);
+        verify(rejectedResponse).setHeader("Retry-After", "5");
+        
+        //once the first request has been serviced, the next may be
+        executor.runAll();
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+    }
+    
+    @Test
+    public void resourceFunctions_are_isolated() throws RestXqServiceException {
+        final DeferredExecutor executor = new DeferredExecutor();
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(executor, RestXqServiceDispatcher.UNLIMITED, 1, 5);
+        final RestXqService slowService = mockService(mock(ResourceFunction.class));
+        final RestXqService otherService = mockService(mock(ResourceFunction.class));
+        
+        assertTrue(dispatch(dispatcher, slowService, mock(HttpResponse.class)));
+        assertFalse(dispatch(dispatcher, slowService, mock(HttpResponse.class)));
+        assertTrue(dispatch(dispatcher, otherService, mock(HttpResponse.class)));
+    }
+    
+    @Test
+    public void rejects_when_inFlight_limit_reached() throws RestXqServiceException {
+        final DeferredExecutor executor = new DeferredExecutor();
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(executor, 1, RestXqServiceDispatcher.UNLIMITED, 5);
+        
+        assertTrue(dispatch(dispatcher, mockService(mock(ResourceFunction.class)), mock(HttpResponse.class)));
+        assertFalse(dispatch(dispatcher, mockService(mock(ResourceFunction.class)), mock(HttpResponse.class)));
+    }
+    
+    @Test
+    public void limit_from_annotation() {
+        final MaxConcurrencyAnnotation maxConcurrencyAnnotation = mock(MaxConcurrencyAnnotation.class);
+        when(maxConcurrencyAnnotation.getMaxConcurrency()).thenReturn(3);
+        final ResourceFunctionImpl resourceFunction = mock(ResourceFunctionImpl.class);
+        when(resourceFunction.getMaxConcurrencyAnnotation()).thenReturn(maxConcurrencyAnnotation);
+        
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(new DeferredExecutor(), RestXqServiceDispatcher.UNLIMITED, 10, 5);
+        assertEquals(3, dispatcher.getMaxConcurrency(resourceFunction));
+        
+        dispatcher.setMaxConcurrency(resourceFunction, 2);
+        assertEquals(2, dispatcher.getMaxConcurrency(resourceFunction));
+    }
+    
+    @Test
+    public void services_request_on_executor() throws RestXqServiceException {
+        final DeferredExecutor executor = new DeferredExecutor();
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(executor, 1, 1, 5);
+        final RestXqService service = mockService(mock(ResourceFunction.class));
+        final HttpRequest request = mock(HttpRequest.class);
+        final HttpResponse response = mock(HttpResponse.class);
+        final ResourceFunctionExecuter resourceFunctionExecuter = mock(ResourceFunctionExecuter.class);
+        final RestXqServiceSerializer serializer = mock(RestXqServiceSerializer.class);
+        final BlockingRestXqCompletion<Void> completion = new BlockingRestXqCompletion<Void>();
+        
+        assertTrue(dispatcher.dispatch(service, request, response, resourceFunctionExecuter, serializer, completion));
+        verify(service, never()).service(request, response, resourceFunctionExecuter, serializer);
+        
+        executor.runAll();
+        completion.get();
+        verify(service).service(request, response, resourceFunctionExecuter, serializer);
+    }
+    
+    @Test
+    public void rejects_when_not_admitted() throws RestXqServiceException {
+        final DeferredExecutor executor = new DeferredExecutor();
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(executor, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 5);
+        final TickerMock ticker = new TickerMock();
+        final RestXqAdmissionController admissionController = new RestXqAdmissionController(ticker, 10, 100, TimeUnit.MILLISECONDS);
+        dispatcher.setAdmissionController(admissionController);
+        final RestXqService service = mockService(mock(ResourceFunction.class));
+        
+        //requests take longer than the target, for longer than the interval
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+        ticker.advance(50);
+        executor.runNext();
+        ticker.advance(100);
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+        executor.runNext();
+        assertTrue(admissionController.isOverloaded(service.getResourceFunction()));
+        
+        final HttpResponse rejectedResponse = mock(HttpResponse.class);
+        assertFalse(dispatch(dispatcher, service, rejectedResponse));
+        verify(rejectedResponse).setStatus(HttpStatus.Service_Unavailable);
+        
+        //once drained, requests are admitted again
+        executor.runAll();
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+    }
+    
+    @Test
+    public void rejects_when_rate_limited() {
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(new DeferredExecutor(), RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 5);
+        final RestXqService service = mockService(mock(ResourceFunction.class));
+        final RestXqRateLimiter rateLimiter = new RestXqRateLimiter(new TickerMock(), null);
+        rateLimiter.setRateLimit(service.getResourceFunction(), 1, 10, TimeUnit.SECONDS);
+        dispatcher.setRateLimiter(rateLimiter);
+        
+        assertTrue(dispatch(dispatcher, service, mock(HttpResponse.class)));
+        
+        final HttpResponse rejectedResponse = mock(HttpResponse.class);
+        assertFalse(dispatch(dispatcher, service, rejectedResponse));
+        verify(rejectedResponse).setStatus(HttpStatus.Too_Many_Requests);
+        verify(rejectedResponse).setHeader("Retry-After", "10");
+    }
+    
+    private boolean dispatch(final RestXqServiceDispatcher dispatcher, final RestXqService service, final HttpResponse response) {
+        return dispatcher.dispatch(service, mock(HttpRequest.class), response, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), new BlockingRestXqCompletion<Void>());
+    }
+    
+    private RestXqService mockService(final ResourceFunction resourceFunction) {
+        final RestXqService service = mock(RestXqService.class);
+        when(service.getResourceFunction()).thenReturn(resourceFunction);
+        return service;
+    }
+    
+    private static class DeferredExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+        
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+        
+        void runNext() {
+            tasks.remove(0).run();
+        }
+        
+        void runAll() {
+            for(final Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.annotation.ConsumesAnnotation;
+import org.exquery.restxq.annotation.HttpMethodAnnotation;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.annotation.ProducesAnnotation;
+import org.exquery.restxq.impl.ResourceFunctionMocks.RestXqServiceMock;
+import org.exquery.restxq.impl.RestXqServiceSelection.Outcome;
+import org.exquery.xquery3.FunctionSignature;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionArgument;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.functionSignature;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for RestXqServiceRegistryImpl
+ *
+ * @author Adam Retter
+ */
+public class RestXqServiceRegistryImplTest {
+
+    @Test
+    public void selectService_found() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final RestXqServiceMock service = service("person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        registry.register(service);
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.GET, "/person/1", null, null));
+
+        assertTrue(selection.isFound());
+        assertSame(service, selection.getResolution().getService());
+        assertEquals("1", selection.getResolution().getPathParameters().get("id"));
+        assertSame(service, registry.findService(request(HttpMethod.GET, "/person/1", null, null)));
+    }
+
+    @Test
+    public void selectService_noPathMatch() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.GET, "/other", null, null));
+
+        assertFalse(selection.isFound());
+        assertEquals(Outcome.NO_PATH_MATCH, selection.getOutcome());
+        assertEquals(HttpStatus.Not_Found, selection.getHttpStatus());
+        assertNull(registry.findService(request(HttpMethod.GET, "/other", null, null)));
+    }
+
+    @Test
+    public void selectService_methodNotAllowed() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET, HttpMethod.HEAD), null, null));
+        registry.register(service("post-person", "/person/1", EnumSet.of(HttpMethod.POST), null, null));
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.DELETE, "/person/1", null, null));
+
+        assertEquals(Outcome.METHOD_NOT_ALLOWED, selection.getOutcome());
+        assertEquals(HttpStatus.Method_Not_Allowed, selection.getHttpStatus());
+        assertEquals(EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.POST, HttpMethod.OPTIONS), selection.getAllowedMethods());
+        assertEquals("GET, HEAD, POST, OPTIONS", selection.getAllowHeaderValue());
+    }
+
+    @Test
+    public void selectService_head_falls_back_to_get() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final RestXqServiceMock getService = service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        registry.register(getService);
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.HEAD, "/person/1", null, null));
+
+        assertTrue(selection.isFound());
+        assertSame(getService, selection.getResolution().getService());
+        assertEquals(EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS), selection.getAllowedMethods());
+    }
+
+    @Test
+    public void selectService_head_prefers_explicit_head() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+        final RestXqServiceMock headService = service("head-person", "/person/1", EnumSet.of(HttpMethod.HEAD), null, null);
+        registry.register(headService);
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.HEAD, "/person/1", null, null));
+
+        assertSame(headService, selection.getResolution().getService());
+    }
+
+    @Test
+    public void selectService_options_answered_by_registry() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+        registry.register(service("put-person", "/person/1", EnumSet.of(HttpMethod.PUT), null, null));
+        final RestXqOptionsHandler optionsHandler = mock(RestXqOptionsHandler.class);
+        registry.setOptionsHandler(optionsHandler);
+
+        final HttpRequest request = request(HttpMethod.OPTIONS, "/person/1", null, null);
+        final RestXqServiceSelection selection = registry.selectService(request);
+        assertEquals(Outcome.OPTIONS, selection.getOutcome());
+
+        final HttpResponse response = mock(HttpResponse.class);
+        registry.serviceOptions(selection, request, response);
+
+        verify(response).setStatus(HttpStatus.OK);
+        verify(response).setHeader("Allow", "GET, HEAD, PUT, OPTIONS");
+        verify(response).setHeader("Content-Length", "0");
+        verify(optionsHandler).handleOptions(request, EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.PUT, HttpMethod.OPTIONS), response);
+    }
+
+    @Test
+    public void selectService_options_prefers_explicit_options() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+        final RestXqServiceMock optionsService = service("options-person", "/person/1", EnumSet.of(HttpMethod.OPTIONS), null, null);
+        registry.register(optionsService);
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.OPTIONS, "/person/1", null, null));
+
+        assertTrue(selection.isFound());
+        assertSame(optionsService, selection.getResolution().getService());
+    }
+
+    @Test
+    public void selectService_options_noPathMatch() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+
+        assertEquals(Outcome.NO_PATH_MATCH, registry.selectService(request(HttpMethod.OPTIONS, "/other", null, null)).getOutcome());
+    }
+
+    @Test
+    public void selectService_prefers_more_specific_path() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final RestXqServiceMock specificService = service("person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        when(specificService.getResourceFunction().getPathAnnotation().getPathSpecificityMetric()).thenReturn(Long.valueOf(8));
+        registry.register(specificService);
+        registry.register(service("any", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.GET, "/person/1", null, null));
+
+        assertSame(specificService, selection.getResolution().getService());
+    }
+
+    @Test
+    public void register_bulk() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null));
+        final long generation = registry.getGeneration();
+        
+        final RestXqServiceMock getService = service("get-person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        final RestXqServiceMock postService = service("post-person", "/person/1", EnumSet.of(HttpMethod.POST, HttpMethod.PUT), null, null);
+        registry.register(Arrays.<RestXqService>asList(getService, postService));
+
+        assertEquals(generation + 1, registry.getGeneration());
+        assertSame(getService, registry.selectService(request(HttpMethod.GET, "/person/1", null, null)).getResolution().getService());
+        assertSame(postService, registry.selectService(request(HttpMethod.PUT, "/person/1", null, null)).getResolution().getService());
+        
+        int count = 0;
+        for(final RestXqService service : registry) {
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void selectService_unsupportedMediaType() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("person", "/person/1", EnumSet.of(HttpMethod.POST), Boolean.FALSE, null));
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.POST, "/person/1", "text/plain", null));
+
+        assertEquals(Outcome.UNSUPPORTED_MEDIA_TYPE, selection.getOutcome());
+    }
+
+    @Test
+    public void selectService_notAcceptable() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(service("person", "/person/1", EnumSet.of(HttpMethod.POST), Boolean.TRUE, Boolean.FALSE));
+
+        final RestXqServiceSelection selection = registry.selectService(request(HttpMethod.POST, "/person/1", "application/xml", "text/plain"));
+
+        assertEquals(Outcome.NOT_ACCEPTABLE, selection.getOutcome());
+    }
+
+    @Test
+    public void deregister_invalidates_cached_selection() throws URISyntaxException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.setResolutionCache(new RestXqServiceResolutionCache(10));
+        final RestXqServiceMock service = service("person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        registry.register(service);
+
+        assertTrue(registry.selectService(request(HttpMethod.GET, "/person/1", null, null)).isFound());
+        assertEquals(1, registry.getResolutionCache().size());
+
+        registry.deregister(service);
+
+        assertEquals(Outcome.NO_PATH_MATCH, registry.selectService(request(HttpMethod.GET, "/person/1", null, null)).getOutcome());
+    }
+
+    private HttpRequest request(final HttpMethod method, final String path, final String contentType, final String accept) {
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getPath()).thenReturn(path);
+        when(request.getContentType()).thenReturn(contentType);
+        when(request.getHeader("Accept")).thenReturn(accept);
+        return request;
+    }
+
+    /**
+     * @param consumes null for no consumes annotation, otherwise whether the annotation matches
+     * @param produces null for no produces annotation, otherwise whether the annotation matches
+     */
+    @Test
+    public void deregister_invalidates_attachments() throws URISyntaxException, Exception {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final RestXqServiceMock service = service("person", "/person/1", EnumSet.of(HttpMethod.GET), null, null);
+        registry.register(service);
+        
+        final ResourceFunctionAttachments.Key<AutoCloseable> key = new ResourceFunctionAttachments.Key<AutoCloseable>("prepared-query");
+        final AutoCloseable preparedQuery = mock(AutoCloseable.class);
+        registry.getAttachments().put(service.getResourceFunction(), key, preparedQuery);
+        
+        registry.deregister(service);
+        
+        assertNull(registry.getAttachments().get(service.getResourceFunction(), key));
+        verify(preparedQuery).close();
+    }
+
+    private RestXqServiceMock service(final String name, final String path, final EnumSet<HttpMethod> methods, final Boolean consumes, final Boolean produces) throws URISyntaxException {
+        final PathAnnotation pathAnnotation = mock(PathAnnotation.class);
+        when(pathAnnotation.matchesPath(anyString())).thenReturn(false);
+        when(pathAnnotation.matchesPath(eq(path))).thenReturn(true);
+        when(pathAnnotation.extractPathParameters(eq(path))).thenReturn(Collections.singletonMap("id", path.substring(path.lastIndexOf('/') + 1)));
+        when(pathAnnotation.getPathSpecificityMetric()).thenReturn(Long.valueOf(7));
+
+        final Set<HttpMethodAnnotation> methodAnnotations = new HashSet<HttpMethodAnnotation>();
+        for(final HttpMethod method : methods) {
+            final HttpMethodAnnotation methodAnnotation = mock(HttpMethodAnnotation.class);
+            when(methodAnnotation.getHttpMethod()).thenReturn(method);
+            methodAnnotations.add(methodAnnotation);
+        }
+
+        final Set<ConsumesAnnotation> consumesAnnotations = new HashSet<ConsumesAnnotation>();
+        if(consumes != null) {
+            final ConsumesAnnotation consumesAnnotation = mock(ConsumesAnnotation.class);
+            when(consumesAnnotation.matchesMediaType(any(HttpRequest.class))).thenReturn(consumes);
+            consumesAnnotations.add(consumesAnnotation);
+        }
+
+        final Set<ProducesAnnotation> producesAnnotations = new HashSet<ProducesAnnotation>();
+        if(produces != null) {
+            final ProducesAnnotation producesAnnotation = mock(ProducesAnnotation.class);
+            when(producesAnnotation.matchesMediaType(any(HttpRequest.class))).thenReturn(produces);
+            producesAnnotations.add(producesAnnotation);
+        }
+
+        final FunctionSignature functionSignature = functionSignature(new QName("http://somewhere", name), functionArgument("id"));
+
+        final ResourceFunction resourceFunction = mock(ResourceFunction.class);
+        when(resourceFunction.getXQueryLocation()).thenReturn(new URI("/some.xquery"));
+        when(resourceFunction.getFunctionSignature()).thenReturn(functionSignature);
+        when(resourceFunction.getPathAnnotation()).thenReturn(pathAnnotation);
+        when(resourceFunction.getHttpMethodAnnotations()).thenReturn(methodAnnotations);
+        when(resourceFunction.getConsumesAnnotations()).thenReturn(consumesAnnotations);
+        when(resourceFunction.getProducesAnnotations()).thenReturn(producesAnnotations);
+
+        return new RestXqServiceMock(resourceFunction);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.RestXqService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for RestXqServiceResolutionCache
+ *
+ * @author Adam Retter
+ */
+public class RestXqServiceResolutionCacheTest {
+
+    @Test
+    public void get_returns_selection_for_same_generation() {
+        final RestXqServiceResolutionCache cache = new RestXqServiceResolutionCache(10);
+        final RestXqServiceSelection selection = selection("1");
+
+        cache.put(1, request(HttpMethod.GET, "/person/1", null, "application/xml"), selection);
+
+        assertSame(selection, cache.get(1, request(HttpMethod.GET, "/person/1", null, "application/xml")));
+    }
+
+    @Test
+    public void get_misses_for_different_accept() {
+        final RestXqServiceResolutionCache cache = new RestXqServiceResolutionCache(10);
+
+        cache.put(1, request(HttpMethod.GET, "/person/1", null, "application/xml"), selection("1"));
+
+        assertNull(cache.get(1, request(HttpMethod.GET, "/person/1", null, "application/json")));
+        assertNull(cache.get(1, request(HttpMethod.POST, "/person/1", null, "application/xml")));
+    }
+
+    @Test
+    public void get_misses_for_stale_generation() {
+        final RestXqServiceResolutionCache cache = new RestXqServiceResolutionCache(10);
+
+        cache.put(1, request(HttpMethod.GET, "/person/1", null, null), selection("1"));
+
+        assertNull(cache.get(2, request(HttpMethod.GET, "/person/1", null, null)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_is_bounded() {
+        final RestXqServiceResolutionCache cache = new RestXqServiceResolutionCache(5);
+
+        for(int i = 0; i < 20; i++) {
+            cache.put(1, request(HttpMethod.GET, "/person/" + i, null, null), selection(String.valueOf(i)));
+        }
+
+        assertTrue(cache.size() <= 5);
+    }
+
+    private HttpRequest request(final HttpMethod method, final String path, final String contentType, final String accept) {
+        final HttpRequest request = mock(HttpRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getPath()).thenReturn(path);
+        when(request.getContentType()).thenReturn(contentType);
+        when(request.getHeader("Accept")).thenReturn(accept);
+        return request;
+    }
+
+    private RestXqServiceSelection selection(final String id) {
+        final Map<String, String> pathParameters = new HashMap<String, String>();
+        pathParameters.put("id", id);
+        return RestXqServiceSelection.found(new RestXqServiceResolution(mock(RestXqService.class), pathParameters), EnumSet.of(HttpMethod.GET));
+    }
+}
@@ -26,14 +26,42 @@
  */
 package org.exquery.restxq.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.exquery.http.HttpMethod;
 import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.AsyncResourceFunctionExecuter;
+import org.exquery.restxq.CancellableResourceFunctionExecuter;
 import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqCancellationToken;
+import org.exquery.restxq.RestXqCompletion;
 import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
 import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.restxq.impl.annotation.DeadlineAnnotation;
+import org.exquery.serialization.annotation.SerializationAnnotation;
 import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -104,6 +132,204 @@ public class RestXqServiceTest {
         assertEquals(-1, result);
     }
     
+    @Test
+    public void serviceAsync_serializes_when_execution_completes() throws RestXqServiceException, Sequence.SequenceException {
+        
+        final ResourceFunction mockResourceFunction = mock(ResourceFunction.class);
+        final RestXqServiceMock restXqService = new RestXqServiceMock(mockResourceFunction);
+        final HttpRequest mockRequest = mock(HttpRequest.class);
+        when(mockRequest.getMethod()).thenReturn(HttpMethod.GET);
+        final HttpResponse mockResponse = mock(HttpResponse.class);
+        final RestXqServiceSerializer mockSerializer = mock(RestXqServiceSerializer.class);
+        final Sequence mockResult = mock(Sequence.class);
+        
+        final DeferredExecuter executer = new DeferredExecuter();
+        final BlockingRestXqCompletion<Void> completion = new BlockingRestXqCompletion<Void>();
+        
+        restXqService.serviceAsync(mockRequest, mockResponse, executer, mockSerializer, completion);
+        
+        //nothing is serialized until the execution completes
+        verify(mockSerializer, never()).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+        
+        executer.completion.completed(mockResult);
+        
+        assertNull(completion.get());
+        verify(mockSerializer).serialize(eq(mockResult), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), eq(mockResponse));
+        verify(mockResult).close();
+    }
+    
+    @Test
+    public void serviceAsync_propagates_execution_failure() throws RestXqServiceException {
+        
+        final ResourceFunction mockResourceFunction = mock(ResourceFunction.class);
+        final RestXqServiceMock restXqService = new RestXqServiceMock(mockResourceFunction);
+        final RestXqServiceSerializer mockSerializer = mock(RestXqServiceSerializer.class);
+        
+        final DeferredExecuter executer = new DeferredExecuter();
+        final BlockingRestXqCompletion<Void> completion = new BlockingRestXqCompletion<Void>();
+        
+        restXqService.serviceAsync(mock(HttpRequest.class), mock(HttpResponse.class), executer, mockSerializer, completion);
+        
+        final RestXqServiceException failure = new RestXqServiceException("failed");
+        executer.completion.failed(failure);
+        
+        try {
+            completion.get();
+            fail("Expected the execution failure");
+        } catch(final RestXqServiceException rqse) {
+            assertSame(failure, rqse);
+        }
+        verify(mockSerializer, never()).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+    }
+    
+    @Test
+    public void resourceFunctionExecuters_round_trip() throws RestXqServiceException {
+        
+        final ResourceFunction mockResourceFunction = mock(ResourceFunction.class);
+        final HttpRequest mockRequest = mock(HttpRequest.class);
+        final Sequence mockResult = mock(Sequence.class);
+        final ResourceFunctionExecuter mockExecuter = mock(ResourceFunctionExecuter.class);
+        when(mockExecuter.execute(eq(mockResourceFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), eq(mockRequest))).thenReturn(mockResult);
+        
+        final ResourceFunctionExecuter executer = ResourceFunctionExecuters.asSync(ResourceFunctionExecuters.asAsync(mockExecuter));
+        
+        assertSame(mockResult, executer.execute(mockResourceFunction, java.util.Collections.<TypedArgumentValue>emptySet(), mockRequest));
+    }
+    
+    @Test
+    public void deadline_cancels_execution() throws RestXqServiceException {
+        
+        final RestXqServiceMock restXqService = new RestXqServiceMock(mock(ResourceFunction.class));
+        restXqService.setDefaultDeadline(50);
+        final HttpResponse mockResponse = mock(HttpResponse.class);
+        
+        final CancellableResourceFunctionExecuter executer = new CancellableResourceFunctionExecuter() {
+            @Override
+            public Sequence execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCancellationToken cancellationToken) throws RestXqServiceException {
+                while(!cancellationToken.isCancelled()) {
+                    sleep(5);
+                }
+                throw new RestXqServiceException("cancelled");
+            }
+
+            @Override
+            public Sequence execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request) throws RestXqServiceException {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+        };
+        
+        restXqService.service(mock(HttpRequest.class), mockResponse, executer, mock(RestXqServiceSerializer.class));
+        
+        verify(mockResponse).setStatus(HttpStatus.Gateway_Timeout);
+        verify(mockResponse).setHeader(eq("Server-Timing"), startsWith("execute;dur="));
+    }
+    
+    @Test
+    public void deadline_stops_serialization() throws RestXqServiceException, IOException, Sequence.SequenceException {
+        
+        final RestXqServiceMock restXqService = new RestXqServiceMock(mock(ResourceFunction.class));
+        restXqService.setDefaultDeadline(50);
+        final HttpRequest mockRequest = mock(HttpRequest.class);
+        when(mockRequest.getMethod()).thenReturn(HttpMethod.GET);
+        final HttpResponse mockResponse = mock(HttpResponse.class);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        when(mockResponse.getOutputStream()).thenReturn(os);
+        final Sequence mockResult = mock(Sequence.class);
+        final AtomicReference<Thread> closedBy = new AtomicReference<Thread>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                closedBy.compareAndSet(null, Thread.currentThread());
+                return null;
+            }
+        }).when(mockResult).close();
+        final ResourceFunctionExecuter mockExecuter = mock(ResourceFunctionExecuter.class);
+        when(mockExecuter.execute(any(ResourceFunction.class), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), eq(mockRequest))).thenReturn(mockResult);
+        
+        //a serializer which writes until it fails
+        final RestXqServiceSerializer mockSerializer = mock(RestXqServiceSerializer.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final HttpResponse response = invocation.getArgument(2);
+                try {
+                    while(true) {
+                        response.getOutputStream().write(new byte[16]);
+                        sleep(5);
+                    }
+                } catch(final IOException ioe) {
+                    throw new RestXqServiceException(ioe.getMessage(), ioe);
+                }
+            }
+        }).when(mockSerializer).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+        
+        try {
+            restXqService.service(mockRequest, mockResponse, mockExecuter, mockSerializer);
+            fail("Expected the expiry to be reported, as part of the body has been written");
+        } catch(final RestXqServiceException rqse) {
+            assertTrue(os.size() > 0);
+            
+            //the result is closed by the thread serializing it, not the timer thread
+            verify(mockResult).close();
+            assertSame(Thread.currentThread(), closedBy.get());
+            verify(mockResponse, never()).setStatus(HttpStatus.Gateway_Timeout);
+        }
+    }
+    
+    @Test
+    public void deadline_answers_async_execution() throws RestXqServiceException, Sequence.SequenceException {
+        
+        final RestXqServiceMock restXqService = new RestXqServiceMock(mock(ResourceFunction.class));
+        restXqService.setDefaultDeadline(50);
+        final HttpResponse mockResponse = mock(HttpResponse.class);
+        final RestXqServiceSerializer mockSerializer = mock(RestXqServiceSerializer.class);
+        final DeferredExecuter executer = new DeferredExecuter();
+        final BlockingRestXqCompletion<Void> completion = new BlockingRestXqCompletion<Void>();
+        
+        restXqService.serviceAsync(mock(HttpRequest.class), mockResponse, executer, mockSerializer, completion);
+        
+        //answered on expiry, without waiting for the execution
+        assertNull(completion.get());
+        verify(mockResponse).setStatus(HttpStatus.Gateway_Timeout);
+        
+        //a late result is released, not serialized
+        final Sequence mockResult = mock(Sequence.class);
+        executer.completion.completed(mockResult);
+        verify(mockResult).close();
+        verify(mockSerializer, never()).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+    }
+    
+    @Test
+    public void deadline_from_annotation() {
+        final DeadlineAnnotation deadlineAnnotation = mock(DeadlineAnnotation.class);
+        when(deadlineAnnotation.getDeadline()).thenReturn(1000l);
+        final ResourceFunctionImpl resourceFunction = mock(ResourceFunctionImpl.class);
+        when(resourceFunction.getDeadlineAnnotation()).thenReturn(deadlineAnnotation);
+        
+        final RestXqServiceMock restXqService = new RestXqServiceMock(resourceFunction);
+        restXqService.setDefaultDeadline(50);
+        assertEquals(1000l, restXqService.getDeadline());
+        
+        assertEquals(AbstractRestXqService.NO_DEADLINE, new RestXqServiceMock(mock(ResourceFunction.class)).getDeadline());
+    }
+    
+    private static void sleep(final long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch(final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static class DeferredExecuter implements AsyncResourceFunctionExecuter {
+        private RestXqCompletion<Sequence> completion;
+        
+        @Override
+        public void execute(final ResourceFunction resourceFunction, final Iterable<TypedArgumentValue> arguments, final HttpRequest request, final RestXqCompletion<Sequence> completion) {
+            this.completion = completion;
+        }
+    }
+    
     private class RestXqServiceMock extends AbstractRestXqService {
 
         public RestXqServiceMock(final ResourceFunction resourceFunction) {
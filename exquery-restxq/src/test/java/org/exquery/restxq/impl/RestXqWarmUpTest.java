@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.PreparableResourceFunctionExecuter;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.impl.ResourceFunctionMocks.RestXqServiceMock;
+import org.exquery.serialization.annotation.SerializationAnnotation;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedArgumentValue;
+import org.junit.Test;
+import static org.exquery.restxq.impl.ResourceFunctionMocks.resourceFunction;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for warming up RESTXQ Services
+ *
+ * @author Adam Retter
+ */
+public class RestXqWarmUpTest {
+    
+    private final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+    
+    @Test
+    public void prepares_and_replays() throws RestXqServiceException, InterruptedException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        final ResourceFunction getFunction = resourceFunction(HttpMethod.GET, "/warm");
+        final ResourceFunction postFunction = resourceFunction(HttpMethod.POST, "/warm");
+        registry.register(new RestXqServiceMock(getFunction));
+        registry.register(new RestXqServiceMock(postFunction));
+        
+        final PreparableResourceFunctionExecuter executer = mock(PreparableResourceFunctionExecuter.class);
+        when(executer.execute(eq(getFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class))).thenReturn(mock(Sequence.class));
+        final RestXqServiceSerializer serializer = mock(RestXqServiceSerializer.class);
+        
+        final RestXqWarmUp warmUp = new RestXqWarmUp(registry, executer, serializer, new RestXqReadiness());
+        assertFalse(warmUp.getReadiness().isReady());
+        assertTrue(warmUp.warmUp(DIRECT_EXECUTOR, 1, TimeUnit.SECONDS));
+        assertTrue(warmUp.getReadiness().isReady());
+        
+        verify(executer).prepare(getFunction);
+        verify(executer).prepare(postFunction);
+        assertEquals(2, warmUp.getPreparedCount());
+        
+        //only the GET Service is sent a synthetic request
+        verify(executer).execute(eq(getFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class));
+        verify(executer, never()).execute(eq(postFunction), org.mockito.ArgumentMatchers.<Iterable<TypedArgumentValue>>any(), any(HttpRequest.class));
+        verify(serializer).serialize(any(Sequence.class), org.mockito.ArgumentMatchers.<SerializationAnnotation>anySet(), any(HttpResponse.class));
+        assertEquals(1, warmUp.getReplayedCount());
+        assertEquals(0, warmUp.getFailedCount());
+    }
+    
+    @Test
+    public void ready_when_budget_exhausted() throws InterruptedException {
+        final RestXqServiceRegistryImpl registry = new RestXqServiceRegistryImpl();
+        registry.register(new RestXqServiceMock(resourceFunction(HttpMethod.GET, "/warm")));
+        
+        final Executor neverExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                //never runs the warm-up
+            }
+        };
+        
+        final RestXqWarmUp warmUp = new RestXqWarmUp(registry, mock(ResourceFunctionExecuter.class), null, new RestXqReadiness());
+        assertFalse(warmUp.warmUp(neverExecutor, 10, TimeUnit.MILLISECONDS));
+        assertTrue(warmUp.getReadiness().isReady());
+    }
+    
+    @Test
+    public void dispatcher_rejects_until_ready() {
+        final RestXqServiceDispatcher dispatcher = new RestXqServiceDispatcher(DIRECT_EXECUTOR, RestXqServiceDispatcher.UNLIMITED, RestXqServiceDispatcher.UNLIMITED, 1);
+        final RestXqReadiness readiness = new RestXqReadiness();
+        dispatcher.setReadiness(readiness);
+        final RestXqServiceMock service = new RestXqServiceMock(resourceFunction(HttpMethod.GET, "/warm"));
+        
+        final HttpResponse rejectedResponse = mock(HttpResponse.class);
+        assertFalse(dispatcher.dispatch(service, mock(HttpRequest.class), rejectedResponse, mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), new BlockingRestXqCompletion<Void>()));
+        verify(rejectedResponse).setStatus(HttpStatus.Service_Unavailable);
+        
+        readiness.ready();
+        assertTrue(dispatcher.dispatch(service, mock(HttpRequest.class), mock(HttpResponse.class), mock(ResourceFunctionExecuter.class), mock(RestXqServiceSerializer.class), new BlockingRestXqCompletion<Void>()));
+    }
+}
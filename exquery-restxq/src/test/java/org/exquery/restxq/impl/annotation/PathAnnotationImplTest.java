@@ -455,6 +455,157 @@ public class PathAnnotationImplTest {
         assertEquals("seg1", requestPathParams.get("arg1"));
     }
 
+    @Test
+    public void parse_path_constrainedParam() throws RestAnnotationException {
+        final FunctionArgument[] args = {
+                new StrFnArg("id")
+        };
+
+        final PathAnnotationImpl pa = new PathAnnotationImpl();
+        pa.setFunctionSignature(new ArgsFunctionSignature(args));
+        pa.setLiterals(new Literal[]{
+                new StringLiteral("/person/{$id=[0-9]+}")
+        });
+
+        pa.initialise();
+
+        assertTrue(pa.matchesPath("/person/1981"));
+        assertFalse(pa.matchesPath("/person/elisabeth"));
+        final Map<String, String> requestPathParams = pa.extractPathParameters("/person/1981");
+        assertEquals(1, requestPathParams.size());
+        assertEquals("1981", requestPathParams.get("id"));
+        
+        assertEquals(6, pa.getPathSpecificityMetric());
+        assertEquals(5, pa.getPathConstraintMetric());
+    }
+
+    @Test
+    public void parse_path_constrainedParams_withGroupsAndQuantifiers() throws RestAnnotationException {
+        final FunctionArgument[] args = {
+                new StrFnArg("kind"),
+                new StrFnArg("year")
+        };
+
+        final PathAnnotationImpl pa = new PathAnnotationImpl();
+        pa.setFunctionSignature(new ArgsFunctionSignature(args));
+        pa.setLiterals(new Literal[]{
+                new StringLiteral("/{$kind=(book|film)}/{$year=[0-9]{4}}")
+        });
+
+        pa.initialise();
+
+        assertTrue(pa.matchesPath("/film/1981"));
+        assertFalse(pa.matchesPath("/film/81"));
+        assertFalse(pa.matchesPath("/song/1981"));
+        final Map<String, String> requestPathParams = pa.extractPathParameters("/film/1981");
+        assertEquals(2, requestPathParams.size());
+        assertEquals("film", requestPathParams.get("kind"));
+        assertEquals("1981", requestPathParams.get("year"));
+    }
+
+    @Test
+    public void parse_path_invalidConstraint() {
+        final FunctionArgument[] args = {
+                new StrFnArg("id")
+        };
+
+        final PathAnnotationImpl pa = new PathAnnotationImpl();
+        pa.setFunctionSignature(new ArgsFunctionSignature(args));
+        pa.setLiterals(new Literal[]{
+                new StringLiteral("/person/{$id=[0-9+}")
+        });
+
+        ErrorCode code = null;
+        try {
+            pa.initialise();
+        } catch(final RestAnnotationException rae) {
+            code = rae.getErrorCode();
+        }
+        
+        assertEquals(RestXqErrorCodes.RQST0004, code);
+    }
+
+    @Test
+    public void parse_path_invalid() {
+        final String[] invalidPaths = {
+            "/",
+            "//a",
+            "a/",
+            "/a//b",
+            "/a%zz",
+            "/a%2",
+            "/a b",
+            "/{a}",
+            "/{$}",
+            "/{$a",
+            "/{$a:}",
+            "/{$a=}",
+            "/{$a=[0-9]{x}}",
+            "/a}"
+        };
+        
+        for(final String invalidPath : invalidPaths) {
+            final PathAnnotationImpl pa = new PathAnnotationImpl();
+            pa.setFunctionSignature(new ArgsFunctionSignature(new FunctionArgument[]{ new StrFnArg("a") }));
+            pa.setLiterals(new Literal[]{
+                new StringLiteral(invalidPath)
+            });
+            
+            ErrorCode code = null;
+            try {
+                pa.initialise();
+            } catch(final RestAnnotationException rae) {
+                code = rae.getErrorCode();
+            }
+            
+            assertEquals(invalidPath, RestXqErrorCodes.RQST0004, code);
+            assertFalse(invalidPath, PathAnnotationImpl.ptnPath.matcher(invalidPath).matches());
+        }
+    }
+    
+    @Test
+    public void parse_path_valid_agrees_with_pathRegExp() throws RestAnnotationException {
+        final String[] validPaths = {
+            "a",
+            "/a/b/c",
+            "/a%2F/b",
+            "/~user/(x);y=1,2/@z:w",
+            "/{$a}",
+            "/x/{$a}.xml",
+            "/{$a}{$b}",
+            "/{$pfx:a}",
+            "/{$a=.+}",
+            "/{$a=[0-9]{2,4}}/b"
+        };
+        
+        for(final String validPath : validPaths) {
+            assertTrue(validPath, PathAnnotationImpl.ptnPath.matcher(validPath).matches());
+            PathTemplateScanner.scan(validPath);
+        }
+    }
+
+    @Test
+    public void parse_path_literalPrefix() throws RestAnnotationException {
+        final String[][] pathsAndPrefixes = {
+            { "person", "/person" },
+            { "/person/elisabeth/nose", "/person/elisabeth/nose" },
+            { "/person/{$arg1}", "/person/" },
+            { "/person/x{$arg1}/y", "/person/x" },
+            { "/{$arg1}/person", "/" }
+        };
+        
+        for(final String[] pathAndPrefix : pathsAndPrefixes) {
+            final PathAnnotationImpl pa = new PathAnnotationImpl();
+            pa.setFunctionSignature(new ArgsFunctionSignature(new FunctionArgument[]{ new StrFnArg("arg1") }));
+            pa.setLiterals(new Literal[]{
+                new StringLiteral(pathAndPrefix[0])
+            });
+            pa.initialise();
+            
+            assertEquals(pathAndPrefix[0], pathAndPrefix[1], pa.getLiteralPrefix());
+        }
+    }
+
     @Test
     public void parse_path_zeroParams() throws RestAnnotationException {
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.exquery.http.HttpResponse;
+import org.exquery.restxq.RestXqServiceException;
+import org.exquery.restxq.impl.BufferedHttpResponse;
+import org.exquery.serialization.annotation.MediaTypeAnnotation;
+import org.exquery.serialization.annotation.SerializationAnnotation;
+import org.exquery.xdm.type.SequenceImpl;
+import org.exquery.xdm.type.StringTypedValue;
+import org.exquery.xquery.Sequence;
+import org.exquery.xquery.TypedValue;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for serializing results as a text/event-stream
+ *
+ * @author Adam Retter
+ */
+public class AbstractRestXqServiceSerializerTest {
+    
+    @Test
+    public void item_per_event() throws RestXqServiceException, IOException {
+        final SequenceImpl<String> result = new SequenceImpl<String>();
+        result.add(new StringTypedValue("first\nsecond"));
+        result.add(new StringTypedValue("third"));
+        
+        final BufferedHttpResponse response = new BufferedHttpResponse();
+        new TextRestXqServiceSerializer().serialize(result, eventStream(), response);
+        
+        assertEquals("text/event-stream; charset=UTF-8", response.getContentType());
+        assertEquals("no-cache", response.getHeader("Cache-Control"));
+        assertEquals("data: first\ndata: second\n\ndata: third\n\n", new String(response.getBody(), "UTF-8"));
+    }
+    
+    @Test
+    public void closes_result_on_disconnect() throws IOException, InterruptedException {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final AtomicReference<Thread> closedBy = new AtomicReference<Thread>();
+        final Sequence<String> result = new Sequence<String>() {
+            @Override
+            public Iterator<TypedValue<String>> iterator() {
+                return new Iterator<TypedValue<String>>() {
+                    private boolean produced = false;
+                    
+                    @Override
+                    public boolean hasNext() {
+                        if(produced) {
+                            //waits for the next item, whilst a heartbeat finds the client has gone
+                            try {
+                                disconnected.await(1, TimeUnit.SECONDS);
+                            } catch(final InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public TypedValue<String> next() {
+                        if(produced) {
+                            return new StringTypedValue("next");
+                        }
+                        produced = true;
+                        return new StringTypedValue("only");
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public TypedValue<String> head() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Sequence<String> tail() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                closedBy.compareAndSet(null, Thread.currentThread());
+            }
+        };
+        
+        //the client disconnects after the first event
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final HttpResponse response = mock(HttpResponse.class);
+        when(response.getOutputStream()).thenReturn(new OutputStream() {
+            private int flushes = 0;
+            
+            @Override
+            public void write(final int b) throws IOException {
+                if(flushes > 0) {
+                    disconnected.countDown();
+                    throw new IOException("Connection reset");
+                }
+                written.write(b);
+            }
+            
+            @Override
+            public void flush() {
+                flushes++;
+            }
+        });
+        
+        final TextRestXqServiceSerializer serializer = new TextRestXqServiceSerializer();
+        serializer.setEventStreamHeartbeat(10, TimeUnit.MILLISECONDS);
+        try {
+            serializer.serialize(result, eventStream(), response);
+            fail("Expected the disconnect to be reported");
+        } catch(final RestXqServiceException rqse) {
+            //the result is closed by the thread iterating it, not the timer thread
+            assertSame(Thread.currentThread(), closedBy.get());
+            assertEquals("data: only\n\n", written.toString("UTF-8"));
+        }
+    }
+    
+    private Set<SerializationAnnotation> eventStream() {
+        final MediaTypeAnnotation mediaTypeAnnotation = mock(MediaTypeAnnotation.class);
+        when(mediaTypeAnnotation.getValue()).thenReturn("text/event-stream");
+        return Collections.<SerializationAnnotation>singleton(mediaTypeAnnotation);
+    }
+    
+    /**
+     * Serializes each item as its string value
+     */
+    private static class TextRestXqServiceSerializer extends AbstractRestXqServiceSerializer {
+        
+        @Override
+        protected void serializeBinaryBody(final Sequence result, final HttpResponse response) throws RestXqServiceException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void serializeNodeBody(final Sequence result, final HttpResponse response, final Map<SerializationProperty, String> serializationProperties) throws RestXqServiceException {
+            try {
+                for(final Object item : result) {
+                    response.getOutputStream().write(((TypedValue)item).getValue().toString().getBytes(serializationProperties.get(SerializationProperty.ENCODING)));
+                }
+            } catch(final IOException ioe) {
+                throw new RestXqServiceException(ioe.getMessage(), ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2012, Adam Retter / EXQuery
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exquery.restxq.impl.serialization;
+
+import java.io.StringReader;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.exquery.http.HttpResponse;
+import org.exquery.http.HttpStatus;
+import org.exquery.restxq.RestXqServiceException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/**
+ * Tests for processing rest:response
+ *
+ * @author Adam Retter
+ */
+public class RestResponseHandlerTest {
+    
+    private final static String REST_RESPONSE =
+        "<rest:response xmlns:rest=\"http://exquery.org/ns/restxq\">" +
+            "<output:serialization-parameters xmlns:output=\"http://www.w3.org/2010/xslt-xquery-serialization\">" +
+                "<output:method value=\"json\"/>" +
+            "</output:serialization-parameters>" +
+            "<http:response xmlns:http=\"http://expath.org/ns/http-client\" status=\"201\" reason=\"Made it\">" +
+                "<http:header name=\"Content-Type\" value=\"application/json; charset=UTF-8\"/>" +
+                "<http:header name=\"Location\" value=\"/x\"/>" +
+                "<nested><http:header name=\"Ignored\" value=\"ignored\"/></nested>" +
+            "</http:response>" +
+        "</rest:response>";
+    
+    @Test
+    public void process_element() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final Element restResponse = documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(REST_RESPONSE))).getDocumentElement();
+        
+        final Map<SerializationProperty, String> serializationProperties = new EnumMap<SerializationProperty, String>(SerializationProperty.class);
+        final HttpResponse response = mock(HttpResponse.class);
+        
+        new RestResponseHandler().process(restResponse, serializationProperties, response);
+        
+        assertProcessed(serializationProperties, response);
+    }
+    
+    @Test
+    public void process_element_overridden_headers() throws Exception {
+        final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final Element restResponse = documentBuilderFactory.newDocumentBuilder().parse(new InputSource(new StringReader(REST_RESPONSE))).getDocumentElement();
+        
+        final HttpResponse response = mock(HttpResponse.class);
+        final AtomicInteger headers = new AtomicInteger();
+        
+        new RestResponseHandler() {
+            @Override
+            protected void processHttpHeaders(final NodeList nlHttpHeader, final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) {
+                headers.set(nlHttpHeader.getLength());
+            }
+        }.process(restResponse, new EnumMap<SerializationProperty, String>(SerializationProperty.class), response);
+        
+        assertEquals(2, headers.get());
+        verify(response).setStatus(HttpStatus.Created, "Made it");
+        verifyNoMoreInteractions(response);
+    }
+    
+    @Test
+    public void process_events() throws Exception {
+        final XMLStreamReader restResponse = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(REST_RESPONSE));
+        restResponse.nextTag();
+        
+        final Map<SerializationProperty, String> serializationProperties = new EnumMap<SerializationProperty, String>(SerializationProperty.class);
+        final HttpResponse response = mock(HttpResponse.class);
+        
+        new RestResponseHandler().process(restResponse, serializationProperties, response);
+        
+        assertProcessed(serializationProperties, response);
+        assertTrue(restResponse.isEndElement());
+        assertEquals(RestResponseHandler.REST_RESPONSE_ELEMENT_NAME, restResponse.getName());
+        restResponse.next();
+        assertEquals(XMLStreamConstants.END_DOCUMENT, restResponse.getEventType());
+    }
+    
+    @Test(expected = RestXqServiceException.class)
+    public void process_events_not_at_rest_response() throws Exception {
+        final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader("<other/>"));
+        reader.nextTag();
+        
+        new RestResponseHandler().process(reader, new EnumMap<SerializationProperty, String>(SerializationProperty.class), mock(HttpResponse.class));
+    }
+    
+    private void assertProcessed(final Map<SerializationProperty, String> serializationProperties, final HttpResponse response) {
+        assertEquals("json", serializationProperties.get(SerializationProperty.METHOD));
+        assertEquals("application/json", serializationProperties.get(SerializationProperty.MEDIA_TYPE));
+        
+        verify(response).setStatus(HttpStatus.Created, "Made it");
+        verify(response).setHeader("Content-Type", "application/json; charset=UTF-8");
+        verify(response).setHeader("Location", "/x");
+        verifyNoMoreInteractions(response);
+    }
+}
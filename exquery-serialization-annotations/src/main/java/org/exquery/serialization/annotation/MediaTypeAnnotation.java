@@ -29,6 +29,7 @@ package org.exquery.serialization.annotation;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.exquery.http.InternetMediaType;
+import org.exquery.http.MediaType;
 
 /**
  * Serialization Media Type Annotation
@@ -41,10 +42,20 @@ public class MediaTypeAnnotation extends AbstractSingleValueSerializationAnnotat
     //Regular Expression to match any Internet Media Type
     private final static Pattern ptnMediaType = Pattern.compile(InternetMediaType.mediaType_regExp);
 
+    /**
+     * Validates the Media Type, and interns it so that
+     * the Content-Type of the response can be set
+     * from the canonical instance
+     */
     @Override
     protected boolean validate(final String value) {
         final Matcher mtcMediaType = ptnMediaType.matcher(value);
-        return mtcMediaType.matches();
+        if(!mtcMediaType.matches()) {
+            return false;
+        }
+        
+        MediaType.intern(value);
+        return true;
     }
 
     @Override